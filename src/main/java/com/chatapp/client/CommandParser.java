@@ -1,17 +1,25 @@
 package com.chatapp.client;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
+import com.chatapp.Chat.Priority;
 import com.chatapp.client.commands.Command;
 import com.chatapp.client.commands.ConnectCommand;
 import com.chatapp.client.commands.CreateAccountCommand;
+import com.chatapp.client.commands.CreateGroupCommand;
 import com.chatapp.client.commands.DeleteAccountCommand;
 import com.chatapp.client.commands.EmptyCommand;
+import com.chatapp.client.commands.FetchMessagesCommand;
 import com.chatapp.client.commands.ListAccountsCommand;
 import com.chatapp.client.commands.LogInCommand;
 import com.chatapp.client.commands.LogOutCommand;
 import com.chatapp.client.commands.QuitCommand;
+import com.chatapp.client.commands.SendGroupMessageCommand;
 import com.chatapp.client.commands.SendMessageCommand;
+import com.chatapp.client.commands.UpdateGroupCommand;
 
 /*
  * Parses a single string representing a commandline command into a Command object
@@ -55,23 +63,43 @@ public class CommandParser {
         case "create_account":
           return new CreateAccountCommand(args[0]);
         case "list_accounts":
-          return new ListAccountsCommand(args[0]);
+          // "list_accounts <pattern> all" streams every match, "list_accounts <pattern> [count] [after]" lists one page
+          if (args.length > 1 && args[1].equals("all")) {
+            return new ListAccountsCommand(args[0], 0, args.length > 2 ? args[2] : "", true);
+          }
+          return new ListAccountsCommand(args[0], args.length > 1 ? Integer.parseInt(args[1]) : 0, args.length > 2 ? args[2] : "", false);
         case "logout":
           return new LogOutCommand();
         case "login":
-          return new LogInCommand(args[0]);
+          // "login <user> new" only pushes new messages and leaves the waiting ones to fetch
+          if (args.length > 1 && !args[1].equals("new")) {
+            throw new IllegalArgumentException("Unknown login mode: " + args[1]);
+          }
+          return new LogInCommand(args[0], args.length > 1);
+        case "fetch":
+          return new FetchMessagesCommand(args.length > 0 ? Integer.parseInt(args[0]) : 0);
         case "delete_account":
           return new DeleteAccountCommand(args[0]);
         case "send":
-          // Recombine the message that got split
-          StringBuilder message = new StringBuilder();
-          for (int i = 1; i < args.length; i++) {
-            message.append(args[i]);
-            if (i != args.length - 1) {
-              message.append(" ");
-            }
-          }
-          return new SendMessageCommand(args[0], message.toString());
+          return new SendMessageCommand(args[0], recombine(args));
+        case "send_high":
+          return new SendMessageCommand(args[0], recombine(args), Priority.HIGH);
+        case "send_bulk":
+          return new SendMessageCommand(args[0], recombine(args), Priority.BULK);
+        case "send_later":
+          // "send_later <user> <seconds> <message>" delivers the message that many seconds from now
+          return new SendMessageCommand(args[0], recombine(args, 2), Priority.NORMAL, secondsFromNow(args[1]), 0);
+        case "send_expiring":
+          // "send_expiring <user> <seconds> <message>" drops the message if it was not delivered within that many seconds
+          return new SendMessageCommand(args[0], recombine(args, 2), Priority.NORMAL, 0, secondsFromNow(args[1]));
+        case "create_group":
+          return new CreateGroupCommand(args[0], members(args));
+        case "add_to_group":
+          return new UpdateGroupCommand(args[0], members(args), new ArrayList<String>());
+        case "remove_from_group":
+          return new UpdateGroupCommand(args[0], new ArrayList<String>(), members(args));
+        case "send_group":
+          return new SendGroupMessageCommand(args[0], recombine(args));
 
         // If the command name is not recognized, throw an exception
         default:
@@ -85,4 +113,35 @@ public class CommandParser {
       }
     }
   }
+
+  // Recombine the message that got split, which is every argument after the first
+  private static String recombine(String[] args) {
+    return recombine(args, 1);
+  }
+
+  // Recombine the message that got split, which is every argument from the given one on
+  private static String recombine(String[] args, int from) {
+    StringBuilder message = new StringBuilder();
+    for (int i = from; i < args.length; i++) {
+      message.append(args[i]);
+      if (i != args.length - 1) {
+        message.append(" ");
+      }
+    }
+    return message.toString();
+  }
+
+  // The time the given number of seconds from now, in milliseconds since the epoch
+  private static long secondsFromNow(String seconds) {
+    long delay = Long.parseLong(seconds);
+    if (delay <= 0) {
+      throw new IllegalArgumentException("The number of seconds must be positive: " + seconds);
+    }
+    return System.currentTimeMillis() + delay * 1000;
+  }
+
+  // The usernames listed after the group
+  private static List<String> members(String[] args) {
+    return new ArrayList<String>(Arrays.asList(args).subList(1, args.length));
+  }
 }
\ No newline at end of file
@@ -1,27 +1,42 @@
 package com.chatapp.client;
 
 import com.chatapp.ChatServiceGrpc;
+import com.chatapp.Chat.AcknowledgeMessagesRequest;
 import com.chatapp.Chat.ChatMessage;
 import com.chatapp.Chat.Content;
 import com.chatapp.Chat.CreateAccountRequest;
+import com.chatapp.Chat.CreateGroupRequest;
 import com.chatapp.Chat.DeleteAccountRequest;
+import com.chatapp.Chat.DistributeMessageBatch;
+import com.chatapp.Chat.DistributeMessageRequest;
+import com.chatapp.Chat.FetchMessagesRequest;
+import com.chatapp.Chat.FetchMessagesResponse;
 import com.chatapp.Chat.ListAccountsRequest;
+import com.chatapp.Chat.ListAccountsResponse;
 import com.chatapp.Chat.LogInRequest;
 import com.chatapp.Chat.LogOutRequest;
 import com.chatapp.Chat.Ping;
+import com.chatapp.Chat.SendGroupMessageRequest;
 import com.chatapp.Chat.SendMessageRequest;
+import com.chatapp.Chat.UpdateGroupRequest;
 import com.chatapp.ChatServiceGrpc.ChatServiceStub;
 import com.chatapp.client.commands.Command;
 import com.chatapp.client.commands.CreateAccountCommand;
+import com.chatapp.client.commands.CreateGroupCommand;
 import com.chatapp.client.commands.DeleteAccountCommand;
+import com.chatapp.client.commands.FetchMessagesCommand;
 import com.chatapp.client.commands.ListAccountsCommand;
 import com.chatapp.client.commands.LogInCommand;
 import com.chatapp.client.commands.LogOutCommand;
+import com.chatapp.client.commands.SendGroupMessageCommand;
 import com.chatapp.client.commands.SendMessageCommand;
+import com.chatapp.client.commands.UpdateGroupCommand;
 import com.chatapp.protocol.Server;
 import com.google.rpc.Status;
 import com.google.rpc.Code;
 
+import java.util.HashMap;
+
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
@@ -41,6 +56,21 @@ public class ConnectionManager extends Thread {
   // The channel represents the connection to the server and is used to close the connection when the server is changed
   ManagedChannel channel;
 
+  // The user this client last logged in as, or null after logging out, and the sequence number of the last message received for each user, guarded by this
+  String username;
+  HashMap<String, Long> lastReceived = new HashMap<String, Long>();
+
+  // Whether the user logged in asking for new messages only, whether some of the messages held back for them may not be fetched yet,
+  // the sequence number of the last message fetched and the one up to which every pushed message was received, guarded by this
+  boolean pushOnlyNew = false;
+  boolean backlog = false;
+  long fetched = 0;
+  long pushed = 0;
+
+  // The last listing of accounts asked for, and whether the pages of a streamed listing are still coming in, guarded by this
+  ListAccountsCommand listing = null;
+  boolean listingOpen = false;
+
   // Constructor
   public ConnectionManager() {
     serverManager = new ServerManager();
@@ -72,7 +102,18 @@ public class ConnectionManager extends Thread {
           observer = createObserverFor(serverManager.getNext());
 
           // Send a ping to make sure the server is alive
-          observer.onNext(ChatMessage.newBuilder().setContent(Content.newBuilder().setPing(Ping.newBuilder().build()).build()).build());
+          send(ChatMessage.newBuilder().setContent(Content.newBuilder().setPing(Ping.newBuilder().build()).build()).build());
+
+          // Log back in, so that the new server resumes delivery after the last message received from the old one
+          String user;
+          boolean onlyNew;
+          synchronized (ConnectionManager.this) {
+            user = username;
+            onlyNew = pushOnlyNew;
+          }
+          if (user != null) {
+            logIn(user, onlyNew);
+          }
         }
 
         // this callback is called when the server sends a message to the client
@@ -93,24 +134,42 @@ public class ConnectionManager extends Thread {
 
           // if the message is a message distribution, print the message for the user to see
           if (message.getContent().hasDistributeMessageRequest()) {
-            // use printf
-            System.out.printf(
-              "[%s]: %s\n",
-              message.getContent().getDistributeMessageRequest().getSender(),
-              message.getContent().getDistributeMessageRequest().getMessage()
-            );
+            DistributeMessageRequest distributed = message.getContent().getDistributeMessageRequest();
+            System.out.print(format(distributed));
+            acknowledge(distributed.getSequence(), distributed.getReceivedThrough());
             return;
           }
 
-          // if the message is a listing of accounts, then print the accounts for the user to see. Use a StringBuilder so that it can be printed all at once to avoid being interrupted by some other print statement
-          if (message.getContent().hasListAccountsResponse()) {
+          // if the message is a batch of distributed messages, print them all at once, in order. Use a StringBuilder so that they are not interleaved with other print statements
+          if (message.getContent().hasDistributeMessageBatch()) {
             StringBuilder sb = new StringBuilder();
-            sb.append("*** Accounts ***\n");
-            for (String account : message.getContent().getListAccountsResponse().getAccountsList()) {
-              sb.append(account + "\n");
+            for (DistributeMessageRequest distributed : message.getContent().getDistributeMessageBatch().getMessagesList()) {
+              sb.append(format(distributed));
+            }
+            System.out.print(sb.toString());
+            DistributeMessageBatch batch = message.getContent().getDistributeMessageBatch();
+            if (batch.getMessagesCount() > 0) {
+              acknowledge(batch.getMessages(batch.getMessagesCount() - 1).getSequence(), batch.getReceivedThrough());
             }
-            sb.append("****************");
+            return;
+          }
+
+          // if the message is a page of the messages held back, print them all at once, in order, and remember where the next page starts
+          if (message.getContent().hasFetchMessagesResponse() && message.getContent().getFetchMessagesResponse().getStatus().getCode() == Code.OK_VALUE) {
+            FetchMessagesResponse page = message.getContent().getFetchMessagesResponse();
+            StringBuilder sb = new StringBuilder();
+            for (DistributeMessageRequest distributed : page.getMessagesList()) {
+              sb.append(format(distributed));
+            }
+            sb.append("-> " + page.getStatus().getMessage());
             System.out.println(sb.toString());
+            fetched(page);
+            return;
+          }
+
+          // if the message is a listing of accounts, then print the accounts for the user to see. Use a StringBuilder so that it can be printed all at once to avoid being interrupted by some other print statement
+          if (message.getContent().hasListAccountsResponse()) {
+            System.out.println(listed(message.getContent().getListAccountsResponse()));
             return;
           }
 
@@ -143,6 +202,131 @@ public class ConnectionManager extends Thread {
       });
     }
   
+  /**
+   * Format a distributed message for the user to see, with the group it was
+   * sent to if there is one
+   * @param distributed
+   */
+  private static String format(DistributeMessageRequest distributed) {
+    if (distributed.getGroup().isEmpty()) {
+      return String.format("[%s]: %s\n", distributed.getSender(), distributed.getMessage());
+    }
+    return String.format("[%s @ %s]: %s\n", distributed.getSender(), distributed.getGroup(), distributed.getMessage());
+  }
+
+  /**
+   * Send a message to the server. The observer is not thread-safe, and both
+   * this thread and the callbacks for the server's messages send on it.
+   */
+  private synchronized void send(ChatMessage message) {
+    observer.onNext(message);
+  }
+
+  /**
+   * Tell the server that every message it sent up to and including the
+   * given one was received, so that it is not delivered again
+   * @param sequence the sequence number of the last message received, or 0 if the server does not number messages
+   * @param receivedThrough the sequence number up to which every message was received, which is where the next log in
+   *        resumes, since messages of different priorities are not sent in the order of their numbers
+   */
+  private void acknowledge(long sequence, long receivedThrough) {
+    if (sequence > 0) {
+      synchronized (this) {
+        pushed = Math.max(pushed, receivedThrough);
+        // messages held back before the pushed ones may not be fetched yet, so the next log in must not skip them
+        if (username != null && !backlog) {
+          lastReceived.put(username, pushed);
+        }
+      }
+      send(ChatMessage.newBuilder()
+        .setContent(
+          Content.newBuilder()
+            .setAcknowledgeMessagesRequest(
+              AcknowledgeMessagesRequest.newBuilder()
+                .setSequence(sequence)
+                .build()
+            ).build()
+        ).build());
+    }
+  }
+
+  /**
+   * Record a page of the messages held back, so that the next page and the
+   * next log in start after it
+   * @param page
+   */
+  private synchronized void fetched(FetchMessagesResponse page) {
+    if (page.getMessagesCount() > 0) {
+      fetched = page.getMessages(page.getMessagesCount() - 1).getSequence();
+    }
+    if (!page.getHasMore()) {
+      backlog = false;
+    }
+    if (username != null) {
+      lastReceived.put(username, backlog ? fetched : Math.max(fetched, pushed));
+    }
+  }
+
+  /**
+   * Render a page of a listing of accounts: the header before the first page
+   * and, after the last one, the footer and how to list the next page if the
+   * listing stopped before the last match
+   * @param page
+   */
+  private synchronized String listed(ListAccountsResponse page) {
+    StringBuilder sb = new StringBuilder();
+    if (!listingOpen) {
+      sb.append("*** Accounts ***\n");
+    }
+    for (String account : page.getAccountsList()) {
+      sb.append(account + "\n");
+    }
+    listingOpen = page.getHasMore() && listing != null && listing.isStream();
+    if (listingOpen) {
+      // the next page continues the listing
+      if (sb.length() > 0) {
+        sb.setLength(sb.length() - 1);
+      }
+      return sb.toString();
+    }
+    sb.append("****************");
+    if (page.getHasMore() && listing != null && page.getAccountsCount() > 0) {
+      sb.append("\n-> More accounts match, list the next page with: list_accounts " + listing.getPattern() + " "
+          + page.getAccountsCount() + " " + page.getAccounts(page.getAccountsCount() - 1));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Log in as the given user, telling the server which message was received
+   * for them last, so that it does not send it or any message before it again
+   * @param user
+   * @param onlyNew whether to leave the messages that are waiting to be fetched instead of pushed
+   */
+  private void logIn(String user, boolean onlyNew) {
+    long sequence;
+    synchronized (this) {
+      username = user;
+      Long last = lastReceived.get(user);
+      sequence = last == null ? 0 : last;
+      pushOnlyNew = onlyNew;
+      backlog = onlyNew;
+      fetched = sequence;
+      pushed = sequence;
+    }
+    send(ChatMessage.newBuilder()
+      .setContent(
+        Content.newBuilder()
+        .setLogInRequest(
+              LogInRequest.newBuilder()
+                .setUsername(user)
+                .setLastReceivedSequence(sequence)
+                .setPushOnlyNew(onlyNew)
+                .build()
+            ).build()
+      ).build());
+  }
+
   /**
    * This method is run when the thread is started.
    * Connects to the server, defining the callback handlers in the process, then enters an infinite loop where it pops commands off the queue and executes them. It blocks if the command queue is empty.
@@ -172,7 +356,7 @@ public class ConnectionManager extends Thread {
                     .build()
                 ).build()
             ).build();
-            observer.onNext(message);
+            send(message);
         }
 
         // ------------------ DELETE ACCOUNT ------------------
@@ -187,41 +371,42 @@ public class ConnectionManager extends Thread {
                     .build()
                 ).build()
             ).build();
-            observer.onNext(message);
+            send(message);
         }
 
         // ------------------ LIST ACCOUNTS ------------------
         else if (command instanceof ListAccountsCommand) {
           ListAccountsCommand cast = (ListAccountsCommand) command;
+          synchronized (this) {
+            listing = cast;
+            listingOpen = false;
+          }
           ChatMessage message = ChatMessage.newBuilder()
             .setContent(
               Content.newBuilder()
                 .setListAccountsRequest(
                   ListAccountsRequest.newBuilder()
                     .setPattern(cast.getPattern())
+                    .setLimit(cast.getLimit())
+                    .setAfter(cast.getAfter())
+                    .setStream(cast.isStream())
                     .build()
                 ).build()
             ).build();
-            observer.onNext(message);
+            send(message);
         }
 
         // ------------------ LOG IN ------------------
         else if (command instanceof LogInCommand) {
           LogInCommand cast = (LogInCommand) command;
-          ChatMessage message = ChatMessage.newBuilder()
-            .setContent(
-              Content.newBuilder()
-              .setLogInRequest(
-                    LogInRequest.newBuilder()
-                      .setUsername(cast.getUsername())
-                      .build()
-                  ).build()
-            ).build();
-            observer.onNext(message);
+          logIn(cast.getUsername(), cast.isPushOnlyNew());
         }
 
         // ------------------ LOG OUT ------------------
         else if (command instanceof LogOutCommand) {
+          synchronized (this) {
+            username = null;
+          }
           // create a LogOutResponse, which contains nothing
           ChatMessage message = ChatMessage.newBuilder()
             .setContent(
@@ -231,7 +416,7 @@ public class ConnectionManager extends Thread {
                     .build()
                 ).build()
             ).build();
-            observer.onNext(message);
+            send(message);
         }
 
         // ------------------ SEND MESSAGE ------------------
@@ -244,10 +429,82 @@ public class ConnectionManager extends Thread {
                   SendMessageRequest.newBuilder()
                     .setRecipient(cast.getRecipient())
                     .setMessage(cast.getMessage())
+                    .setPriority(cast.getPriority())
+                    .setDeliverAt(cast.getDeliverAt())
+                    .setExpireAt(cast.getExpireAt())
+                    .build()
+                ).build()
+            ).build();
+            send(message);
+        }
+
+        // ------------------ FETCH MESSAGES ------------------
+        else if (command instanceof FetchMessagesCommand) {
+          FetchMessagesCommand cast = (FetchMessagesCommand) command;
+          long after;
+          synchronized (this) {
+            after = fetched;
+          }
+          ChatMessage message = ChatMessage.newBuilder()
+            .setContent(
+              Content.newBuilder()
+                .setFetchMessagesRequest(
+                  FetchMessagesRequest.newBuilder()
+                    .setAfter(after)
+                    .setLimit(cast.getLimit())
+                    .build()
+                ).build()
+            ).build();
+            send(message);
+        }
+
+        // ------------------ CREATE GROUP ------------------
+        else if (command instanceof CreateGroupCommand) {
+          CreateGroupCommand cast = (CreateGroupCommand) command;
+          ChatMessage message = ChatMessage.newBuilder()
+            .setContent(
+              Content.newBuilder()
+                .setCreateGroupRequest(
+                  CreateGroupRequest.newBuilder()
+                    .setGroup(cast.getGroup())
+                    .addAllMembers(cast.getMembers())
+                    .build()
+                ).build()
+            ).build();
+            send(message);
+        }
+
+        // ------------------ UPDATE GROUP ------------------
+        else if (command instanceof UpdateGroupCommand) {
+          UpdateGroupCommand cast = (UpdateGroupCommand) command;
+          ChatMessage message = ChatMessage.newBuilder()
+            .setContent(
+              Content.newBuilder()
+                .setUpdateGroupRequest(
+                  UpdateGroupRequest.newBuilder()
+                    .setGroup(cast.getGroup())
+                    .addAllAdd(cast.getAdd())
+                    .addAllRemove(cast.getRemove())
+                    .build()
+                ).build()
+            ).build();
+            send(message);
+        }
+
+        // ------------------ SEND GROUP MESSAGE ------------------
+        else if (command instanceof SendGroupMessageCommand) {
+          SendGroupMessageCommand cast = (SendGroupMessageCommand) command;
+          ChatMessage message = ChatMessage.newBuilder()
+            .setContent(
+              Content.newBuilder()
+                .setSendGroupMessageRequest(
+                  SendGroupMessageRequest.newBuilder()
+                    .setGroup(cast.getGroup())
+                    .setMessage(cast.getMessage())
                     .build()
                 ).build()
             ).build();
-            observer.onNext(message);
+            send(message);
         }
       } catch (Exception e) {
         // if an exception is thrown, print the error message
@@ -275,6 +532,14 @@ public class ConnectionManager extends Thread {
       status = c.getSendMessageResponse().getStatus();
     } else if (c.hasDeleteAccountResponse()) {
       status = c.getDeleteAccountResponse().getStatus();
+    } else if (c.hasCreateGroupResponse()) {
+      status = c.getCreateGroupResponse().getStatus();
+    } else if (c.hasUpdateGroupResponse()) {
+      status = c.getUpdateGroupResponse().getStatus();
+    } else if (c.hasSendGroupMessageResponse()) {
+      status = c.getSendGroupMessageResponse().getStatus();
+    } else if (c.hasFetchMessagesResponse()) {
+      status = c.getFetchMessagesResponse().getStatus();
     } else {
       status = null;
     }
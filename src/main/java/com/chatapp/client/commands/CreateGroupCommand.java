@@ -0,0 +1,29 @@
+package com.chatapp.client.commands;
+
+import java.util.List;
+
+// A class that represents a command to create a group of users
+
+public class CreateGroupCommand implements Command {
+  private String group;
+  private List<String> members;
+
+  public CreateGroupCommand(String group, List<String> members) throws IllegalArgumentException {
+    if (group == null || group.isEmpty()) {
+      throw new IllegalArgumentException("Group cannot be null or empty");
+    }
+    if (members == null || members.isEmpty()) {
+      throw new IllegalArgumentException("Members cannot be null or empty");
+    }
+    this.group = group;
+    this.members = members;
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public List<String> getMembers() {
+    return members;
+  }
+}
@@ -0,0 +1,19 @@
+package com.chatapp.client.commands;
+
+// A class that represents a command to fetch the next page of the messages that were waiting when logging in
+
+public class FetchMessagesCommand implements Command {
+  private int limit;
+
+  // A limit of 0 lets the server choose the size of the page
+  public FetchMessagesCommand(int limit) throws IllegalArgumentException {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Limit cannot be negative");
+    }
+    this.limit = limit;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+}
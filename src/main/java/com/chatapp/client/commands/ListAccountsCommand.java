@@ -1,18 +1,44 @@
 package com.chatapp.client.commands;
 
-// A class that represents a command to list accounts
+// A class that represents a command to list accounts, a page at a time or streamed
 
 public class ListAccountsCommand implements Command {
   private String pattern;
+  private int limit;
+  private String after;
+  private boolean stream;
 
   public ListAccountsCommand(String pattern) throws IllegalArgumentException {
+    this(pattern, 0, "", false);
+  }
+
+  // A limit of 0 lets the server choose the size of the pages, and an empty cursor starts with the first match
+  public ListAccountsCommand(String pattern, int limit, String after, boolean stream) throws IllegalArgumentException {
     if (pattern == null || pattern.isEmpty()) {
       throw new IllegalArgumentException("Username cannot be null or empty");
     }
+    if (limit < 0) {
+      throw new IllegalArgumentException("Limit cannot be negative");
+    }
     this.pattern = pattern;
+    this.limit = limit;
+    this.after = after == null ? "" : after;
+    this.stream = stream;
   }
 
   public String getPattern() {
     return pattern;
   }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public String getAfter() {
+    return after;
+  }
+
+  public boolean isStream() {
+    return stream;
+  }
 }
@@ -4,15 +4,26 @@ package com.chatapp.client.commands;
 
 public class LogInCommand implements Command {
   private String username;
+  private boolean pushOnlyNew;
 
   public LogInCommand(String username) throws IllegalArgumentException {
+    this(username, false);
+  }
+
+  // If pushOnlyNew is set, the messages already waiting are left to be fetched with FetchMessagesCommand
+  public LogInCommand(String username, boolean pushOnlyNew) throws IllegalArgumentException {
     if (username == null || username.isEmpty()) {
       throw new IllegalArgumentException("Username cannot be null or empty");
     }
     this.username = username;
+    this.pushOnlyNew = pushOnlyNew;
   }
 
   public String getUsername() {
     return username;
   }
+
+  public boolean isPushOnlyNew() {
+    return pushOnlyNew;
+  }
 }
@@ -0,0 +1,27 @@
+package com.chatapp.client.commands;
+
+// A class that represents a command to send a message to every other member of a group
+
+public class SendGroupMessageCommand implements Command {
+  private String group;
+  private String message;
+
+  public SendGroupMessageCommand(String group, String message) throws IllegalArgumentException {
+    if (group == null || group.isEmpty()) {
+      throw new IllegalArgumentException("Group cannot be null or empty");
+    }
+    if (message == null || message.isEmpty()) {
+      throw new IllegalArgumentException("Message cannot be null or empty");
+    }
+    this.group = group;
+    this.message = message;
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+}
@@ -1,12 +1,27 @@
 package com.chatapp.client.commands;
 
-// A class that represents a command to send a message to a user
+import com.chatapp.Chat.Priority;
+
+// A class that represents a command to send a message to a user, with the priority it is delivered with and optionally when it is
+// delivered and when it expires
 
 public class SendMessageCommand implements Command {
   private String recipient;
   private String message;
+  private Priority priority;
+  // In milliseconds since the epoch, or 0 to deliver it now and to keep it until it is delivered
+  private long deliverAt;
+  private long expireAt;
 
   public SendMessageCommand(String recipient, String message) throws IllegalArgumentException {
+    this(recipient, message, Priority.NORMAL);
+  }
+
+  public SendMessageCommand(String recipient, String message, Priority priority) throws IllegalArgumentException {
+    this(recipient, message, priority, 0, 0);
+  }
+
+  public SendMessageCommand(String recipient, String message, Priority priority, long deliverAt, long expireAt) throws IllegalArgumentException {
     if (recipient == null || recipient.isEmpty()) {
       throw new IllegalArgumentException("Recipient cannot be null or empty");
     }
@@ -15,6 +30,9 @@ public class SendMessageCommand implements Command {
     }
     this.recipient = recipient;
     this.message = message;
+    this.priority = priority;
+    this.deliverAt = deliverAt;
+    this.expireAt = expireAt;
   }
 
   public String getRecipient() {
@@ -24,4 +42,16 @@ public class SendMessageCommand implements Command {
   public String getMessage() {
     return message;
   }
+
+  public Priority getPriority() {
+    return priority;
+  }
+
+  public long getDeliverAt() {
+    return deliverAt;
+  }
+
+  public long getExpireAt() {
+    return expireAt;
+  }
 }
@@ -0,0 +1,35 @@
+package com.chatapp.client.commands;
+
+import java.util.List;
+
+// A class that represents a command to add users to or remove users from a group
+
+public class UpdateGroupCommand implements Command {
+  private String group;
+  private List<String> add;
+  private List<String> remove;
+
+  public UpdateGroupCommand(String group, List<String> add, List<String> remove) throws IllegalArgumentException {
+    if (group == null || group.isEmpty()) {
+      throw new IllegalArgumentException("Group cannot be null or empty");
+    }
+    if (add.isEmpty() && remove.isEmpty()) {
+      throw new IllegalArgumentException("Members cannot be null or empty");
+    }
+    this.group = group;
+    this.add = add;
+    this.remove = remove;
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public List<String> getAdd() {
+    return add;
+  }
+
+  public List<String> getRemove() {
+    return remove;
+  }
+}
@@ -0,0 +1,204 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+
+/**
+ * The usernames of the live accounts, kept sorted so that the accounts
+ * matching a pattern can be listed without looking at every account. It is
+ * updated whenever an account is created or deleted, or loaded on startup.
+ *
+ * A pattern is a regular expression in which * matches any number of
+ * characters, matched against the whole username. How it is answered
+ * depends on its literal prefix, the characters before the first one that
+ * is not matched literally:
+ *   - a pattern that is all literal is looked up directly;
+ *   - a prefix followed by a single * is a range scan of the usernames
+ *     that start with the prefix;
+ *   - anything else is a range scan of the prefix with each username
+ *     checked against the pattern, which only visits every account when
+ *     the prefix is empty (a pattern starting with *, say).
+ * Each of them takes time in the number of usernames sharing the prefix
+ * rather than in the number of accounts, and lists the usernames in order.
+ * A listing can be split into pages, each starting after the last username
+ * of the previous one, so that it is never held in memory all at once.
+ *
+ * The patterns listed lately are kept compiled in a PatternCache, along with
+ * their usernames if they match few, so that a pattern listed again and
+ * again is answered without walking the directory until an account it
+ * matches is created or deleted.
+ */
+
+public class AccountDirectory {
+
+  // The characters that are not matched literally, * included
+  private static final String SPECIAL = "\\^$.|?*+()[]{}";
+
+  private final ConcurrentSkipListSet<String> accounts = new ConcurrentSkipListSet<String>();
+
+  // The patterns listed lately, compiled, with their accounts if they match few
+  private final PatternCache cache;
+
+  public AccountDirectory() {
+    this((int) ServerConfig.LIST_ACCOUNTS_CACHE_PATTERNS, (int) ServerConfig.LIST_ACCOUNTS_CACHE_MATCHES);
+  }
+
+  /**
+   * @param cachedPatterns how many patterns to cache at most, or 0 for none
+   * @param cachedMatches how many accounts a pattern may match at most for
+   *        them to be cached
+   */
+  public AccountDirectory(int cachedPatterns, int cachedMatches) {
+    cache = new PatternCache(cachedPatterns, cachedMatches);
+  }
+
+  public void add(String username) {
+    if (accounts.add(username)) {
+      cache.invalidate(username);
+    }
+  }
+
+  public void remove(String username) {
+    if (accounts.remove(username)) {
+      cache.invalidate(username);
+    }
+  }
+
+  public PatternCache getCache() {
+    return cache;
+  }
+
+  public boolean contains(String username) {
+    return accounts.contains(username);
+  }
+
+  /**
+   * Return how many accounts there are, which takes time in that number
+   */
+  public int size() {
+    return accounts.size();
+  }
+
+  /**
+   * Return the usernames that match a pattern
+   * @param pattern a regular expression in which * matches any number of
+   *        characters
+   * @return the matching usernames, in order, or none if the pattern is
+   *         not a valid expression
+   */
+  public ArrayList<String> list(String pattern) {
+    ArrayList<String> matched = new ArrayList<String>();
+    list(pattern, "", Integer.MAX_VALUE, matched);
+    return matched;
+  }
+
+  /**
+   * Add a page of the usernames that match a pattern to a list, from the
+   * cache if it holds them, or else walking the directory until the page is
+   * full, or for a first page until too many match for them to be cached
+   * @param pattern a regular expression in which * matches any number of
+   *        characters
+   * @param after the page starts with the first match after this username,
+   *        or with the first match if it is empty
+   * @param limit how many usernames the page may hold at most, at least 1
+   * @param page the list to add the matching usernames to, in order
+   * @return whether more usernames match after the page
+   */
+  public boolean list(String pattern, String after, int limit, List<String> page) {
+    String prefix = literalPrefix(pattern);
+
+    if (prefix.length() == pattern.length()) {
+      if ((after.isEmpty() || pattern.compareTo(after) > 0) && accounts.contains(pattern)) {
+        page.add(pattern);
+      }
+      return false;
+    }
+
+    PatternCache.Entry entry = cache.lookup(pattern, prefix);
+    if (!entry.valid) {
+      return false;
+    }
+    List<String> cached = cache.cachedMatches(entry);
+    if (cached != null) {
+      int from = 0;
+      if (!after.isEmpty()) {
+        int found = Collections.binarySearch(cached, after);
+        from = found >= 0 ? found + 1 : -found - 1;
+      }
+      int to = (int) Math.min(cached.size(), (long) from + limit);
+      page.addAll(cached.subList(from, to));
+      return to < cached.size();
+    }
+
+    // a listing from the first match goes on past the page while it could still be cached
+    long generation = cache.generation();
+    ArrayList<String> all = after.isEmpty() ? new ArrayList<String>() : null;
+    NavigableSet<String> rest = after.isEmpty() || after.compareTo(prefix) < 0
+        ? accounts.tailSet(prefix, true)
+        : accounts.tailSet(after, false);
+    int taken = 0;
+    boolean hasMore = false;
+    for (String account : rest) {
+      if (!account.startsWith(prefix)) {
+        break;
+      }
+      if (entry.regex == null || entry.regex.matcher(account).matches()) {
+        if (all != null && all.size() >= cache.getMaxMatches()) {
+          // too many match for them to be cached
+          all = null;
+        }
+        if (taken == limit) {
+          if (all == null) {
+            return true;
+          }
+          hasMore = true;
+        } else {
+          page.add(account);
+          taken++;
+        }
+        if (all != null) {
+          all.add(account);
+        }
+      }
+    }
+    if (all != null) {
+      cache.complete(entry, generation, all);
+    }
+    return hasMore;
+  }
+
+  /**
+   * Return the regular expression a pattern stands for, matched against the
+   * whole username
+   */
+  static Pattern compile(String pattern) {
+    return Pattern.compile('^' + pattern.replaceAll("\\*", ".*") + '$');
+  }
+
+  /**
+   * Return the characters every username matching the pattern starts with:
+   * those before the first one that is not matched literally, less the last
+   * of them if it is made optional or repeated. A pattern with alternatives
+   * has no prefix.
+   */
+  static String literalPrefix(String pattern) {
+    if (pattern.indexOf('|') >= 0) {
+      return "";
+    }
+    int end = 0;
+    while (end < pattern.length() && SPECIAL.indexOf(pattern.charAt(end)) < 0) {
+      end++;
+    }
+    if (end < pattern.length() && end > 0) {
+      char next = pattern.charAt(end);
+      if (next == '?' || next == '+' || next == '{') {
+        end--;
+      }
+    }
+    return pattern.substring(0, end);
+  }
+}
@@ -0,0 +1,60 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+
+import com.chatapp.Chat.ChatMessage;
+
+/**
+ * A listing of the accounts matching a pattern that is streamed to a client
+ * in consecutive pages. Only the pattern and the last account sent are kept
+ * between pages, and pages are only sent while the call is ready for them,
+ * so a listing of every account holds one page at a time however many
+ * accounts match and however slowly the client reads. The session resumes
+ * it whenever the call becomes ready again.
+ */
+
+public class AccountListing {
+
+  private final AccountDirectory directory;
+  private final String pattern;
+  private final int limit;
+
+  // The last account sent, which the next page starts after
+  private String after;
+
+  /**
+   * @param directory the accounts to list
+   * @param pattern a regular expression in which * matches any number of
+   *        characters
+   * @param after the listing starts after this username, or with the first
+   *        match if it is empty
+   * @param limit how many accounts each page holds at most, at least 1
+   */
+  public AccountListing(AccountDirectory directory, String pattern, String after, int limit) {
+    this.directory = directory;
+    this.pattern = pattern;
+    this.after = after;
+    this.limit = limit;
+  }
+
+  /**
+   * Send the next pages, until the listing is done or the call stops being
+   * ready. The last page sent says there is no more.
+   * @param observer the client's end of the call
+   * @return whether the listing is done
+   */
+  public boolean sendTo(ConcurrentStreamObserver<ChatMessage> observer) {
+    while (true) {
+      ArrayList<String> page = new ArrayList<String>();
+      boolean hasMore = directory.list(pattern, after, limit, page);
+      observer.onNext(ChatMessageGenerator.LIST_ACCOUNTS(page, hasMore));
+      if (!hasMore) {
+        return true;
+      }
+      after = page.get(page.size() - 1);
+      if (!observer.isReady()) {
+        return false;
+      }
+    }
+  }
+}
@@ -1,18 +1,27 @@
 package com.chatapp.server;
 
+import java.io.UncheckedIOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ArrayList;
-import java.util.Optional;
-import java.util.concurrent.BlockingDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.chatapp.Chat.ChatMessage;
+import com.chatapp.Chat.Content;
+import com.chatapp.Chat.ListAccountsRequest;
+import com.chatapp.Chat.Priority;
+import com.chatapp.Chat.SendGroupMessageRequest;
+import com.chatapp.Chat.SendMessageRequest;
 import com.chatapp.ChatServiceGrpc;
-import com.chatapp.server.Persistence.AccountSerializer;
-import com.chatapp.server.Persistence.MessageSerializer;
+import com.chatapp.server.Persistence.RecoveredState;
+import com.chatapp.server.Persistence.StorageBackend;
+import com.chatapp.server.Persistence.StorageEngine;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -30,30 +39,90 @@ public class BusinessLogicServer {
   private Server server;
 
   /**
-   * Associates users to their MessageDistributors, which is a proxy for
-   * whether the user is logged in. Uses Optional to allow for "null" values,
-   * representing a user that is not logged in.
+   * Associates users to the registry of the sessions they are logged in
+   * with, which is a proxy for whether the user exists. A user with no
+   * session is not logged in.
    */
-  private static ConcurrentHashMap<String, Optional<MessageDistributor>> messageDistributors = new ConcurrentHashMap<String, Optional<MessageDistributor>>();
+  private static ConcurrentHashMap<String, SessionRegistry> sessions = new ConcurrentHashMap<String, SessionRegistry>();
 
-  // An empty message distributor for use with the ConcurrentHashMap
-  private static final Optional<MessageDistributor> EMPTY_MESSAGE_DISTRIBUTOR = Optional.empty();
+  // The usernames of the users in the sessions map, sorted, for listing the accounts that match a pattern
+  private static final AccountDirectory directory = new AccountDirectory();
+  static {
+    directory.getCache().registerMetrics("accounts.cache");
+  }
+
+  // Numbers the sessions, to tell the metrics of several sessions of the same user apart
+  private static final AtomicLong sessionIds = new AtomicLong(0);
+
+  /**
+   * Tracks the messages that are waiting to be sent to each user. When
+   * mailboxes are loaded lazily, users whose mailbox is still on disk have
+   * no entry yet (see getQueue).
+   */
+  private static ConcurrentHashMap<String, Mailbox> pendingMessages = new ConcurrentHashMap<String, Mailbox>();
+
+  // Guard loading mailboxes from storage, so that each user's mailbox is loaded once
+  private static final Object[] mailboxLocks = new Object[64];
+  static {
+    for (int i = 0; i < mailboxLocks.length; i++) {
+      mailboxLocks[i] = new Object();
+    }
+  }
+
+  /**
+   * The sequence number of the last message queued for each user before
+   * their mailbox was created; the mailbox numbers messages from there.
+   * Kept for deleted users too, so that a re-created account keeps numbering
+   * past the messages that were dropped with the old one.
+   */
+  private static ConcurrentHashMap<String, AtomicLong> lastSequences = new ConcurrentHashMap<String, AtomicLong>();
 
   /**
-   * Tracks the messages that are waiting to be sent to each user
+   * The members of each group, in order. Each list is replaced as a whole
+   * when the group changes, under the lock of the map, so that a message can
+   * be sent to the group without a lock.
    */
-  private static ConcurrentHashMap<String, BlockingDeque<PendingMessage>> pendingMessages = new ConcurrentHashMap<String, BlockingDeque<PendingMessage>>();
+  private static ConcurrentHashMap<String, List<String>> groups = new ConcurrentHashMap<String, List<String>>();
 
   private static ReplicaManager rm;
 
+  // Where accounts and messages are persisted
+  private static StorageEngine storage;
+
+  // Whether mailboxes are loaded from storage when first needed rather than on startup
+  private static volatile boolean lazyMailboxes = false;
+
   /**
-   * Constructor
+   * Constructor, storing accounts and messages in the backend chosen at launch
    */
   public BusinessLogicServer(ReplicaManager myRm, int port) {
+    this(myRm, port, ServerConfig.STORAGE);
+  }
+
+  /**
+   * Constructor
+   * @param backend the kind of storage engine to keep accounts and messages in
+   */
+  public BusinessLogicServer(ReplicaManager myRm, int port, StorageBackend backend) {
     server = ServerBuilder
         .forPort(port)
         .addService(new ChatServiceImpl()).build();
     rm = myRm;
+    storage = backend.open(getReplicaFolder());
+  }
+
+  /**
+   * Get the storage engine that accounts and messages are persisted to
+   */
+  public static StorageEngine getStorage() {
+    return storage;
+  }
+
+  /**
+   * Get the replica manager, which tells whether this replica is the leader
+   */
+  static ReplicaManager getReplicaManager() {
+    return rm;
   }
 
   public static String getReplicaFolder() {
@@ -61,27 +130,110 @@ public class BusinessLogicServer {
   }
 
   /*
-   * Load the accounts and messages from the message file
-   * @param pastAccounts the list of accounts to load
-   * @param pastMessages the list of messages to load
+   * Load the accounts and undelivered messages from the storage engine. The
+   * engine may decode its files in parallel on a fork-join pool, and each
+   * recipient's queue is then built in one go from their messages, which are
+   * already in the order they were queued.
+   */
+  public void loadFiles() {
+    loadFiles(ServerConfig.LAZY_MAILBOXES);
+  }
+
+  /*
+   * Load the accounts and delivery cursors from the storage engine, and
+   * either every undelivered message too or, when lazy, only the accounts,
+   * leaving each user's messages on disk until getQueue first needs them
+   * @param lazy whether to leave the mailboxes on disk
    */
-  public void loadFiles(ArrayList<String> pastAccounts, ArrayList<PendingMessage> pastMessages) {
-    // Load the accounts from the account file
-    for (String account : pastAccounts) {
+  public void loadFiles(boolean lazy) {
+    RecoveredState state;
+    ForkJoinPool pool = new ForkJoinPool((int) Math.max(1, ServerConfig.RECOVERY_PARALLELISM));
+    try {
+      state = lazy ? storage.recoverLazily(pool) : storage.recover(pool);
+    } finally {
+      pool.shutdown();
+    }
+    lazyMailboxes = lazy;
+
+    // Resume numbering messages after the last delivered ones
+    for (Map.Entry<String, Long> cursor : state.getCursors().entrySet()) {
+      advanceSequence(cursor.getKey(), cursor.getValue());
+    }
+
+    for (String account : state.getAccounts()) {
       // mark the user as created but not logged in yet
-      messageDistributors.put(account, EMPTY_MESSAGE_DISTRIBUTOR);
-      // create a queue for the user
-      pendingMessages.put(account, new LinkedBlockingDeque<PendingMessage>());
+      sessions.put(account, new SessionRegistry(account));
+      directory.add(account);
+      lastSequences.putIfAbsent(account, new AtomicLong(0));
+      if (lazy) {
+        continue;
+      }
+
+      // create a mailbox for the user, skipping messages to deleted accounts
+      // that have not been cleaned up yet
+      ArrayList<PendingMessage> mailbox = state.getMailboxes().get(account);
+      if (mailbox == null) {
+        mailbox = new ArrayList<PendingMessage>();
+      }
+      pendingMessages.put(account, newMailbox(account, mailbox));
     }
 
-    // Load the messages from the message file
-    for (PendingMessage message : pastMessages) {
-      try {
-        pendingMessages.get(message.getRecipient()).put(message);
-      } catch (InterruptedException e) {
-        System.out.println("ERROR: The message file contains users that do not exist.");
-        e.printStackTrace();
+    for (Map.Entry<String, ArrayList<String>> group : storage.loadGroups().entrySet()) {
+      groups.put(group.getKey(), Collections.unmodifiableList(group.getValue()));
+    }
+
+    // set the timers of the messages scheduled for later again
+    ScheduledMessages.load(storage.loadScheduled());
+  }
+
+  /**
+   * Get the mailbox of messages waiting to be sent to the user, loading it
+   * from storage the first time it is needed if mailboxes are loaded
+   * lazily. Every path that reads or adds to a mailbox goes through here, so
+   * a user's mailbox is always loaded before anything is queued for them.
+   * @param username
+   * @return the mailbox, or null if the user does not exist
+   */
+  static Mailbox getQueue(String username) {
+    Mailbox queue = pendingMessages.get(username);
+    if (queue != null || !lazyMailboxes) {
+      return queue;
+    }
+    synchronized (mailboxLocks[(username.hashCode() & 0x7fffffff) % mailboxLocks.length]) {
+      queue = pendingMessages.get(username);
+      if (queue == null && sessions.containsKey(username)) {
+        ArrayList<PendingMessage> mailbox = storage.loadMailbox(username);
+        lastSequences.putIfAbsent(username, new AtomicLong(0));
+        queue = newMailbox(username, mailbox);
+        pendingMessages.put(username, queue);
+        logger.info("Loaded " + mailbox.size() + " pending messages for " + username);
       }
+      return queue;
+    }
+  }
+
+  /*
+   * Creates the mailbox of a user, numbered after their last sequence
+   * number, which wakes up their sessions when a message that holds up the
+   * others times out
+   */
+  private static Mailbox newMailbox(final String username, ArrayList<PendingMessage> pending) {
+    return new Mailbox(pending, lastSequences.get(username).get(), new Runnable() {
+      @Override
+      public void run() {
+        signalDistributor(username);
+      }
+    });
+  }
+
+  /*
+   * Moves the user's last sequence number forward to at least the given one
+   */
+  private static void advanceSequence(String username, long sequence) {
+    lastSequences.putIfAbsent(username, new AtomicLong(0));
+    AtomicLong last = lastSequences.get(username);
+    if (last.get() < sequence) {
+      last.set(sequence);
     }
   }
 
@@ -94,41 +246,130 @@ public class BusinessLogicServer {
   }
 
   /**
-   * Grab the next message for the user with the given username
+   * Move waiting messages for the user with the given username into a
+   * batch, without waiting for any, until the batch holds the given number
+   * of messages or the next message would take its text past the given
+   * number of bytes (estimated from the length of its sender and text). The
+   * first message is always taken, however large.
    * 
    * @param username
-   * @return the next message for the user or null if something went wrong
+   * @param batch the list to add the messages to, in the order they were queued
+   * @param maxMessages
+   * @param maxBytes
+   * @return how many messages were added
    */
-  public static PendingMessage getNextMessageFor(String username) {
-    try {
-      return pendingMessages.get(username).take();
-    } catch (InterruptedException e) {
-      return null;
+  public static int drainMessagesFor(String username, List<PendingMessage> batch, int maxMessages, long maxBytes) {
+    Mailbox queue = getQueue(username);
+    return queue == null ? 0 : queue.drainTo(batch, maxMessages, maxBytes);
+  }
+
+  /**
+   * Wake up the SessionRegistry of the user with the given username, if
+   * they are logged in, to deliver the messages queued for them to each of
+   * their sessions
+   * @param username
+   */
+  static void signalDistributor(String username) {
+    SessionRegistry registry = sessions.get(username);
+    if (registry != null && !registry.isEmpty()) {
+      registry.signal();
     }
   }
 
   /**
-   * Put a message back onto the front of the queue the queue for the user with 
-   * the given username. Keep trying until it works.
+   * Record that one of the sessions of the user with the given username
+   * received every message up to the given one
+   * @param username
+   * @param sequence
+   */
+  static void acknowledge(String username, long sequence) {
+    SessionRegistry registry = sessions.get(username);
+    if (registry != null) {
+      registry.acknowledge(sequence);
+    }
+  }
+
+  /**
+   * Put a message back onto the front of the mailbox for the user with the
+   * given username. The message is already in the message log, so nothing
+   * is written.
    * @param username
    * @param message
    */
   public static void putMessageBackToDeliverLater(String username, PendingMessage message) {
-    while(true) {
-      try {
-        pendingMessages.get(username).putFirst(message);
-        MessageSerializer.serialize(message);
-        return;
-      } catch (InterruptedException e) {}
+    Mailbox queue = pendingMessages.get(username);
+    // the user was deleted in the meantime, so the message goes with them
+    if (queue == null) {
+      return;
+    }
+    queue.requeue(message);
+    // the user may have logged in again with a new distributor in the meantime
+    signalDistributor(username);
+  }
+
+  /**
+   * Put a batch of messages back onto the front of the queue for the user
+   * with the given username, keeping their order
+   * @param username
+   * @param messages
+   */
+  public static void putMessagesBackToDeliverLater(String username, List<PendingMessage> messages) {
+    for (int i = messages.size() - 1; i >= 0; i--) {
+      putMessageBackToDeliverLater(username, messages.get(i));
     }
   }
 
+  /**
+   * Return the sequence number of the first message that was not taken off
+   * the mailbox of the user with the given username yet, or Long.MAX_VALUE
+   * if the user does not exist
+   * @param username
+   */
+  static long firstWaitingSequence(String username) {
+    Mailbox queue = pendingMessages.get(username);
+    return queue == null ? Long.MAX_VALUE : queue.firstWaiting();
+  }
+
+  /**
+   * Return whether the user has messages waiting to be delivered
+   * @param username
+   */
+  public static boolean hasPendingMessages(String username) {
+    Mailbox queue = pendingMessages.get(username);
+    return queue != null && !queue.isEmpty();
+  }
+
+  /**
+   * Persist that every message up to the given one was delivered to the
+   * user, so that they are not delivered again after a restart
+   * @param username
+   * @param sequence the sequence number of the last delivered message
+   */
+  public static void markDelivered(String username, long sequence) {
+    storage.acknowledge(username, sequence);
+  }
+
   /**
    * Return whether a user exists
    * @param username
    */
   public static boolean doesUserExists(String username) {
-    return messageDistributors.containsKey(username);
+    return sessions.containsKey(username);
+  }
+
+  /**
+   * Replace the members of a group and record them, or remove the group if
+   * it has no members left. Callers hold the lock of the groups map.
+   * @param group
+   * @param members
+   */
+  private static void saveGroup(String group, TreeSet<String> members) {
+    if (members.isEmpty()) {
+      groups.remove(group);
+    } else {
+      groups.put(group, Collections.unmodifiableList(new ArrayList<String>(members)));
+    }
+    storage.saveGroup(group, members);
   }
 
   /**
@@ -136,9 +377,22 @@ public class BusinessLogicServer {
    * @param username
    */
   public static boolean isLoggedIn(String username) {
-    return 
-    doesUserExists(username) &&
-      !messageDistributors.get(username).equals(EMPTY_MESSAGE_DISTRIBUTOR);
+    SessionRegistry registry = sessions.get(username);
+    return registry != null && !registry.isEmpty();
+  }
+
+  /*
+   * The name of the metric of how much is buffered for one of the user's clients
+   */
+  static String bufferedBytesMetric(String username, long sessionId) {
+    return "session." + username + "." + sessionId + ".outboundBufferedBytes";
+  }
+
+  /*
+   * The name of the metric of how many bytes of messages were sent to one of the user's clients
+   */
+  static String servedBytesMetric(String username, long sessionId) {
+    return "session." + username + "." + sessionId + ".servedBytes";
   }
 
   /**
@@ -172,16 +426,78 @@ public class BusinessLogicServer {
          */
         String username = null;
 
+        /**
+         * The MessageDistributor delivering to this ResponseObserver's user,
+         * which the client's acknowledgements are for
+         */
+        volatile MessageDistributor distributor = null;
+
+        // Tells this session's metrics apart from those of the user's other sessions
+        final long sessionId = sessionIds.incrementAndGet();
+
         /**
          * Make the responseObserver thread-safe
          */
-        ConcurrentStreamObserver<ChatMessage> cResponseObserver = new ConcurrentStreamObserver<ChatMessage>(responseObserver);
+        final ConcurrentStreamObserver<ChatMessage> cResponseObserver = new ConcurrentStreamObserver<ChatMessage>(responseObserver);
+
+        /**
+         * The listing of accounts being streamed to the client, or null if
+         * there is none, which goes on whenever the call becomes ready
+         */
+        volatile AccountListing listing = null;
+
+        /**
+         * Resumes the listing while no user is logged in, whose distributor
+         * would otherwise be signalled too
+         */
+        final Runnable onReady = new Runnable() {
+          @Override
+          public void run() {
+            continueListing();
+          }
+        };
+
+        /**
+         * Reports how much gRPC is buffering for the client, registered as
+         * "session.<username>.<sessionId>.outboundBufferedBytes" while a user is logged in
+         */
+        final Metrics.Gauge bufferedBytes = new Metrics.Gauge() {
+          @Override
+          public long value() {
+            return cResponseObserver.getBufferedBytes();
+          }
+        };
+
+        /**
+         * Reports how many bytes of messages were sent to the client since the
+         * user logged in, registered as "session.<username>.<sessionId>.servedBytes"
+         */
+        final Metrics.Gauge servedBytes = new Metrics.Gauge() {
+          @Override
+          public long value() {
+            MessageDistributor current = distributor;
+            return current == null ? 0 : current.getServedBytes();
+          }
+        };
 
         /*
          * Leader replicas relay messages from the client to all its followers. A relay group facilitates that.
          */
         private RelayGroup relayGroup = null;
 
+        /**
+         * Sends the next pages of the listing being streamed, for as long as
+         * the call is ready, and forgets it once it is done
+         */
+        private void continueListing() {
+          AccountListing current = this.listing;
+          if (current != null && current.sendTo(cResponseObserver)) {
+            if (this.listing == current) {
+              this.listing = null;
+            }
+          }
+        }
+
         /**
          * Logs out the user that this ResponseObserver is responsible for
          * Does not check for invariants that are required for logging out. 
@@ -193,14 +509,20 @@ public class BusinessLogicServer {
           // store the username in a local variable so we can use it after we null out this.username
           String username = this.username;
 
-          // stop the MessageDistributor and remove it for the user if it exists
-          if (doesUserExists(username)
-            && messageDistributors.get(username).isPresent()) {
-            messageDistributors.get(username).get().cease();
-            messageDistributors.put(username, EMPTY_MESSAGE_DISTRIBUTOR);
+          // remove this session's MessageDistributor from the user's sessions, if the user still exists, and stop it
+          SessionRegistry registry = sessions.get(username);
+          if (registry != null) {
+            registry.remove(this.distributor);
+          }
+          if (this.distributor != null) {
+            this.distributor.cease();
           }
 
           // and this ResponseObserver no longer represents them
+          this.distributor = null;
+          cResponseObserver.setOnReadyHandler(onReady);
+          Metrics.unregister(bufferedBytesMetric(username, sessionId), bufferedBytes);
+          Metrics.unregister(servedBytesMetric(username, sessionId), servedBytes);
           this.username = null;
 
           // respond with a success message
@@ -242,9 +564,11 @@ public class BusinessLogicServer {
               logger.info("Creating relay group");
               relayGroup = new RelayGroup(Replica.getOthers(rm.getSelf()));
             }
-            logger.info("Relaying message");
-            // Relay the message to all the followers
-            relayGroup.relay(message);
+            // Relay the message to all the followers. Messages sent to users and groups are relayed once they are numbered instead (see SEND MESSAGE)
+            if (!message.getContent().hasSendMessageRequest() && !message.getContent().hasSendGroupMessageRequest()) {
+              logger.info("Relaying message");
+              relayGroup.relay(message);
+            }
           }
 
           // If this replica is no longer a leader and there is still a relay group, then end it
@@ -254,7 +578,7 @@ public class BusinessLogicServer {
           }
 
           // If this ResponseObserver is currently responsible for a user, check if the user still exists (in case they got deleted). If deleted, then log them out
-          if (this.username != null && !messageDistributors.containsKey(username)) {
+          if (this.username != null && !sessions.containsKey(username)) {
             logger.info("User " + username + " was deleted. Logging them out.");
             logOut();
             return;
@@ -277,7 +601,7 @@ public class BusinessLogicServer {
             case CREATE_ACCOUNT_REQUEST: {
               String username = message.getContent().getCreateAccountRequest().getUsername();
               // respond with an exception if the username is already taken
-              if (messageDistributors.containsKey(username)) {
+              if (sessions.containsKey(username)) {
                 logger.info(
                     "Failed to create account for " + username + " because the username is already taken");
                 cResponseObserver.onNext(
@@ -285,14 +609,27 @@ public class BusinessLogicServer {
                         .CREATE_ACCOUNT_USER_ALREADY_EXISTS(username));
                 return;
               }
+              // record the creation of the user first, so that an account the client is told about is never only in memory
+              try {
+                storage.createAccount(username);
+              } catch (UncheckedIOException e) {
+                logger.log(Level.WARNING, "Failed to record the creation of " + username, e);
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.CREATE_ACCOUNT_NOT_RECORDED(username));
+                return;
+              }
               // mark the user as created but not logged in yet
-              messageDistributors.put(username, EMPTY_MESSAGE_DISTRIBUTOR);
-              // record the creation of the user in accounts file
-              AccountSerializer.serialize(username);
-              // create a new queue for the user to hold pending messages
-              pendingMessages.put(
-                  username,
-                  new LinkedBlockingDeque<PendingMessage>());
+              sessions.put(username, new SessionRegistry(username));
+              directory.add(username);
+              // create a new mailbox for the user to hold pending messages
+              // (loaded from storage when lazy, which also picks up the
+              // numbering of a deleted account of the same name)
+              lastSequences.putIfAbsent(username, new AtomicLong(0));
+              if (lazyMailboxes) {
+                getQueue(username);
+              } else {
+                pendingMessages.put(username, newMailbox(username, new ArrayList<PendingMessage>()));
+              }
               logger.info("Created account for " + username);
               // respond with a success message
               cResponseObserver.onNext(
@@ -303,8 +640,10 @@ public class BusinessLogicServer {
             // ------------------------ LOG IN ------------------------
             case LOG_IN_REQUEST: {
               String username = message.getContent().getLogInRequest().getUsername();
+              long lastReceived = message.getContent().getLogInRequest().getLastReceivedSequence();
+              boolean pushOnlyNew = message.getContent().getLogInRequest().getPushOnlyNew();
               // respond with an exception if the username does not exist
-              if (!messageDistributors.containsKey(username)) {
+              if (!sessions.containsKey(username)) {
                 logger.info(
                     "Failed to log in " + username + " because the username does not exist");
                 cResponseObserver.onNext(
@@ -313,18 +652,49 @@ public class BusinessLogicServer {
                 return;
               }
 
-              // create a new thread to distribute messages to the user on demand
-              MessageDistributor md = new MessageDistributor(username, cResponseObserver);
-              messageDistributors.put(username, Optional.of(md));
-              md.start();
+              // page the user's mailbox in before delivering from it, and
+              // skip what the client already received, for instance from
+              // the leader before a failover
+              Mailbox queue = getQueue(username);
+              lastReceived = Math.min(lastReceived, queue.lastSequence());
+              if (lastReceived > 0) {
+                logger.info("Resuming delivery to " + username + " after message " + lastReceived + ", skipping " + queue.skipThrough(lastReceived) + " messages");
+              }
 
-              // if this ResponseObserver was previously representing another user that still exists, log that user out first
+              // if this ResponseObserver was previously representing a user that still exists, log that session out first
               if (this.username != null) {
                 logOut();
               }
 
-              // mark this ResponseObserver as representing the user
+              // create a new distributor that delivers messages to this session on the shared dispatcher threads,
+              // alongside any other sessions the user is logged in with
+              final MessageDistributor md = new MessageDistributor(username, cResponseObserver);
+              SessionRegistry registry = sessions.get(username);
+              if (lastReceived > 0) {
+                registry.acknowledgeThrough(lastReceived);
+              }
+              // hold back what is waiting for the client to fetch, or push it along with the rest
+              if (pushOnlyNew) {
+                registry.holdBacklog();
+              } else {
+                registry.releaseBacklog();
+              }
+              registry.add(md);
+              md.start();
+
+              // mark this ResponseObserver as representing the user, and
+              // resume delivering to them whenever the client catches up
               this.username = username;
+              this.distributor = md;
+              cResponseObserver.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                  md.signal();
+                  continueListing();
+                }
+              });
+              Metrics.register(bufferedBytesMetric(username, sessionId), bufferedBytes);
+              Metrics.register(servedBytesMetric(username, sessionId), servedBytes);
 
               logger.info("Logged in " + username);
               // respond with a success message
@@ -336,7 +706,7 @@ public class BusinessLogicServer {
             // ------------------------ LOG OUT ------------------------
             case LOG_OUT_REQUEST: {
               // respond with an exception if the client represented by this ResponseObserver is not logged in or if the account no longer exists
-              if (this.username == null || !messageDistributors.containsKey(this.username)) {
+              if (this.username == null || !sessions.containsKey(this.username)) {
                 logger.info("Failed to log out because the user is not logged in");
                 cResponseObserver.onNext(
                     ChatMessageGenerator.LOG_OUT_USER_NOT_LOGGED_IN(
@@ -350,11 +720,22 @@ public class BusinessLogicServer {
 
             // ------------------------ SEND MESSAGE ------------------------
             case SEND_MESSAGE_REQUEST: {
-              String recipient = message.getContent().getSendMessageRequest().getRecipient();
-              String messageText = message.getContent().getSendMessageRequest().getMessage();
+              SendMessageRequest request = message.getContent().getSendMessageRequest();
+              String recipient = request.getRecipient();
+              String messageText = request.getMessage();
+              Priority priority = request.getPriority();
+
+              // a message scheduled for later that the leader delivered is relayed on behalf of its sender, who need not be logged in,
+              // and one it dropped only stops waiting
+              boolean due = isRelay(message) && request.getTimerId() > 0 && request.getDeliverAt() == 0;
+              if (due && request.getSequence() == 0) {
+                ScheduledMessages.delivered(request.getTimerId());
+                return;
+              }
+              String sender = due ? request.getSender() : this.username;
 
               // respond with an exception if the client represented by this ResponseObserver is not logged in
-              if (this.username == null) {
+              if (sender == null) {
                 logger.info("Failed to send message because the user is not logged in");
                 cResponseObserver.onNext(
                     ChatMessageGenerator.SEND_MESSAGE_USER_NOT_LOGGED_IN(
@@ -363,59 +744,275 @@ public class BusinessLogicServer {
               }
 
               // respond with an exception if the recipient does not exist
-              // note: despite the fact that the variable is called logInStatus, here we are checking if the recipient username EXISTS in the table; NOT whether they're logged in
-              if (!messageDistributors.containsKey(recipient)) {
+              // a recipient exists if it has an entry in the sessions map, whether or not it is logged in, and a mailbox, which is loaded from storage on first use when mailboxes are loaded lazily
+              Mailbox queue = getQueue(recipient);
+              if (!sessions.containsKey(recipient) || queue == null) {
                 logger.info("Failed to send message because the recipient does not exist");
                 cResponseObserver.onNext(
                     ChatMessageGenerator.SEND_MESSAGE_RECIPIENT_DOES_NOT_EXIST(recipient));
                 return;
               }
 
-              // put the message onto the end of the recipient's queue of pending messages (keep trying until it works)
-              while(true) {
+              PendingMessage.Body body = new PendingMessage.Body(sender, messageText, null, priority, request.getExpireAt());
+
+              // hold a message to deliver later until it is due, under the id the leader gave it if it was relayed
+              boolean later = isRelay(message) ? request.getDeliverAt() > 0 && request.getTimerId() > 0 : request.getDeliverAt() > System.currentTimeMillis();
+              if (later) {
+                ScheduledMessage scheduled;
                 try {
-                  PendingMessage temp = new PendingMessage(recipient, this.username, messageText);
-                  pendingMessages.get(recipient).put(temp);
-                  MessageSerializer.serialize(temp);
-                  break;
-                } catch (InterruptedException e) {}
+                  scheduled = ScheduledMessages.schedule(request.getTimerId(), request.getDeliverAt(), body.copyFor(recipient, 0));
+                } catch (UncheckedIOException e) {
+                  logger.log(Level.WARNING, "Failed to record a message scheduled for " + recipient, e);
+                  cResponseObserver.onNext(
+                      ChatMessageGenerator.SEND_MESSAGE_NOT_RECORDED(recipient));
+                  return;
+                }
+                if (relayGroup != null) {
+                  logger.info("Relaying scheduled message");
+                  relayGroup.relay(message.toBuilder()
+                      .setContent(message.getContent().toBuilder()
+                          .setSendMessageRequest(request.toBuilder().setTimerId(scheduled.getId())))
+                      .build());
+                }
+                logger.info("Scheduled message " + scheduled.getId() + " from " + sender + " to " + recipient);
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.SEND_MESSAGE_SCHEDULED(sender, recipient, request.getDeliverAt()));
+                break;
               }
 
-              logger.info("Queued message from " + this.username + " to " + recipient);
+              // reserve the message's place at the end of the recipient's mailbox, which numbers it in the order of the mailbox without taking a lock,
+              // unless the leader already numbered it, in which case it goes in the place of that number so that every replica agrees on it
+              long sequence = request.getSequence();
+              PendingMessage temp;
+              if (isRelay(message) && sequence > 0) {
+                temp = queue.reserve(body.copyFor(recipient, sequence));
+              } else {
+                temp = queue.reserveCopy(recipient, body);
+              }
+              // and only hand it out once it is recorded, so that a message that is delivered is never only in memory
+              try {
+                storage.appendMessage(temp);
+              } catch (UncheckedIOException e) {
+                queue.abandon(temp);
+                signalDistributor(recipient);
+                logger.log(Level.WARNING, "Failed to record a message for " + recipient, e);
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.SEND_MESSAGE_NOT_RECORDED(recipient));
+                return;
+              }
+              queue.commit(temp);
+              signalDistributor(recipient);
+              if (due) {
+                ScheduledMessages.delivered(request.getTimerId());
+              }
+
+              // relay the message to the followers with its number
+              if (relayGroup != null) {
+                logger.info("Relaying message");
+                Content content = message.getContent();
+                relayGroup.relay(message.toBuilder()
+                    .setContent(content.toBuilder()
+                        .setSendMessageRequest(content.getSendMessageRequest().toBuilder().setSequence(temp.getSequence())))
+                    .build());
+              }
+
+              logger.info("Queued message from " + sender + " to " + recipient);
 
               // respond with a success message
               cResponseObserver.onNext(
-                  ChatMessageGenerator.SEND_MESSAGE_SUCCESS(this.username, recipient));
+                  ChatMessageGenerator.SEND_MESSAGE_SUCCESS(sender, recipient));
 
               break;
             }
 
-            // ------------------------ LIST ACCOUNTS ------------------------
-            case LIST_ACCOUNTS_REQUEST: {
-              String regexString = message.getContent().getListAccountsRequest().getPattern();
-
-              // Make * match any number of characters
-              regexString = regexString.replaceAll("\\*", ".*");
+            // ------------------------ CREATE GROUP ------------------------
+            case CREATE_GROUP_REQUEST: {
+              String group = message.getContent().getCreateGroupRequest().getGroup();
+              TreeSet<String> members = new TreeSet<String>(message.getContent().getCreateGroupRequest().getMembersList());
 
-              // Ensure the regex is anchored
-              regexString = '^' + regexString + '$';
+              synchronized (groups) {
+                // respond with an exception if the group already exists
+                if (groups.containsKey(group)) {
+                  logger.info("Failed to create group " + group + " because it already exists");
+                  cResponseObserver.onNext(
+                      ChatMessageGenerator.CREATE_GROUP_ALREADY_EXISTS(group));
+                  return;
+                }
+                // or if one of the members does not exist
+                for (String member : members) {
+                  if (!sessions.containsKey(member)) {
+                    logger.info("Failed to create group " + group + " because " + member + " does not exist");
+                    cResponseObserver.onNext(
+                        ChatMessageGenerator.CREATE_GROUP_MEMBER_DOES_NOT_EXIST(group, member));
+                    return;
+                  }
+                }
+                saveGroup(group, members);
+              }
 
-              Pattern regex = Pattern.compile(regexString);
+              logger.info("Created group " + group + " with " + members.size() + " members");
+              cResponseObserver.onNext(
+                  ChatMessageGenerator.CREATE_GROUP_SUCCESS(group));
+              break;
+            }
 
-              // Compare the query to the list of users
-              ArrayList<String> matchedUsers = new ArrayList<String>();
-              for(String e : messageDistributors.keySet()) {
-                  Matcher matcher = regex.matcher(e);
+            // ------------------------ UPDATE GROUP ------------------------
+            case UPDATE_GROUP_REQUEST: {
+              String group = message.getContent().getUpdateGroupRequest().getGroup();
+              int size;
 
-                  // If the regex matches the username, add the username
-                  if (matcher.find()) {
-                      matchedUsers.add(e);
+              synchronized (groups) {
+                // respond with an exception if the group does not exist
+                List<String> current = groups.get(group);
+                if (current == null) {
+                  logger.info("Failed to update group " + group + " because it does not exist");
+                  cResponseObserver.onNext(
+                      ChatMessageGenerator.UPDATE_GROUP_DOES_NOT_EXIST(group));
+                  return;
+                }
+                // or if one of the new members does not exist
+                for (String member : message.getContent().getUpdateGroupRequest().getAddList()) {
+                  if (!sessions.containsKey(member)) {
+                    logger.info("Failed to update group " + group + " because " + member + " does not exist");
+                    cResponseObserver.onNext(
+                        ChatMessageGenerator.UPDATE_GROUP_MEMBER_DOES_NOT_EXIST(group, member));
+                    return;
                   }
+                }
+                TreeSet<String> members = new TreeSet<String>(current);
+                members.addAll(message.getContent().getUpdateGroupRequest().getAddList());
+                members.removeAll(message.getContent().getUpdateGroupRequest().getRemoveList());
+                saveGroup(group, members);
+                size = members.size();
               }
 
-              // Send a message with the list of users
+              logger.info("Updated group " + group + ", which now has " + size + " members");
               cResponseObserver.onNext(
-                  ChatMessageGenerator.LIST_ACCOUNTS(matchedUsers));
+                  ChatMessageGenerator.UPDATE_GROUP_SUCCESS(group, size));
+              break;
+            }
+
+            // ------------------------ SEND GROUP MESSAGE ------------------------
+            case SEND_GROUP_MESSAGE_REQUEST: {
+              SendGroupMessageRequest request = message.getContent().getSendGroupMessageRequest();
+              String group = request.getGroup();
+
+              // respond with an exception if the client represented by this ResponseObserver is not logged in
+              if (this.username == null) {
+                logger.info("Failed to send group message because the user is not logged in");
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.SEND_GROUP_MESSAGE_USER_NOT_LOGGED_IN());
+                return;
+              }
+
+              // queue the message for the members the leader queued it for, with the numbers it gave them,
+              // or else for every member of the group but the sender
+              List<String> recipients;
+              List<Long> sequences = null;
+              if (isRelay(message) && request.getRecipientsCount() > 0) {
+                recipients = request.getRecipientsList();
+                sequences = request.getSequencesList();
+              } else {
+                List<String> members = groups.get(group);
+                if (members == null) {
+                  logger.info("Failed to send group message because " + group + " does not exist");
+                  cResponseObserver.onNext(
+                      ChatMessageGenerator.SEND_GROUP_MESSAGE_GROUP_DOES_NOT_EXIST(group));
+                  return;
+                }
+                recipients = new ArrayList<String>(members);
+                recipients.remove(this.username);
+              }
+
+              // the text is kept once for every copy, and each member's copy is queued in parallel batches
+              PendingMessage.Body body = new PendingMessage.Body(this.username, request.getMessage(), group, request.getPriority());
+              ArrayList<PendingMessage> copies;
+              try {
+                copies = GroupFanOut.fanOut(body, recipients, sequences);
+              } catch (UncheckedIOException e) {
+                logger.log(Level.WARNING, "Failed to record a message for " + group, e);
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.SEND_GROUP_MESSAGE_NOT_RECORDED(group));
+                return;
+              }
+
+              // relay the message to the followers with the members it was queued for and their numbers, if there were any
+              if (relayGroup != null && !copies.isEmpty()) {
+                logger.info("Relaying group message");
+                SendGroupMessageRequest.Builder numbered = request.toBuilder().clearRecipients().clearSequences();
+                for (PendingMessage copy : copies) {
+                  numbered.addRecipients(copy.getRecipient()).addSequences(copy.getSequence());
+                }
+                relayGroup.relay(message.toBuilder()
+                    .setContent(message.getContent().toBuilder().setSendGroupMessageRequest(numbered))
+                    .build());
+              }
+
+              logger.info("Queued message from " + this.username + " for " + copies.size() + " members of " + group);
+              cResponseObserver.onNext(
+                  ChatMessageGenerator.SEND_GROUP_MESSAGE_SUCCESS(this.username, group, copies.size()));
+              break;
+            }
+
+            // ------------------------ FETCH MESSAGES ------------------------
+            case FETCH_MESSAGES_REQUEST: {
+              // respond with an exception if the client represented by this ResponseObserver is not logged in
+              SessionRegistry registry = this.username == null ? null : sessions.get(this.username);
+              if (registry == null) {
+                logger.info("Failed to fetch messages because the user is not logged in");
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.FETCH_MESSAGES_USER_NOT_LOGGED_IN());
+                return;
+              }
+
+              // the page goes to this session only, and counts as delivered once the client fetches after it
+              int limit = message.getContent().getFetchMessagesRequest().getLimit();
+              if (limit <= 0 || limit > ServerConfig.FETCH_PAGE_MESSAGES) {
+                limit = (int) Math.max(1, ServerConfig.FETCH_PAGE_MESSAGES);
+              }
+              ArrayList<PendingMessage> page = new ArrayList<PendingMessage>();
+              boolean hasMore = registry.fetch(message.getContent().getFetchMessagesRequest().getAfter(), limit, page);
+
+              logger.info("Fetched " + page.size() + " held back messages for " + this.username);
+              cResponseObserver.onNext(
+                  ChatMessageGenerator.FETCH_MESSAGES(page, hasMore));
+              break;
+            }
+
+            // ------------------------ ACKNOWLEDGE MESSAGES ------------------------
+            case ACKNOWLEDGE_MESSAGES_REQUEST: {
+              // acknowledgements are not answered, and mean nothing once the user has logged out
+              if (this.distributor != null) {
+                this.distributor.acknowledge(message.getContent().getAcknowledgeMessagesRequest().getSequence());
+              }
+              break;
+            }
+
+            // ------------------------ LIST ACCOUNTS ------------------------
+            case LIST_ACCOUNTS_REQUEST: {
+              ListAccountsRequest request = message.getContent().getListAccountsRequest();
+              int limit = request.getLimit();
+              if (limit <= 0 || limit > ServerConfig.LIST_ACCOUNTS_PAGE) {
+                limit = (int) Math.max(1, ServerConfig.LIST_ACCOUNTS_PAGE);
+              }
+
+              // stream every page from the cursor on, replacing any listing still being streamed
+              if (request.getStream()) {
+                if (this.distributor == null) {
+                  cResponseObserver.setOnReadyHandler(onReady);
+                }
+                this.listing = new AccountListing(directory, request.getPattern(), request.getAfter(), limit);
+                continueListing();
+                break;
+              }
+
+              // Look the pattern up in the sorted directory, which only scans the usernames sharing its literal prefix, up to the end of the page
+              ArrayList<String> matchedUsers = new ArrayList<String>();
+              boolean hasMore = directory.list(request.getPattern(), request.getAfter(), limit, matchedUsers);
+
+              // Send a message with the page of users
+              cResponseObserver.onNext(
+                  ChatMessageGenerator.LIST_ACCOUNTS(matchedUsers, hasMore));
               break;
             }
 
@@ -424,7 +1021,7 @@ public class BusinessLogicServer {
               String username = message.getContent().getDeleteAccountRequest().getUsername();
 
               // respond with an exception if the account does not exist
-              if (!messageDistributors.containsKey(username)) {
+              if (!sessions.containsKey(username)) {
                 logger.info(
                     "Failed to delete account " + username + " because the username does not exist");
                 cResponseObserver.onNext(
@@ -433,17 +1030,44 @@ public class BusinessLogicServer {
                 return;
               }
 
+              // make sure the user's mailbox and numbering are loaded, so
+              // that everything queued for them is marked delivered below
+              getQueue(username);
+
               // delete the account by
-              // (1) stopping the MessageDistributor for the user if it exists
-              if (messageDistributors.get(username).isPresent()) {
-                messageDistributors.get(username).get().cease();
-              }
-              // (2) deleting the user's entry in the messageDistributors 
-              //     map, marking them as deleted. do the same for accounts file
-              messageDistributors.remove(username);
-              AccountSerializer.serialize(username);
-              // (3) deleting the user's pending messages
-              pendingMessages.remove(username);
+              // (1) recording the deletion, then deleting the user's entry
+              //     in the sessions map, marking them as deleted, and
+              //     stopping every session they are logged in with
+              try {
+                storage.deleteAccount(username);
+              } catch (UncheckedIOException e) {
+                logger.log(Level.WARNING, "Failed to record the deletion of " + username, e);
+                cResponseObserver.onNext(
+                    ChatMessageGenerator.DELETE_ACCOUNT_NOT_RECORDED(username));
+                return;
+              }
+              SessionRegistry deletedSessions = sessions.remove(username);
+              directory.remove(username);
+              if (deletedSessions != null) {
+                deletedSessions.ceaseAll();
+              }
+              // (2) deleting the user's pending messages, marking them as
+              //     delivered so that they are not loaded again on restart
+              Mailbox deleted = pendingMessages.remove(username);
+              if (deleted != null) {
+                advanceSequence(username, deleted.lastSequence());
+              }
+              markDelivered(username, lastSequences.get(username).get());
+              // (3) taking the user out of the groups they were in
+              synchronized (groups) {
+                for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+                  if (group.getValue().contains(username)) {
+                    TreeSet<String> members = new TreeSet<String>(group.getValue());
+                    members.remove(username);
+                    saveGroup(group.getKey(), members);
+                  }
+                }
+              }
 
               // respond with a success message
               cResponseObserver.onNext(
@@ -1,18 +1,24 @@
 package com.chatapp.server;
 
-import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import com.chatapp.Chat.ChatMessage;
 import com.chatapp.Chat.Content;
 import com.chatapp.Chat.CreateAccountResponse;
+import com.chatapp.Chat.CreateGroupResponse;
 import com.chatapp.Chat.DeleteAccountResponse;
+import com.chatapp.Chat.DistributeMessageBatch;
 import com.chatapp.Chat.DistributeMessageRequest;
+import com.chatapp.Chat.FetchMessagesResponse;
 import com.chatapp.Chat.ListAccountsResponse;
 import com.chatapp.Chat.LogInResponse;
 import com.chatapp.Chat.LogOutResponse;
 import com.chatapp.Chat.Pong;
 import com.chatapp.Chat.RejectedByFollower;
+import com.chatapp.Chat.SendGroupMessageResponse;
 import com.chatapp.Chat.SendMessageResponse;
+import com.chatapp.Chat.UpdateGroupResponse;
 import com.google.rpc.Code;
 import com.google.rpc.Status;
 
@@ -52,6 +58,21 @@ public class ChatMessageGenerator {
         .build();
   }
 
+  public static ChatMessage CREATE_ACCOUNT_NOT_RECORDED(String username) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setCreateAccountResponse(
+            CreateAccountResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.UNAVAILABLE.getNumber())
+                        .setMessage("Cannot create the account " + username + " because it could not be recorded, try again later")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
   public static ChatMessage LOG_IN_SUCCESS(String username) {
     return ChatMessage.newBuilder()
       .setContent(Content.newBuilder()
@@ -83,17 +104,58 @@ public class ChatMessageGenerator {
   }
 
   public static ChatMessage DISTRIBUTE_MESSAGE(String sender, String message) {
+    return DISTRIBUTE_MESSAGE(new PendingMessage(null, sender, message, 0));
+  }
+
+  public static ChatMessage DISTRIBUTE_MESSAGE(PendingMessage message) {
+    return DISTRIBUTE_MESSAGE(message, 0);
+  }
+
+  /**
+   * @param receivedThrough the sequence number up to which every message was sent to the client
+   */
+  public static ChatMessage DISTRIBUTE_MESSAGE(PendingMessage message, long receivedThrough) {
     return ChatMessage.newBuilder()
       .setContent(Content.newBuilder()
-        .setDistributeMessageRequest(
-            DistributeMessageRequest.newBuilder()
-                .setSender(sender)
-                .setMessage(message)
-                .build())
+        .setDistributeMessageRequest(distributed(message).setReceivedThrough(receivedThrough))
+          .build())
+        .build();
+  }
+
+  public static ChatMessage DISTRIBUTE_MESSAGE_BATCH(List<PendingMessage> messages) {
+    return DISTRIBUTE_MESSAGE_BATCH(messages, 0);
+  }
+
+  /**
+   * @param receivedThrough the sequence number up to which every message was sent to the client
+   */
+  public static ChatMessage DISTRIBUTE_MESSAGE_BATCH(List<PendingMessage> messages, long receivedThrough) {
+    DistributeMessageBatch.Builder batch = DistributeMessageBatch.newBuilder().setReceivedThrough(receivedThrough);
+    for (PendingMessage message : messages) {
+      batch.addMessages(distributed(message));
+    }
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setDistributeMessageBatch(batch.build())
           .build())
         .build();
   }
 
+  /*
+   * The text goes in already encoded, once for every copy of a group message
+   */
+  private static DistributeMessageRequest.Builder distributed(PendingMessage message) {
+    DistributeMessageRequest.Builder distributed = DistributeMessageRequest.newBuilder()
+        .setSender(message.getSender())
+        .setMessageBytes(message.getEncodedMessage())
+        .setSequence(message.getSequence())
+        .setPriority(message.getPriority());
+    if (message.getGroup() != null) {
+      distributed.setGroup(message.getGroup());
+    }
+    return distributed;
+  }
+
   public static ChatMessage LOG_OUT_SUCCESS(String username) {
     return ChatMessage.newBuilder()
       .setContent(Content.newBuilder()
@@ -139,6 +201,24 @@ public class ChatMessageGenerator {
         .build();
   }
 
+  /**
+   * @param deliverAt when the message is due, in milliseconds since the epoch
+   */
+  public static ChatMessage SEND_MESSAGE_SCHEDULED(String sender, String recipient, long deliverAt) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setSendMessageResponse(
+            SendMessageResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.OK.getNumber())
+                        .setMessage("Scheduled message from " + sender + " for " + recipient + " at " + new Date(deliverAt) + "!")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
   public static ChatMessage SEND_MESSAGE_RECIPIENT_DOES_NOT_EXIST(String recipient) {
     return ChatMessage.newBuilder()
       .setContent(Content.newBuilder()
@@ -169,12 +249,211 @@ public class ChatMessageGenerator {
         .build();
   }
 
-  public static ChatMessage LIST_ACCOUNTS(ArrayList<String> accounts) {
+  public static ChatMessage SEND_MESSAGE_NOT_RECORDED(String recipient) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setSendMessageResponse(
+            SendMessageResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.UNAVAILABLE.getNumber())
+                        .setMessage("Cannot send message to " + recipient + " because it could not be recorded, try again later")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage CREATE_GROUP_SUCCESS(String group) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setCreateGroupResponse(
+            CreateGroupResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.OK.getNumber())
+                        .setMessage("Created group " + group + "!")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage CREATE_GROUP_ALREADY_EXISTS(String group) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setCreateGroupResponse(
+            CreateGroupResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.ALREADY_EXISTS.getNumber())
+                        .setMessage("Cannot create group " + group + " because it already exists")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage CREATE_GROUP_MEMBER_DOES_NOT_EXIST(String group, String member) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setCreateGroupResponse(
+            CreateGroupResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.NOT_FOUND.getNumber())
+                        .setMessage("Cannot create group " + group + " because the user " + member + " does not exist")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage UPDATE_GROUP_SUCCESS(String group, int members) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setUpdateGroupResponse(
+            UpdateGroupResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.OK.getNumber())
+                        .setMessage("Updated group " + group + ", which now has " + members + " members!")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage UPDATE_GROUP_DOES_NOT_EXIST(String group) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setUpdateGroupResponse(
+            UpdateGroupResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.NOT_FOUND.getNumber())
+                        .setMessage("Cannot update group " + group + " because it does not exist")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage UPDATE_GROUP_MEMBER_DOES_NOT_EXIST(String group, String member) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setUpdateGroupResponse(
+            UpdateGroupResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.NOT_FOUND.getNumber())
+                        .setMessage("Cannot update group " + group + " because the user " + member + " does not exist")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage SEND_GROUP_MESSAGE_SUCCESS(String sender, String group, int recipients) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setSendGroupMessageResponse(
+            SendGroupMessageResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.OK.getNumber())
+                        .setMessage("Queued message from " + sender + " for the " + recipients + " other members of " + group + "!")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage SEND_GROUP_MESSAGE_GROUP_DOES_NOT_EXIST(String group) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setSendGroupMessageResponse(
+            SendGroupMessageResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.NOT_FOUND.getNumber())
+                        .setMessage("Cannot send message to " + group + " because that group does not exist")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage SEND_GROUP_MESSAGE_USER_NOT_LOGGED_IN() {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setSendGroupMessageResponse(
+            SendGroupMessageResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.FAILED_PRECONDITION.getNumber())
+                        .setMessage("Cannot send a message because you're not logged in")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage SEND_GROUP_MESSAGE_NOT_RECORDED(String group) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setSendGroupMessageResponse(
+            SendGroupMessageResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.UNAVAILABLE.getNumber())
+                        .setMessage("Cannot send message to " + group + " because it could not be recorded, try again later")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage FETCH_MESSAGES(List<PendingMessage> page, boolean hasMore) {
+    FetchMessagesResponse.Builder response = FetchMessagesResponse.newBuilder()
+        .setStatus(
+            Status.newBuilder()
+                .setCode(Code.OK.getNumber())
+                .setMessage("Fetched " + page.size() + " messages" + (hasMore ? ", more are waiting" : ", none are left"))
+                .build())
+        .setHasMore(hasMore);
+    for (PendingMessage message : page) {
+      response.addMessages(distributed(message));
+    }
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setFetchMessagesResponse(response.build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage FETCH_MESSAGES_USER_NOT_LOGGED_IN() {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setFetchMessagesResponse(
+            FetchMessagesResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.FAILED_PRECONDITION.getNumber())
+                        .setMessage("Cannot fetch messages because you're not logged in")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
+  public static ChatMessage LIST_ACCOUNTS(List<String> accounts, boolean hasMore) {
     return ChatMessage.newBuilder()
       .setContent(Content.newBuilder()
         .setListAccountsResponse(
             ListAccountsResponse.newBuilder()
                 .addAllAccounts(accounts)
+                .setHasMore(hasMore)
                 .build())
           .build())
         .build();
@@ -194,6 +473,21 @@ public class ChatMessageGenerator {
         .build();
   }
 
+  public static ChatMessage DELETE_ACCOUNT_NOT_RECORDED(String username) {
+    return ChatMessage.newBuilder()
+      .setContent(Content.newBuilder()
+        .setDeleteAccountResponse(
+            DeleteAccountResponse.newBuilder()
+                .setStatus(
+                    Status.newBuilder()
+                        .setCode(Code.UNAVAILABLE.getNumber())
+                        .setMessage("Cannot delete the account " + username + " because it could not be recorded, try again later")
+                        .build())
+                .build())
+          .build())
+        .build();
+  }
+
   public static ChatMessage DELETE_ACCOUNT_SUCCESS(String username) {
     return ChatMessage.newBuilder()
       .setContent(Content.newBuilder()
@@ -4,9 +4,6 @@ import io.grpc.Server;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.ArrayList;
-import com.chatapp.server.Persistence.AccountSerializer;
-import com.chatapp.server.Persistence.MessageSerializer;
 
 /**
  * Server that manages startup/shutdown of a {@code Chat} server. This class 
@@ -39,16 +36,16 @@ public class ChatServer {
     // Create a folder for the replica
     new java.io.File(BusinessLogicServer.getReplicaFolder()).mkdirs();
 
-    // Update accounts file to remove accounts that no longer exist
-    AccountSerializer.updateAccounts();
+    // Load the account information from storage
+    businessLogicServer.loadFiles();
 
-    // Update messages file to remove messages that were sent to users that no longer exist
-    MessageSerializer.updateMessages();
+    // Start the storage engine's background maintenance, such as compaction
+    BusinessLogicServer.getStorage().start();
 
-    // Load the account information from the files
-    ArrayList<String> pastAccounts = AccountSerializer.deserialize();
-    ArrayList<PendingMessage> pastMessages = MessageSerializer.deserialize();
-    businessLogicServer.loadFiles(pastAccounts, pastMessages);
+    // Log the metrics periodically if asked to
+    if (ServerConfig.METRICS_INTERVAL_MS > 0) {
+      Metrics.startReporting(ServerConfig.METRICS_INTERVAL_MS);
+    }
 
     // Then grab the gRPC server that it creates
     server = businessLogicServer.getServer();
@@ -67,6 +64,8 @@ public class ChatServer {
         } catch (InterruptedException e) {
           e.printStackTrace(System.err);
         }
+        // Flush and close the storage engine
+        BusinessLogicServer.getStorage().close();
         System.err.println("*** server shut down");
       }
     });
@@ -1,22 +1,88 @@
 package com.chatapp.server;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.MessageLite;
+
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 /**
  * A thread-safe wrapper around StreamObserver that blocks threads that call 
  * onNext() until the current thread finishes executing onNext().
+ *
+ * When it wraps the server's end of a gRPC call, it also exposes the call's
+ * flow control: isReady() turns false once gRPC has buffered more outbound
+ * messages than the client has taken, and the handler set with
+ * setOnReadyHandler() is run when it turns true again.
 */
 
 public class ConcurrentStreamObserver<T> {
 
   private StreamObserver<T> streamObserver;
 
+  // The flow control of the call, or null if the observer is not part of a gRPC call
+  private final CallStreamObserver<T> flowControl;
+
+  // Run whenever the call becomes ready for more messages
+  private volatile Runnable onReadyHandler = null;
+
+  // The bytes sent since the call last reported being ready, which gRPC is holding in its buffers
+  private final AtomicLong bufferedBytes = new AtomicLong(0);
+
   public ConcurrentStreamObserver(StreamObserver<T> streamObserver) {
     this.streamObserver = streamObserver;
+    if (streamObserver instanceof ServerCallStreamObserver) {
+      flowControl = (ServerCallStreamObserver<T>) streamObserver;
+      // gRPC only accepts the handler before the call handler returns, so it is set here once and forwards to the current one
+      ((ServerCallStreamObserver<T>) streamObserver).setOnReadyHandler(new Runnable() {
+        @Override
+        public void run() {
+          bufferedBytes.set(0);
+          Runnable handler = onReadyHandler;
+          if (handler != null) {
+            handler.run();
+          }
+        }
+      });
+    } else {
+      flowControl = null;
+    }
   }
 
   // This method is synchronized so that only one thread can execute it at a time, thereby providing thread-safe access to the streamObserver's onNext()
   public synchronized void onNext(T t) {
     streamObserver.onNext(t);
+    if (isReady()) {
+      bufferedBytes.set(0);
+    } else if (t instanceof MessageLite) {
+      bufferedBytes.addAndGet(((MessageLite) t).getSerializedSize());
+    }
+  }
+
+  /**
+   * Return whether the call can take more messages without buffering them.
+   * Always true when the observer is not part of a gRPC call.
+   */
+  public boolean isReady() {
+    return flowControl == null || flowControl.isReady();
+  }
+
+  /**
+   * Set what to run when the call becomes ready for more messages, replacing
+   * the previous handler
+   * @param handler the handler, or null for none
+   */
+  public void setOnReadyHandler(Runnable handler) {
+    onReadyHandler = handler;
+  }
+
+  /**
+   * Return how many bytes of messages were sent after the call stopped being
+   * ready, which is roughly what gRPC is buffering for a slow client
+   */
+  public long getBufferedBytes() {
+    return bufferedBytes.get();
   }
 }
@@ -0,0 +1,122 @@
+package com.chatapp.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small fixed pool of threads shared by every SessionRegistry and
+ * MessageDistributor. A registry is submitted to the pool when messages are
+ * queued for its user and a distributor when frames are handed to its
+ * session; each does what it can without blocking and gives its thread
+ * back, so the number of threads does not grow with the number of logged
+ * in users.
+ *
+ * The pool schedules its tasks by deficit round robin. The tasks that have
+ * work wait in one FIFO queue, which is the round: each time a task gets a
+ * thread it is credited ServerConfig.DELIVERY_QUANTUM_BYTES and delivers
+ * until it has spent its credit or delivered DELIVERY_QUANTUM_MESSAGES
+ * messages, then goes to the back of the queue if it has more to do. A
+ * frame may take a task past its credit; the excess is paid back in its
+ * next turn. A task that runs out of work, or has to wait for its client,
+ * leaves the queue and keeps no credit, so idle sessions cost nothing and a
+ * few users with huge mailboxes get no more than their share of the
+ * threads. The length of the queue is reported by the gauge
+ * delivery.scheduler.queueDepth.
+ */
+
+public class DeliveryDispatcher {
+
+  /**
+   * Something that delivers on the shared threads: a run does what it can
+   * within its turn and schedules itself again while it has more to do
+   */
+  abstract static class Task implements Runnable {
+
+    // Whether a run is waiting for or running on the dispatcher
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // The bytes the task may still deliver, or owes when negative, carried from one turn to the next; only the run touches it
+    private long deficit = 0;
+
+    /**
+     * Call this method when the task has work, to schedule a run unless one
+     * is already scheduled
+     */
+    public void signal() {
+      if (scheduled.compareAndSet(false, true)) {
+        dispatch(this);
+      }
+    }
+
+    /**
+     * Take a turn, then schedule another run if more work arrived after the
+     * task ran dry or if it used up its turn
+     */
+    public final void run() {
+      long budget = deficit + ServerConfig.DELIVERY_QUANTUM_BYTES;
+      long served = 0;
+      try {
+        served = deliver(budget, (int) Math.max(1, ServerConfig.DELIVERY_QUANTUM_MESSAGES));
+      } finally {
+        // a task that stopped short of its credit ran out of work, or hit its message quantum, and keeps none
+        deficit = served < budget ? 0 : budget - served;
+        scheduled.set(false);
+      }
+      // a signal that arrived while this run was finishing found it still scheduled
+      if (hasMore()) {
+        signal();
+      }
+    }
+
+    /**
+     * Deliver without blocking, stopping once the bytes delivered reach
+     * maxBytes or maxMessages messages were delivered. Nothing is delivered
+     * when maxBytes is not positive.
+     * @return how many bytes were delivered
+     */
+    abstract long deliver(long maxBytes, int maxMessages);
+
+    /**
+     * Return whether the task has work it could do right now
+     */
+    abstract boolean hasMore();
+  }
+
+  private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+  private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+      (int) Math.max(1, ServerConfig.DELIVERY_THREADS),
+      (int) Math.max(1, ServerConfig.DELIVERY_THREADS),
+      0, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "delivery-" + threadCount.incrementAndGet());
+          // delivery must not keep the server from shutting down
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  static {
+    Metrics.register("delivery.scheduler.queueDepth", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return pool.getQueue().size();
+      }
+    });
+  }
+
+  /**
+   * Queue a registry or a distributor for a turn on one of the shared threads
+   * @param task
+   */
+  static void dispatch(Task task) {
+    pool.execute(task);
+  }
+}
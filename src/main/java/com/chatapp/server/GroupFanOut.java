@@ -0,0 +1,124 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Queues a message sent to a group for each of its members. The message is
+ * stored once, as a PendingMessage.Body, and each member's mailbox gets a
+ * copy that only adds the member and their sequence number. The members are
+ * split into batches of ServerConfig.GROUP_FANOUT_BATCH that are queued in
+ * parallel on a small pool of threads; the mailboxes take messages without
+ * a lock, so the batches do not wait for each other. A group no larger than
+ * one batch is queued on the calling thread.
+ *
+ * Each copy only reserves its place in the member's mailbox at first. The
+ * copies are then recorded with one call to the storage engine, and only
+ * once that succeeds are they handed out and the members' registries
+ * signalled to deliver them; if it fails, their places are abandoned.
+ */
+
+public class GroupFanOut {
+
+  private static final int BATCH = (int) Math.max(1, ServerConfig.GROUP_FANOUT_BATCH);
+
+  private static final ForkJoinPool pool = new ForkJoinPool((int) Math.max(1, ServerConfig.GROUP_FANOUT_THREADS));
+
+  /**
+   * Queues the copies of the members in one range of the recipients
+   */
+  private static final class Batch extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final PendingMessage.Body body;
+    private final List<String> recipients;
+    private final List<Long> sequences;
+    private final PendingMessage[] copies;
+    private final int from;
+    private final int to;
+
+    Batch(PendingMessage.Body body, List<String> recipients, List<Long> sequences, PendingMessage[] copies, int from, int to) {
+      this.body = body;
+      this.recipients = recipients;
+      this.sequences = sequences;
+      this.copies = copies;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > BATCH) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new Batch(body, recipients, sequences, copies, from, middle),
+            new Batch(body, recipients, sequences, copies, middle, to));
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        String recipient = recipients.get(i);
+        Mailbox queue = BusinessLogicServer.getQueue(recipient);
+        // the member was deleted since the group was last updated
+        if (queue == null) {
+          continue;
+        }
+        // copies the leader numbered go in the place of their number, as for a direct message
+        copies[i] = sequences == null
+            ? queue.reserveCopy(recipient, body)
+            : queue.reserve(body.copyFor(recipient, sequences.get(i)));
+      }
+    }
+  }
+
+  /**
+   * Queue a message for each of the given recipients, record it and signal
+   * the recipients' registries. If it cannot be recorded, nothing is queued.
+   * @param body the message, shared by every copy
+   * @param recipients the members to queue it for
+   * @param sequences the sequence number of each recipient's copy, as
+   *        numbered by the leader, or null to number them here
+   * @return the copies that were queued, in the order of the recipients
+   * @throws UncheckedIOException if the copies could not be recorded
+   */
+  public static ArrayList<PendingMessage> fanOut(PendingMessage.Body body, List<String> recipients, List<Long> sequences) {
+    PendingMessage[] copies = new PendingMessage[recipients.size()];
+    Batch all = new Batch(body, recipients, sequences, copies, 0, copies.length);
+    if (copies.length <= BATCH) {
+      all.compute();
+    } else {
+      pool.invoke(all);
+    }
+
+    ArrayList<PendingMessage> queued = new ArrayList<PendingMessage>(copies.length);
+    for (PendingMessage copy : copies) {
+      if (copy != null) {
+        queued.add(copy);
+      }
+    }
+    if (queued.isEmpty()) {
+      return queued;
+    }
+
+    boolean recorded = false;
+    try {
+      BusinessLogicServer.getStorage().appendGroupMessage(queued);
+      recorded = true;
+    } finally {
+      for (PendingMessage copy : queued) {
+        Mailbox queue = BusinessLogicServer.getQueue(copy.getRecipient());
+        // the member may have been deleted in the meantime, and their mailbox with them
+        if (queue == null) {
+          continue;
+        }
+        if (recorded) {
+          queue.commit(copy);
+        } else {
+          queue.abandon(copy);
+        }
+        BusinessLogicServer.signalDistributor(copy.getRecipient());
+      }
+    }
+    return queued;
+  }
+}
@@ -0,0 +1,474 @@
+package com.chatapp.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The messages waiting to be sent to one user. Any number of senders can
+ * add messages at once without taking a lock, while the messages are taken
+ * off by one MessageDistributor at a time.
+ *
+ * New messages are written into a linked list of fixed-size chunks with
+ * one slot per sequence number. A sender takes the next sequence number
+ * with an atomic increment and writes its message into that number's slot,
+ * linking new chunks as needed, so the order of the mailbox is the order of
+ * the sequence numbers without the senders having to agree on both under a
+ * lock. Messages numbered by the leader are written into the slot of their
+ * number the same way, so every replica hands them out in the same order
+ * whatever order the relays bring them in.
+ *
+ * A slot whose number was taken but whose message has not been written yet
+ * holds up the messages after it. If it stays empty for HOLE_TIMEOUT_MS,
+ * for instance because the leader failed before relaying that message, it
+ * is skipped. Since no sender may come along to signal the consumer then,
+ * the mailbox wakes it up itself once the hole times out.
+ *
+ * A sender that must record a message before it can be handed out reserves
+ * its slot first (see reserveCopy), which holds up the messages after it
+ * without ever timing out, and then commits the message into it once it is
+ * recorded, or abandons the slot if it could not be, which the consumer
+ * skips straight away.
+ *
+ * Messages that were loaded from storage or put back after a failed
+ * delivery are kept in front of the chunks, on the consumer's side.
+ */
+
+public class Mailbox {
+
+  // How many messages each chunk holds
+  static final int CHUNK_SIZE = 32;
+
+  // How long an empty slot may hold up the messages after it
+  static final long HOLE_TIMEOUT_MS = 1000;
+
+  // Marks a slot that was taken off or skipped, so that nothing can be written into it anymore
+  private static final PendingMessage CONSUMED = new PendingMessage(null, null, null, 0);
+
+  // Marks a slot whose message is being recorded, which the consumer waits for however long it takes
+  private static final PendingMessage RESERVED = new PendingMessage(null, null, null, 0);
+
+  private static final class Chunk {
+    // The sequence number of the message in the first slot
+    final long first;
+    final AtomicReferenceArray<PendingMessage> slots = new AtomicReferenceArray<PendingMessage>(CHUNK_SIZE);
+    final AtomicReference<Chunk> next = new AtomicReference<Chunk>();
+
+    Chunk(long first) {
+      this.first = first;
+    }
+  }
+
+  // The sequence number the next message gets
+  private final AtomicLong nextSequence;
+
+  // The last chunk a sender wrote to, where the next sender starts looking
+  private volatile Chunk tail;
+
+  // The chunk the consumer reads, where senders look for slots before the tail
+  private volatile Chunk head;
+
+  // The slot of the head chunk the consumer reads next, guarded by this
+  private int headSlot = 0;
+
+  // When the consumer found the next slot empty with later messages waiting, or 0, guarded by this
+  private long holeSince = 0;
+
+  // Wakes the consumer up to skip the hole once it times out, or null while none is set, guarded by this
+  private TimingWheel.Timer holeTimer = null;
+
+  // Has the consumer look at the mailbox again, or null if nothing needs to
+  private final Runnable wake;
+
+  // Messages to hand out before those in the chunks, guarded by this
+  private final ArrayDeque<PendingMessage> front = new ArrayDeque<PendingMessage>();
+
+  /**
+   * Create a mailbox
+   * @param pending messages that are already waiting, in order
+   * @param lastSequence the sequence number of the last message queued for
+   *        the user so far; new messages are numbered after it and after
+   *        the pending messages
+   */
+  public Mailbox(Collection<PendingMessage> pending, long lastSequence) {
+    this(pending, lastSequence, null);
+  }
+
+  /**
+   * Create a mailbox whose consumer is woken up when a message it waits for
+   * times out
+   * @param pending messages that are already waiting, in order
+   * @param lastSequence the sequence number of the last message queued for
+   *        the user so far; new messages are numbered after it and after
+   *        the pending messages
+   * @param wake signals the consumer, which then looks at the mailbox again
+   */
+  public Mailbox(Collection<PendingMessage> pending, long lastSequence, Runnable wake) {
+    this.wake = wake;
+    front.addAll(pending);
+    if (!front.isEmpty()) {
+      lastSequence = Math.max(lastSequence, front.peekLast().getSequence());
+    }
+    nextSequence = new AtomicLong(lastSequence + 1);
+    head = tail = new Chunk(lastSequence + 1);
+  }
+
+  /**
+   * Number a new message and add it to the end of the mailbox, without
+   * blocking or taking a lock
+   * @return the message, with its sequence number
+   */
+  public PendingMessage offer(String recipient, String sender, String text) {
+    return offerCopy(recipient, new PendingMessage.Body(sender, text, null));
+  }
+
+  /**
+   * Number a copy of a message, such as one sent to a group, and add it to
+   * the end of the mailbox, without blocking or taking a lock
+   * @param recipient the owner of the mailbox
+   * @param body the message, shared with its other copies
+   * @return the copy, with its sequence number
+   */
+  public PendingMessage offerCopy(String recipient, PendingMessage.Body body) {
+    while (true) {
+      PendingMessage message = body.copyFor(recipient, nextSequence.getAndIncrement());
+      // the slot of a new number is free, unless the consumer gave up waiting for it or a relayed message took it
+      if (place(message)) {
+        return message;
+      }
+    }
+  }
+
+  /**
+   * Add a message that was already numbered, by the leader, in the place of
+   * its number, and number later messages after it. If that place was
+   * already handed out, the message is numbered again like a new one.
+   * @return the message as it was added
+   */
+  public PendingMessage offer(PendingMessage numbered) {
+    long sequence = numbered.getSequence();
+    while (true) {
+      long next = nextSequence.get();
+      if (next > sequence || nextSequence.compareAndSet(next, sequence + 1)) {
+        break;
+      }
+    }
+    if (place(numbered)) {
+      return numbered;
+    }
+    return offerCopy(numbered.getRecipient(), numbered.getBody());
+  }
+
+  /**
+   * Number a copy of a message and reserve its place at the end of the
+   * mailbox, without handing it out yet. The messages after it wait until
+   * it is committed or abandoned.
+   * @param recipient the owner of the mailbox
+   * @param body the message
+   * @return the copy, with its sequence number
+   */
+  public PendingMessage reserveCopy(String recipient, PendingMessage.Body body) {
+    while (true) {
+      PendingMessage message = body.copyFor(recipient, nextSequence.getAndIncrement());
+      if (place(message.getSequence(), RESERVED)) {
+        return message;
+      }
+    }
+  }
+
+  /**
+   * Reserve the place of a message that was already numbered, by the
+   * leader, like offer(PendingMessage) does, without handing it out yet
+   * @return the message as it was reserved, numbered again if its place
+   *         was already handed out
+   */
+  public PendingMessage reserve(PendingMessage numbered) {
+    long sequence = numbered.getSequence();
+    while (true) {
+      long next = nextSequence.get();
+      if (next > sequence || nextSequence.compareAndSet(next, sequence + 1)) {
+        break;
+      }
+    }
+    if (place(sequence, RESERVED)) {
+      return numbered;
+    }
+    return reserveCopy(numbered.getRecipient(), numbered.getBody());
+  }
+
+  /**
+   * Hand out a reserved message, once it is recorded. The sender signals
+   * the distributor afterwards.
+   * @param message what reserveCopy or reserve returned
+   */
+  public void commit(PendingMessage message) {
+    Chunk chunk = chunkOf(message.getSequence());
+    // a client that already has the message may have skipped its slot
+    if (chunk != null) {
+      chunk.slots.compareAndSet((int) (message.getSequence() - chunk.first), RESERVED, message);
+    }
+  }
+
+  /**
+   * Give up the place of a reserved message that could not be recorded, so
+   * that the consumer skips it. The sender signals the distributor
+   * afterwards.
+   * @param message what reserveCopy or reserve returned
+   */
+  public void abandon(PendingMessage message) {
+    Chunk chunk = chunkOf(message.getSequence());
+    if (chunk != null) {
+      chunk.slots.compareAndSet((int) (message.getSequence() - chunk.first), RESERVED, CONSUMED);
+    }
+  }
+
+  /*
+   * Writes the message into the slot of its sequence number
+   * @return whether the slot was free
+   */
+  private boolean place(PendingMessage message) {
+    return place(message.getSequence(), message);
+  }
+
+  private boolean place(long sequence, PendingMessage value) {
+    Chunk chunk = chunkOf(sequence);
+    return chunk != null && chunk.slots.compareAndSet((int) (sequence - chunk.first), null, value);
+  }
+
+  /*
+   * Returns the chunk holding the slot of a sequence number, linking new
+   * chunks as needed, or null if the consumer has moved past it
+   */
+  private Chunk chunkOf(long sequence) {
+    Chunk chunk = tail;
+    if (chunk.first > sequence) {
+      chunk = head;
+      if (chunk.first > sequence) {
+        return null;
+      }
+    }
+    while (sequence >= chunk.first + CHUNK_SIZE) {
+      Chunk next = chunk.next.get();
+      if (next == null) {
+        chunk.next.compareAndSet(null, new Chunk(chunk.first + CHUNK_SIZE));
+        next = chunk.next.get();
+      }
+      chunk = next;
+    }
+    if (chunk.first > tail.first) {
+      tail = chunk;
+    }
+    return chunk;
+  }
+
+  /**
+   * Put a message back at the front of the mailbox, to be handed out next
+   */
+  public synchronized void requeue(PendingMessage message) {
+    front.addFirst(message);
+  }
+
+  /**
+   * Take the next message off the mailbox, without waiting for one
+   * @return the message, or null if there is none
+   */
+  public synchronized PendingMessage poll() {
+    PendingMessage message = peek();
+    if (message != null) {
+      if (!front.isEmpty()) {
+        front.pollFirst();
+      } else {
+        consumeHeadSlot();
+      }
+    }
+    return message;
+  }
+
+  /**
+   * Look at the next message without taking it off the mailbox. A message
+   * whose sender has taken its number but not written it yet is not there
+   * yet; the sender signals the distributor once it has written it.
+   * @return the message, or null if there is none
+   */
+  public synchronized PendingMessage peek() {
+    if (!front.isEmpty()) {
+      return front.peekFirst();
+    }
+    while (true) {
+      moveToNextChunk();
+      PendingMessage message = head.slots.get(headSlot);
+      // an abandoned reservation is skipped, while a message that is being recorded is waited for
+      if (message == CONSUMED) {
+        headSlot++;
+        continue;
+      }
+      if (message == RESERVED) {
+        clearHole();
+        return null;
+      }
+      if (message != null) {
+        clearHole();
+        return message;
+      }
+      // nothing is waiting after this slot, so it is simply the end
+      if (nextSequence.get() <= head.first + headSlot) {
+        clearHole();
+        return null;
+      }
+      long now = System.currentTimeMillis();
+      if (holeSince == 0) {
+        holeSince = now;
+      }
+      if (now - holeSince < HOLE_TIMEOUT_MS) {
+        awaitHole(holeSince + HOLE_TIMEOUT_MS);
+        return null;
+      }
+      // skip the hole, and the ones right after it, unless the message arrived just now
+      if (head.slots.compareAndSet(headSlot, null, CONSUMED)) {
+        headSlot++;
+      }
+    }
+  }
+
+  /**
+   * Take every message numbered up to and including the given sequence
+   * number off the front of the mailbox, for a client that already has them
+   * @return how many messages were taken off
+   */
+  public synchronized int skipThrough(long sequence) {
+    int skipped = 0;
+    while (!front.isEmpty() && front.peekFirst().getSequence() <= sequence) {
+      front.pollFirst();
+      skipped++;
+    }
+    if (!front.isEmpty()) {
+      return skipped;
+    }
+    while (true) {
+      moveToNextChunk();
+      if (head.first + headSlot > sequence || head.first + headSlot >= nextSequence.get()) {
+        return skipped;
+      }
+      // the slot may still be empty, but the client has its message already
+      if (head.slots.getAndSet(headSlot, CONSUMED) != null) {
+        skipped++;
+      }
+      headSlot++;
+      clearHole();
+    }
+  }
+
+  /*
+   * Wakes the consumer up at the deadline, unless it is already set to be
+   */
+  private void awaitHole(long deadline) {
+    if (wake == null || holeTimer != null) {
+      return;
+    }
+    holeTimer = ScheduledMessages.wheel.schedule(deadline, new Runnable() {
+      @Override
+      public void run() {
+        synchronized (Mailbox.this) {
+          holeTimer = null;
+        }
+        wake.run();
+      }
+    });
+  }
+
+  /*
+   * Forgets the hole the consumer waited at, which was filled or skipped
+   */
+  private void clearHole() {
+    holeSince = 0;
+    if (holeTimer != null) {
+      ScheduledMessages.wheel.cancel(holeTimer);
+      holeTimer = null;
+    }
+  }
+
+  /*
+   * Moves the consumer to the next chunk once it has read every slot of its chunk
+   */
+  private void moveToNextChunk() {
+    if (headSlot == CHUNK_SIZE) {
+      Chunk next = head.next.get();
+      if (next == null) {
+        next = new Chunk(head.first + CHUNK_SIZE);
+        if (!head.next.compareAndSet(null, next)) {
+          next = head.next.get();
+        }
+      }
+      head = next;
+      headSlot = 0;
+    }
+  }
+
+  private void consumeHeadSlot() {
+    head.slots.set(headSlot, CONSUMED);
+    headSlot++;
+  }
+
+  /**
+   * Move messages off the mailbox into a batch, until the batch holds
+   * maxMessages messages or the next message would take the length of its
+   * sender and text past maxChars. The first message is always taken,
+   * however long.
+   * @param batch the list to add the messages to, in order
+   * @return how many messages were added
+   */
+  public synchronized int drainTo(List<PendingMessage> batch, int maxMessages, long maxChars) {
+    int count = 0;
+    long chars = 0;
+    while (count < maxMessages) {
+      PendingMessage next = peek();
+      if (next == null) {
+        break;
+      }
+      long length = next.getSender().length() + next.getMessage().length();
+      if (count > 0 && chars + length > maxChars) {
+        break;
+      }
+      poll();
+      batch.add(next);
+      chars += length;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Return whether there is no message to hand out right now
+   */
+  public boolean isEmpty() {
+    return peek() == null;
+  }
+
+  /**
+   * Return the sequence number of the first message that was not taken off
+   * the mailbox yet, whose message may not be written yet, or the number the
+   * next message gets if none is waiting. Every message numbered before it
+   * was taken off or skipped.
+   */
+  public synchronized long firstWaiting() {
+    moveToNextChunk();
+    long first = head.first + headSlot;
+    PendingMessage loaded = front.peekFirst();
+    return loaded == null ? first : Math.min(first, loaded.getSequence());
+  }
+
+  /**
+   * Return the sequence number of the last message added to the mailbox.
+   * Senders that are adding messages at the same time may take it further.
+   */
+  public long lastSequence() {
+    long last = nextSequence.get() - 1;
+    synchronized (this) {
+      PendingMessage loaded = front.peekLast();
+      return loaded == null ? last : Math.max(last, loaded.getSequence());
+    }
+  }
+}
@@ -1,32 +1,112 @@
 package com.chatapp.server;
 
+import java.util.ArrayDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.chatapp.Chat.ChatMessage;
 
 /**
- * Creates a thread that distributes messages to the client its responsible for
- * by entering a infinite loop that waits for messages to be added to the
- * blocking queue for that user. When a message is added to the queue, the
- * thread sends the message to the client.
+ * Distributes messages to the client its responsible for, which is one of
+ * the sessions of its user (see SessionRegistry). It does not own a thread:
+ * whenever the registry hands it a frame of messages, it is signalled and
+ * runs on the shared DeliveryDispatcher, sends the frames that are waiting
+ * without blocking, within its turn of the dispatcher's round, and then
+ * gives the thread back. At most one run of a distributor is scheduled at a
+ * time, so its messages are still sent in order.
+ *
+ * Messages that are waiting together are sent together: the registry takes
+ * up to a batch of them off the queue (see ServerConfig.DELIVERY_BATCH_MESSAGES
+ * and DELIVERY_BATCH_BYTES) and hands them to every session in one frame.
+ *
+ * Delivery follows the flow control of the gRPC call: while the client is
+ * not keeping up, the distributor stops sending, and it is signalled again
+ * once the call is ready. The frames it has not sent count against its
+ * window, so the registry stops taking messages off the queue and they wait
+ * in the mailbox rather than in memory.
+ *
+ * Delivery is at least once. Every message carries its sequence number,
+ * and the client acknowledges what it has received with the number of the
+ * last message, which covers every message sent before it (messages of
+ * different priorities are not sent in the order of their numbers). Messages that were
+ * sent but not acknowledged yet stay in flight, and at most
+ * ServerConfig.DELIVERY_WINDOW of them at a time, counting those not sent
+ * yet. Frames handed to the session while its window is full are held back
+ * and queued, in order, as the client acknowledges the ones before them, so
+ * a session that falls behind the user's other sessions still receives
+ * every message. When the last session of a user ends, because the user logged out or
+ * the connection dropped, the messages no session acknowledged are put back
+ * at the front of the mailbox and sent again on the next log in. A client
+ * that logs in again, to this replica or another one after a failover,
+ * says which message it received last, and delivery resumes after it.
+ *
+ * Acknowledgements are recorded in the message log so that acknowledged
+ * messages are not delivered again after a restart. To keep this cheap, the
+ * delivery cursor is only persisted once the clients have acknowledged
+ * everything sent to them, every few messages while they have not, and
+ * when the last session ends.
  */
 
-public class MessageDistributor extends Thread {
+public class MessageDistributor extends DeliveryDispatcher.Task {
 
   private static final Logger logger = Logger.getLogger(MessageDistributor.class.getName());
 
-  // This is used to stop the thread -- the infinite loop will end itself when this is set to false via the cease() method
+  /**
+   * A ChatMessage distributing one or more messages, shared by every session it is sent to
+   */
+  static final class Frame {
+    final ChatMessage message;
+    // The sequence numbers of the messages it holds, in the order they are delivered, how many there are and the last one
+    final long[] sequences;
+    final int count;
+    final long lastSequence;
+    // Its size on the wire
+    final int bytes;
+
+    Frame(ChatMessage message, long[] sequences) {
+      this.message = message;
+      this.sequences = sequences;
+      this.count = sequences.length;
+      this.lastSequence = sequences[sequences.length - 1];
+      this.bytes = message.getSerializedSize();
+    }
+
+    boolean contains(long sequence) {
+      for (long number : sequences) {
+        if (number == sequence) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // This is used to stop the distributor -- it stops sending once this is set to false via the cease() method
   AtomicBoolean running = new AtomicBoolean(true);
 
   // The username of the user this MessageDistributor is responsible for and the observer used to send messages to the client provided by gRPC
   String username;
   ConcurrentStreamObserver<ChatMessage> observer;
 
+  // The frames handed to this session that are not sent yet, and those sent that the client has not acknowledged yet, in order, guarded by this
+  private final ArrayDeque<Frame> queued = new ArrayDeque<Frame>();
+  private final ArrayDeque<Frame> inFlight = new ArrayDeque<Frame>();
+
+  // The frames handed to this session while its window was full, in order, which are queued once it has room for them, guarded by this
+  private final ArrayDeque<Frame> held = new ArrayDeque<Frame>();
+
+  // How many messages those frames hold, guarded by this
+  private int queuedMessages = 0;
+  private int inFlightMessages = 0;
+
+  // How many bytes of frames were sent to the client
+  private final AtomicLong servedBytes = new AtomicLong(0);
+
   /**
-   * Create a new MessageDistributor thread
-   * 
-   * @param username used to look up the blocking queue for the user
+   * Create a new MessageDistributor
+   *
+   * @param username the user whose messages it delivers
    * @param observer used to send messages to the client
    */
   public MessageDistributor(String username, ConcurrentStreamObserver<ChatMessage> observer) {
@@ -35,49 +115,142 @@ public class MessageDistributor extends Thread {
   }
 
   /**
-   * Call this method to stop the thread
+   * Call this method to start delivering the frames that are already waiting
+   */
+  public void start() {
+    signal();
+  }
+
+  /**
+   * Call this method to stop the distributor, after removing it from the
+   * user's registry. The frames it has not sent are dropped; the registry
+   * keeps the messages no session acknowledged.
    */
-  public void cease() {
+  public synchronized void cease() {
     running.set(false);
+    queued.clear();
+    inFlight.clear();
+    held.clear();
+    queuedMessages = 0;
+    inFlightMessages = 0;
   }
 
   /**
-   * Call this method to start the thread
+   * Hand the session a frame to send, which is held back until the session
+   * has room for it in its window
+   * @param frame
+   */
+  synchronized void enqueue(Frame frame) {
+    if (!running.get()) {
+      return;
+    }
+    held.add(frame);
+    release();
+  }
+
+  /*
+   * Queues the held back frames the window has room for, in order, and at
+   * least one once nothing is queued or in flight, however large
    */
-  public void run() {
-    while(running.get()) {
-      // wait for a message to be added to the queue (blocking)
-      PendingMessage message = BusinessLogicServer.getNextMessageFor(username);
-
-      // double check again that this MessageDistributor should be running; if it shouldn't, then put the message back and end the thread
-      if (!running.get()) {
-        BusinessLogicServer.putMessageBackToDeliverLater(this.username, message);
-        return;
+  private void release() {
+    boolean released = false;
+    while (!held.isEmpty() && (held.peekFirst().count <= room() || queuedMessages + inFlightMessages == 0)) {
+      Frame frame = held.pollFirst();
+      queued.add(frame);
+      queuedMessages += frame.count;
+      released = true;
+    }
+    if (released) {
+      signal();
+    }
+  }
+
+  /**
+   * Return how many more messages may be handed to this session before the
+   * client acknowledges some. Without a window, that is a batch at a time.
+   */
+  synchronized int room() {
+    long limit = ServerConfig.DELIVERY_WINDOW > 0 ? ServerConfig.DELIVERY_WINDOW : ServerConfig.DELIVERY_BATCH_MESSAGES;
+    return (int) Math.max(0, limit - queuedMessages - inFlightMessages);
+  }
+
+  /**
+   * Call this method when the client acknowledges messages
+   * @param sequence the sequence number of the last message the client
+   *        received, which covers every frame sent before it
+   */
+  public void acknowledge(long sequence) {
+    synchronized (this) {
+      boolean sent = false;
+      for (Frame frame : inFlight) {
+        if (frame.contains(sequence)) {
+          sent = true;
+          break;
+        }
+      }
+      // the frame holding the message is done once its last message is acknowledged
+      while (sent && !inFlight.isEmpty() && !inFlight.peekFirst().contains(sequence)) {
+        inFlightMessages -= inFlight.pollFirst().count;
+      }
+      if (sent && inFlight.peekFirst().lastSequence == sequence) {
+        inFlightMessages -= inFlight.pollFirst().count;
       }
+      release();
+    }
+    BusinessLogicServer.acknowledge(username, sequence);
+  }
 
-      // if the message is null, that means an interrupt occured, so just try again
-      if (message == null) {
-        continue;
+  /**
+   * Return how many bytes of frames were sent to the client
+   */
+  public long getServedBytes() {
+    return servedBytes.get();
+  }
+
+  /**
+   * Return whether frames are waiting and the client can take them
+   */
+  @Override
+  synchronized boolean hasMore() {
+    return running.get() && observer.isReady() && !queued.isEmpty();
+  }
+
+  /**
+   * Send the waiting frames, one at a time, within this turn
+   */
+  @Override
+  long deliver(long maxBytes, int maxMessages) {
+    int sent = 0;
+    long bytes = 0;
+    while (sent < maxMessages && bytes < maxBytes) {
+      // leave the frames queued while the client is behind; the call's ready handler signals this distributor again
+      if (!running.get() || !observer.isReady()) {
+        break;
       }
 
-      // make sure the recipient is currently logged in;
-      // if they aren't, then:
-      // (1) put the message back on the front of the queue
-      // (2) this thread should end itself because it no longer has an active 
-      //     user to represent. This means that automatic message delivery will
-      //     be paused until the user logs back in and a MessageDistributor is 
-      //     started for them again.
-      if (!BusinessLogicServer.isLoggedIn(this.username)) {
-        logger.info("User " + this.username + " is not logged in, so its MessageDistributor thread will end itself.");
-        BusinessLogicServer.putMessageBackToDeliverLater(this.username, message);
-        return;
+      // the frame is in flight before it is sent, so that an acknowledgement cannot overtake it
+      Frame frame;
+      synchronized (this) {
+        frame = queued.pollFirst();
+        if (frame == null) {
+          break;
+        }
+        queuedMessages -= frame.count;
+        inFlight.add(frame);
+        inFlightMessages += frame.count;
       }
 
-      // distribute the message to the client
-      String sender = message.getSender();
-      String content = message.getMessage();
-      observer.onNext(ChatMessageGenerator.DISTRIBUTE_MESSAGE(sender, content));
-      logger.info("Sent message to " + username + " from " + sender + ": " + content);
+      observer.onNext(frame.message);
+      logger.info("Sent " + frame.count + " messages to " + username);
+      sent += frame.count;
+      bytes += frame.bytes;
+      servedBytes.addAndGet(frame.bytes);
+
+      // without a window, messages count as delivered once they are sent
+      if (ServerConfig.DELIVERY_WINDOW <= 0) {
+        acknowledge(frame.lastSequence);
+      }
     }
+    return bytes;
   }
 }
@@ -0,0 +1,79 @@
+package com.chatapp.server;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+/**
+ * A registry of named gauges that report the current value of something
+ * the server is doing, such as how much is buffered for a client. Gauges
+ * are read on demand with snapshot(), and logged periodically when the
+ * server is started with -Dchatapp.metrics.intervalMs.
+ */
+
+public class Metrics {
+  private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+  /**
+   * Reports the current value of a metric
+   */
+  public interface Gauge {
+    long value();
+  }
+
+  private static final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+  /**
+   * Register a gauge under a name, replacing any gauge of the same name
+   * @param name
+   * @param gauge
+   */
+  public static void register(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Remove a gauge, unless another gauge was registered under its name since
+   * @param name
+   * @param gauge
+   */
+  public static void unregister(String name, Gauge gauge) {
+    gauges.remove(name, gauge);
+  }
+
+  /**
+   * Read every gauge
+   * @return the value of each gauge, by name
+   */
+  public static SortedMap<String, Long> snapshot() {
+    TreeMap<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().value());
+    }
+    return values;
+  }
+
+  /**
+   * Log every gauge in the background every intervalMs milliseconds
+   * @param intervalMs
+   */
+  public static void startReporting(final long intervalMs) {
+    Thread reporter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(intervalMs);
+          } catch (InterruptedException e) {
+            return;
+          }
+          logger.info("Metrics: " + snapshot());
+        }
+      }
+    }, "metrics");
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+}
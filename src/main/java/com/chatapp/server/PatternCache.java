@@ -0,0 +1,234 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A bounded cache of the patterns accounts were listed by, kept by the
+ * AccountDirectory so that a pattern a client asks for again and again is
+ * neither compiled nor looked up in the directory again. Each entry holds
+ * the compiled pattern and, when the pattern matched at most maxMatches
+ * accounts the last time they were all listed, those accounts. The least
+ * recently used entry is evicted once there are more than capacity.
+ *
+ * When an account is created or deleted, only the entries whose pattern
+ * matches its username forget their accounts, and keep the compiled pattern.
+ * A listing that ran while an account was created or deleted is not cached,
+ * since it may or may not have seen the change.
+ */
+
+public class PatternCache {
+
+  /**
+   * What is cached for a pattern
+   */
+  static class Entry {
+    // The characters every match starts with
+    final String prefix;
+
+    // The expression matches must also match, or null if the pattern is its prefix followed by *
+    final Pattern regex;
+
+    // Whether the pattern is a valid expression, which matches nothing if not
+    final boolean valid;
+
+    // Every account the pattern matches, in order, or null if they are not cached
+    volatile List<String> matches = null;
+
+    Entry(String pattern, String prefix) {
+      this.prefix = prefix;
+      Pattern compiled = null;
+      boolean valid = true;
+      if (prefix.length() != pattern.length() - 1 || pattern.charAt(prefix.length()) != '*') {
+        try {
+          compiled = AccountDirectory.compile(pattern);
+        } catch (PatternSyntaxException e) {
+          valid = false;
+        }
+      }
+      this.regex = compiled;
+      this.valid = valid;
+    }
+
+    boolean matches(String username) {
+      return valid && username.startsWith(prefix) && (regex == null || regex.matcher(username).matches());
+    }
+  }
+
+  private final int capacity;
+  private final int maxMatches;
+
+  // The entries, least recently used first, guarded by this
+  private final LinkedHashMap<String, Entry> entries;
+
+  // Counts the creations and deletions of accounts, guarded by this
+  private long generation = 0;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong invalidations = new AtomicLong(0);
+
+  /**
+   * @param capacity how many patterns to keep at most
+   * @param maxMatches how many accounts a pattern may match at most for them
+   *        to be kept
+   */
+  public PatternCache(int capacity, int maxMatches) {
+    this.capacity = capacity;
+    this.maxMatches = maxMatches;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > PatternCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Return the entry of a pattern, compiling the pattern if it has none
+   * @param pattern a pattern that is not all literal
+   * @param prefix its literal prefix
+   */
+  Entry lookup(String pattern, String prefix) {
+    synchronized (this) {
+      Entry entry = entries.get(pattern);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    Entry entry = new Entry(pattern, prefix);
+    synchronized (this) {
+      Entry raced = entries.get(pattern);
+      if (raced != null) {
+        return raced;
+      }
+      entries.put(pattern, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Return the accounts cached for an entry, counting a hit if there are
+   * some and a miss if not
+   * @param entry
+   * @return the accounts, in order, or null
+   */
+  List<String> cachedMatches(Entry entry) {
+    List<String> matches = entry.matches;
+    if (matches == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return matches;
+  }
+
+  /**
+   * Return how many accounts were created or deleted so far, to read before
+   * listing the accounts to cache
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Cache every account a pattern matches, unless there are too many or an
+   * account was created or deleted since they were listed
+   * @param entry the entry of the pattern
+   * @param generation what generation() returned before they were listed
+   * @param matches the accounts, in order, which are not changed afterwards
+   */
+  synchronized void complete(Entry entry, long generation, ArrayList<String> matches) {
+    if (generation == this.generation && matches.size() <= maxMatches) {
+      entry.matches = Collections.unmodifiableList(matches);
+    }
+  }
+
+  /**
+   * Forget the accounts of the patterns that match an account that was
+   * created or deleted
+   * @param username
+   */
+  synchronized void invalidate(String username) {
+    generation++;
+    for (Entry entry : entries.values()) {
+      if (entry.matches != null && entry.matches(username)) {
+        entry.matches = null;
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Forget every pattern
+   */
+  public synchronized void clear() {
+    generation++;
+    entries.clear();
+  }
+
+  public int getMaxMatches() {
+    return maxMatches;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Register the cache's gauges under a name: <name>.hits and <name>.misses
+   * count the listings answered from the cache and those that were not,
+   * <name>.hitRatio is the percentage of hits so far, <name>.entries how
+   * many patterns are cached and <name>.invalidations how many times a
+   * pattern forgot its accounts
+   * @param name
+   */
+  public void registerMetrics(String name) {
+    Metrics.register(name + ".hits", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return hits.get();
+      }
+    });
+    Metrics.register(name + ".misses", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return misses.get();
+      }
+    });
+    Metrics.register(name + ".hitRatio", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return hitRatio();
+      }
+    });
+    Metrics.register(name + ".entries", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return size();
+      }
+    });
+    Metrics.register(name + ".invalidations", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return invalidations.get();
+      }
+    });
+  }
+
+  /**
+   * Return the percentage of the listings so far that were answered from the
+   * cache, or 0 if there were none
+   */
+  public long hitRatio() {
+    long hit = hits.get();
+    long total = hit + misses.get();
+    return total == 0 ? 0 : hit * 100 / total;
+  }
+}
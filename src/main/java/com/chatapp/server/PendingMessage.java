@@ -1,30 +1,157 @@
 package com.chatapp.server;
 
+import com.chatapp.Chat.Priority;
+import com.google.protobuf.ByteString;
+
 /**
- * Represents a message that is waiting to be sent to a client
+ * Represents a message that is waiting to be sent to a client. Messages are
+ * numbered per recipient in the order they were queued, starting at 1, and
+ * delivered in that order within each priority (see PriorityLanes).
+ *
+ * The sender, text, group and priority of a message are kept in a body
+ * that the copies of a message sent to a group share, so its text is
+ * stored, and encoded for the wire, once however many members it is queued
+ * for.
+ *
+ * A message may expire: once its expiry time has passed, it is dropped
+ * instead of delivered whenever it next comes up for delivery, and it is
+ * not loaded again after a restart, so expired messages are never looked
+ * for in the mailboxes.
 */
 
 public class PendingMessage {
+
+  /**
+   * What the copies of a message have in common
+   */
+  public static final class Body {
+    private final String sender;
+    private final String message;
+    private final String group;
+    private final Priority priority;
+    // When the message expires, in milliseconds since the epoch, or 0 if it does not
+    private final long expireAt;
+    // When the message was queued on this server, or loaded from storage, in System.nanoTime
+    private final long queuedAt = System.nanoTime();
+    // The text encoded as UTF-8 for the wire, the first time it is needed
+    private volatile ByteString encoded;
+
+    /**
+     * @param group the group the message was sent to, or null for a direct message
+     */
+    public Body(String sender, String message, String group) {
+      this(sender, message, group, Priority.NORMAL);
+    }
+
+    /**
+     * @param group the group the message was sent to, or null for a direct message
+     * @param priority the lane the message is delivered in
+     */
+    public Body(String sender, String message, String group, Priority priority) {
+      this(sender, message, group, priority, 0);
+    }
+
+    /**
+     * @param group the group the message was sent to, or null for a direct message
+     * @param priority the lane the message is delivered in
+     * @param expireAt when the message expires, in milliseconds since the epoch, or 0 if it does not
+     */
+    public Body(String sender, String message, String group, Priority priority, long expireAt) {
+      this.sender = sender;
+      this.message = message;
+      this.group = group;
+      this.priority = priority == null || priority == Priority.UNRECOGNIZED ? Priority.NORMAL : priority;
+      this.expireAt = Math.max(0, expireAt);
+    }
+
+    /**
+     * Return a copy of the message for one recipient, sharing this body
+     */
+    public PendingMessage copyFor(String recipient, long sequence) {
+      return new PendingMessage(recipient, this, sequence);
+    }
+  }
+
   private String recipient;
-  private String sender;
-  private String message;
+  private Body body;
+  private long sequence;
+
+  public PendingMessage(String recipient, String sender, String message, long sequence) {
+    this(recipient, new Body(sender, message, null), sequence);
+  }
 
-  public PendingMessage(String recipient, String sender, String message) {
+  public PendingMessage(String recipient, Body body, long sequence) {
     this.recipient = recipient;
-    this.sender = sender;
-    this.message = message;
+    this.body = body;
+    this.sequence = sequence;
   }
 
   public String getMessage() {
-    return message;
+    return body.message;
   }
 
   public String getSender() {
-    return sender;
+    return body.sender;
   }
 
   public String getRecipient() {
     return recipient;
   }
 
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Return the group the message was sent to, or null for a direct message
+   */
+  public String getGroup() {
+    return body.group;
+  }
+
+  public Priority getPriority() {
+    return body.priority;
+  }
+
+  /**
+   * Return when the message was queued on this server, or loaded from
+   * storage, in System.nanoTime
+   */
+  public long getQueuedAt() {
+    return body.queuedAt;
+  }
+
+  /**
+   * Return when the message expires, in milliseconds since the epoch, or 0
+   * if it does not
+   */
+  public long getExpireAt() {
+    return body.expireAt;
+  }
+
+  /**
+   * Return whether the message expired by the given time
+   * @param now in milliseconds since the epoch
+   */
+  public boolean isExpired(long now) {
+    return body.expireAt != 0 && body.expireAt <= now;
+  }
+
+  public Body getBody() {
+    return body;
+  }
+
+  /**
+   * Return the text encoded as UTF-8, encoded once for every copy
+   */
+  public ByteString getEncodedMessage() {
+    ByteString encoded = body.encoded;
+    if (encoded == null) {
+      // encoding twice in a race is harmless
+      encoded = ByteString.copyFromUtf8(body.message);
+      body.encoded = encoded;
+    }
+    return encoded;
+  }
+
 }
@@ -1,13 +1,14 @@
 package com.chatapp.server.Persistence;
 
-import com.chatapp.server.BusinessLogicServer;
 import com.chatapp.server.Persistence.SerializerUtil.TextType;
 
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 public class AccountSerializer {
 
@@ -16,87 +17,94 @@ public class AccountSerializer {
      * @param username the account to write to the file
      */
     public static void serialize(String username) {
-        String[] arguments = {username};
-        
-        // Write marshalled account to account file and backup file
-        SerializerUtil.write(TextType.ACCOUNT, arguments);
+        // Append the encoded account to the account log
+        SerializerUtil.write(TextType.ACCOUNT, RecordCodec.encodeAccount(username));
     }
 
     /*
-     * Reads the file and returns a list of live accounts
+     * Reads the newest snapshot and the account log after it and returns a
+     * list of live accounts
      * @return a list of live accounts
      */
     public static ArrayList<String> deserialize() {
-        // Since accounts that are already created should not be recreated,
-        // an odd frequency of an account means that the account is live
-        // and an even frequency means that the account is dead
-        HashSet<String> liveAccounts = new HashSet<String>();
-
-        // Get a list of accounts
-        List<String> accounts = SerializerUtil.read(TextType.ACCOUNT);
-
-        // Determine which accounts are live
-        for (String marshalledAccount : accounts) {
-            // Unmarshall the account
-            ArrayList<String> arguments = SerializerUtil.unmarshallArguments(marshalledAccount);
-
-            if (arguments.size() == 1) {
-                String account = arguments.get(0);
-
-                if (liveAccounts.contains(account)) {
-                    liveAccounts.remove(account);
-                } else {
-                    liveAccounts.add(account);
-                }
+        // Start from the accounts that were live when the snapshot was taken
+        final HashSet<String> liveAccounts = Checkpointer.load(false).getAccounts();
+
+        // Replay the rest of the log, decoding the accounts straight from the log
+        SerializerUtil.scan(TextType.ACCOUNT, new RecordVisitor() {
+            @Override
+            public void visit(ByteBuffer record) {
+                apply(liveAccounts, record);
             }
-        }
+        });
 
         // Return a list of live accounts
         return new ArrayList<String>(liveAccounts);
     }
 
     /*
-     * Clean the account file and write the updated accounts to the account file
+     * Applies a record of the account log to a set of live accounts. Since
+     * accounts that are already created should not be recreated, each record
+     * toggles an account between live and dead: an odd frequency of an
+     * account means that the account is live and an even frequency means
+     * that the account is dead.
+     * @param liveAccounts the live accounts, which are updated
+     * @param record the encoded record
      */
-    public static void updateAccounts() {
-        HashMap<String, Integer> accountMap = new HashMap<String, Integer>();
-
-        // Get a list of accounts
-        List<String> accounts = SerializerUtil.read(TextType.ACCOUNT);
-
-        // Determine the frequency of accounts
-        for (String account : accounts) {
-            if (accountMap.containsKey(account)) {
-                accountMap.put(account, accountMap.get(account) + 1);
-            } else {
-                accountMap.put(account, 1);
+    static void apply(Set<String> liveAccounts, ByteBuffer record) {
+        if (RecordCodec.kind(record) == RecordCodec.ACCOUNT) {
+            String account = RecordCodec.decodeAccount(record);
+
+            if (!liveAccounts.remove(account)) {
+                liveAccounts.add(account);
             }
         }
+    }
 
-        // Remove accounts that must be fully deleted from the account file
-        for (Map.Entry<String, Integer> e : accountMap.entrySet()) {
-            Integer frequency = e.getValue();
-
-            // Eliminate accounts that have an even frequency
-            if (frequency % 2 == 0) {
-                e.setValue(0);
+    /*
+     * Drops created-then-deleted accounts from the sealed segments of the
+     * account log. Since the records toggle an account between live and
+     * dead, an account survives with a single record if it appears an odd
+     * number of times and is dropped entirely if it appears an even number
+     * of times. Only whether each account appears an odd number of times is
+     * held while the records stream through.
+     */
+    private static Compaction compaction() {
+        return new Compaction() {
+            // Whether each account appears an odd number of times, and the accounts whose record was kept
+            private final HashMap<String, Boolean> odd = new HashMap<String, Boolean>();
+            private final HashSet<String> kept = new HashSet<String>();
+
+            @Override
+            public void inspect(ByteBuffer record) {
+                String account = RecordCodec.decodeAccount(record);
+                Boolean frequency = odd.get(account);
+                odd.put(account, frequency == null || !frequency);
             }
-        }
 
-        // Clear the account file at the last possible time
-        SerializerUtil.clear(BusinessLogicServer.getReplicaFolder() + Constants.ACCOUNT_FILE);
+            // Keep the first record of each account with an odd frequency
+            @Override
+            public ByteBuffer keep(ByteBuffer record) {
+                String account = RecordCodec.decodeAccount(record);
+                if (odd.get(account) && kept.add(account)) {
+                    return record;
+                }
+                return null;
+            }
 
-        // Write the updated accounts to the account file
-        for (String account : accounts) {
-            if (accountMap.get(account) == 1) {
-                serialize(account);
+            @Override
+            public List<byte[]> finish() {
+                return new ArrayList<byte[]>();
             }
-            // Decrement the frequency of the account
-            accountMap.put(account, accountMap.get(account) - 1);
-        }
+        };
+    }
 
-        // Copy the account file to the backup file
-        SerializerUtil.copy(BusinessLogicServer.getReplicaFolder() + Constants.ACCOUNT_FILE, BusinessLogicServer.getReplicaFolder() + Constants.ACCOUNT_BACKUP_FILE);
+    /*
+     * Compact the account log in place without blocking writers
+     * @param everything whether to also seal and compact the active segment
+     */
+    public static void compact(boolean everything) {
+        SerializerUtil.compact(TextType.ACCOUNT, compaction(), everything);
     }
 
 }
@@ -0,0 +1,519 @@
+package com.chatapp.server.Persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/*
+ * A write-ahead log backed by a single long-lived FileChannel. Every record is
+ * framed as [length][crc32c][payload] so that a reader can tell where a record
+ * ends and whether it was written completely. A crash in the middle of a
+ * write leaves a torn record at the end of the log, which is cut off when
+ * the log is reopened (see repair).
+ *
+ * Writers are group-committed: whoever finds the log idle becomes the flusher
+ * and writes every record queued so far with a single gathering write (plus a
+ * single fsync, depending on the FsyncPolicy), while the other writers wait
+ * for their record's batch to land.
+ *
+ * A batch whose write or fsync fails is cut off the log again, so that no
+ * part of it stays in front of the records appended after it, and every
+ * writer in it gets the error. If it cannot be cut off, the log refuses
+ * every later append rather than write after the partial batch.
+ */
+public class AppendLog implements Closeable {
+
+    /*
+     * A batch whose write failed, kept until every writer in it has seen
+     * the error
+     */
+    private static class Failure {
+        final long from;
+        final long to;
+        final IOException error;
+        long unseen;
+
+        Failure(long from, long to, IOException error) {
+            this.from = from;
+            this.to = to;
+            this.error = error;
+            this.unseen = to - from;
+        }
+    }
+
+    // Size of the length and checksum fields that prefix every record
+    public static final int HEADER_SIZE = 8;
+
+    // How much of the log is memory-mapped at a time while scanning it
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+
+    // Forces the channel periodically when the policy is INTERVAL, null otherwise
+    private final ScheduledExecutorService syncer;
+
+    // Guards everything below
+    private final Object lock = new Object();
+
+    // Records waiting for the next batch
+    private ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+
+    // Tickets: every record gets the next number, and committed is the highest ticket on disk
+    private long enqueued = 0;
+    private long committed = 0;
+
+    // Number of bytes in the log, including the batch being flushed
+    private volatile long size;
+
+    // Whether some writer is currently flushing a batch
+    private boolean flushing = false;
+
+    // The failed batches some of whose writers have not seen the error yet
+    private final ArrayList<Failure> failures = new ArrayList<Failure>();
+
+    // Set when a failed batch could not be cut off the log again, after which every append is refused
+    private IOException broken = null;
+
+    /*
+     * Opens (or creates) the log at the given path
+     * @param path the file backing the log
+     * @param policy when to force writes to disk
+     * @param intervalMs how often to force writes when the policy is INTERVAL
+     */
+    public AppendLog(Path path, FsyncPolicy policy, long intervalMs) throws IOException {
+        this.path = path;
+        this.policy = policy;
+        this.channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // only the flusher moves the channel's position; readers use positional reads
+        this.size = channel.size();
+        this.channel.position(size);
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "fsync " + AppendLog.this.path.getFileName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (channel.isOpen()) {
+                            channel.force(false);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("WARNING: Could not fsync " + AppendLog.this.path);
+                    }
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /*
+     * Appends a record and returns once it has been written (and forced, if
+     * the policy is BATCH) together with whatever else was queued meanwhile
+     * @param payload the bytes of the record
+     */
+    public void append(byte[] payload) throws IOException {
+        appendFrame(unframed(payload));
+    }
+
+    /*
+     * Appends a record that was encoded behind HEADER_SIZE free bytes, filling
+     * in the header in place instead of copying the record. The frame is
+     * written straight from the buffer, so the caller must not touch it until
+     * this returns.
+     * @param frame the free header bytes followed by the payload of the record
+     */
+    public void appendFrame(ByteBuffer frame) throws IOException {
+        int start = frame.position();
+        int length = frame.remaining() - HEADER_SIZE;
+        frame.position(start + HEADER_SIZE);
+        int crc = checksum(frame);
+        frame.position(start);
+        frame.putInt(start, length);
+        frame.putInt(start + 4, crc);
+
+        long ticket;
+        synchronized (lock) {
+            if (broken != null) {
+                throw new IOException("Refusing to append to " + path + " after a failed write", broken);
+            }
+            pending.add(frame);
+            ticket = ++enqueued;
+        }
+
+        while (true) {
+            ArrayList<ByteBuffer> batch;
+            long batchFrom;
+            long batchTo;
+
+            synchronized (lock) {
+                // wait while someone else is flushing a batch that might contain our record
+                while (flushing && committed < ticket) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                // our record already made it (or failed to)
+                if (committed >= ticket) {
+                    IOException error = failureOf(ticket);
+                    if (error != null) {
+                        throw error;
+                    }
+                    return;
+                }
+                // nothing may be written after a batch that is still partly in the log
+                if (broken != null) {
+                    throw new IOException("Refusing to append to " + path + " after a failed write", broken);
+                }
+                // otherwise become the flusher for everything queued so far
+                flushing = true;
+                batch = pending;
+                pending = new ArrayList<ByteBuffer>();
+                batchFrom = committed;
+                batchTo = enqueued;
+            }
+
+            IOException error = null;
+            try {
+                write(batch);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                flushing = false;
+                committed = batchTo;
+                if (error != null) {
+                    failures.add(new Failure(batchFrom, batchTo, error));
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Returns the error of the failed batch holding a ticket, or null if its
+     * batch was written, forgetting the batch once every writer in it has
+     * asked. Called with the lock held.
+     */
+    private IOException failureOf(long ticket) {
+        for (int i = 0; i < failures.size(); i++) {
+            Failure failure = failures.get(i);
+            if (ticket > failure.from && ticket <= failure.to) {
+                if (--failure.unseen == 0) {
+                    failures.remove(i);
+                }
+                return failure.error;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Writes a batch with a single gathering write and forces it if required.
+     * If either fails, the log is cut back to where the batch started.
+     */
+    private void write(ArrayList<ByteBuffer> batch) throws IOException {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        long start = size;
+        size += remaining;
+        try {
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            if (policy == FsyncPolicy.BATCH) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            rollBack(start, e);
+            throw e;
+        }
+    }
+
+    /*
+     * Cuts off the part of a failed batch that reached the log, or marks the
+     * log broken if that fails too
+     */
+    private void rollBack(long start, IOException cause) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+            size = start;
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not cut a failed write off " + path + ", refusing further appends");
+            cause.addSuppressed(e);
+            synchronized (lock) {
+                broken = cause;
+            }
+        }
+    }
+
+    /*
+     * Reads every complete, uncorrupted record from the start of the log,
+     * stopping at the first record that is torn or fails its checksum
+     * @return the payloads of the records in the order they were appended
+     */
+    public List<byte[]> readAll() throws IOException {
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        scan(new RecordVisitor() {
+            @Override
+            public void visit(ByteBuffer record) {
+                byte[] copy = new byte[record.remaining()];
+                record.get(copy);
+                records.add(copy);
+            }
+        });
+        return records;
+    }
+
+    /*
+     * Hands every complete, uncorrupted record to the visitor, stopping at
+     * the first record that is torn or fails its checksum. The log is
+     * memory-mapped a window at a time and each record is passed as a view
+     * into the mapping, so nothing is copied onto the heap and memory use
+     * does not grow with the size of the log.
+     * @param visitor receives the payload of each record in the order they were appended
+     */
+    public void scan(RecordVisitor visitor) throws IOException {
+        scan(0, channel.size(), visitor);
+    }
+
+    /*
+     * Hands the records between two record boundaries to the visitor, as
+     * scan(visitor) does for the whole log. Disjoint ranges may be scanned
+     * concurrently.
+     * @param start the offset of the first record, as returned by split
+     * @param end the offset just past the last record, as returned by split
+     * @param visitor receives the payload of each record in the order they were appended
+     * @return the offset just past the last intact record, which is end unless
+     *         a torn or corrupted record stopped the scan
+     */
+    public long scan(long start, long end, RecordVisitor visitor) throws IOException {
+        long position = start;
+        MappedByteBuffer window = null;
+        long windowStart = start;
+
+        while (position + HEADER_SIZE <= end) {
+            // map the next window once the header runs off the end of the current one
+            if (window == null || position + HEADER_SIZE > windowStart + window.capacity()) {
+                windowStart = position;
+                window = map(windowStart, end, HEADER_SIZE);
+            }
+            int offset = (int) (position - windowStart);
+            int length = window.getInt(offset);
+            int checksum = window.getInt(offset + 4);
+
+            if (length < 0 || position + HEADER_SIZE + length > end) {
+                System.out.println("WARNING: Ignoring torn record at the end of " + path);
+                break;
+            }
+
+            // remap from this record if its payload runs off the end of the window
+            if (offset + HEADER_SIZE + length > window.capacity()) {
+                windowStart = position;
+                window = map(windowStart, end, HEADER_SIZE + length);
+                offset = 0;
+            }
+
+            ByteBuffer payload = window.duplicate();
+            payload.limit(offset + HEADER_SIZE + length);
+            payload.position(offset + HEADER_SIZE);
+            payload = payload.slice();
+
+            // records written before the switch to CRC32C carry a plain CRC32
+            if (checksum(payload) != checksum && legacyChecksum(payload) != checksum) {
+                System.out.println("WARNING: Ignoring corrupted record at offset " + position + " of " + path);
+                break;
+            }
+
+            visitor.visit(payload);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /*
+     * Cuts the log off after its last intact record. Otherwise a record torn
+     * by a crash would stay in the middle of the log once new records are
+     * appended after it, and every scan would stop at it and miss them.
+     * Must be called before anything is appended.
+     * @return the number of bytes that were cut off
+     */
+    public long repair() throws IOException {
+        long end = scan(0, size, new RecordVisitor() {
+            @Override
+            public void visit(ByteBuffer record) {
+            }
+        });
+        long dropped = size - end;
+        if (dropped > 0) {
+            System.out.println("WARNING: Truncating " + path + " to " + end + " bytes, dropping " + dropped + " bytes after the last intact record");
+            channel.truncate(end);
+            channel.force(true);
+            channel.position(end);
+            size = end;
+        }
+        return dropped;
+    }
+
+    /*
+     * Splits the log into ranges of roughly the given size that start and end
+     * on record boundaries, by hopping from header to header without reading
+     * the payloads
+     * @param chunkBytes the size each range should reach before the next one starts
+     * @return the boundaries of the ranges: range i is [boundaries[i], boundaries[i + 1])
+     */
+    public long[] split(long chunkBytes) throws IOException {
+        long size = channel.size();
+        ArrayList<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+
+        long position = 0;
+        long next = chunkBytes;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        while (position + HEADER_SIZE <= size) {
+            if (window == null || position + HEADER_SIZE > windowStart + window.capacity()) {
+                windowStart = position;
+                window = map(windowStart, size, HEADER_SIZE);
+            }
+            int length = window.getInt((int) (position - windowStart));
+            // a torn record ends the last range; scanning will stop there
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+            if (position >= next && position < size) {
+                boundaries.add(position);
+                next = position + chunkBytes;
+            }
+        }
+        boundaries.add(size);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /*
+     * Maps a read-only window of the log starting at the given position that
+     * is at least as long as required, without going past the end
+     */
+    private MappedByteBuffer map(long position, long end, int required) throws IOException {
+        long length = Math.min(end - position, Math.max(MAP_WINDOW, required));
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /*
+     * Forces outstanding writes to disk and closes the log
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        synchronized (lock) {
+            while (flushing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        }
+    }
+
+    /*
+     * Prefixes the payload with its length and checksum
+     */
+    static ByteBuffer frame(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload));
+        record.put(payload);
+        record.flip();
+        return record;
+    }
+
+    /*
+     * Copies the payload behind HEADER_SIZE free bytes, for appendFrame
+     */
+    static ByteBuffer unframed(byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.position(HEADER_SIZE);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    static int checksum(byte[] payload) {
+        return checksum(ByteBuffer.wrap(payload));
+    }
+
+    /*
+     * Checksums the remaining bytes of the payload without moving its position
+     */
+    static int checksum(ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        int position = payload.position();
+        crc.update(payload);
+        payload.position(position);
+        return (int) crc.getValue();
+    }
+
+    /*
+     * The checksum records were framed with before CRC32C, which is only
+     * checked when the CRC32C does not match
+     */
+    static int legacyChecksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        int position = payload.position();
+        crc.update(payload);
+        payload.position(position);
+        return (int) crc.getValue();
+    }
+}
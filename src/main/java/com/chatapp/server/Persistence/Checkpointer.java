@@ -0,0 +1,266 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.BusinessLogicServer;
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.Persistence.SerializerUtil.TextType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * Checkpoints the live state into snapshots so that a restart only has to
+ * replay the log written since the newest snapshot.
+ *
+ * A checkpoint seals the active segments of both logs and folds the sealed
+ * segments into the previous snapshot. It never looks at the server's
+ * in-memory state, so it runs in the background without pausing the server,
+ * and the new snapshot is exactly the previous one plus the records of the
+ * segments it covers.
+ *
+ * The previous snapshot and the segments after it are kept until the new
+ * snapshot has been forced to disk and read back, and then until the next
+ * checkpoint, so that a newest snapshot that turns out to be corrupted can be
+ * skipped for the previous one and the segments it has not seen. Anything
+ * older is deleted; if the server crashes before that, it is deleted the
+ * next time the logs are opened. A replica whose snapshots are all corrupted
+ * refuses to start rather than start empty.
+ */
+public class Checkpointer {
+
+    // The newest valid snapshot of each replica folder, or null if it has none
+    private static final HashMap<String, Path> latest = new HashMap<String, Path>();
+
+    // The valid snapshot the newest one of each replica folder replaced, or null if there is none
+    private static final HashMap<String, Path> replaced = new HashMap<String, Path>();
+
+    // Snapshots that are still being read lazily, which checkpoints must not delete
+    private static final HashSet<Path> pinned = new HashSet<Path>();
+
+    // Only one checkpoint may run at a time
+    private static final Object checkpointLock = new Object();
+
+    /*
+     * Returns the directory holding the snapshots of the current replica
+     */
+    private static Path getDirectory() {
+        return Paths.get(BusinessLogicServer.getReplicaFolder() + Constants.SNAPSHOT_DIRECTORY);
+    }
+
+    /*
+     * Finds the newest snapshot whose checksum is valid and the valid one
+     * before it, skipping (and reporting) corrupted ones and deleting
+     * snapshots that were never completely written
+     * @return the newest valid snapshot, or null if there is none
+     * @throws UncheckedIOException if there are snapshots but none is valid
+     */
+    private static synchronized Path latest() {
+        String folder = BusinessLogicServer.getReplicaFolder();
+        if (latest.containsKey(folder)) {
+            return latest.get(folder);
+        }
+
+        Path newest = null;
+        Path before = null;
+        boolean corrupted = false;
+        File[] files = getDirectory().toFile().listFiles();
+        if (files != null) {
+            // the newest snapshot sorts last
+            Arrays.sort(files);
+            for (int i = files.length - 1; i >= 0; i--) {
+                String name = files[i].getName();
+                if (name.endsWith(Snapshot.TEMPORARY_SUFFIX)) {
+                    files[i].delete();
+                } else if (before == null && Snapshot.isSnapshot(name)) {
+                    if (!Snapshot.verify(files[i].toPath())) {
+                        System.out.println("WARNING: Ignoring corrupted snapshot " + files[i]);
+                        corrupted = true;
+                    } else if (newest == null) {
+                        newest = files[i].toPath();
+                    } else {
+                        before = files[i].toPath();
+                    }
+                }
+            }
+        }
+
+        // starting empty would silently drop every account and mailbox the snapshots held
+        if (corrupted && newest == null) {
+            throw new UncheckedIOException(new IOException("No valid snapshot left in " + getDirectory()));
+        }
+        if (corrupted) {
+            System.out.println("WARNING: Falling back to snapshot " + newest);
+        }
+        latest.put(folder, newest);
+        replaced.put(folder, before);
+        return newest;
+    }
+
+    private static synchronized void setLatest(Path snapshot, Path before) {
+        latest.put(BusinessLogicServer.getReplicaFolder(), snapshot);
+        replaced.put(BusinessLogicServer.getReplicaFolder(), before);
+    }
+
+    private static synchronized Path replaced() {
+        latest();
+        return replaced.get(BusinessLogicServer.getReplicaFolder());
+    }
+
+    /*
+     * Reads the newest valid snapshot
+     * @param messages whether the mailboxes are needed too
+     * @return the snapshot, or an empty one if none was ever taken
+     * @throws UncheckedIOException if there are snapshots but none can be read
+     */
+    public static Snapshot load(boolean messages) {
+        Path snapshot = latest();
+        if (snapshot == null) {
+            return Snapshot.empty();
+        }
+        try {
+            return Snapshot.read(snapshot, messages);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not read snapshot " + snapshot);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Keeps the newest snapshot from being deleted by later checkpoints, so
+     * that mailboxes can still be read from it with Snapshot.readMailbox
+     * after a newer snapshot has replaced it
+     * @return the pinned snapshot, or null if there is none
+     */
+    static synchronized Path pin() {
+        Path snapshot = latest();
+        if (snapshot != null) {
+            pinned.add(snapshot);
+        }
+        return snapshot;
+    }
+
+    /*
+     * Lets the next checkpoint delete a snapshot pinned by pin
+     */
+    static synchronized void unpin(Path snapshot) {
+        pinned.remove(snapshot);
+    }
+
+    private static synchronized boolean isPinned(Path snapshot) {
+        return pinned.contains(snapshot);
+    }
+
+    /*
+     * Returns the id of the first segment of the log that is not covered by
+     * the newest snapshot; every segment before it can be deleted
+     * @param r the type of log
+     */
+    static long coveredUntil(TextType r) {
+        return until(latest(), r);
+    }
+
+    /*
+     * Returns the id of the first segment of the log that must be kept, which
+     * is the first one not covered by the previous snapshot if there is one
+     * @param r the type of log
+     */
+    static long keptFrom(TextType r) {
+        Path before = replaced();
+        return before == null ? coveredUntil(r) : until(before, r);
+    }
+
+    private static long until(Path snapshot, TextType r) {
+        if (snapshot == null) {
+            return 0;
+        }
+        long[] until = Snapshot.parseUntil(snapshot.getFileName().toString());
+        return r == TextType.ACCOUNT ? until[0] : until[1];
+    }
+
+    /*
+     * Writes a new snapshot covering everything written to the logs so far,
+     * then deletes the snapshots before the one it replaces and the segments
+     * that one covers
+     */
+    public static void checkpoint() {
+        synchronized (checkpointLock) {
+            try {
+                Path base = latest();
+                Snapshot previous = load(true);
+                SegmentedLog accountLog = SerializerUtil.getLog(TextType.ACCOUNT);
+                SegmentedLog messageLog = SerializerUtil.getLog(TextType.MESSAGE);
+
+                // seal everything written so far
+                accountLog.roll();
+                messageLog.roll();
+                long accountsUntil = accountLog.sealedUntil();
+                long messagesUntil = messageLog.sealedUntil();
+                if (accountsUntil == previous.getAccountsUntil() && messagesUntil == previous.getMessagesUntil()) {
+                    return;
+                }
+
+                // replay the sealed segments on top of the previous snapshot
+                final HashSet<String> accounts = previous.getAccounts();
+                accountLog.scanSealed(accountsUntil, new RecordVisitor() {
+                    @Override
+                    public void visit(ByteBuffer record) {
+                        AccountSerializer.apply(accounts, record);
+                    }
+                });
+
+                final HashMap<String, Long> cursors = previous.getCursors();
+                final HashMap<String, ArrayList<PendingMessage>> mailboxes = previous.getMailboxes();
+                messageLog.scanSealed(messagesUntil, new RecordVisitor() {
+                    @Override
+                    public void visit(ByteBuffer record) {
+                        MessageSerializer.apply(cursors, mailboxes, record);
+                    }
+                });
+
+                Files.createDirectories(getDirectory());
+                Snapshot next = new Snapshot(accountsUntil, messagesUntil, accounts, cursors,
+                    MessageSerializer.undelivered(mailboxes, cursors));
+                Path written = next.write(getDirectory());
+                if (!Snapshot.verify(written)) {
+                    Files.deleteIfExists(written);
+                    throw new IOException("Snapshot " + written + " did not read back");
+                }
+                setLatest(written, base);
+                accountLog.skipUntil(accountsUntil);
+                messageLog.skipUntil(messagesUntil);
+
+                // the snapshot is durable, so only the one it replaces and the segments after that are kept
+                for (File file : getDirectory().toFile().listFiles()) {
+                    Path path = file.toPath();
+                    if (Snapshot.isSnapshot(file.getName()) && !path.equals(written) && !path.equals(base) && !isPinned(path)) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+                accountLog.truncate(base == null ? accountsUntil : previous.getAccountsUntil());
+                messageLog.truncate(base == null ? messagesUntil : previous.getMessagesUntil());
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("ERROR: Failed to checkpoint the logs");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Forgets the snapshots found so far, so that they are looked up again
+     * when the logs are reopened
+     */
+    static synchronized void reset() {
+        latest.clear();
+        replaced.clear();
+    }
+}
@@ -0,0 +1,33 @@
+package com.chatapp.server.Persistence;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*
+ * Decides which records of a log survive a compaction. The records of the
+ * segments being compacted are streamed through it twice straight from the
+ * memory-mapped segments, oldest first: once to inspect, then once more to
+ * keep, rewrite or drop each of them. It only holds what it learns about
+ * the records, never the records themselves, and a new one is used for
+ * every compaction.
+ */
+public interface Compaction {
+    /*
+     * Sees every record before any of them is kept
+     * @param record the payload of the record, only valid during the call
+     */
+    public void inspect(ByteBuffer record);
+
+    /*
+     * @param record the payload of the record, only valid during the call
+     * @return what to write in its place: the record itself, a rewritten
+     *         record, or null to drop it
+     */
+    public ByteBuffer keep(ByteBuffer record);
+
+    /*
+     * @return the records to write after the last one, such as a summary of
+     *         records that were dropped
+     */
+    public List<byte[]> finish();
+}
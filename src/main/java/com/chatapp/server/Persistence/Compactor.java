@@ -0,0 +1,60 @@
+package com.chatapp.server.Persistence;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Periodically compacts the sealed segments of the account and message logs
+ * and checkpoints them into snapshots on a background thread, so that neither
+ * startup nor live writes have to wait for old records to be cleaned up.
+ * Both run on the same thread, so a compaction never overlaps a checkpoint.
+ */
+public class Compactor {
+
+    private static ScheduledExecutorService executor = null;
+
+    /*
+     * Start compacting and checkpointing in the background
+     * @param compaction compacts the logs
+     * @param intervalMs the time between compactions
+     * @param checkpointIntervalMs the time between checkpoints
+     */
+    public static synchronized void start(Runnable compaction, long intervalMs, long checkpointIntervalMs) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "compactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(compaction, 0, intervalMs, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Checkpointer.checkpoint();
+            }
+        }, checkpointIntervalMs, checkpointIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Stop compacting and checkpointing, waiting for a running one to finish
+     */
+    public static synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+}
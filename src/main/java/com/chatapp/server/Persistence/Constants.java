@@ -1,10 +1,16 @@
 package com.chatapp.server.Persistence;
 
 public class Constants {
-    public final static String ACCOUNT_BACKUP_FILE = "backup_accounts.txt";
+    public final static String ACCOUNT_LOG = "accounts";
+    public final static String MESSAGE_LOG = "messages";
+    public final static String SNAPSHOT_DIRECTORY = "snapshots";
+    public final static String FORMAT_FILE = "format";
     public final static String ACCOUNT_FILE = "accounts.txt";
-    public final static String MESSAGE_BACKUP_FILE = "backup_messages.txt";
     public final static String MESSAGE_FILE = "messages.txt";
+    public final static String GROUP_FILE = "groups.txt";
+    public final static String SCHEDULE_FILE = "scheduled.txt";
+    public final static String ACCOUNT_BACKUP_FILE = "backup_accounts.txt";
+    public final static String MESSAGE_BACKUP_FILE = "backup_messages.txt";
     public final static char ARGUMENT_SEPARATOR = '\t';
     public final static char ARGUMENT_SEPARATOR_LETTER = 't';
     public final static char MESSAGE_SEPARATOR = '\n';
@@ -0,0 +1,15 @@
+package com.chatapp.server.Persistence;
+
+import java.util.List;
+
+/*
+ * Turns the records of a segment into the records to write back in its
+ * place, for upgrading a log to a new format (see SegmentedLog.rewrite)
+ */
+public interface Conversion {
+    /*
+     * @param records the records of the segment, oldest first
+     * @return the records to write back, in order
+     */
+    public List<byte[]> convert(List<byte[]> records);
+}
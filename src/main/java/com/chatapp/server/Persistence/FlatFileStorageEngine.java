@@ -0,0 +1,388 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.Chat.Priority;
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.ScheduledMessage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Stores the state in the original text format: accounts.txt and
+ * messages.txt in the replica folder, with one line per record and the
+ * arguments of a record separated by tabs (see LegacyTextFormat). Every record is appended and
+ * flushed to the operating system as it happens, and on startup both files
+ * are read line by line and then rewritten with only the live state.
+ *
+ * Files written before messages were numbered hold three arguments per
+ * message instead of four; those messages are numbered in the order they
+ * appear. A message sent to a group is written once per member it was
+ * queued for, with the group as a fifth argument, and the members of the
+ * groups are kept in groups.txt (see GroupSerializer). A message that is
+ * not of normal priority has the name of its priority as a sixth argument,
+ * after an empty group if it was not sent to one, and a message that
+ * expires has its expiry time as a seventh. Messages to deliver later are
+ * kept in scheduled.txt (see ScheduleSerializer). Older versions also kept a copy of each file in backup_*.txt,
+ * which is only read if its file is missing or empty (as those versions
+ * did) and deleted once the files have been rewritten.
+ */
+public class FlatFileStorageEngine implements StorageEngine {
+
+    private final Path accountFile;
+    private final Path messageFile;
+    private final Path accountBackup;
+    private final Path messageBackup;
+    private final GroupSerializer groups;
+    private final ScheduleSerializer scheduled;
+
+    // Opened on first use; each writer is guarded by its lock
+    private Writer accountWriter = null;
+    private Writer messageWriter = null;
+    private final Object accountLock = new Object();
+    private final Object messageLock = new Object();
+
+    // The mailboxes read by recoverLazily that have not been loaded yet
+    private ConcurrentHashMap<String, ArrayList<PendingMessage>> unloaded = new ConcurrentHashMap<String, ArrayList<PendingMessage>>();
+
+    /*
+     * @param folder the replica folder holding the files
+     */
+    public FlatFileStorageEngine(String folder) {
+        this.accountFile = Paths.get(folder, Constants.ACCOUNT_FILE);
+        this.messageFile = Paths.get(folder, Constants.MESSAGE_FILE);
+        this.accountBackup = Paths.get(folder, Constants.ACCOUNT_BACKUP_FILE);
+        this.messageBackup = Paths.get(folder, Constants.MESSAGE_BACKUP_FILE);
+        this.groups = new GroupSerializer(folder);
+        this.scheduled = new ScheduleSerializer(folder);
+    }
+
+    @Override
+    public void createAccount(String username) {
+        // creating and deleting both toggle the account, as in the original format
+        String[] arguments = {username};
+        synchronized (accountLock) {
+            accountWriter = append(accountFile, accountWriter, arguments);
+        }
+    }
+
+    @Override
+    public void deleteAccount(String username) {
+        createAccount(username);
+    }
+
+    @Override
+    public void appendMessage(PendingMessage message) {
+        synchronized (messageLock) {
+            messageWriter = append(messageFile, messageWriter, arguments(message));
+        }
+    }
+
+    @Override
+    public void appendGroupMessage(List<PendingMessage> copies) {
+        synchronized (messageLock) {
+            for (PendingMessage copy : copies) {
+                messageWriter = append(messageFile, messageWriter, arguments(copy));
+            }
+        }
+    }
+
+    @Override
+    public void saveGroup(String group, Collection<String> members) {
+        groups.save(group, members);
+    }
+
+    @Override
+    public HashMap<String, ArrayList<String>> loadGroups() {
+        return groups.load();
+    }
+
+    /*
+     * @return the arguments of a message line, with the group if it has one,
+     *         the priority if it is not normal and the expiry time if it expires
+     */
+    private static String[] arguments(PendingMessage message) {
+        if (message.getExpireAt() != 0) {
+            String[] arguments = {message.getRecipient(), message.getSender(), message.getMessage(), Long.toString(message.getSequence()),
+                message.getGroup() == null ? "" : message.getGroup(), message.getPriority().name(), Long.toString(message.getExpireAt())};
+            return arguments;
+        }
+        if (message.getPriority() != Priority.NORMAL) {
+            String[] arguments = {message.getRecipient(), message.getSender(), message.getMessage(), Long.toString(message.getSequence()),
+                message.getGroup() == null ? "" : message.getGroup(), message.getPriority().name()};
+            return arguments;
+        }
+        if (message.getGroup() == null) {
+            String[] arguments = {message.getRecipient(), message.getSender(), message.getMessage(), Long.toString(message.getSequence())};
+            return arguments;
+        }
+        String[] arguments = {message.getRecipient(), message.getSender(), message.getMessage(), Long.toString(message.getSequence()), message.getGroup()};
+        return arguments;
+    }
+
+    /*
+     * @return the priority of the given name, or normal priority if there is none by that name
+     */
+    static Priority parsePriority(String name) {
+        try {
+            Priority priority = Priority.valueOf(name);
+            return priority == Priority.UNRECOGNIZED ? Priority.NORMAL : priority;
+        } catch (IllegalArgumentException e) {
+            return Priority.NORMAL;
+        }
+    }
+
+    @Override
+    public void schedule(ScheduledMessage message) {
+        scheduled.schedule(message);
+    }
+
+    @Override
+    public void unschedule(long id) {
+        scheduled.unschedule(id);
+    }
+
+    @Override
+    public ArrayList<ScheduledMessage> loadScheduled() {
+        return scheduled.load();
+    }
+
+    @Override
+    public void acknowledge(String recipient, long sequence) {
+        String[] arguments = {recipient, Long.toString(sequence)};
+        synchronized (messageLock) {
+            messageWriter = append(messageFile, messageWriter, arguments);
+        }
+    }
+
+    /*
+     * Appends a line to the file, opening the writer if needed
+     * @return the open writer
+     * @throws UncheckedIOException if the line could not be written
+     */
+    static Writer append(Path file, Writer writer, String[] arguments) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8));
+            }
+            writer.write(LegacyTextFormat.marshallArguments(arguments));
+            writer.write(Constants.MESSAGE_SEPARATOR);
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to write to " + file);
+            throw new UncheckedIOException("Failed to write to " + file, e);
+        }
+        return writer;
+    }
+
+    /*
+     * Reads both files line by line and then rewrites them with only the
+     * live accounts, the undelivered messages and one cursor per recipient.
+     * The text format is read sequentially, so the pool is not used.
+     */
+    @Override
+    public RecoveredState recover(ForkJoinPool pool) {
+        HashSet<String> accounts = new HashSet<String>();
+        for (ArrayList<String> arguments : readLines(accountFile, accountBackup)) {
+            String account = arguments.get(0);
+            if (!accounts.remove(account)) {
+                accounts.add(account);
+            }
+        }
+
+        HashMap<String, Long> cursors = new HashMap<String, Long>();
+        HashMap<String, ArrayList<PendingMessage>> mailboxes = new HashMap<String, ArrayList<PendingMessage>>();
+        for (ArrayList<String> arguments : readLines(messageFile, messageBackup)) {
+            if (arguments.size() == 2) {
+                long sequence = Long.parseLong(arguments.get(1));
+                Long cursor = cursors.get(arguments.get(0));
+                if (cursor == null || cursor < sequence) {
+                    cursors.put(arguments.get(0), sequence);
+                }
+                continue;
+            }
+            if (arguments.size() < 3 || arguments.size() > 7) {
+                continue;
+            }
+            ArrayList<PendingMessage> mailbox = mailboxes.get(arguments.get(0));
+            if (mailbox == null) {
+                mailbox = new ArrayList<PendingMessage>();
+                mailboxes.put(arguments.get(0), mailbox);
+            }
+            // number unnumbered messages after the ones before them
+            long sequence = arguments.size() >= 4 ? Long.parseLong(arguments.get(3))
+                : mailbox.isEmpty() ? 1 : mailbox.get(mailbox.size() - 1).getSequence() + 1;
+            String group = arguments.size() >= 5 && !arguments.get(4).isEmpty() ? arguments.get(4) : null;
+            Priority priority = arguments.size() >= 6 ? parsePriority(arguments.get(5)) : Priority.NORMAL;
+            long expireAt = arguments.size() == 7 ? Long.parseLong(arguments.get(6)) : 0;
+            mailbox.add(new PendingMessage(arguments.get(0), new PendingMessage.Body(arguments.get(1), arguments.get(2), group, priority, expireAt), sequence));
+        }
+        mailboxes = MessageSerializer.undelivered(mailboxes, cursors);
+
+        rewrite(accounts, cursors, mailboxes);
+        return new RecoveredState(new ArrayList<String>(accounts), cursors, mailboxes);
+    }
+
+    /*
+     * The text files have no index, so they are read in full just as
+     * recover does, and the mailboxes are kept aside until they are loaded
+     */
+    @Override
+    public RecoveredState recoverLazily(ForkJoinPool pool) {
+        RecoveredState state = recover(pool);
+        unloaded = new ConcurrentHashMap<String, ArrayList<PendingMessage>>(state.getMailboxes());
+        return new RecoveredState(state.getAccounts(), state.getCursors(), new HashMap<String, ArrayList<PendingMessage>>());
+    }
+
+    @Override
+    public ArrayList<PendingMessage> loadMailbox(String recipient) {
+        ArrayList<PendingMessage> mailbox = unloaded.remove(recipient);
+        return mailbox == null ? new ArrayList<PendingMessage>() : mailbox;
+    }
+
+    /*
+     * Reads and unmarshalls every line of a file, or of its backup if the
+     * file is missing or empty
+     * @return the arguments of each line, or nothing if neither file exists
+     */
+    private static ArrayList<ArrayList<String>> readLines(Path file, Path backup) {
+        ArrayList<ArrayList<String>> lines = readLines(file);
+        if (lines.isEmpty() && Files.exists(backup)) {
+            System.out.println("WARNING: " + file + " is empty, reading " + backup + " instead");
+            lines = readLines(backup);
+        }
+        return lines;
+    }
+
+    /*
+     * Reads and unmarshalls every line of a file
+     * @return the arguments of each line, or nothing if the file does not exist
+     */
+    static ArrayList<ArrayList<String>> readLines(Path file) {
+        ArrayList<ArrayList<String>> lines = new ArrayList<ArrayList<String>>();
+        if (!Files.exists(file)) {
+            return lines;
+        }
+        try {
+            BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        lines.add(LegacyTextFormat.unmarshallArguments(line));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not read " + file);
+        }
+        return lines;
+    }
+
+    /*
+     * Replaces both files with the live state, each through a temporary file
+     * that is renamed into place
+     */
+    private void rewrite(HashSet<String> accounts, Map<String, Long> cursors, Map<String, ArrayList<PendingMessage>> mailboxes) {
+        synchronized (accountLock) {
+            synchronized (messageLock) {
+                try {
+                    closeWriters();
+
+                    StringBuilder text = new StringBuilder();
+                    for (String account : accounts) {
+                        String[] arguments = {account};
+                        text.append(LegacyTextFormat.marshallArguments(arguments)).append(Constants.MESSAGE_SEPARATOR);
+                    }
+                    replace(accountFile, text);
+
+                    text = new StringBuilder();
+                    // cursors are kept even for deleted accounts so that a re-created account keeps numbering past them
+                    for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                        String[] arguments = {cursor.getKey(), Long.toString(cursor.getValue())};
+                        text.append(LegacyTextFormat.marshallArguments(arguments)).append(Constants.MESSAGE_SEPARATOR);
+                    }
+                    for (ArrayList<PendingMessage> mailbox : mailboxes.values()) {
+                        for (PendingMessage message : mailbox) {
+                            text.append(LegacyTextFormat.marshallArguments(arguments(message))).append(Constants.MESSAGE_SEPARATOR);
+                        }
+                    }
+                    replace(messageFile, text);
+
+                    // the rewritten files are complete, so the old backups are no longer needed
+                    Files.deleteIfExists(accountBackup);
+                    Files.deleteIfExists(messageBackup);
+                } catch (IOException e) {
+                    System.out.println("WARNING: Could not rewrite the text files");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /*
+     * Replaces a file with the given text, through a temporary file that is
+     * renamed into place
+     */
+    static void replace(Path file, CharSequence text) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary.toFile());
+        try {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void closeWriters() throws IOException {
+        if (accountWriter != null) {
+            accountWriter.close();
+            accountWriter = null;
+        }
+        if (messageWriter != null) {
+            messageWriter.close();
+            messageWriter = null;
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void close() {
+        synchronized (accountLock) {
+            synchronized (messageLock) {
+                try {
+                    closeWriters();
+                } catch (IOException e) {
+                    System.out.println("WARNING: Could not close the text files");
+                }
+            }
+        }
+        scheduled.close();
+    }
+}
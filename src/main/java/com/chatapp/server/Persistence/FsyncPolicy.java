@@ -0,0 +1,32 @@
+package com.chatapp.server.Persistence;
+
+/*
+ * Decides when an AppendLog forces its writes onto the disk
+ */
+public enum FsyncPolicy {
+    // fsync once per group-committed batch, before the writers return
+    BATCH,
+    // fsync from a background thread every few milliseconds
+    INTERVAL,
+    // leave flushing up to the operating system
+    NEVER;
+
+    /*
+     * Parses a policy name, ignoring case
+     * @param name the name of the policy, may be null
+     * @param defaultPolicy the policy to use if the name is missing or unknown
+     * @return the matching policy
+     */
+    public static FsyncPolicy parse(String name, FsyncPolicy defaultPolicy) {
+        if (name == null) {
+            return defaultPolicy;
+        }
+        for (FsyncPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name.trim())) {
+                return policy;
+            }
+        }
+        System.out.println("WARNING: Unknown fsync policy " + name + ", using " + defaultPolicy);
+        return defaultPolicy;
+    }
+}
@@ -0,0 +1,77 @@
+package com.chatapp.server.Persistence;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Stores the members of each group in groups.txt in the replica folder, one
+ * line per group holding the group followed by its members, separated by
+ * tabs (see LegacyTextFormat). Groups change rarely compared with messages,
+ * so the whole file is rewritten through a temporary file whenever one
+ * changes instead of being appended to and compacted.
+ */
+public class GroupSerializer {
+
+    private final Path file;
+
+    // The members of each group, as last saved, guarded by this
+    private final TreeMap<String, ArrayList<String>> groups = new TreeMap<String, ArrayList<String>>();
+
+    /*
+     * @param folder the replica folder holding the file
+     */
+    public GroupSerializer(String folder) {
+        this.file = Paths.get(folder, Constants.GROUP_FILE);
+    }
+
+    /*
+     * Records the members of a group, replacing those it had before
+     * @param group the group
+     * @param members its members, or nothing to remove the group
+     */
+    public synchronized void save(String group, Collection<String> members) {
+        if (members.isEmpty()) {
+            groups.remove(group);
+        } else {
+            groups.put(group, new ArrayList<String>(members));
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, ArrayList<String>> e : groups.entrySet()) {
+            String[] arguments = new String[e.getValue().size() + 1];
+            arguments[0] = e.getKey();
+            for (int i = 0; i < e.getValue().size(); i++) {
+                arguments[i + 1] = e.getValue().get(i);
+            }
+            text.append(LegacyTextFormat.marshallArguments(arguments)).append(Constants.MESSAGE_SEPARATOR);
+        }
+        try {
+            FlatFileStorageEngine.replace(file, text);
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to write to " + file);
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Reads the groups saved so far
+     * @return the members of each group, or nothing if the file does not exist
+     */
+    public synchronized HashMap<String, ArrayList<String>> load() {
+        groups.clear();
+        for (ArrayList<String> arguments : FlatFileStorageEngine.readLines(file)) {
+            if (arguments.size() > 1) {
+                groups.put(arguments.get(0), new ArrayList<String>(arguments.subList(1, arguments.size())));
+            }
+        }
+        return new HashMap<String, ArrayList<String>>(groups);
+    }
+}
@@ -0,0 +1,160 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.ScheduledMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Keeps the state in memory only, so nothing survives a restart. Useful as a
+ * baseline when benchmarking, since it does no I/O at all. Delivered messages
+ * are dropped as soon as they are acknowledged, so memory use follows the
+ * number of undelivered messages.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+
+    private final Set<String> accounts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentHashMap<String, Long> cursors = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<PendingMessage>> mailboxes = new ConcurrentHashMap<String, ConcurrentLinkedDeque<PendingMessage>>();
+    private final ConcurrentHashMap<String, ArrayList<String>> groups = new ConcurrentHashMap<String, ArrayList<String>>();
+    private final ConcurrentSkipListMap<Long, ScheduledMessage> scheduled = new ConcurrentSkipListMap<Long, ScheduledMessage>();
+
+    @Override
+    public void createAccount(String username) {
+        accounts.add(username);
+    }
+
+    @Override
+    public void deleteAccount(String username) {
+        accounts.remove(username);
+    }
+
+    @Override
+    public void appendMessage(PendingMessage message) {
+        ConcurrentLinkedDeque<PendingMessage> mailbox = mailboxes.get(message.getRecipient());
+        if (mailbox == null) {
+            mailboxes.putIfAbsent(message.getRecipient(), new ConcurrentLinkedDeque<PendingMessage>());
+            mailbox = mailboxes.get(message.getRecipient());
+        }
+        mailbox.add(message);
+    }
+
+    @Override
+    public void appendGroupMessage(List<PendingMessage> copies) {
+        // the copies share their body, so the text is still held once
+        for (PendingMessage copy : copies) {
+            appendMessage(copy);
+        }
+    }
+
+    @Override
+    public void saveGroup(String group, Collection<String> members) {
+        if (members.isEmpty()) {
+            groups.remove(group);
+        } else {
+            groups.put(group, new ArrayList<String>(members));
+        }
+    }
+
+    @Override
+    public HashMap<String, ArrayList<String>> loadGroups() {
+        return new HashMap<String, ArrayList<String>>(groups);
+    }
+
+    @Override
+    public void schedule(ScheduledMessage message) {
+        scheduled.put(message.getId(), message);
+    }
+
+    @Override
+    public void unschedule(long id) {
+        scheduled.remove(id);
+    }
+
+    @Override
+    public ArrayList<ScheduledMessage> loadScheduled() {
+        return new ArrayList<ScheduledMessage>(scheduled.values());
+    }
+
+    @Override
+    public void acknowledge(String recipient, long sequence) {
+        // move the cursor forward, never backwards
+        while (true) {
+            Long cursor = cursors.putIfAbsent(recipient, sequence);
+            if (cursor == null || cursor >= sequence || cursors.replace(recipient, cursor, sequence)) {
+                break;
+            }
+        }
+
+        // messages are appended in sequence order, so the delivered ones are at the head
+        ConcurrentLinkedDeque<PendingMessage> mailbox = mailboxes.get(recipient);
+        if (mailbox != null) {
+            PendingMessage head;
+            while ((head = mailbox.peekFirst()) != null && head.getSequence() <= sequence) {
+                mailbox.pollFirst();
+            }
+        }
+    }
+
+    @Override
+    public RecoveredState recover(ForkJoinPool pool) {
+        HashMap<String, ArrayList<PendingMessage>> undelivered = new HashMap<String, ArrayList<PendingMessage>>();
+        for (Map.Entry<String, ConcurrentLinkedDeque<PendingMessage>> e : mailboxes.entrySet()) {
+            // concurrent senders may have appended slightly out of order, leaving delivered messages behind the head
+            Long cursor = cursors.get(e.getKey());
+            ArrayList<PendingMessage> mailbox = new ArrayList<PendingMessage>();
+            for (PendingMessage message : e.getValue()) {
+                if (cursor == null || message.getSequence() > cursor) {
+                    mailbox.add(message);
+                }
+            }
+            if (!mailbox.isEmpty()) {
+                undelivered.put(e.getKey(), mailbox);
+            }
+        }
+        return new RecoveredState(new ArrayList<String>(accounts), new HashMap<String, Long>(cursors), undelivered);
+    }
+
+    /*
+     * Nothing is on disk, so the mailboxes are handed out from memory as
+     * they are asked for
+     */
+    @Override
+    public RecoveredState recoverLazily(ForkJoinPool pool) {
+        return new RecoveredState(new ArrayList<String>(accounts), new HashMap<String, Long>(cursors),
+            new HashMap<String, ArrayList<PendingMessage>>());
+    }
+
+    @Override
+    public ArrayList<PendingMessage> loadMailbox(String recipient) {
+        ArrayList<PendingMessage> mailbox = new ArrayList<PendingMessage>();
+        ConcurrentLinkedDeque<PendingMessage> queued = mailboxes.get(recipient);
+        if (queued != null) {
+            Long cursor = cursors.get(recipient);
+            for (PendingMessage message : queued) {
+                if (cursor == null || message.getSequence() > cursor) {
+                    mailbox.add(message);
+                }
+            }
+        }
+        return mailbox;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,246 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.Persistence.SerializerUtil.TextType;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * The original record format: the arguments of a record are escaped and
+ * joined with tabs, so that a record fits on one line of a text file. The
+ * text storage engine still writes this format, and logs written before
+ * RecordCodec are migrated from it the first time they are opened.
+ *
+ * Message records hold four arguments (recipient, sender, message, sequence
+ * number), or three if they were written before messages were numbered, and
+ * cursor records hold two (recipient, sequence number). The text engine adds
+ * a fifth argument, the group, to messages sent to a group.
+ */
+public class LegacyTextFormat {
+
+/* ============================== MIGRATION ============================== */
+
+    /*
+     * Rewrites the records of a log in the RecordCodec format, unless the
+     * log's format marker says it is already in the current format. Every
+     * record is written back with a fresh frame, which also upgrades the
+     * checksums of logs written before CRC32C. Records that are already in
+     * the new format are kept as they are, so a migration that crashed
+     * half-way is simply run again on the next start.
+     * @param log the log, which nothing may be appending to yet
+     * @param r the type of log, which tells how to read its records
+     */
+    static void migrate(SegmentedLog log, final TextType r) throws IOException {
+        Path marker = log.getDirectory().resolve(Constants.FORMAT_FILE);
+        if (Files.exists(marker) && new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).equals(RecordCodec.VERSION)) {
+            return;
+        }
+
+        log.rewrite(new Conversion() {
+            // the last sequence number of each recipient, to number unnumbered messages after
+            private final HashMap<String, Long> last = new HashMap<String, Long>();
+
+            @Override
+            public List<byte[]> convert(List<byte[]> records) {
+                ArrayList<byte[]> converted = new ArrayList<byte[]>(records.size());
+                for (byte[] record : records) {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    if (RecordCodec.isRecord(buffer)) {
+                        converted.add(record);
+                        continue;
+                    }
+                    ByteBuffer frame = LegacyTextFormat.convert(r, unmarshallArguments(buffer), last);
+                    if (frame != null) {
+                        converted.add(RecordCodec.toArray(frame));
+                    }
+                }
+                return converted;
+            }
+        });
+        Files.write(marker, RecordCodec.VERSION.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Encodes the arguments of a legacy record with RecordCodec
+     * @param r the type of log the record was read from
+     * @param arguments the unmarshalled arguments
+     * @param last the last sequence number of each recipient, which is updated
+     * @return the encoded frame, or null if the record is not one of the known kinds
+     */
+    private static ByteBuffer convert(TextType r, ArrayList<String> arguments, HashMap<String, Long> last) {
+        if (r == TextType.ACCOUNT) {
+            return arguments.size() == 1 ? RecordCodec.encodeAccount(arguments.get(0)) : null;
+        }
+        String recipient = arguments.get(0);
+        switch (arguments.size()) {
+            case 2:
+                return RecordCodec.encodeCursor(recipient, Long.parseLong(arguments.get(1)));
+            case 3:
+            case 4:
+                Long previous = last.get(recipient);
+                long sequence = arguments.size() == 4 ? Long.parseLong(arguments.get(3))
+                    : previous == null ? 1 : previous + 1;
+                last.put(recipient, sequence);
+                return RecordCodec.encodeMessage(new PendingMessage(recipient, arguments.get(1), arguments.get(2), sequence));
+            default:
+                return null;
+        }
+    }
+
+/* ============================== TEXT ESCAPING ============================== */
+
+    /*
+     * Marshalls arguments by escaping special characters and then concatenating
+     * them with the argument separator
+     * @param arguments the arguments to marshall
+     * @return the marshalled arguments
+     */
+    static String marshallArguments(String[] arguments) {
+        // parse arguments into a StringBuilder, perform escaping, then convert back to String
+        StringBuilder output = new StringBuilder();
+        boolean first = true;
+        for (String argument : arguments) {
+          // Only add argument separators when it isn't the first argument
+          if (!first) {
+            output.append(Constants.ARGUMENT_SEPARATOR);
+          }
+          else {
+            first = false;
+          }
+          for (char c : escapeRestrictedCharacters(argument).toCharArray()) {
+            output.append(c);
+          }
+        }
+        return output.toString();
+    }
+
+    /*
+     * Unmarshalls arguments by separating them by the the argument separator and
+     * unescaping special characters
+     * @param marshalledMessage the marshalled message to unmarshall
+     * @return the unmarshalled arguments
+    */
+    public static ArrayList<String> unmarshallArguments(String marshalledMessage) {
+        ArrayList<String> result = new ArrayList<String>();
+
+        // split the arguments by the argument separator and then unescape them
+        String[] args = marshalledMessage.split(String.valueOf(Constants.ARGUMENT_SEPARATOR));
+        for (String arg : args) {
+            result.add(unescapeRestrictedCharacters(arg));
+        }
+
+        return result;
+    }
+
+    /*
+     * Unmarshalls arguments straight from the bytes of a record, unescaping
+     * special characters as it goes, without first turning the whole record
+     * into a String
+     * @param record the marshalled record, which is not modified
+     * @return the unmarshalled arguments
+     */
+    public static ArrayList<String> unmarshallArguments(ByteBuffer record) {
+        ArrayList<String> result = new ArrayList<String>(4);
+        byte[] argument = new byte[record.remaining()];
+        int length = 0;
+        int limit = record.limit();
+
+        for (int i = record.position(); i < limit; i++) {
+            byte b = record.get(i);
+            // the separator ends the current argument
+            if (b == Constants.ARGUMENT_SEPARATOR) {
+                result.add(new String(argument, 0, length, StandardCharsets.UTF_8));
+                length = 0;
+            }
+            // "\\t" -> "\t"
+            else if (b == Constants.ESCAPE_CHARACTER && i != limit - 1
+            && record.get(i + 1) == Constants.ARGUMENT_SEPARATOR_LETTER) {
+                argument[length++] = Constants.ARGUMENT_SEPARATOR;
+                i++;
+            }
+            // "\\n" -> "\n"
+            else if (b == Constants.ESCAPE_CHARACTER && i != limit - 1
+            && record.get(i + 1) == Constants.MESSAGE_SEPARATOR_LETTER) {
+                argument[length++] = Constants.MESSAGE_SEPARATOR;
+                i++;
+            }
+            else {
+                argument[length++] = b;
+            }
+        }
+        result.add(new String(argument, 0, length, StandardCharsets.UTF_8));
+
+        return result;
+    }
+
+    /*
+     * Escapes restricted characters by adding the escape character in front of them.
+     * Ex: \t becomes \\t and \n becomes \\n
+     * @param input the byte array to escape
+     * @return the escaped byte array
+     */
+    private static String escapeRestrictedCharacters(String input) {
+        // parse input into an StringBuilder, perform escaping, then convert back to String
+        StringBuilder output = new StringBuilder();
+
+        for (char c : input.toCharArray()) {
+          // "\t" --> "\\t"
+          if (c == Constants.ARGUMENT_SEPARATOR) {
+            output.append(Constants.ESCAPE_CHARACTER);
+            output.append(Constants.ARGUMENT_SEPARATOR_LETTER);
+          }
+          // "\n" --> "\\n"
+          else if (c == Constants.MESSAGE_SEPARATOR) {
+            output.append(Constants.ESCAPE_CHARACTER);
+            output.append(Constants.MESSAGE_SEPARATOR_LETTER);
+          }
+          else {
+            output.append(c);
+          }
+        }
+
+        return output.toString();
+      }
+
+    /*
+     * Unescapes restricted characters by removing the escape character in front of them.
+     * Ex: \\t becomes \t and \\n becomes \n
+     * @param input the byte array to unescape
+     * @return the unescaped byte array
+     */
+    private static String unescapeRestrictedCharacters(String inputString) {
+        // parse input into a StringBuilder, perform unescaping, then convert back to String
+        StringBuilder output = new StringBuilder();
+
+        char[] input = inputString.toCharArray();
+
+        for (int i = 0; i < input.length; i++) {
+            // "\\t" -> "\t"
+            if (i != input.length - 1 && input[i] == Constants.ESCAPE_CHARACTER
+            && input[i + 1] == Constants.ARGUMENT_SEPARATOR_LETTER) {
+            output.append(Constants.ARGUMENT_SEPARATOR);
+            i++;
+            }
+            // "\\n" -> "\n"
+            else if (i != input.length - 1 && input[i] == Constants.ESCAPE_CHARACTER
+            && input[i + 1] == Constants.MESSAGE_SEPARATOR_LETTER) {
+            output.append(Constants.MESSAGE_SEPARATOR);
+            i++;
+            }
+            else
+            output.append(input[i]);
+        }
+
+        return output.toString();
+    }
+
+}
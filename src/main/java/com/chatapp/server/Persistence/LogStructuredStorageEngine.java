@@ -0,0 +1,223 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.ScheduledMessage;
+import com.chatapp.server.ServerConfig;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Stores the state in segmented append-only logs: records are group-committed
+ * to the active segment, sealed segments are compacted and checkpointed into
+ * snapshots in the background, and startup loads the newest snapshot and
+ * decodes the log after it in parallel.
+ *
+ * The engine also keeps a sorted index of the live accounts and of the
+ * delivery cursor of each recipient, built on recovery and updated on every
+ * write. Compaction looks accounts and cursors up in the index instead of
+ * replaying both logs each time it runs.
+ *
+ * A message sent to a group is appended as one record holding its text
+ * once and the sequence number of each member it was queued for. The
+ * members of the groups are kept in groups.txt (see GroupSerializer), and
+ * the messages scheduled for later in scheduled.txt (see ScheduleSerializer).
+ *
+ * When recovering lazily, the mailboxes in the snapshot, which hold most of
+ * the history, stay on disk and each one is read through the snapshot's
+ * index when its recipient is loaded. Only the log written since the
+ * snapshot is read up front.
+ */
+public class LogStructuredStorageEngine implements StorageEngine {
+
+    private final ConcurrentSkipListSet<String> accounts = new ConcurrentSkipListSet<String>();
+    private final ConcurrentSkipListMap<String, Long> cursors = new ConcurrentSkipListMap<String, Long>();
+
+    // The snapshot recoverLazily left the mailboxes in, pinned until the engine is closed
+    private Path snapshot = null;
+
+    // The undelivered messages of the log written since that snapshot, until their recipient is loaded
+    private final ConcurrentHashMap<String, ArrayList<PendingMessage>> tail = new ConcurrentHashMap<String, ArrayList<PendingMessage>>();
+
+    private final GroupSerializer groups;
+    private final ScheduleSerializer scheduled;
+
+    /*
+     * @param folder the replica folder, which holds the groups next to the logs
+     */
+    public LogStructuredStorageEngine(String folder) {
+        this.groups = new GroupSerializer(folder);
+        this.scheduled = new ScheduleSerializer(folder);
+    }
+
+    @Override
+    public void createAccount(String username) {
+        AccountSerializer.serialize(username);
+        accounts.add(username);
+    }
+
+    @Override
+    public void deleteAccount(String username) {
+        AccountSerializer.serialize(username);
+        accounts.remove(username);
+    }
+
+    @Override
+    public void appendMessage(PendingMessage message) {
+        MessageSerializer.serialize(message);
+    }
+
+    @Override
+    public void appendGroupMessage(List<PendingMessage> copies) {
+        MessageSerializer.serializeGroup(copies);
+    }
+
+    @Override
+    public void saveGroup(String group, Collection<String> members) {
+        groups.save(group, members);
+    }
+
+    @Override
+    public HashMap<String, ArrayList<String>> loadGroups() {
+        return groups.load();
+    }
+
+    @Override
+    public void schedule(ScheduledMessage message) {
+        scheduled.schedule(message);
+    }
+
+    @Override
+    public void unschedule(long id) {
+        scheduled.unschedule(id);
+    }
+
+    @Override
+    public ArrayList<ScheduledMessage> loadScheduled() {
+        return scheduled.load();
+    }
+
+    @Override
+    public void acknowledge(String recipient, long sequence) {
+        MessageSerializer.acknowledge(recipient, sequence);
+        // move the cursor forward, never backwards
+        while (true) {
+            Long cursor = cursors.putIfAbsent(recipient, sequence);
+            if (cursor == null || cursor >= sequence || cursors.replace(recipient, cursor, sequence)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public RecoveredState recover(ForkJoinPool pool) {
+        ArrayList<String> live = AccountSerializer.deserialize();
+        HashMap<String, Long> delivered = MessageSerializer.deserializeCursors(pool);
+        HashMap<String, ArrayList<PendingMessage>> mailboxes = MessageSerializer.recover(pool, delivered);
+        index(live, delivered);
+        return new RecoveredState(live, delivered, mailboxes);
+    }
+
+    @Override
+    public RecoveredState recoverLazily(ForkJoinPool pool) {
+        ArrayList<String> live = AccountSerializer.deserialize();
+        HashMap<String, Long> delivered = MessageSerializer.deserializeCursors(pool);
+        index(live, delivered);
+
+        tail.clear();
+        snapshot = Checkpointer.pin();
+        if (snapshot != null && !isIndexed(snapshot)) {
+            // snapshots written before the index can only be read whole
+            Checkpointer.unpin(snapshot);
+            snapshot = null;
+            tail.putAll(MessageSerializer.recover(pool, delivered));
+        } else {
+            tail.putAll(MessageSerializer.recoverTail(pool, delivered));
+        }
+        return new RecoveredState(live, delivered, new HashMap<String, ArrayList<PendingMessage>>());
+    }
+
+    private static boolean isIndexed(Path snapshot) {
+        try {
+            return Snapshot.isIndexed(snapshot);
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not read snapshot " + snapshot);
+            return false;
+        }
+    }
+
+    /*
+     * Reads the recipient's mailbox from the snapshot, skipping the messages
+     * delivered since the snapshot was taken, and then adds their messages
+     * from the log written after it
+     */
+    @Override
+    public ArrayList<PendingMessage> loadMailbox(String recipient) {
+        ArrayList<PendingMessage> mailbox = new ArrayList<PendingMessage>();
+        if (snapshot != null) {
+            try {
+                Long cursor = cursors.get(recipient);
+                for (PendingMessage message : Snapshot.readMailbox(snapshot, recipient)) {
+                    if (cursor == null || message.getSequence() > cursor) {
+                        mailbox.add(message);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not read the mailbox of " + recipient + " from " + snapshot);
+                e.printStackTrace();
+            }
+        }
+        ArrayList<PendingMessage> recent = tail.remove(recipient);
+        if (recent != null) {
+            mailbox.addAll(recent);
+        }
+        return mailbox;
+    }
+
+    /*
+     * Replaces the sorted index with the recovered accounts and cursors
+     */
+    private void index(ArrayList<String> live, HashMap<String, Long> delivered) {
+        accounts.clear();
+        accounts.addAll(live);
+        cursors.clear();
+        cursors.putAll(delivered);
+    }
+
+    /*
+     * Starts compacting and checkpointing the logs in the background
+     */
+    @Override
+    public void start() {
+        Compactor.start(new Runnable() {
+            @Override
+            public void run() {
+                // accounts first, since compacting messages depends on which accounts are live
+                AccountSerializer.compact(false);
+                MessageSerializer.compact(false, accounts, cursors);
+            }
+        }, ServerConfig.COMPACTION_INTERVAL_MS, ServerConfig.CHECKPOINT_INTERVAL_MS);
+    }
+
+    @Override
+    public void close() {
+        Compactor.stop();
+        if (snapshot != null) {
+            Checkpointer.unpin(snapshot);
+            snapshot = null;
+        }
+        scheduled.close();
+        SerializerUtil.closeAll();
+    }
+
+}
@@ -1,13 +1,30 @@
 package com.chatapp.server.Persistence;
 
-import com.chatapp.server.BusinessLogicServer;
 import com.chatapp.server.PendingMessage;
 import com.chatapp.server.Persistence.SerializerUtil.TextType;
 
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+/*
+ * The message log holds three kinds of records (see RecordCodec):
+ *   - messages: recipient, sender, message, sequence number
+ *   - delivery cursors: recipient, sequence number of the last message
+ *     delivered to that recipient
+ *   - group messages: sender, message, group, and the recipient and
+ *     sequence number of each member the message was queued for
+ * Messages are numbered per recipient in the order they were queued, so a
+ * single cursor per recipient tells which of their messages were delivered.
+ * Records older than the newest snapshot live in the snapshot instead (see
+ * Checkpointer), so reading the messages starts from the snapshot.
+ */
 public class MessageSerializer {
 
     /*
@@ -15,59 +32,320 @@ public class MessageSerializer {
      * @param message the message to write to the file
      */
     public static void serialize(PendingMessage message) {
-        String[] arguments = {message.getRecipient(), message.getSender(), message.getMessage()};
-        
-        // Write marshalled message to message file and backup file
-        SerializerUtil.write(TextType.MESSAGE, arguments);
+        // Append the encoded message to the message log
+        SerializerUtil.write(TextType.MESSAGE, RecordCodec.encodeMessage(message));
     }
 
     /*
-     * Reads the file and returns a list of messages
-     * @return a list of messages
+     * Writes a message sent to a group as one record, holding its text once
+     * @param copies the copies of the message, one per member, sharing one body
      */
-    public static ArrayList<PendingMessage> deserialize() {
-        // Get a list of marshalled messages
-        List<String> messages = SerializerUtil.read(TextType.MESSAGE);
+    public static void serializeGroup(List<PendingMessage> copies) {
+        SerializerUtil.write(TextType.MESSAGE, RecordCodec.encodeGroupMessage(copies));
+    }
 
-        // Create an ArrayList of PendingMessages
-        ArrayList<PendingMessage> pendingMessages = new ArrayList<PendingMessage>();
+    /*
+     * Records that every message up to and including the given sequence
+     * number has been delivered to the recipient
+     * @param recipient the recipient of the messages
+     * @param sequence the sequence number of the last delivered message
+     */
+    public static void acknowledge(String recipient, long sequence) {
+        // Append the encoded cursor to the message log
+        SerializerUtil.write(TextType.MESSAGE, RecordCodec.encodeCursor(recipient, sequence));
+    }
+
+    /*
+     * Groups the messages of a partition of the log by recipient, skipping
+     * the ones that have been delivered, and concatenates the groups of
+     * adjacent partitions in log order
+     */
+    private static class MailboxScan implements PartitionedScan<HashMap<String, ArrayList<PendingMessage>>> {
+        private final Map<String, Long> cursors;
+
+        MailboxScan(Map<String, Long> cursors) {
+            this.cursors = cursors;
+        }
+
+        @Override
+        public HashMap<String, ArrayList<PendingMessage>> partition() {
+            return new HashMap<String, ArrayList<PendingMessage>>();
+        }
+
+        @Override
+        public void visit(HashMap<String, ArrayList<PendingMessage>> mailboxes, ByteBuffer record) {
+            byte kind = RecordCodec.kind(record);
+            if (kind == RecordCodec.GROUP) {
+                for (PendingMessage copy : RecordCodec.decodeGroupMessage(record)) {
+                    if (!isDelivered(cursors, copy.getRecipient(), copy.getSequence())) {
+                        add(mailboxes, copy);
+                    }
+                }
+                return;
+            }
+            // skip the cursors without decoding them
+            if (kind != RecordCodec.MESSAGE) {
+                return;
+            }
+            // and the delivered messages without decoding their text
+            String recipient = RecordCodec.recipient(record);
+            if (!isDelivered(cursors, recipient, RecordCodec.sequence(record))) {
+                add(mailboxes, RecordCodec.decodeMessage(record));
+            }
+        }
+
+        @Override
+        public HashMap<String, ArrayList<PendingMessage>> merge(HashMap<String, ArrayList<PendingMessage>> older, HashMap<String, ArrayList<PendingMessage>> newer) {
+            return MessageSerializer.merge(older, newer);
+        }
+    }
+
+    /*
+     * Recovers the messages that have not been delivered yet, grouped by
+     * recipient: first the ones in the newest snapshot, then the ones in the
+     * log after it. The log is split into partitions that are decoded on
+     * separate threads, and the per-recipient lists of adjacent partitions
+     * are concatenated in log order, so each recipient's messages stay in the
+     * order they were queued.
+     * @param pool the threads to decode the log with
+     * @param cursors the delivery cursors, as returned by deserializeCursors
+     * @return the undelivered messages of each recipient, in the order they were queued
+     */
+    public static HashMap<String, ArrayList<PendingMessage>> recover(ForkJoinPool pool, Map<String, Long> cursors) {
+        HashMap<String, ArrayList<PendingMessage>> mailboxes = undelivered(Checkpointer.load(true).getMailboxes(), cursors);
+        return merge(mailboxes, recoverTail(pool, cursors));
+    }
 
-        // Unmarshall each message and add it to the list
-        for (String message : messages) {
-            ArrayList<String> arguments = SerializerUtil.unmarshallArguments(message);
-            if (arguments.size() == 3)
-                pendingMessages.add(new PendingMessage(arguments.get(0), arguments.get(1), arguments.get(2)));
+    /*
+     * Recovers the undelivered messages of the log written since the newest
+     * snapshot, leaving the ones in the snapshot out
+     * @param pool the threads to decode the log with
+     * @param cursors the delivery cursors, as returned by deserializeCursors
+     * @return the undelivered messages of each recipient, in the order they were queued
+     */
+    public static HashMap<String, ArrayList<PendingMessage>> recoverTail(ForkJoinPool pool, Map<String, Long> cursors) {
+        return SerializerUtil.scan(TextType.MESSAGE, pool, new MailboxScan(cursors));
+    }
+
+    /*
+     * Appends the messages of each recipient in newer to their messages in older
+     * @return older, with the messages of newer appended
+     */
+    static HashMap<String, ArrayList<PendingMessage>> merge(HashMap<String, ArrayList<PendingMessage>> older, HashMap<String, ArrayList<PendingMessage>> newer) {
+        for (Map.Entry<String, ArrayList<PendingMessage>> e : newer.entrySet()) {
+            ArrayList<PendingMessage> mailbox = older.get(e.getKey());
+            if (mailbox == null) {
+                older.put(e.getKey(), e.getValue());
+            } else {
+                mailbox.addAll(e.getValue());
+            }
         }
+        return older;
+    }
 
+    /*
+     * Reads the file and returns a list of the messages that have not been
+     * delivered yet. Each recipient's messages are in the order they were
+     * queued.
+     * @return a list of undelivered messages
+     */
+    public static ArrayList<PendingMessage> deserialize() {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ArrayList<PendingMessage> pendingMessages = new ArrayList<PendingMessage>();
+        for (ArrayList<PendingMessage> mailbox : recover(pool, deserializeCursors(pool)).values()) {
+            pendingMessages.addAll(mailbox);
+        }
         return pendingMessages;
     }
 
     /*
-     * Cleans the message file of messages from deleted accounts, 
-     * writes the updated messages to the message file, and
-     * copies the updated message file to the backup file
+     * Reads the file and returns how far each recipient has been delivered to,
+     * keeping the furthest cursor of each recipient
+     * @return the sequence number of the last delivered message of each recipient
+     */
+    public static HashMap<String, Long> deserializeCursors() {
+        return deserializeCursors(ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Reads the delivery cursors of the newest snapshot and of the log after
+     * it, decoding the partitions of the log in parallel
+     * @param pool the threads to decode the log with
+     * @return the sequence number of the last delivered message of each recipient
      */
-    public static void updateMessages() {
-        // Get a list of messages
-        ArrayList<PendingMessage> messages = deserialize();
+    public static HashMap<String, Long> deserializeCursors(ForkJoinPool pool) {
+        PartitionedScan<HashMap<String, Long>> scan = new PartitionedScan<HashMap<String, Long>>() {
+            @Override
+            public HashMap<String, Long> partition() {
+                return new HashMap<String, Long>();
+            }
 
-        // Load the past accounts into a HashSet for O(1) lookup time
-        List<String> pastAccounts = SerializerUtil.read(TextType.ACCOUNT);
-        HashSet<String> accounts = new HashSet<String>(pastAccounts);
+            @Override
+            public void visit(HashMap<String, Long> cursors, ByteBuffer record) {
+                // skip the messages without decoding them
+                if (RecordCodec.kind(record) != RecordCodec.CURSOR) {
+                    return;
+                }
+                advance(cursors, RecordCodec.recipient(record), RecordCodec.sequence(record));
+            }
 
-        // Clear the message file at the last possible time
-        SerializerUtil.clear(BusinessLogicServer.getReplicaFolder() + Constants.MESSAGE_FILE);
-      
-        // Only write the past messages to the message file for which both
-        // the sender and recipient are still active
-        for (PendingMessage message : messages) {
-            if(accounts.contains(message.getRecipient()) && accounts.contains(message.getSender())) {
-                serialize(message);
+            @Override
+            public HashMap<String, Long> merge(HashMap<String, Long> older, HashMap<String, Long> newer) {
+                for (Map.Entry<String, Long> e : newer.entrySet()) {
+                    advance(older, e.getKey(), e.getValue());
+                }
+                return older;
             }
+        };
+        return scan.merge(Checkpointer.load(false).getCursors(), SerializerUtil.scan(TextType.MESSAGE, pool, scan));
+    }
+
+    /*
+     * Applies a record of the message log to the delivery cursors and the
+     * mailboxes, keeping delivered messages until undelivered is called
+     * @param cursors the delivery cursors, which are updated
+     * @param mailboxes the messages of each recipient, which are updated
+     * @param record the encoded record
+     */
+    static void apply(Map<String, Long> cursors, Map<String, ArrayList<PendingMessage>> mailboxes, ByteBuffer record) {
+        byte kind = RecordCodec.kind(record);
+        if (kind == RecordCodec.MESSAGE) {
+            add(mailboxes, RecordCodec.decodeMessage(record));
+        } else if (kind == RecordCodec.GROUP) {
+            for (PendingMessage copy : RecordCodec.decodeGroupMessage(record)) {
+                add(mailboxes, copy);
+            }
+        } else if (kind == RecordCodec.CURSOR) {
+            advance(cursors, RecordCodec.recipient(record), RecordCodec.sequence(record));
+        }
+    }
+
+    /*
+     * Drops the delivered messages from each recipient's messages
+     * @param mailboxes the messages of each recipient, in the order they were queued
+     * @param cursors the delivery cursors
+     * @return the recipients that still have undelivered messages, and those messages
+     */
+    static HashMap<String, ArrayList<PendingMessage>> undelivered(Map<String, ArrayList<PendingMessage>> mailboxes, Map<String, Long> cursors) {
+        HashMap<String, ArrayList<PendingMessage>> result = new HashMap<String, ArrayList<PendingMessage>>();
+        for (Map.Entry<String, ArrayList<PendingMessage>> e : mailboxes.entrySet()) {
+            ArrayList<PendingMessage> mailbox = new ArrayList<PendingMessage>();
+            for (PendingMessage message : e.getValue()) {
+                if (!isDelivered(cursors, e.getKey(), message.getSequence())) {
+                    mailbox.add(message);
+                }
+            }
+            if (!mailbox.isEmpty()) {
+                result.put(e.getKey(), mailbox);
+            }
+        }
+        return result;
+    }
+
+    private static void add(Map<String, ArrayList<PendingMessage>> mailboxes, PendingMessage message) {
+        ArrayList<PendingMessage> mailbox = mailboxes.get(message.getRecipient());
+        if (mailbox == null) {
+            mailbox = new ArrayList<PendingMessage>();
+            mailboxes.put(message.getRecipient(), mailbox);
+        }
+        mailbox.add(message);
+    }
+
+    /*
+     * Moves the recipient's cursor forward to the given sequence number,
+     * never backwards
+     */
+    private static void advance(Map<String, Long> cursors, String recipient, long sequence) {
+        Long cursor = cursors.get(recipient);
+        if (cursor == null || cursor < sequence) {
+            cursors.put(recipient, sequence);
         }
+    }
 
-        // Copy to backup file as soon as possible
-        SerializerUtil.copy(BusinessLogicServer.getReplicaFolder() + Constants.MESSAGE_FILE, BusinessLogicServer.getReplicaFolder() + Constants.MESSAGE_BACKUP_FILE);
+    private static boolean isDelivered(Map<String, Long> cursors, String recipient, long sequence) {
+        Long cursor = cursors.get(recipient);
+        return cursor != null && sequence <= cursor;
+    }
+
+    /*
+     * Drops delivered messages and messages sent to or from accounts that no
+     * longer exist from the sealed segments of the message log, and keeps a
+     * single cursor per recipient
+     * @param accounts the live accounts
+     * @param cursors the delivery cursors of the whole log, since cursors may
+     *                have been written after the segments being compacted
+     */
+    private static Compaction compaction(final Set<String> accounts, final Map<String, Long> cursors) {
+        return new Compaction() {
+            // The last delivered message of each recipient among the cursors that were dropped
+            private final HashMap<String, Long> survivingCursors = new HashMap<String, Long>();
+
+            @Override
+            public void inspect(ByteBuffer record) {
+            }
+
+            // Only keep the undelivered messages for which both the sender and recipient are still active
+            @Override
+            public ByteBuffer keep(ByteBuffer record) {
+                byte kind = RecordCodec.kind(record);
+                if (kind == RecordCodec.MESSAGE) {
+                    String recipient = RecordCodec.recipient(record);
+                    if (accounts.contains(recipient) && accounts.contains(RecordCodec.sender(record))
+                        && !isDelivered(cursors, recipient, RecordCodec.sequence(record))) {
+                        return record;
+                    }
+                } else if (kind == RecordCodec.GROUP) {
+                    // keep the copies that are still waiting, rewriting the record if some are not
+                    ArrayList<PendingMessage> copies = RecordCodec.decodeGroupMessage(record);
+                    ArrayList<PendingMessage> waiting = new ArrayList<PendingMessage>();
+                    for (PendingMessage copy : copies) {
+                        if (accounts.contains(copy.getRecipient()) && accounts.contains(copy.getSender())
+                            && !isDelivered(cursors, copy.getRecipient(), copy.getSequence())) {
+                            waiting.add(copy);
+                        }
+                    }
+                    if (waiting.size() == copies.size()) {
+                        return record;
+                    } else if (!waiting.isEmpty()) {
+                        return ByteBuffer.wrap(RecordCodec.toArray(RecordCodec.encodeGroupMessage(waiting)));
+                    }
+                } else if (kind == RecordCodec.CURSOR) {
+                    advance(survivingCursors, RecordCodec.recipient(record), RecordCodec.sequence(record));
+                }
+                return null;
+            }
+
+            // Cursors are kept even for deleted accounts so that a re-created account keeps numbering past them
+            @Override
+            public List<byte[]> finish() {
+                ArrayList<byte[]> summary = new ArrayList<byte[]>();
+                for (Map.Entry<String, Long> e : survivingCursors.entrySet()) {
+                    summary.add(RecordCodec.toArray(RecordCodec.encodeCursor(e.getKey(), e.getValue())));
+                }
+                return summary;
+            }
+        };
+    }
+
+    /*
+     * Compact the message log in place without blocking writers, reading the
+     * live accounts and delivery cursors from the logs first
+     * @param everything whether to also seal and compact the active segment
+     */
+    public static void compact(boolean everything) {
+        // Load the live accounts into a HashSet for O(1) lookup time
+        HashSet<String> accounts = new HashSet<String>(AccountSerializer.deserialize());
+        compact(everything, accounts, deserializeCursors());
+    }
+
+    /*
+     * Compact the message log in place without blocking writers
+     * @param everything whether to also seal and compact the active segment
+     * @param accounts the live accounts
+     * @param cursors the delivery cursors
+     */
+    public static void compact(boolean everything, Set<String> accounts, Map<String, Long> cursors) {
+        SerializerUtil.compact(TextType.MESSAGE, compaction(accounts, cursors), everything);
     }
 
 }
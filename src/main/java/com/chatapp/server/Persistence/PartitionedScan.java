@@ -0,0 +1,32 @@
+package com.chatapp.server.Persistence;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A scan of a log that is split into partitions, each of which is scanned
+ * into its own result on a separate thread. The results are then merged
+ * pairwise, always in log order, so anything that depends on the order of
+ * the records (such as the order of a recipient's messages) is preserved.
+ */
+public interface PartitionedScan<T> {
+
+    /*
+     * Creates the empty result of scanning one partition
+     */
+    T partition();
+
+    /*
+     * Adds a record of a partition to that partition's result
+     * @param partition the result of the partition the record belongs to
+     * @param record the payload of the record, only valid during the call
+     */
+    void visit(T partition, ByteBuffer record);
+
+    /*
+     * Merges the results of two adjacent partitions
+     * @param older the result of the partition that comes first in the log
+     * @param newer the result of the partition that comes right after it
+     * @return the merged result, which may reuse either argument
+     */
+    T merge(T older, T newer);
+}
@@ -0,0 +1,408 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.Chat.Priority;
+import com.chatapp.server.PendingMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Encodes the records of the logs as a kind byte followed by the fields of
+ * the record, with no escaping:
+ *   - account: [1][username]
+ *   - message: [2][sequence][recipient][sender][message]
+ *   - cursor:  [3][sequence][recipient]
+ *   - group message: [4][sender][message][group][count], then a
+ *     [sequence][recipient] for each of the count members it was queued for
+ * A message or group message that is not of normal priority ends with one
+ * more byte, the number of its priority, so that records written before
+ * messages had priorities read as normal ones. A message that expires
+ * ends with its priority whatever it is, followed by its expiry time as an
+ * 8-byte long.
+ * Sequence numbers are 8-byte longs, counts 4-byte ints and strings are a
+ * 4-byte length followed by that many bytes of UTF-8. The fixed-size fields
+ * come first, so the kind, the sequence number and the recipient of a
+ * message or cursor are at fixed offsets and can be read without decoding
+ * the rest of the record. A group message holds the text once for all of
+ * its copies.
+ *
+ * Records are encoded straight into a buffer owned by the calling thread,
+ * which leaves room for the AppendLog header in front of the record so that
+ * it can be appended without being copied. The buffer is reused by the next
+ * record the thread encodes.
+ */
+public class RecordCodec {
+
+    // Written to Constants.FORMAT_FILE in the directory of a log whose records
+    // are in this format and framed with CRC32C checksums
+    static final String VERSION = "3";
+
+    public static final byte ACCOUNT = 1;
+    public static final byte MESSAGE = 2;
+    public static final byte CURSOR = 3;
+    public static final byte GROUP = 4;
+
+    // Offsets of the fields shared by messages and cursors
+    private static final int SEQUENCE_OFFSET = 1;
+    private static final int RECIPIENT_OFFSET = 9;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // The buffer each thread encodes into, grown whenever a record does not fit
+    private static final ThreadLocal<ByteBuffer> frames = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    };
+
+    // The bytes of a string read from a buffer without a backing array
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_CAPACITY];
+        }
+    };
+
+/* ============================== ENCODING ============================== */
+
+    /*
+     * Encodes an account record
+     * @param username the account
+     * @return the calling thread's buffer, holding room for the AppendLog
+     *         header followed by the record
+     */
+    public static ByteBuffer encodeAccount(String username) {
+        ByteBuffer frame = start(ACCOUNT, 4 + 3 * username.length());
+        putString(frame, username);
+        return finish(frame);
+    }
+
+    /*
+     * Encodes a message record
+     * @param message the message
+     * @return the calling thread's buffer, holding room for the AppendLog
+     *         header followed by the record
+     */
+    public static ByteBuffer encodeMessage(PendingMessage message) {
+        int bound = 8 + 12 + 9 + 3 * (message.getRecipient().length() + message.getSender().length() + message.getMessage().length());
+        ByteBuffer frame = start(MESSAGE, bound);
+        frame.putLong(message.getSequence());
+        putString(frame, message.getRecipient());
+        putString(frame, message.getSender());
+        putString(frame, message.getMessage());
+        if (message.getExpireAt() != 0) {
+            frame.put((byte) message.getPriority().getNumber());
+            frame.putLong(message.getExpireAt());
+        } else {
+            putPriority(frame, message.getPriority());
+        }
+        return finish(frame);
+    }
+
+    /*
+     * Encodes a group message record
+     * @param copies the copies of the message, one per member it was queued
+     *               for, which share their sender, text and group
+     * @return the calling thread's buffer, holding room for the AppendLog
+     *         header followed by the record
+     */
+    public static ByteBuffer encodeGroupMessage(List<PendingMessage> copies) {
+        PendingMessage first = copies.get(0);
+        int bound = 16 + 1 + 3 * (first.getSender().length() + first.getMessage().length() + first.getGroup().length());
+        for (PendingMessage copy : copies) {
+            bound += 12 + 3 * copy.getRecipient().length();
+        }
+        ByteBuffer frame = start(GROUP, bound);
+        putString(frame, first.getSender());
+        putString(frame, first.getMessage());
+        putString(frame, first.getGroup());
+        frame.putInt(copies.size());
+        for (PendingMessage copy : copies) {
+            frame.putLong(copy.getSequence());
+            putString(frame, copy.getRecipient());
+        }
+        putPriority(frame, first.getPriority());
+        return finish(frame);
+    }
+
+    /*
+     * Encodes a delivery cursor record
+     * @param recipient the recipient of the messages
+     * @param sequence the sequence number of the last delivered message
+     * @return the calling thread's buffer, holding room for the AppendLog
+     *         header followed by the record
+     */
+    public static ByteBuffer encodeCursor(String recipient, long sequence) {
+        ByteBuffer frame = start(CURSOR, 8 + 4 + 3 * recipient.length());
+        frame.putLong(sequence);
+        putString(frame, recipient);
+        return finish(frame);
+    }
+
+    /*
+     * Copies the record out of an encoded frame, for callers that need to
+     * keep it after encoding the next one
+     * @param frame a buffer returned by one of the encode methods
+     * @return the bytes of the record, without the header
+     */
+    public static byte[] toArray(ByteBuffer frame) {
+        byte[] record = new byte[frame.remaining() - AppendLog.HEADER_SIZE];
+        System.arraycopy(frame.array(), frame.arrayOffset() + frame.position() + AppendLog.HEADER_SIZE, record, 0, record.length);
+        return record;
+    }
+
+    /*
+     * Clears the thread's buffer, making sure it can hold the header, the
+     * kind and at most the given number of bytes
+     */
+    private static ByteBuffer start(byte kind, int bound) {
+        ByteBuffer frame = frames.get();
+        int required = AppendLog.HEADER_SIZE + 1 + bound;
+        if (frame.capacity() < required) {
+            frame = ByteBuffer.allocate(Math.max(required, 2 * frame.capacity()));
+            frames.set(frame);
+        }
+        frame.clear();
+        frame.position(AppendLog.HEADER_SIZE);
+        frame.put(kind);
+        return frame;
+    }
+
+    /*
+     * Ends a message record with its priority, unless it is normal
+     */
+    private static void putPriority(ByteBuffer frame, Priority priority) {
+        if (priority != Priority.NORMAL) {
+            frame.put((byte) priority.getNumber());
+        }
+    }
+
+    private static ByteBuffer finish(ByteBuffer frame) {
+        frame.flip();
+        return frame;
+    }
+
+    /*
+     * Writes the string as its UTF-8 length followed by its UTF-8 bytes,
+     * encoding character by character rather than through a byte array.
+     * Unpaired surrogates become '?', as they do in String.getBytes.
+     * The buffer must have room for 4 + 3 * length bytes.
+     */
+    private static void putString(ByteBuffer frame, String s) {
+        int lengthAt = frame.position();
+        frame.position(lengthAt + 4);
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                frame.put((byte) c);
+            } else if (c < 0x800) {
+                frame.put((byte) (0xC0 | (c >> 6)));
+                frame.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                frame.put((byte) (0xF0 | (codePoint >> 18)));
+                frame.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                frame.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                frame.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                frame.put((byte) '?');
+            } else {
+                frame.put((byte) (0xE0 | (c >> 12)));
+                frame.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                frame.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        frame.putInt(lengthAt, frame.position() - lengthAt - 4);
+    }
+
+/* ============================== DECODING ============================== */
+
+    /*
+     * The records below are read with absolute gets, so the buffer passed in
+     * (which may be a view of a memory-mapped segment) is never modified.
+     */
+
+    /*
+     * @param record an encoded record
+     * @return the kind of the record: ACCOUNT, MESSAGE, CURSOR or GROUP
+     */
+    public static byte kind(ByteBuffer record) {
+        return record.get(record.position());
+    }
+
+    /*
+     * @param record an encoded message or cursor
+     * @return the sequence number of the message, or of the last message the cursor delivered
+     */
+    public static long sequence(ByteBuffer record) {
+        return record.getLong(record.position() + SEQUENCE_OFFSET);
+    }
+
+    /*
+     * @param record an encoded message or cursor
+     * @return the recipient of the message or cursor
+     */
+    public static String recipient(ByteBuffer record) {
+        return getString(record, record.position() + RECIPIENT_OFFSET);
+    }
+
+    /*
+     * @param record an encoded account
+     * @return the username of the account
+     */
+    public static String decodeAccount(ByteBuffer record) {
+        return getString(record, record.position() + 1);
+    }
+
+    /*
+     * @param record an encoded message
+     * @return the message
+     */
+    public static PendingMessage decodeMessage(ByteBuffer record) {
+        int offset = record.position() + RECIPIENT_OFFSET;
+        String recipient = getString(record, offset);
+        offset += 4 + record.getInt(offset);
+        String sender = getString(record, offset);
+        offset += 4 + record.getInt(offset);
+        String message = getString(record, offset);
+        offset += 4 + record.getInt(offset);
+        long expireAt = record.limit() - offset >= 9 ? record.getLong(offset + 1) : 0;
+        return new PendingMessage.Body(sender, message, null, getPriority(record, offset), expireAt).copyFor(recipient, sequence(record));
+    }
+
+    /*
+     * @param record an encoded group message
+     * @return a copy of the message for each member it was queued for, all
+     *         sharing one body
+     */
+    public static ArrayList<PendingMessage> decodeGroupMessage(ByteBuffer record) {
+        int offset = record.position() + 1;
+        String sender = getString(record, offset);
+        offset += 4 + record.getInt(offset);
+        String message = getString(record, offset);
+        offset += 4 + record.getInt(offset);
+        String group = getString(record, offset);
+        offset += 4 + record.getInt(offset);
+
+        // the priority comes after the copies, so their recipients are read first
+        int count = record.getInt(offset);
+        offset += 4;
+        long[] sequences = new long[count];
+        String[] recipients = new String[count];
+        for (int i = 0; i < count; i++) {
+            sequences[i] = record.getLong(offset);
+            offset += 8;
+            recipients[i] = getString(record, offset);
+            offset += 4 + record.getInt(offset);
+        }
+        PendingMessage.Body body = new PendingMessage.Body(sender, message, group, getPriority(record, offset));
+        ArrayList<PendingMessage> copies = new ArrayList<PendingMessage>(count);
+        for (int i = 0; i < count; i++) {
+            copies.add(body.copyFor(recipients[i], sequences[i]));
+        }
+        return copies;
+    }
+
+    /*
+     * @param record an encoded message
+     * @return the sender of the message, without decoding its text
+     */
+    public static String sender(ByteBuffer record) {
+        int offset = record.position() + RECIPIENT_OFFSET;
+        return getString(record, offset + 4 + record.getInt(offset));
+    }
+
+    /*
+     * Checks that the bytes are exactly one well-formed record, which tells
+     * the records of this codec apart from records of the legacy text format
+     * @param record the bytes of a record
+     * @return whether the record is a complete record of this codec
+     */
+    public static boolean isRecord(ByteBuffer record) {
+        int offset = record.position();
+        int limit = record.limit();
+        if (offset == limit) {
+            return false;
+        }
+        int strings;
+        switch (record.get(offset)) {
+            case ACCOUNT: strings = 1; offset += 1; break;
+            case MESSAGE: strings = 3; offset += RECIPIENT_OFFSET; break;
+            case CURSOR: strings = 1; offset += RECIPIENT_OFFSET; break;
+            case GROUP: return isGroupRecord(record, offset + 1, limit);
+            default: return false;
+        }
+        for (int i = 0; i < strings && offset >= 0; i++) {
+            offset = skipString(record, offset, limit);
+        }
+        return offset == limit || (record.get(record.position()) == MESSAGE && (offset == limit - 1 || offset == limit - 9));
+    }
+
+    private static boolean isGroupRecord(ByteBuffer record, int offset, int limit) {
+        for (int i = 0; i < 3 && offset >= 0; i++) {
+            offset = skipString(record, offset, limit);
+        }
+        if (offset < 0 || limit - offset < 4) {
+            return false;
+        }
+        int count = record.getInt(offset);
+        offset += 4;
+        for (int i = 0; i < count && offset >= 0; i++) {
+            offset = limit - offset < 8 ? -1 : skipString(record, offset + 8, limit);
+        }
+        return count >= 0 && (offset == limit || offset == limit - 1);
+    }
+
+    /*
+     * @return the offset after the length-prefixed string at the given
+     *         offset, or -1 if it does not fit before the limit
+     */
+    private static int skipString(ByteBuffer record, int offset, int limit) {
+        if (limit - offset < 4) {
+            return -1;
+        }
+        int length = record.getInt(offset);
+        if (length < 0 || length > limit - offset - 4) {
+            return -1;
+        }
+        return offset + 4 + length;
+    }
+
+    /*
+     * Decodes the priority byte a message record may end with at the given
+     * offset, or normal priority if it ends before it
+     */
+    private static Priority getPriority(ByteBuffer record, int offset) {
+        if (offset >= record.limit()) {
+            return Priority.NORMAL;
+        }
+        Priority priority = Priority.forNumber(record.get(offset));
+        return priority == null ? Priority.NORMAL : priority;
+    }
+
+    /*
+     * Decodes the length-prefixed string at the given offset, straight from
+     * the backing array when the buffer has one
+     */
+    private static String getString(ByteBuffer record, int offset) {
+        int length = record.getInt(offset);
+        if (record.hasArray()) {
+            return new String(record.array(), record.arrayOffset() + offset + 4, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = scratch.get();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, 2 * bytes.length)];
+            scratch.set(bytes);
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = record.get(offset + 4 + i);
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+}
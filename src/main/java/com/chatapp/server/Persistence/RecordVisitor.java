@@ -0,0 +1,15 @@
+package com.chatapp.server.Persistence;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Receives the records of a log one at a time while it is scanned
+ */
+public interface RecordVisitor {
+    /*
+     * @param record the payload of the record. It is a view into the log
+     *               that is only valid during the call, so copy anything
+     *               that needs to outlive it.
+     */
+    public void visit(ByteBuffer record);
+}
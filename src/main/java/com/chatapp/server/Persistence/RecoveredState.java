@@ -0,0 +1,40 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.PendingMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/*
+ * The state a StorageEngine recovers on startup
+ */
+public class RecoveredState {
+
+    private final Collection<String> accounts;
+    private final Map<String, Long> cursors;
+    private final Map<String, ArrayList<PendingMessage>> mailboxes;
+
+    /*
+     * @param accounts the live accounts
+     * @param cursors the sequence number of the last delivered message of each recipient
+     * @param mailboxes the undelivered messages of each recipient, in the order they were queued
+     */
+    public RecoveredState(Collection<String> accounts, Map<String, Long> cursors, Map<String, ArrayList<PendingMessage>> mailboxes) {
+        this.accounts = accounts;
+        this.cursors = cursors;
+        this.mailboxes = mailboxes;
+    }
+
+    public Collection<String> getAccounts() {
+        return accounts;
+    }
+
+    public Map<String, Long> getCursors() {
+        return cursors;
+    }
+
+    public Map<String, ArrayList<PendingMessage>> getMailboxes() {
+        return mailboxes;
+    }
+}
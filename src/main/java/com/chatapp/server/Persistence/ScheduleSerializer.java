@@ -0,0 +1,112 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.ScheduledMessage;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/*
+ * Stores the messages scheduled for later in scheduled.txt in the replica
+ * folder, one line per change with its arguments separated by tabs (see
+ * LegacyTextFormat). A scheduled message is a line holding its id, when it
+ * is due, its recipient, sender and text, the name of its priority and when
+ * it expires (0 if it does not); a line holding only an id records that the
+ * message no longer waits. Lines are appended and flushed as they happen,
+ * and the file is rewritten with only the waiting messages when it is
+ * loaded on startup.
+ */
+public class ScheduleSerializer {
+
+    private final Path file;
+
+    // Opened on first use, guarded by this
+    private Writer writer = null;
+
+    /*
+     * @param folder the replica folder holding the file
+     */
+    public ScheduleSerializer(String folder) {
+        this.file = Paths.get(folder, Constants.SCHEDULE_FILE);
+    }
+
+    /*
+     * Records a message that waits until it is due
+     */
+    public synchronized void schedule(ScheduledMessage scheduled) {
+        writer = FlatFileStorageEngine.append(file, writer, arguments(scheduled));
+    }
+
+    /*
+     * Records that a message no longer waits
+     */
+    public synchronized void unschedule(long id) {
+        String[] arguments = {Long.toString(id)};
+        writer = FlatFileStorageEngine.append(file, writer, arguments);
+    }
+
+    /*
+     * Reads the messages that are still waiting and rewrites the file with
+     * only them
+     * @return the messages, in the order they were scheduled, or nothing if
+     *         the file does not exist
+     */
+    public synchronized ArrayList<ScheduledMessage> load() {
+        LinkedHashMap<Long, ScheduledMessage> waiting = new LinkedHashMap<Long, ScheduledMessage>();
+        for (ArrayList<String> arguments : FlatFileStorageEngine.readLines(file)) {
+            try {
+                if (arguments.size() == 1) {
+                    waiting.remove(Long.parseLong(arguments.get(0)));
+                } else if (arguments.size() == 7) {
+                    PendingMessage.Body body = new PendingMessage.Body(arguments.get(3), arguments.get(4), null,
+                        FlatFileStorageEngine.parsePriority(arguments.get(5)), Long.parseLong(arguments.get(6)));
+                    long id = Long.parseLong(arguments.get(0));
+                    waiting.put(id, new ScheduledMessage(id, Long.parseLong(arguments.get(1)), body.copyFor(arguments.get(2), 0)));
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("WARNING: Skipping a malformed line of " + file);
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (ScheduledMessage scheduled : waiting.values()) {
+            text.append(LegacyTextFormat.marshallArguments(arguments(scheduled))).append(Constants.MESSAGE_SEPARATOR);
+        }
+        try {
+            close();
+            FlatFileStorageEngine.replace(file, text);
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not rewrite " + file);
+            e.printStackTrace();
+        }
+        return new ArrayList<ScheduledMessage>(waiting.values());
+    }
+
+    /*
+     * Closes the file, which is opened again by the next change
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not close " + file);
+        }
+        writer = null;
+    }
+
+    private static String[] arguments(ScheduledMessage scheduled) {
+        PendingMessage message = scheduled.getMessage();
+        String[] arguments = {Long.toString(scheduled.getId()), Long.toString(scheduled.getDeliverAt()), message.getRecipient(),
+            message.getSender(), message.getMessage(), message.getPriority().name(), Long.toString(message.getExpireAt())};
+        return arguments;
+    }
+}
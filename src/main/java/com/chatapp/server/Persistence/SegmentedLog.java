@@ -0,0 +1,707 @@
+package com.chatapp.server.Persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * A log split into rolling segment files inside a directory. New records are
+ * appended to the active segment; once it grows past the segment size it is
+ * sealed and a new active segment is started.
+ *
+ * Sealed segments never change, so they can be compacted in the background
+ * while writers keep appending to the active segment. A compacted segment is
+ * named after the range of segments it replaces ("<first>-<last>.log") and is
+ * swapped in with an atomic rename, which is the commit point: if the server
+ * crashes before the replaced segments are deleted, they are deleted the next
+ * time the log is opened.
+ */
+public class SegmentedLog {
+
+    private static final String SUFFIX = ".log";
+    private static final String TEMPORARY_SUFFIX = ".compacting";
+
+    /*
+     * A segment file and the range of segment ids it covers
+     */
+    private static class Segment {
+        final long first;
+        final long last;
+        final AppendLog log;
+
+        Segment(long first, long last, AppendLog log) {
+            this.first = first;
+            this.last = last;
+            this.log = log;
+        }
+    }
+
+    /*
+     * A range of records of one segment that is scanned on its own
+     */
+    private static class Partition {
+        final AppendLog log;
+        final long start;
+        final long end;
+
+        Partition(AppendLog log, long start, long end) {
+            this.log = log;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /*
+     * Scans a run of adjacent partitions by splitting it in half until a
+     * single partition is left, then merges the halves back in log order
+     */
+    private static class ScanTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Partition> partitions;
+        private final int from;
+        private final int to;
+        private final PartitionedScan<T> scan;
+
+        ScanTask(List<Partition> partitions, int from, int to, PartitionedScan<T> scan) {
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+            this.scan = scan;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from == 1) {
+                Partition partition = partitions.get(from);
+                final T result = scan.partition();
+                try {
+                    partition.log.scan(partition.start, partition.end, new RecordVisitor() {
+                        @Override
+                        public void visit(ByteBuffer record) {
+                            scan.visit(result, record);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return result;
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask<T> older = new ScanTask<T>(partitions, from, middle, scan);
+            older.fork();
+            T newer = new ScanTask<T>(partitions, middle, to, scan).compute();
+            return scan.merge(older.join(), newer);
+        }
+    }
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final long intervalMs;
+    private final long segmentBytes;
+
+    // Appends hold the read lock so that they can be group-committed together;
+    // rolling and swapping in compacted segments hold the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Sealed segments in order, followed by the active segment
+    private final ArrayList<Segment> sealed = new ArrayList<Segment>();
+    private Segment active;
+
+    // Only one compaction may run at a time
+    private final Object compactionLock = new Object();
+
+    // The id of the first segment not covered by the newest snapshot. The
+    // segments before it are only kept so that the previous snapshot can be
+    // rolled forward if the newest one is lost, and are skipped by reads,
+    // scans and compaction.
+    private volatile long checkpointed = 0;
+
+    /*
+     * Opens (or creates) the segmented log in the given directory
+     * @param directory the directory holding the segment files
+     * @param policy when to force writes to disk
+     * @param intervalMs how often to force writes when the policy is INTERVAL
+     * @param segmentBytes the size after which the active segment is sealed
+     */
+    public SegmentedLog(Path directory, FsyncPolicy policy, long intervalMs, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.intervalMs = intervalMs;
+        this.segmentBytes = segmentBytes;
+
+        Files.createDirectories(directory);
+
+        // find the segments, skipping compactions that never got renamed into place
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        for (File file : directory.toFile().listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(TEMPORARY_SUFFIX)) {
+                Files.delete(file.toPath());
+            } else if (name.endsWith(SUFFIX)) {
+                ranges.add(parseRange(name));
+            }
+        }
+
+        // order by first id, preferring the widest range when two start together
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                if (a[0] != b[0]) {
+                    return Long.compare(a[0], b[0]);
+                }
+                return Long.compare(b[1], a[1]);
+            }
+        });
+
+        // delete segments already covered by a compacted segment
+        long covered = -1;
+        for (long[] range : ranges) {
+            Path path = directory.resolve(fileName(range[0], range[1]));
+            if (range[1] <= covered) {
+                Files.delete(path);
+                continue;
+            }
+            sealed.add(new Segment(range[0], range[1], open(path)));
+            covered = range[1];
+        }
+
+        // the newest segment is the active one
+        if (sealed.isEmpty()) {
+            active = new Segment(0, 0, open(directory.resolve(fileName(0, 0))));
+        } else {
+            active = sealed.remove(sealed.size() - 1);
+        }
+
+        // a crash can only have torn the last write, which went to the newest segment
+        active.log.repair();
+    }
+
+    /*
+     * Appends a record to the active segment, rolling to a new segment if the
+     * active one has grown too large
+     * @param payload the bytes of the record
+     */
+    public void append(byte[] payload) throws IOException {
+        appendFrame(AppendLog.unframed(payload));
+    }
+
+    /*
+     * Appends a record encoded behind AppendLog.HEADER_SIZE free bytes
+     * without copying it (see AppendLog.appendFrame)
+     * @param frame the free header bytes followed by the payload of the record
+     */
+    public void appendFrame(ByteBuffer frame) throws IOException {
+        Segment segment;
+        lock.readLock().lock();
+        try {
+            segment = active;
+            segment.log.appendFrame(frame);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (segment.log.size() >= segmentBytes) {
+            roll(segment);
+        }
+    }
+
+    /*
+     * Seals the active segment and starts a new one
+     */
+    public void roll() throws IOException {
+        lock.readLock().lock();
+        Segment segment;
+        try {
+            segment = active;
+        } finally {
+            lock.readLock().unlock();
+        }
+        roll(segment);
+    }
+
+    /*
+     * Seals the given segment if it is still the active one
+     */
+    private void roll(Segment expected) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (active != expected || active.log.size() == 0) {
+                return;
+            }
+            long id = active.last + 1;
+            sealed.add(active);
+            active = new Segment(id, id, open(directory.resolve(fileName(id, id))));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Reads every record of every segment, oldest first
+     * @return the payloads of the records in the order they were appended
+     */
+    public List<byte[]> readAll() throws IOException {
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : sealed) {
+                if (!isCheckpointed(segment)) {
+                    records.addAll(segment.log.readAll());
+                }
+            }
+            records.addAll(active.log.readAll());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return records;
+    }
+
+    /*
+     * Hands every record of every segment to the visitor, oldest first,
+     * without reading the segments onto the heap
+     * @param visitor receives the payload of each record
+     */
+    public void scan(RecordVisitor visitor) throws IOException {
+        lock.readLock().lock();
+        try {
+            for (Segment segment : sealed) {
+                if (!isCheckpointed(segment)) {
+                    segment.log.scan(visitor);
+                }
+            }
+            active.log.scan(visitor);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Scans every segment in parallel on the given pool. Segments are split
+     * into partitions of about the segment size, so that a large compacted
+     * segment is spread over several threads too.
+     * @param pool the threads to scan with
+     * @param scan builds and merges the result of each partition
+     * @return the merged result of all partitions
+     */
+    public <T> T scan(ForkJoinPool pool, PartitionedScan<T> scan) throws IOException {
+        lock.readLock().lock();
+        try {
+            ArrayList<Partition> partitions = new ArrayList<Partition>();
+            for (Segment segment : sealed) {
+                if (!isCheckpointed(segment)) {
+                    addPartitions(partitions, segment.log);
+                }
+            }
+            addPartitions(partitions, active.log);
+
+            try {
+                return pool.invoke(new ScanTask<T>(partitions, 0, partitions.size(), scan));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void addPartitions(List<Partition> partitions, AppendLog log) throws IOException {
+        long[] boundaries = log.split(segmentBytes);
+        for (int i = 0; i + 1 < boundaries.length; i++) {
+            partitions.add(new Partition(log, boundaries[i], boundaries[i + 1]));
+        }
+    }
+
+    /*
+     * Returns the id of the active segment; every segment before it is sealed
+     */
+    public long sealedUntil() {
+        lock.readLock().lock();
+        try {
+            return active.first;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Hands every record of the sealed segments before the given id to the
+     * visitor, oldest first. Sealed segments never change, so they are read
+     * without blocking writers; compaction and truncation wait until the scan
+     * is done.
+     * @param until the id of the first segment not to scan
+     * @param visitor receives the payload of each record
+     */
+    public void scanSealed(long until, RecordVisitor visitor) throws IOException {
+        synchronized (compactionLock) {
+            ArrayList<Segment> segments = new ArrayList<Segment>();
+            lock.readLock().lock();
+            try {
+                for (Segment segment : sealed) {
+                    if (segment.last < until && !isCheckpointed(segment)) {
+                        segments.add(segment);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            for (Segment segment : segments) {
+                segment.log.scan(visitor);
+            }
+        }
+    }
+
+    /*
+     * Marks the segments before the given id as covered by the newest
+     * snapshot, so that they are no longer read, scanned or compacted but
+     * stay on disk until truncate drops them. If even the active segment is
+     * before that id, it is sealed and a new active segment with that id is
+     * started so that new records are never mistaken for checkpointed ones.
+     * @param until the id of the first segment not covered by the snapshot
+     */
+    public void skipUntil(long until) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkpointed = until;
+            if (active.last < until) {
+                sealed.add(active);
+                active = new Segment(until, until, open(directory.resolve(fileName(until, until))));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isCheckpointed(Segment segment) {
+        return segment.last < checkpointed;
+    }
+
+    /*
+     * Deletes the sealed segments before the given id, once their records
+     * have been checkpointed elsewhere. If even the active segment is before
+     * that id (because the later segments went missing), it is replaced by a
+     * new active segment with that id so that new records are never mistaken
+     * for checkpointed ones.
+     * @param until the id of the first segment to keep
+     */
+    public void truncate(long until) throws IOException {
+        synchronized (compactionLock) {
+            ArrayList<Segment> victims = new ArrayList<Segment>();
+            lock.writeLock().lock();
+            try {
+                while (!sealed.isEmpty() && sealed.get(0).last < until) {
+                    victims.add(sealed.remove(0));
+                }
+                if (active.last < until) {
+                    victims.add(active);
+                    active = new Segment(until, until, open(directory.resolve(fileName(until, until))));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            for (Segment victim : victims) {
+                victim.log.close();
+                Files.deleteIfExists(victim.log.getPath());
+            }
+        }
+    }
+
+    /*
+     * Merges a run of sealed segments into a single compacted segment,
+     * streaming their records from the memory-mapped segments into the new
+     * one so that memory use does not grow with the log. Writers are never
+     * blocked while the records are read and rewritten; they only wait for
+     * the brief moment in which the new segment is swapped in.
+     *
+     * Only the newest segments worth merging are picked (see
+     * worthCompacting), unless everything is asked for.
+     * @param compaction decides which records survive
+     * @param everything whether to merge every sealed segment
+     */
+    public void compact(final Compaction compaction, boolean everything) throws IOException {
+        synchronized (compactionLock) {
+            // grab the sealed segments as they are right now
+            ArrayList<Segment> candidates = new ArrayList<Segment>();
+            lock.readLock().lock();
+            try {
+                // segments covered by the newest snapshot are never merged with later ones
+                for (Segment segment : sealed) {
+                    if (!isCheckpointed(segment)) {
+                        candidates.add(segment);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            List<Segment> victims = everything ? candidates : worthCompacting(candidates);
+            if (victims.isEmpty()) {
+                return;
+            }
+            // there is nothing to gain from rewriting a lone segment that is already compacted, which
+            // in the background is any lone segment, since a compacted segment can keep its name
+            if (victims.size() == 1 && (!everything || victims.get(0).first != victims.get(0).last)) {
+                return;
+            }
+
+            long first = victims.get(0).first;
+            long last = victims.get(victims.size() - 1).last;
+            Path target = directory.resolve(fileName(first, last));
+            Path temporary = directory.resolve(fileName(first, last) + TEMPORARY_SUFFIX);
+
+            // stream the survivors to a temporary file
+            try {
+                for (Segment victim : victims) {
+                    victim.log.scan(new RecordVisitor() {
+                        @Override
+                        public void visit(ByteBuffer record) {
+                            compaction.inspect(record);
+                        }
+                    });
+                }
+                final SegmentWriter writer = new SegmentWriter(temporary);
+                try {
+                    for (Segment victim : victims) {
+                        victim.log.scan(new RecordVisitor() {
+                            @Override
+                            public void visit(ByteBuffer record) {
+                                ByteBuffer kept = compaction.keep(record);
+                                if (kept == null) {
+                                    return;
+                                }
+                                try {
+                                    writer.write(kept);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }
+                        });
+                    }
+                    for (byte[] record : compaction.finish()) {
+                        writer.write(ByteBuffer.wrap(record));
+                    }
+                    writer.finish();
+                } finally {
+                    writer.close();
+                }
+            } catch (UncheckedIOException e) {
+                Files.deleteIfExists(temporary);
+                throw e.getCause();
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+
+            // then rename it into place and swap it in for the segments it replaces
+            Segment replaced = null;
+            lock.writeLock().lock();
+            try {
+                // a compaction of a single segment has the same name as that segment
+                if (victims.size() == 1) {
+                    replaced = victims.get(0);
+                    replaced.log.close();
+                }
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                // segments are only ever added after the victims while this runs
+                int from = sealed.indexOf(victims.get(0));
+                sealed.subList(from, from + victims.size()).clear();
+                sealed.add(from, new Segment(first, last, open(target)));
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // and get rid of them
+            for (Segment victim : victims) {
+                if (victim == replaced) {
+                    continue;
+                }
+                victim.log.close();
+                Files.deleteIfExists(victim.log.getPath());
+            }
+        }
+    }
+
+    /*
+     * Picks the newest run of sealed segments that is worth merging. Starting
+     * from the newest segment, older ones are taken while each is no larger
+     * than everything taken so far, so that a large compacted segment is only
+     * rewritten once the records after it have grown as large as it. Every
+     * record is then rewritten a number of times logarithmic in the size of
+     * the log, instead of on every run.
+     * @param sealed the sealed segments, oldest first
+     * @return the run, oldest first, which ends with the newest segment
+     */
+    private static List<Segment> worthCompacting(List<Segment> sealed) {
+        int from = sealed.size();
+        long taken = 0;
+        while (from > 0) {
+            long size = sealed.get(from - 1).log.size();
+            if (taken > 0 && size > taken) {
+                break;
+            }
+            taken += size;
+            from--;
+        }
+        return sealed.subList(from, sealed.size());
+    }
+
+    /*
+     * Rewrites every segment in place, sealed and active alike, passing the
+     * records of each segment through the conversion, oldest segment first.
+     * Used to upgrade the records of a log to a new format, so nothing may
+     * be appended while it runs.
+     * @param conversion turns the records of a segment into the records to write back
+     */
+    public void rewrite(Conversion conversion) throws IOException {
+        synchronized (compactionLock) {
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < sealed.size(); i++) {
+                    sealed.set(i, rewrite(sealed.get(i), conversion));
+                }
+                active = rewrite(active, conversion);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Segment rewrite(Segment segment, Conversion conversion) throws IOException {
+        List<byte[]> records = conversion.convert(segment.log.readAll());
+        Path path = segment.log.getPath();
+        Path temporary = directory.resolve(fileName(segment.first, segment.last) + TEMPORARY_SUFFIX);
+        SegmentWriter writer = new SegmentWriter(temporary);
+        try {
+            for (byte[] record : records) {
+                writer.write(ByteBuffer.wrap(record));
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        segment.log.close();
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new Segment(segment.first, segment.last, open(path));
+    }
+
+    /*
+     * Frames records into a new segment file through a fixed-size buffer, so
+     * that writing a compacted segment takes few system calls and no more
+     * memory than the buffer
+     */
+    private static class SegmentWriter {
+        private static final int BUFFER_BYTES = 1024 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+        SegmentWriter(Path path) throws IOException {
+            channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        /*
+         * Frames the remaining bytes of the payload, without moving its position
+         */
+        void write(ByteBuffer payload) throws IOException {
+            int length = payload.remaining();
+            int checksum = AppendLog.checksum(payload);
+            if (AppendLog.HEADER_SIZE + length > buffer.remaining()) {
+                flush();
+            }
+            // a record larger than the buffer is written straight from where it is
+            if (AppendLog.HEADER_SIZE + length > buffer.capacity()) {
+                ByteBuffer header = ByteBuffer.allocate(AppendLog.HEADER_SIZE);
+                header.putInt(length);
+                header.putInt(checksum);
+                header.flip();
+                drain(header);
+                drain(payload.duplicate());
+                return;
+            }
+            buffer.putInt(length);
+            buffer.putInt(checksum);
+            buffer.put(payload.duplicate());
+        }
+
+        /*
+         * Writes what is buffered and forces the file to disk
+         */
+        void finish() throws IOException {
+            flush();
+            channel.force(true);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            drain(buffer);
+            buffer.clear();
+        }
+
+        private void drain(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /*
+     * Closes every segment
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : sealed) {
+                segment.log.close();
+            }
+            active.log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private AppendLog open(Path path) throws IOException {
+        return new AppendLog(path, policy, intervalMs);
+    }
+
+    /*
+     * Segment files are named after the zero-padded range of ids they cover
+     */
+    static String fileName(long first, long last) {
+        if (first == last) {
+            return String.format("%020d%s", first, SUFFIX);
+        }
+        return String.format("%020d-%020d%s", first, last, SUFFIX);
+    }
+
+    static long[] parseRange(String fileName) {
+        String[] ids = fileName.substring(0, fileName.length() - SUFFIX.length()).split("-");
+        long first = Long.parseLong(ids[0]);
+        long last = ids.length > 1 ? Long.parseLong(ids[1]) : first;
+        return new long[] {first, last};
+    }
+}
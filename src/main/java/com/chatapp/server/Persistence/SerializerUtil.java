@@ -1,19 +1,17 @@
 package com.chatapp.server.Persistence;
 
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import com.chatapp.server.BusinessLogicServer;
+import com.chatapp.server.ServerConfig;
 
 /*
  * This class is used to serialize and deserialize objects
@@ -37,258 +35,154 @@ public class SerializerUtil {
 
         public String toFile() {
             switch(this) {
-                case ACCOUNT: return Constants.ACCOUNT_FILE;
-                case MESSAGE: return Constants.MESSAGE_FILE;
-                default: throw new IllegalArgumentException();
-            }
-        }
-
-        public String toBackupFile() {
-            switch(this) {
-                case ACCOUNT: return Constants.ACCOUNT_BACKUP_FILE;
-                case MESSAGE: return Constants.MESSAGE_BACKUP_FILE;
+                case ACCOUNT: return Constants.ACCOUNT_LOG;
+                case MESSAGE: return Constants.MESSAGE_LOG;
                 default: throw new IllegalArgumentException();
             }
         }
     }
 
-/* ============================== FILE FUNCTIONS ============================== */
-
     /*
-     * Reads account or message files and returns a list of strings
-     * @param r the type of file to read
-     * @return a list of strings containing the lines of the file
+     * The open logs, keyed by their directory. Logs stay open for the lifetime
+     * of the server so that appends never pay for opening and closing a file.
      */
-    public static List<String> read(TextType r) {
-        List<String> lines = null;
-
-        String mainFile = BusinessLogicServer.getReplicaFolder() + r.toFile();
-        String backupFile = BusinessLogicServer.getReplicaFolder() + r.toBackupFile();
+    private static final ConcurrentHashMap<String, SegmentedLog> logs = new ConcurrentHashMap<String, SegmentedLog>();
 
-        // Attempt to read from file
-        try {
-            lines = Files.readAllLines(Paths.get(mainFile));
-        } catch (IOException e) {
-            System.out.println("INFO: " + r + " file is empty");
-        }
+/* ============================== FILE FUNCTIONS ============================== */
 
-        // If the file is not corrupted, copy it to the backup file
-        if (lines != null && lines.size() > 0) {
-          try {
-            FileInputStream src = new FileInputStream(mainFile);
-            FileOutputStream dest = new FileOutputStream(backupFile);
-            dest.getChannel().transferFrom(src.getChannel(), 0, src.getChannel().size());
-            src.close();
-            dest.close();
-          } catch (IOException e) {
-            System.out.println("WARNING: Could not copy " + r + " file to backup file");
-          }
+    /*
+     * Returns the log for the given type in the current replica's folder,
+     * opening it on first use
+     * @param r the type of log
+     * @return the open log
+     */
+    static SegmentedLog getLog(TextType r) throws IOException {
+        String directory = BusinessLogicServer.getReplicaFolder() + r.toFile();
+        SegmentedLog log = logs.get(directory);
+        if (log != null) {
+            return log;
         }
-
-        // If the file was corrupted, try to read from the backup file
-        else {
-          // Attempt to read from the backup file
-          if (lines == null || lines.size() == 0) {
-            try {
-              lines = Files.readAllLines(Paths.get(backupFile));
-            } catch (IOException e) {
-              System.out.println("INFO: Backup file is empty");
-            }
-          }
-
-          // If the backup file is not corrupted, copy it to the file
-          if (lines != null && lines.size() > 0) {
-            try {
-              FileInputStream src = new FileInputStream(backupFile);
-              FileOutputStream dest = new FileOutputStream(mainFile);
-              dest.getChannel().transferFrom(src.getChannel(), 0, src.getChannel().size());
-              src.close();
-              dest.close();
-            } catch (IOException e) {
-              System.out.println("WARNING: Could not copy backup file to " + r + " file");
+        synchronized (logs) {
+            log = logs.get(directory);
+            if (log == null) {
+                log = new SegmentedLog(Paths.get(directory), ServerConfig.FSYNC_POLICY, ServerConfig.FSYNC_INTERVAL_MS, ServerConfig.SEGMENT_BYTES);
+                // drop segments left behind by a checkpoint that crashed before deleting them,
+                // keeping those the previous snapshot needs in case the newest one is lost
+                log.truncate(Checkpointer.keptFrom(r));
+                log.skipUntil(Checkpointer.coveredUntil(r));
+                // upgrade logs written in the tab-separated text format
+                LegacyTextFormat.migrate(log, r);
+                logs.put(directory, log);
             }
-          }
-        }
-        
-        // If the file and backup file are corrupted or empty, return an empty list
-        if(lines == null) {
-            return new ArrayList<String>();
+            return log;
         }
-        return lines;
     }
-    
+
     /*
-     * Write to both the main file and the backup file
-     * one at a time in case the server crashes
-     * @param r the type of file to write to
-     * @param args the arguments to write to the file
+     * Reads the records of the account or message logs
+     * @param r the type of log to read
+     * @return the encoded records of the log (see RecordCodec), oldest first
+     * @throws UncheckedIOException if the log could not be opened or read,
+     *         so that a replica never starts as if its log were empty
      */
-    public static void write(TextType r, String[] args) {
-        String text = marshallArguments(args);
-
-        // Write to both files, one at a time
-        write(text, BusinessLogicServer.getReplicaFolder() + r.toFile());
-        write(text, BusinessLogicServer.getReplicaFolder() + r.toBackupFile());
+    public static List<byte[]> read(TextType r) {
+        try {
+            return getLog(r).readAll();
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not read " + r + " log");
+            throw new UncheckedIOException("Failed to read the " + r + " log", e);
+        }
     }
 
     /*
-     * Write the desired text to the specified file
-     * @param marshalledText the text to write to the file
-     * @param filename the filename to write to
+     * Streams the records of the account or message logs to the visitor
+     * straight from the memory-mapped segments
+     * @param r the type of log to read
+     * @param visitor receives each record
+     * @throws UncheckedIOException if the log could not be opened or read
      */
-    private static void write(String marshalledText, String filename) {
-        PrintWriter out = null;
+    public static void scan(TextType r, RecordVisitor visitor) {
         try {
-            out = new PrintWriter(new BufferedWriter(new FileWriter(filename, true)));
+            getLog(r).scan(visitor);
         } catch (IOException e) {
-            // Failed to open file
-            System.out.println("ERROR: Failed to open file");
-            e.printStackTrace();
+            System.out.println("ERROR: Could not read " + r + " log");
+            throw new UncheckedIOException("Failed to read the " + r + " log", e);
         }
-        
-        out.print(marshalledText);
-        out.close();
     }
     
     /*
-     * Delete the contents of the specified file
-     * @param filename the filename to clear
+     * Scans the partitions of the account or message logs in parallel
+     * @param r the type of log to read
+     * @param pool the threads to scan with
+     * @param scan builds and merges the result of each partition
+     * @return the merged result
+     * @throws UncheckedIOException if the log could not be opened or read
      */
-    public static void clear(String filename) {
-        // Clear the file
+    public static <T> T scan(TextType r, ForkJoinPool pool, PartitionedScan<T> scan) {
         try {
-            PrintWriter writer = new PrintWriter(filename);
-            writer.print("");
-            writer.close();
+            return getLog(r).scan(pool, scan);
         } catch (IOException e) {
-            System.out.println("WARNING: Could not clear file " + filename);
+            System.out.println("ERROR: Could not read " + r + " log");
+            throw new UncheckedIOException("Failed to read the " + r + " log", e);
         }
     }
 
     /*
-     * Copy the contents of a file to another file
-     * @param src the source file
-     * @param dest the destination file
+     * Append a record to the log. Concurrent callers are group-committed
+     * into a single write, so this returns once the record is durable
+     * according to the configured fsync policy.
+     * @param r the type of log to write to
+     * @param frame a record encoded by RecordCodec, which is written without
+     *              being copied
+     * @throws UncheckedIOException if the record could not be written, in
+     *         which case it is not in the log
      */
-    public static void copy(String src, String dest) {
+    public static void write(TextType r, ByteBuffer frame) {
         try {
-            FileInputStream srcFile = new FileInputStream(src);
-            FileOutputStream destFile = new FileOutputStream(dest);
-            destFile.getChannel().transferFrom(srcFile.getChannel(), 0, srcFile.getChannel().size());
-            srcFile.close();
-            destFile.close();
+            getLog(r).appendFrame(frame);
         } catch (IOException e) {
-            System.out.println("WARNING: Could not copy " + src + " to " + dest);
+            System.out.println("ERROR: Failed to write to " + r + " log");
+            throw new UncheckedIOException("Failed to write to the " + r + " log", e);
         }
     }
 
-/* ============================== TEXT ESCAPING ============================== */
-
     /*
-     * Marshalls arguments by escaping special characters and then concatenating 
-     * them with the argument separator
-     * @param arguments the arguments to marshall
-     * @return the marshalled arguments
+     * Compact the sealed segments of the log in place
+     * @param r the type of log to compact
+     * @param compaction decides which records survive
+     * @param everything whether to seal the active segment first and merge
+     *                   every sealed segment, so that every record is
+     *                   compacted, instead of only the segments worth it
      */
-    private static String marshallArguments(String[] arguments) {
-        // parse arguments into a StringBuilder, perform escaping, then convert back to String
-        StringBuilder output = new StringBuilder();
-        boolean first = true;
-        for (String argument : arguments) {
-          // Only add argument separators when it isn't the first argument
-          if (!first) {
-            output.append(Constants.ARGUMENT_SEPARATOR);
-          }
-          else {
-            first = false;
-          }
-          for (char c : escapeRestrictedCharacters(argument).toCharArray()) {
-            output.append(c);
-          }
-        }
-        // Add message separator character
-        output.append(Constants.MESSAGE_SEPARATOR);
-  
-        return output.toString();
-    }
-
-    /* 
-     * Unmarshalls arguments by separating them by the the argument separator and 
-     * unescaping special characters
-     * @param marshalledMessage the marshalled message to unmarshall
-     * @return the unmarshalled arguments
-    */
-    public static ArrayList<String> unmarshallArguments(String marshalledMessage) {
-        ArrayList<String> result = new ArrayList<String>();
-
-        // split the arguments by the argument separator and then unescape them
-        String[] args = marshalledMessage.split(String.valueOf(Constants.ARGUMENT_SEPARATOR));
-        for (String arg : args) {
-            result.add(unescapeRestrictedCharacters(arg));
+    public static void compact(TextType r, Compaction compaction, boolean everything) {
+        try {
+            SegmentedLog log = getLog(r);
+            if (everything) {
+                log.roll();
+            }
+            log.compact(compaction, everything);
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not compact " + r + " log");
+            e.printStackTrace();
         }
-        
-        return result;
     }
 
     /*
-     * Escapes restricted characters by adding the escape character in front of them. 
-     * Ex: \t becomes \\t and \n becomes \\n
-     * @param input the byte array to escape
-     * @return the escaped byte array
-     */
-    private static String escapeRestrictedCharacters(String input) {
-        // parse input into an StringBuilder, perform escaping, then convert back to String
-        StringBuilder output = new StringBuilder();
-  
-        for (char c : input.toCharArray()) {
-          // "\t" --> "\\t"
-          if (c == Constants.ARGUMENT_SEPARATOR) {
-            output.append(Constants.ESCAPE_CHARACTER);
-            output.append(Constants.ARGUMENT_SEPARATOR_LETTER);
-          }
-          // "\n" --> "\\n"
-          else if (c == Constants.MESSAGE_SEPARATOR) {
-            output.append(Constants.ESCAPE_CHARACTER);
-            output.append(Constants.MESSAGE_SEPARATOR_LETTER);
-          }
-          else {
-            output.append(c);
-          }
-        }
-  
-        return output.toString();
-      }
-
-    /*
-     * Unescapes restricted characters by removing the escape character in front of them. 
-     * Ex: \\t becomes \t and \\n becomes \n
-     * @param input the byte array to unescape
-     * @return the unescaped byte array
+     * Flush and close every open log. The logs (and the newest snapshot) are
+     * looked up again on the next use.
      */
-    private static String unescapeRestrictedCharacters(String inputString) {
-        // parse input into a StringBuilder, perform unescaping, then convert back to String
-        StringBuilder output = new StringBuilder();
-
-        char[] input = inputString.toCharArray();
-
-        for (int i = 0; i < input.length; i++) {
-            // "\\t" -> "\t"
-            if (i != input.length - 1 && input[i] == Constants.ESCAPE_CHARACTER
-            && input[i + 1] == Constants.ARGUMENT_SEPARATOR_LETTER) {
-            output.append(Constants.ARGUMENT_SEPARATOR);
-            i++;
-            }
-            // "\\n" -> "\n"
-            else if (i != input.length - 1 && input[i] == Constants.ESCAPE_CHARACTER
-            && input[i + 1] == Constants.MESSAGE_SEPARATOR_LETTER) {
-            output.append(Constants.MESSAGE_SEPARATOR);
-            i++;
+    public static void closeAll() {
+        synchronized (logs) {
+            for (SegmentedLog log : logs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.out.println("WARNING: Could not close " + log.getDirectory());
+                }
             }
-            else
-            output.append(input[i]);
+            logs.clear();
+            Checkpointer.reset();
         }
-        
-        return output.toString();
     }
 
 }
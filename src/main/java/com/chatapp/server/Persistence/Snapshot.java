@@ -0,0 +1,490 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.Chat.Priority;
+import com.chatapp.server.PendingMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * A checkpoint of the live state: the live accounts, the delivery cursors and
+ * the undelivered messages of every recipient, including every segment of
+ * the account and message logs before a given segment id. Restoring a
+ * snapshot and replaying the segments from those ids on gives the same state
+ * as replaying the whole history.
+ *
+ * The file is binary: a header with the two segment ids, then the accounts,
+ * the cursors and the mailboxes, each string being its length followed by its
+ * UTF-8 bytes, then an index of the mailboxes, the offset of the index, and
+ * finally a CRC32 of everything before it. The sections are in that order so
+ * that a reader that only needs the accounts or the cursors can stop early.
+ *
+ * The index lets a single recipient's mailbox be read without reading the
+ * others (see readMailbox). Recipients are hashed into a power-of-two number
+ * of buckets; the index holds the number of buckets, the offset at which
+ * each bucket's entries start (plus one more for where the last one ends),
+ * and then the entries themselves: a recipient and the offset of their
+ * mailbox. Snapshots written before the index (version 1) end right after
+ * the mailboxes.
+ *
+ * Each message is written as its sender, text and sequence number, followed
+ * since version 3 by the group it was sent to, or an empty string for a
+ * direct message, since version 4 by the number of its priority in one
+ * byte, and since version 5 by its expiry time, or 0 if it does not expire.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x43484b50;
+    private static final int VERSION = 5;
+    private static final int UNEXPIRING_VERSION = 4;
+    private static final int UNPRIORITIZED_VERSION = 3;
+    private static final int UNGROUPED_VERSION = 2;
+    private static final int UNINDEXED_VERSION = 1;
+
+    // Roughly how many recipients share a bucket of the mailbox index
+    private static final int RECIPIENTS_PER_BUCKET = 8;
+    private static final String SUFFIX = ".snapshot";
+    static final String TEMPORARY_SUFFIX = ".writing";
+
+    // The first segment of each log whose records are not included
+    private final long accountsUntil;
+    private final long messagesUntil;
+
+    private final HashSet<String> accounts;
+    private final HashMap<String, Long> cursors;
+    // null when the snapshot was read without its messages
+    private final HashMap<String, ArrayList<PendingMessage>> mailboxes;
+
+    Snapshot(long accountsUntil, long messagesUntil, HashSet<String> accounts,
+             HashMap<String, Long> cursors, HashMap<String, ArrayList<PendingMessage>> mailboxes) {
+        this.accountsUntil = accountsUntil;
+        this.messagesUntil = messagesUntil;
+        this.accounts = accounts;
+        this.cursors = cursors;
+        this.mailboxes = mailboxes;
+    }
+
+    /*
+     * The state before any record was written
+     */
+    static Snapshot empty() {
+        return new Snapshot(0, 0, new HashSet<String>(), new HashMap<String, Long>(),
+            new HashMap<String, ArrayList<PendingMessage>>());
+    }
+
+    public long getAccountsUntil() {
+        return accountsUntil;
+    }
+
+    public long getMessagesUntil() {
+        return messagesUntil;
+    }
+
+    public HashSet<String> getAccounts() {
+        return accounts;
+    }
+
+    public HashMap<String, Long> getCursors() {
+        return cursors;
+    }
+
+    public HashMap<String, ArrayList<PendingMessage>> getMailboxes() {
+        return mailboxes;
+    }
+
+    /*
+     * Writes the snapshot to a temporary file, forces it to disk and renames
+     * it into place, so a snapshot file either is complete or does not exist
+     * @param directory the directory holding the snapshots
+     * @return the path of the new snapshot
+     */
+    Path write(Path directory) throws IOException {
+        Path target = directory.resolve(fileName(accountsUntil, messagesUntil));
+        Path temporary = directory.resolve(target.getFileName() + TEMPORARY_SUFFIX);
+
+        CRC32 crc = new CRC32();
+        FileOutputStream file = new FileOutputStream(temporary.toFile());
+        try {
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc)));
+            DataOutputStream out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(accountsUntil);
+            out.writeLong(messagesUntil);
+
+            out.writeInt(accounts.size());
+            for (String account : accounts) {
+                writeString(out, account);
+            }
+
+            out.writeInt(cursors.size());
+            for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                writeString(out, cursor.getKey());
+                out.writeLong(cursor.getValue());
+            }
+
+            // remember where each mailbox starts for the index
+            int buckets = buckets(mailboxes.size());
+            ArrayList<ArrayList<IndexEntry>> index = new ArrayList<ArrayList<IndexEntry>>(buckets);
+            for (int i = 0; i < buckets; i++) {
+                index.add(new ArrayList<IndexEntry>());
+            }
+
+            out.writeInt(mailboxes.size());
+            for (Map.Entry<String, ArrayList<PendingMessage>> mailbox : mailboxes.entrySet()) {
+                index.get(bucket(mailbox.getKey(), buckets)).add(new IndexEntry(mailbox.getKey(), counter.count));
+                writeString(out, mailbox.getKey());
+                out.writeInt(mailbox.getValue().size());
+                for (PendingMessage message : mailbox.getValue()) {
+                    writeString(out, message.getSender());
+                    writeString(out, message.getMessage());
+                    out.writeLong(message.getSequence());
+                    writeString(out, message.getGroup() == null ? "" : message.getGroup());
+                    out.writeByte(message.getPriority().getNumber());
+                    out.writeLong(message.getExpireAt());
+                }
+            }
+
+            long indexOffset = counter.count;
+            writeIndex(out, index, indexOffset);
+            out.writeLong(indexOffset);
+
+            // the checksum covers everything written so far
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(directory);
+        return target;
+    }
+
+    /*
+     * Forces the rename of a new snapshot to disk, on platforms that can
+     * open a directory
+     */
+    private static void syncDirectory(Path directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // the rename is still atomic, just not yet durable
+        }
+    }
+
+    /*
+     * Reads a snapshot that has already been verified
+     * @param path the snapshot file
+     * @param messages whether to read the mailboxes too, or stop after the cursors
+     */
+    static Snapshot read(Path path, boolean messages) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        try {
+            int version;
+            if (in.readInt() != MAGIC || ((version = in.readInt()) != VERSION && version != UNEXPIRING_VERSION && version != UNPRIORITIZED_VERSION && version != UNGROUPED_VERSION && version != UNINDEXED_VERSION)) {
+                throw new IOException("Not a snapshot: " + path);
+            }
+            long accountsUntil = in.readLong();
+            long messagesUntil = in.readLong();
+
+            int count = in.readInt();
+            HashSet<String> accounts = new HashSet<String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                accounts.add(readString(in));
+            }
+
+            count = in.readInt();
+            HashMap<String, Long> cursors = new HashMap<String, Long>(count * 2);
+            for (int i = 0; i < count; i++) {
+                cursors.put(readString(in), in.readLong());
+            }
+
+            HashMap<String, ArrayList<PendingMessage>> mailboxes = null;
+            if (messages) {
+                count = in.readInt();
+                mailboxes = new HashMap<String, ArrayList<PendingMessage>>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    String recipient = readString(in);
+                    int size = in.readInt();
+                    ArrayList<PendingMessage> mailbox = new ArrayList<PendingMessage>(size);
+                    for (int j = 0; j < size; j++) {
+                        mailbox.add(readMessage(in, recipient, version));
+                    }
+                    mailboxes.put(recipient, mailbox);
+                }
+            }
+
+            return new Snapshot(accountsUntil, messagesUntil, accounts, cursors, mailboxes);
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Checks that a snapshot file is complete and uncorrupted by comparing
+     * its contents against the checksum at its end
+     * @param path the snapshot file
+     * @return whether the snapshot can be trusted
+     */
+    static boolean verify(Path path) {
+        try {
+            long length = Files.size(path) - 8;
+            if (length < 0) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            InputStream in = new BufferedInputStream(Files.newInputStream(path));
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        return false;
+                    }
+                    crc.update(buffer, 0, read);
+                    remaining -= read;
+                }
+                return new DataInputStream(in).readLong() == crc.getValue();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * @param path a snapshot that has already been verified
+     * @return whether the snapshot has an index of its mailboxes
+     */
+    static boolean isIndexed(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readAt(channel, 0, 8);
+            return header.getInt() == MAGIC && isIndexed(header.getInt());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Reads the mailbox of a single recipient through the index, reading
+     * only the recipient's bucket of the index and then their mailbox
+     * @param path a snapshot that has already been verified
+     * @param recipient the recipient of the messages
+     * @return the recipient's messages in the order they were queued (empty if
+     *         they have none), or null if the snapshot has no index
+     */
+    static ArrayList<PendingMessage> readMailbox(Path path, String recipient) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readAt(channel, 0, 8);
+            int version;
+            if (header.getInt() != MAGIC || !isIndexed(version = header.getInt())) {
+                return null;
+            }
+
+            // the index offset is just before the checksum
+            long indexOffset = readAt(channel, channel.size() - 16, 8).getLong();
+            int buckets = readAt(channel, indexOffset, 4).getInt();
+            ByteBuffer bounds = readAt(channel, indexOffset + 4 + 8L * bucket(recipient, buckets), 16);
+            long start = bounds.getLong();
+            ByteBuffer entries = readAt(channel, start, (int) (bounds.getLong() - start));
+
+            // compare the encoded names instead of decoding every entry of the bucket
+            byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+            while (entries.hasRemaining()) {
+                int length = entries.getInt();
+                boolean match = length == name.length;
+                for (int i = 0; match && i < length; i++) {
+                    match = entries.get(entries.position() + i) == name[i];
+                }
+                entries.position(entries.position() + length);
+                long offset = entries.getLong();
+                if (!match) {
+                    continue;
+                }
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset))));
+                readString(in);
+                int size = in.readInt();
+                ArrayList<PendingMessage> mailbox = new ArrayList<PendingMessage>(size);
+                for (int j = 0; j < size; j++) {
+                    mailbox.add(readMessage(in, recipient, version));
+                }
+                return mailbox;
+            }
+            return new ArrayList<PendingMessage>();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean isIndexed(int version) {
+        return version == VERSION || version == UNEXPIRING_VERSION || version == UNPRIORITIZED_VERSION || version == UNGROUPED_VERSION;
+    }
+
+    /*
+     * Reads a message of a mailbox written by the given version
+     */
+    private static PendingMessage readMessage(DataInputStream in, String recipient, int version) throws IOException {
+        String sender = readString(in);
+        String message = readString(in);
+        long sequence = in.readLong();
+        String group = version >= UNPRIORITIZED_VERSION ? readString(in) : "";
+        Priority priority = version >= UNEXPIRING_VERSION ? Priority.forNumber(in.readByte()) : Priority.NORMAL;
+        long expireAt = version >= VERSION ? in.readLong() : 0;
+        return new PendingMessage(recipient, new PendingMessage.Body(sender, message, group.isEmpty() ? null : group, priority, expireAt), sequence);
+    }
+
+    /*
+     * A recipient and the offset of their mailbox in the snapshot
+     */
+    private static class IndexEntry {
+        final byte[] recipient;
+        final long offset;
+
+        IndexEntry(String recipient, long offset) {
+            this.recipient = recipient.getBytes(StandardCharsets.UTF_8);
+            this.offset = offset;
+        }
+
+        int size() {
+            return 4 + recipient.length + 8;
+        }
+    }
+
+    /*
+     * Writes the index of the mailboxes: the number of buckets, where each
+     * bucket starts, then the entries of every bucket in bucket order
+     * @param indexOffset where in the file the index starts
+     */
+    private static void writeIndex(DataOutputStream out, ArrayList<ArrayList<IndexEntry>> index, long indexOffset) throws IOException {
+        out.writeInt(index.size());
+        long offset = indexOffset + 4 + 8L * (index.size() + 1);
+        for (ArrayList<IndexEntry> bucket : index) {
+            out.writeLong(offset);
+            for (IndexEntry entry : bucket) {
+                offset += entry.size();
+            }
+        }
+        out.writeLong(offset);
+
+        for (ArrayList<IndexEntry> bucket : index) {
+            for (IndexEntry entry : bucket) {
+                out.writeInt(entry.recipient.length);
+                out.write(entry.recipient);
+                out.writeLong(entry.offset);
+            }
+        }
+    }
+
+    private static int buckets(int recipients) {
+        int buckets = 1;
+        while (buckets * RECIPIENTS_PER_BUCKET < recipients) {
+            buckets <<= 1;
+        }
+        return buckets;
+    }
+
+    private static int bucket(String recipient, int buckets) {
+        int hash = recipient.hashCode();
+        return (hash ^ (hash >>> 16)) & (buckets - 1);
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Snapshot ends early");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /*
+     * Counts the bytes written through it, as a long since snapshots may
+     * outgrow DataOutputStream.size()
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Snapshot files are named after the zero-padded segment ids they end
+     * before, so the newest snapshot sorts last
+     */
+    static String fileName(long accountsUntil, long messagesUntil) {
+        return String.format("%020d-%020d%s", accountsUntil, messagesUntil, SUFFIX);
+    }
+
+    static long[] parseUntil(String fileName) {
+        String[] ids = fileName.substring(0, fileName.length() - SUFFIX.length()).split("-");
+        return new long[] {Long.parseLong(ids[0]), Long.parseLong(ids[1])};
+    }
+
+    static boolean isSnapshot(String fileName) {
+        return fileName.endsWith(SUFFIX);
+    }
+}
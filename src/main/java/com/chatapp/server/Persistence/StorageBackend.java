@@ -0,0 +1,46 @@
+package com.chatapp.server.Persistence;
+
+/*
+ * The storage engines the server can be launched with
+ */
+public enum StorageBackend {
+    // keep everything in memory only; nothing survives a restart
+    MEMORY,
+    // append lines to accounts.txt and messages.txt, the original text format
+    TEXT,
+    // segmented append-only logs with snapshots, compaction and a sorted index
+    LOG;
+
+    /*
+     * Opens an engine of this kind
+     * @param folder the replica folder the engine keeps its files in
+     * @return the engine
+     */
+    public StorageEngine open(String folder) {
+        switch (this) {
+            case MEMORY: return new InMemoryStorageEngine();
+            case TEXT: return new FlatFileStorageEngine(folder);
+            case LOG: return new LogStructuredStorageEngine(folder);
+            default: throw new IllegalArgumentException();
+        }
+    }
+
+    /*
+     * Parses a backend name, ignoring case
+     * @param name the name of the backend, may be null
+     * @param defaultBackend the backend to use if the name is missing or unknown
+     * @return the matching backend
+     */
+    public static StorageBackend parse(String name, StorageBackend defaultBackend) {
+        if (name == null) {
+            return defaultBackend;
+        }
+        for (StorageBackend backend : values()) {
+            if (backend.name().equalsIgnoreCase(name.trim())) {
+                return backend;
+            }
+        }
+        System.out.println("WARNING: Unknown storage backend " + name + ", using " + defaultBackend);
+        return defaultBackend;
+    }
+}
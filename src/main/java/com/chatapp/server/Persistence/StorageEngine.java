@@ -0,0 +1,128 @@
+package com.chatapp.server.Persistence;
+
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.ScheduledMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Where the server keeps its accounts and undelivered messages. The server
+ * reports every change to the engine as it happens, and asks the engine for
+ * the state to start from when it starts up. Which engine is used is chosen
+ * when the server is launched (see StorageBackend).
+ *
+ * An account or message the engine could not record is reported by
+ * throwing an UncheckedIOException, before the server acknowledges the
+ * request that made it, so that the client is not told a lost change was
+ * saved.
+ */
+public interface StorageEngine {
+
+    /*
+     * Records that an account was created
+     * @param username the new account
+     */
+    void createAccount(String username);
+
+    /*
+     * Records that an account was deleted
+     * @param username the deleted account
+     */
+    void deleteAccount(String username);
+
+    /*
+     * Records a message that is waiting to be delivered
+     * @param message the message, numbered in its recipient's sequence
+     */
+    void appendMessage(PendingMessage message);
+
+    /*
+     * Records a message sent to a group, which is waiting to be delivered to
+     * each of the members it was queued for
+     * @param copies the copies of the message, one per member, numbered in
+     *               their recipients' sequences and sharing one body
+     */
+    void appendGroupMessage(List<PendingMessage> copies);
+
+    /*
+     * Records the members of a group, replacing those it had before
+     * @param group the group
+     * @param members its members
+     */
+    void saveGroup(String group, Collection<String> members);
+
+    /*
+     * Recovers the groups recorded so far
+     * @return the members of each group
+     */
+    HashMap<String, ArrayList<String>> loadGroups();
+
+    /*
+     * Records a message that is waiting to be delivered at a later time
+     * @param message the message and when it is due
+     */
+    void schedule(ScheduledMessage message);
+
+    /*
+     * Records that a message scheduled for later was queued, or dropped, and
+     * no longer waits
+     * @param id the id of the scheduled message
+     */
+    void unschedule(long id);
+
+    /*
+     * Recovers the messages scheduled for later that are still waiting
+     * @return the messages, in the order they were scheduled
+     */
+    ArrayList<ScheduledMessage> loadScheduled();
+
+    /*
+     * Records that every message up to and including the given sequence
+     * number has been delivered to the recipient
+     * @param recipient the recipient of the messages
+     * @param sequence the sequence number of the last delivered message
+     */
+    void acknowledge(String recipient, long sequence);
+
+    /*
+     * Recovers the live accounts, the delivery cursors and the undelivered
+     * messages recorded so far
+     * @param pool threads the engine may use to decode its files in parallel
+     * @return the recovered state
+     */
+    RecoveredState recover(ForkJoinPool pool);
+
+    /*
+     * Recovers the live accounts and the delivery cursors, leaving the
+     * undelivered messages to be loaded one recipient at a time with
+     * loadMailbox, so that the server can start serving before every
+     * mailbox has been read
+     * @param pool threads the engine may use to decode its files in parallel
+     * @return the recovered state, with the mailboxes the engine did not leave
+     *         on disk (which may be none)
+     */
+    RecoveredState recoverLazily(ForkJoinPool pool);
+
+    /*
+     * Loads the undelivered messages of a recipient that recoverLazily left
+     * out. Messages recorded since then are not included, since the server
+     * loads a recipient before queueing messages for them.
+     * @param recipient the recipient of the messages
+     * @return the messages, in the order they were queued
+     */
+    ArrayList<PendingMessage> loadMailbox(String recipient);
+
+    /*
+     * Starts any background maintenance, once the state has been recovered
+     */
+    void start();
+
+    /*
+     * Stops background maintenance and flushes and closes the engine's files
+     */
+    void close();
+}
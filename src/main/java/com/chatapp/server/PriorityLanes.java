@@ -0,0 +1,235 @@
+package com.chatapp.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chatapp.Chat.Priority;
+
+/**
+ * The messages of one user that were taken off their mailbox but not handed
+ * to their sessions yet, in one lane per priority. The SessionRegistry
+ * keeps up to ServerConfig.DELIVERY_LOOKAHEAD messages here, and builds
+ * each batch by letting the lanes take turns: in its turn, a lane hands out
+ * up to its weight in messages (see ServerConfig.PRIORITY_WEIGHT_HIGH and
+ * the others) before the next lane with messages gets a turn. A high
+ * priority message therefore waits for a few bulk ones at most, while bulk
+ * messages still get their share of a busy user's deliveries.
+ *
+ * Within a lane, messages keep the order of their sequence numbers; across
+ * lanes they do not, which is why clients acknowledge messages in the order
+ * they were delivered (see SessionRegistry).
+ *
+ * How long the messages of each lane waited, from being queued or loaded on
+ * this server to being handed to the sessions, is counted for every user
+ * together and reported by the gauges delivery.lane.<priority>.delivered,
+ * .meanLatencyMicros and .maxLatencyMicros.
+ *
+ * A message that expired while it waited is dropped when it comes up
+ * instead of being handed out, and counted by the gauge delivery.expired.
+ */
+
+public class PriorityLanes {
+
+  // The lanes in the order they take turns, most urgent first
+  private static final Priority[] ORDER = { Priority.HIGH, Priority.NORMAL, Priority.BULK };
+
+  // How many messages each lane hands out in its turn
+  private static final long[] WEIGHTS = {
+    Math.max(1, ServerConfig.PRIORITY_WEIGHT_HIGH),
+    Math.max(1, ServerConfig.PRIORITY_WEIGHT_NORMAL),
+    Math.max(1, ServerConfig.PRIORITY_WEIGHT_BULK)
+  };
+
+  // How many messages each lane handed out, and how long they waited in total and at most, in nanoseconds, for every user
+  private static final AtomicLong[] delivered = new AtomicLong[ORDER.length];
+  private static final AtomicLong[] totalLatency = new AtomicLong[ORDER.length];
+  private static final AtomicLong[] maxLatency = new AtomicLong[ORDER.length];
+
+  // How many expired messages were dropped, for every user
+  private static final AtomicLong expired = new AtomicLong();
+
+  static {
+    Metrics.register("delivery.expired", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return expired.get();
+      }
+    });
+    for (int i = 0; i < ORDER.length; i++) {
+      final int lane = i;
+      delivered[lane] = new AtomicLong();
+      totalLatency[lane] = new AtomicLong();
+      maxLatency[lane] = new AtomicLong();
+      String prefix = "delivery.lane." + ORDER[lane].name().toLowerCase() + ".";
+      Metrics.register(prefix + "delivered", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          return delivered[lane].get();
+        }
+      });
+      Metrics.register(prefix + "meanLatencyMicros", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          long count = delivered[lane].get();
+          return count == 0 ? 0 : totalLatency[lane].get() / count / 1000;
+        }
+      });
+      Metrics.register(prefix + "maxLatencyMicros", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          return maxLatency[lane].get() / 1000;
+        }
+      });
+    }
+  }
+
+  // One lane per priority, in the order of ORDER
+  private final List<ArrayDeque<PendingMessage>> lanes = new ArrayList<ArrayDeque<PendingMessage>>(ORDER.length);
+
+  // How many messages the lanes hold together
+  private int size = 0;
+
+  // The lane whose turn it is, and how many messages it has handed out in this turn, carried over from one batch to the next
+  private int turn = 0;
+  private long taken = 0;
+
+  public PriorityLanes() {
+    for (int i = 0; i < ORDER.length; i++) {
+      lanes.add(new ArrayDeque<PendingMessage>());
+    }
+  }
+
+  /*
+   * Returns the index of the lane of a priority
+   */
+  private static int laneOf(Priority priority) {
+    switch (priority) {
+      case HIGH:
+        return 0;
+      case BULK:
+        return 2;
+      default:
+        return 1;
+    }
+  }
+
+  /**
+   * Return how many messages the lanes hold
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Add messages to the ends of their lanes
+   * @param messages in the order they were queued
+   */
+  public void addAll(List<PendingMessage> messages) {
+    for (PendingMessage message : messages) {
+      lanes.get(laneOf(message.getPriority())).add(message);
+    }
+    size += messages.size();
+  }
+
+  /**
+   * Return the lowest sequence number of the messages in the lanes, or
+   * Long.MAX_VALUE if they are empty
+   */
+  public long firstSequence() {
+    long first = Long.MAX_VALUE;
+    for (ArrayDeque<PendingMessage> lane : lanes) {
+      if (!lane.isEmpty()) {
+        first = Math.min(first, lane.peekFirst().getSequence());
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Move the next messages into a batch, the lanes taking turns, until the
+   * batch holds maxMessages messages or the next message would take the
+   * length of its sender and text past maxChars. The first message is
+   * always taken, however long. Messages numbered up to skipThrough, which
+   * a client already has, and expired messages are dropped.
+   * @param batch the list to add the messages to, in the order to deliver them
+   * @return how many messages were added
+   */
+  public int drainTo(List<PendingMessage> batch, int maxMessages, long maxChars, long skipThrough) {
+    int count = 0;
+    long chars = 0;
+    long now = System.nanoTime();
+    long wallClock = System.currentTimeMillis();
+    while (count < maxMessages && size > 0) {
+      ArrayDeque<PendingMessage> lane = lanes.get(turn);
+      if (lane.isEmpty() || taken >= WEIGHTS[turn]) {
+        turn = (turn + 1) % lanes.size();
+        taken = 0;
+        continue;
+      }
+      PendingMessage next = lane.peekFirst();
+      if (next.getSequence() <= skipThrough) {
+        lane.pollFirst();
+        size--;
+        continue;
+      }
+      if (next.isExpired(wallClock)) {
+        lane.pollFirst();
+        size--;
+        expired.incrementAndGet();
+        continue;
+      }
+      long length = next.getSender().length() + next.getMessage().length();
+      if (count > 0 && chars + length > maxChars) {
+        break;
+      }
+      lane.pollFirst();
+      size--;
+      taken++;
+      batch.add(next);
+      chars += length;
+      count++;
+      record(turn, now - next.getQueuedAt());
+    }
+    return count;
+  }
+
+  /**
+   * Move every message out of the lanes, for putting them back or holding
+   * them back
+   * @param messages the list to add them to, lane by lane
+   */
+  public void drainAll(List<PendingMessage> messages) {
+    for (ArrayDeque<PendingMessage> lane : lanes) {
+      messages.addAll(lane);
+      lane.clear();
+    }
+    size = 0;
+  }
+
+  /**
+   * Count an expired message that was dropped outside the lanes
+   */
+  static void countExpired() {
+    expired.incrementAndGet();
+  }
+
+  /*
+   * Counts a message of a lane that waited the given number of nanoseconds
+   */
+  private static void record(int lane, long latency) {
+    delivered[lane].incrementAndGet();
+    totalLatency[lane].addAndGet(latency);
+    while (true) {
+      long max = maxLatency[lane].get();
+      if (latency <= max || maxLatency[lane].compareAndSet(max, latency)) {
+        return;
+      }
+    }
+  }
+}
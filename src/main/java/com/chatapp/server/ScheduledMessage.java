@@ -0,0 +1,48 @@
+package com.chatapp.server;
+
+/**
+ * A message that was sent to be delivered at a later time and is waiting
+ * for it (see ScheduledMessages). It is identified by the id the leader gave
+ * it, which every replica holds it under, and is only numbered in its
+ * recipient's sequence once it is due and queued.
+ */
+
+public class ScheduledMessage {
+
+  private final long id;
+  private final long deliverAt;
+  private final PendingMessage message;
+
+  /**
+   * @param id the id of the timer, the same on every replica
+   * @param deliverAt when the message is due, in milliseconds since the epoch
+   * @param message the message as it will be queued, not numbered yet
+   */
+  public ScheduledMessage(long id, long deliverAt, PendingMessage message) {
+    this.id = id;
+    this.deliverAt = deliverAt;
+    this.message = message;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Return when the message is due, in milliseconds since the epoch
+   */
+  public long getDeliverAt() {
+    return deliverAt;
+  }
+
+  /**
+   * Return the message as it will be queued, not numbered yet
+   */
+  public PendingMessage getMessage() {
+    return message;
+  }
+
+  public String getRecipient() {
+    return message.getRecipient();
+  }
+}
@@ -0,0 +1,277 @@
+package com.chatapp.server;
+
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.chatapp.Chat.ChatMessage;
+import com.chatapp.Chat.Content;
+import com.chatapp.Chat.SendMessageRequest;
+
+/**
+ * Holds the messages that were sent to be delivered at a later time until
+ * they are due. Each one is recorded in the storage engine, so that it
+ * survives a restart, and set on a TimingWheel, which takes constant time
+ * to add or cancel a timer however many are set. The wheel ticks every
+ * ServerConfig.TIMER_TICK_MS, which is how late a message may be queued.
+ *
+ * Every replica holds the scheduled messages, under the id the leader gave
+ * them, but only the leader delivers them, so that they are numbered once:
+ * when a timer fires on the leader, it queues the message for its
+ * recipient, records that it no longer waits and relays it to the
+ * followers, numbered and with its id, so that they queue it in the same
+ * place and cancel their own timer. When a timer fires on a follower, it is
+ * set again ServerConfig.TIMER_RETRY_MS later, so that the message is still
+ * delivered if this replica becomes the leader before it is relayed.
+ *
+ * The wheel's thread only hands due messages to a thread of their own,
+ * which queues, records and relays them, so a slow disk or follower never
+ * holds up the other timers on the wheel. The class lock only guards the
+ * timers; nothing is written or relayed while it is held.
+ *
+ * A message that expires before it is due is dropped when it is due. How
+ * many messages wait is reported by the gauge timers.pending and how many
+ * were delivered by timers.delivered.
+ */
+
+public class ScheduledMessages {
+
+  private static final Logger logger = Logger.getLogger(ScheduledMessages.class.getName());
+
+  // Also wakes up the mailboxes held up by a missing message once it times out
+  static final TimingWheel wheel = new TimingWheel("timers", ServerConfig.TIMER_TICK_MS);
+
+  // Queues, records and relays the messages that are due, one at a time
+  private static final ExecutorService deliverer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "scheduled delivery");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  // The timer of each message that waits, by id, guarded by the class
+  private static final HashMap<Long, TimingWheel.Timer> timers = new HashMap<Long, TimingWheel.Timer>();
+
+  // The largest id given out or seen, so that a follower that becomes the leader keeps numbering after it
+  private static final AtomicLong lastId = new AtomicLong(0);
+
+  // How many scheduled messages this replica delivered
+  private static final AtomicLong delivered = new AtomicLong(0);
+
+  // Relays the messages this replica delivers to the followers while it is the leader, guarded by the class
+  private static RelayGroup relayGroup = null;
+
+  static {
+    Metrics.register("timers.pending", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return wheel.size();
+      }
+    });
+    Metrics.register("timers.delivered", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return delivered.get();
+      }
+    });
+  }
+
+  /**
+   * Replace the messages that wait with those recovered from storage, on
+   * startup
+   * @param recovered the messages, which are already recorded
+   */
+  public static synchronized void load(List<ScheduledMessage> recovered) {
+    for (TimingWheel.Timer timer : timers.values()) {
+      wheel.cancel(timer);
+    }
+    timers.clear();
+    for (ScheduledMessage scheduled : recovered) {
+      arm(scheduled, scheduled.getDeliverAt());
+    }
+    logger.info("Loaded " + recovered.size() + " scheduled messages");
+  }
+
+  /**
+   * Record a message to deliver later and set its timer
+   * @param id the id the leader gave the message, or 0 to give it a new one
+   * @param deliverAt when the message is due, in milliseconds since the epoch
+   * @param message the message, not numbered yet
+   * @return the scheduled message
+   */
+  public static ScheduledMessage schedule(long id, long deliverAt, PendingMessage message) {
+    if (id <= 0) {
+      id = lastId.incrementAndGet();
+    }
+    ScheduledMessage scheduled = new ScheduledMessage(id, deliverAt, message);
+    BusinessLogicServer.getStorage().schedule(scheduled);
+    synchronized (ScheduledMessages.class) {
+      arm(scheduled, deliverAt);
+    }
+    return scheduled;
+  }
+
+  /**
+   * Cancel the timer of a message the leader delivered, and record that it
+   * no longer waits
+   * @param id
+   */
+  public static void delivered(long id) {
+    TimingWheel.Timer timer;
+    synchronized (ScheduledMessages.class) {
+      timer = timers.remove(id);
+      if (timer != null) {
+        wheel.cancel(timer);
+      }
+    }
+    if (timer != null) {
+      unschedule(id);
+    }
+  }
+
+  /*
+   * Records that a message no longer waits. If that cannot be recorded, the
+   * message is delivered again after a restart, which is only a duplicate.
+   */
+  private static void unschedule(long id) {
+    try {
+      BusinessLogicServer.getStorage().unschedule(id);
+    } catch (UncheckedIOException e) {
+      logger.log(Level.WARNING, "Failed to record that message " + id + " no longer waits", e);
+    }
+  }
+
+  /*
+   * Sets the timer of a message that waits, in place of the one it had.
+   * Called with the class lock held.
+   */
+  private static void arm(final ScheduledMessage scheduled, long deadline) {
+    advanceId(scheduled.getId());
+    TimingWheel.Timer timer = wheel.schedule(deadline, new Runnable() {
+      @Override
+      public void run() {
+        deliverer.execute(new Runnable() {
+          @Override
+          public void run() {
+            due(scheduled);
+          }
+        });
+      }
+    });
+    TimingWheel.Timer previous = timers.put(scheduled.getId(), timer);
+    if (previous != null) {
+      wheel.cancel(previous);
+    }
+  }
+
+  private static void advanceId(long id) {
+    while (true) {
+      long last = lastId.get();
+      if (id <= last || lastId.compareAndSet(last, id)) {
+        return;
+      }
+    }
+  }
+
+  /*
+   * Delivers a message whose timer fired, if this replica is the leader,
+   * or else sets its timer again
+   */
+  private static void due(ScheduledMessage scheduled) {
+    // only pick the message out under the lock
+    RelayGroup ended = null;
+    boolean leader;
+    synchronized (ScheduledMessages.class) {
+      // the leader delivered it in the meantime
+      if (!timers.containsKey(scheduled.getId())) {
+        return;
+      }
+      ReplicaManager rm = BusinessLogicServer.getReplicaManager();
+      leader = rm != null && rm.isLeader();
+      if (!leader) {
+        ended = relayGroup;
+        relayGroup = null;
+        arm(scheduled, System.currentTimeMillis() + ServerConfig.TIMER_RETRY_MS);
+      } else {
+        timers.remove(scheduled.getId());
+      }
+    }
+    if (ended != null) {
+      ended.end();
+    }
+    if (leader) {
+      deliver(scheduled);
+    }
+  }
+
+  /*
+   * Queues a message that is due on the leader, records it and relays it
+   */
+  private static void deliver(ScheduledMessage scheduled) {
+    PendingMessage message = scheduled.getMessage();
+    String recipient = message.getRecipient();
+    Mailbox queue = BusinessLogicServer.getQueue(recipient);
+    if (queue == null || message.isExpired(System.currentTimeMillis())) {
+      // the recipient was deleted or the message expired while it waited, so it goes
+      logger.info("Dropped message " + scheduled.getId() + " scheduled for " + recipient);
+      unschedule(scheduled.getId());
+      relay(scheduled, 0);
+      return;
+    }
+
+    // recorded as queued before it is handed out and before it stops waiting, so that a crash in between delivers it twice rather
+    // than never; if it cannot be recorded it keeps waiting and is tried again later
+    PendingMessage queued = queue.reserveCopy(recipient, message.getBody());
+    try {
+      BusinessLogicServer.getStorage().appendMessage(queued);
+    } catch (UncheckedIOException e) {
+      queue.abandon(queued);
+      BusinessLogicServer.signalDistributor(recipient);
+      logger.log(Level.WARNING, "Failed to record message " + scheduled.getId() + ", trying again later", e);
+      synchronized (ScheduledMessages.class) {
+        arm(scheduled, System.currentTimeMillis() + ServerConfig.TIMER_RETRY_MS);
+      }
+      return;
+    }
+    queue.commit(queued);
+    unschedule(scheduled.getId());
+    BusinessLogicServer.signalDistributor(recipient);
+    delivered.incrementAndGet();
+    relay(scheduled, queued.getSequence());
+    logger.info("Queued message " + scheduled.getId() + " from " + message.getSender() + " to " + recipient);
+  }
+
+  /*
+   * Relays a message that is no longer waiting to the followers, with the
+   * number it was queued under, or 0 if it was dropped
+   */
+  private static void relay(ScheduledMessage scheduled, long sequence) {
+    RelayGroup relays;
+    synchronized (ScheduledMessages.class) {
+      if (relayGroup == null) {
+        relayGroup = new RelayGroup(Replica.getOthers(BusinessLogicServer.getReplicaManager().getSelf()));
+      }
+      relays = relayGroup;
+    }
+    PendingMessage message = scheduled.getMessage();
+    relays.relay(ChatMessage.newBuilder()
+        .setContent(Content.newBuilder()
+            .setSendMessageRequest(SendMessageRequest.newBuilder()
+                .setRecipient(message.getRecipient())
+                .setMessage(message.getMessage())
+                .setSequence(sequence)
+                .setPriority(message.getPriority())
+                .setExpireAt(message.getExpireAt())
+                .setTimerId(scheduled.getId())
+                .setSender(message.getSender())))
+        .build());
+  }
+}
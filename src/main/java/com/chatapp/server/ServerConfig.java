@@ -0,0 +1,116 @@
+package com.chatapp.server;
+
+import com.chatapp.server.Persistence.FsyncPolicy;
+import com.chatapp.server.Persistence.StorageBackend;
+
+/**
+ * Tunable server settings. Each setting is read once from a JVM system
+ * property (pass them with -D on the command line) and falls back to a
+ * sensible default when the property is missing or malformed.
+ */
+
+public class ServerConfig {
+
+  // Where accounts and messages are stored: memory, text or log
+  public static final StorageBackend STORAGE = StorageBackend.parse(System.getProperty("chatapp.storage"), StorageBackend.LOG);
+
+  // When the persistence logs force their writes to disk: batch, interval or never
+  public static final FsyncPolicy FSYNC_POLICY = FsyncPolicy.parse(System.getProperty("chatapp.fsync"), FsyncPolicy.BATCH);
+
+  // How often the logs are forced to disk when the fsync policy is "interval"
+  public static final long FSYNC_INTERVAL_MS = getLong("chatapp.fsync.intervalMs", 100);
+
+  // The size in bytes after which a log segment is sealed and a new one is started
+  public static final long SEGMENT_BYTES = getLong("chatapp.segmentBytes", 16 * 1024 * 1024);
+
+  // How often sealed log segments are compacted in the background
+  public static final long COMPACTION_INTERVAL_MS = getLong("chatapp.compaction.intervalMs", 60 * 1000);
+
+  // How often the live state is checkpointed into a snapshot, so that a restart only replays the log since then
+  public static final long CHECKPOINT_INTERVAL_MS = getLong("chatapp.checkpoint.intervalMs", 5 * 60 * 1000);
+
+  // How many deliveries may be batched into one delivery cursor record while a user's queue is not empty
+  public static final long DELIVERY_CURSOR_BATCH = getLong("chatapp.deliveryCursorBatch", 64);
+
+  // How many threads are shared by all logged in users to deliver their messages
+  public static final long DELIVERY_THREADS = getLong("chatapp.delivery.threads", Runtime.getRuntime().availableProcessors());
+
+  // How many bytes, and at most how many messages, a session or registry may deliver in each of its turns on the shared threads
+  public static final long DELIVERY_QUANTUM_BYTES = getLong("chatapp.delivery.quantumBytes", 256 * 1024);
+  public static final long DELIVERY_QUANTUM_MESSAGES = getLong("chatapp.delivery.quantumMessages", 256);
+
+  // How many waiting messages are sent to a client together in one frame, and roughly how many bytes of text they may hold
+  public static final long DELIVERY_BATCH_MESSAGES = getLong("chatapp.delivery.batchMessages", 128);
+  public static final long DELIVERY_BATCH_BYTES = getLong("chatapp.delivery.batchBytes", 64 * 1024);
+
+  // How many messages may be sent to a client before it acknowledges them, or 0 to count messages as delivered once they are sent
+  public static final long DELIVERY_WINDOW = getLong("chatapp.delivery.window", 256);
+
+  // How many of a user's waiting messages are taken off their mailbox into the priority lanes at a time, which is how far a high priority message can overtake the others
+  public static final long DELIVERY_LOOKAHEAD = getLong("chatapp.delivery.lookahead", 1024);
+
+  // How many messages each priority lane delivers in its turn while other lanes have messages waiting
+  public static final long PRIORITY_WEIGHT_HIGH = getLong("chatapp.priority.highWeight", 8);
+  public static final long PRIORITY_WEIGHT_NORMAL = getLong("chatapp.priority.normalWeight", 4);
+  public static final long PRIORITY_WEIGHT_BULK = getLong("chatapp.priority.bulkWeight", 1);
+
+  // The most messages a client may fetch in one page of the messages held back when it logged in asking for new messages only
+  public static final long FETCH_PAGE_MESSAGES = getLong("chatapp.fetch.pageMessages", 100);
+
+  // The most accounts one page of a listing may hold, which bounds what the server holds for a listing at a time
+  public static final long LIST_ACCOUNTS_PAGE = getLong("chatapp.listAccounts.pageAccounts", 1000);
+
+  // How many patterns accounts were listed by are kept compiled, and how many accounts a pattern may match at most for them to be kept too
+  public static final long LIST_ACCOUNTS_CACHE_PATTERNS = getLong("chatapp.listAccounts.cachePatterns", 256);
+  public static final long LIST_ACCOUNTS_CACHE_MATCHES = getLong("chatapp.listAccounts.cacheMatches", 1000);
+
+  // How many members of a group a message is queued for at a time on one thread, and how many threads queue the batches of a large group
+  public static final long GROUP_FANOUT_BATCH = getLong("chatapp.group.fanoutBatch", 64);
+  public static final long GROUP_FANOUT_THREADS = getLong("chatapp.group.fanoutThreads", Runtime.getRuntime().availableProcessors());
+
+  // How many milliseconds a tick of the timing wheel lasts, which is how late a message scheduled for later may be delivered
+  public static final long TIMER_TICK_MS = getLong("chatapp.timer.tickMs", 10);
+
+  // How long a follower waits before it checks again whether it has to deliver a scheduled message the leader has not delivered
+  public static final long TIMER_RETRY_MS = getLong("chatapp.timer.retryMs", 1000);
+
+  // How many threads decode the message log in parallel on startup
+  public static final long RECOVERY_PARALLELISM = getLong("chatapp.recovery.parallelism", Runtime.getRuntime().availableProcessors());
+
+  // How often the metrics are logged, or 0 to never log them
+  public static final long METRICS_INTERVAL_MS = getLong("chatapp.metrics.intervalMs", 0);
+
+  // Whether startup only loads the accounts and leaves each user's mailbox on disk until they log in or receive a message
+  public static final boolean LAZY_MAILBOXES = getBoolean("chatapp.recovery.lazy", false);
+
+  /*
+   * Reads a boolean ("true" or "false") from the given system property or returns the default
+   */
+  static boolean getBoolean(String property, boolean defaultValue) {
+    String value = System.getProperty(property);
+    if (value == null) {
+      return defaultValue;
+    }
+    if (value.trim().equalsIgnoreCase("true") || value.trim().equalsIgnoreCase("false")) {
+      return Boolean.parseBoolean(value.trim());
+    }
+    System.out.println("WARNING: Ignoring invalid value for " + property + ": " + value);
+    return defaultValue;
+  }
+
+  /*
+   * Reads a long from the given system property or returns the default
+   */
+  static long getLong(String property, long defaultValue) {
+    String value = System.getProperty(property);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      System.out.println("WARNING: Ignoring invalid value for " + property + ": " + value);
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,459 @@
+package com.chatapp.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.chatapp.Chat.ChatMessage;
+
+/**
+ * The sessions a user is logged in with, one MessageDistributor per client,
+ * which may be several at once. Like a distributor, the registry does not
+ * own a thread: when messages are queued for the user, it is signalled and,
+ * in its turn on the shared DeliveryDispatcher, takes a batch of messages
+ * off the user's mailbox, builds the frame for it once and hands that same
+ * ChatMessage to every session, so each client receives every message
+ * while it is logged in.
+ *
+ * Messages are taken off the mailbox into the user's PriorityLanes, up to
+ * ServerConfig.DELIVERY_LOOKAHEAD of them ahead of the sessions, and each
+ * batch is built from the lanes taking turns. Since higher priority
+ * messages overtake lower ones, clients acknowledge messages in the order
+ * they were handed out, not by their sequence numbers: an acknowledgement
+ * of a message covers it and every message handed out before it. Each
+ * frame also says up to which sequence number every message was handed out
+ * by then, and that is what a client resumes after when it logs in again.
+ *
+ * Each session has its own cursor: it keeps the frames it has not sent yet
+ * and those its client has not acknowledged, and the registry takes more
+ * messages off the mailbox while any session has room for them in its
+ * window. Every frame is handed to every session; a session whose window
+ * is full holds it back and sends it once its client acknowledges enough,
+ * so a device that stops acknowledging cannot stop delivery to the user's
+ * other devices and still receives every message when it catches up. The
+ * messages no session has acknowledged yet stay in flight here; a client
+ * that logs in while there are some is sent them first, and when the last
+ * session ends they are put back at the front of the mailbox, together
+ * with those still in the lanes. Acknowledgements from any session move
+ * the user's delivery cursor up to the first message that is still waiting
+ * anywhere, which is recorded in the message log the same way a single
+ * distributor recorded it before.
+ *
+ * A client that logs in asking for new messages only has the messages
+ * that are waiting at that point held back: they are moved off the mailbox
+ * into the registry's backlog, only what is queued after them is pushed,
+ * and the clients fetch the backlog a page at a time (see fetch). The
+ * delivery cursor does not move past the first message of the backlog
+ * until it has been fetched, whatever the clients acknowledge of the
+ * pushed messages. A client that logs in asking for every message releases
+ * the backlog back into the mailbox, to be pushed like the rest.
+ */
+
+public class SessionRegistry extends DeliveryDispatcher.Task {
+
+  private static final Logger logger = Logger.getLogger(SessionRegistry.class.getName());
+
+  private static final MessageDistributor[] NO_SESSIONS = new MessageDistributor[0];
+
+  private static final Comparator<PendingMessage> BY_SEQUENCE = new Comparator<PendingMessage>() {
+    @Override
+    public int compare(PendingMessage a, PendingMessage b) {
+      return Long.compare(a.getSequence(), b.getSequence());
+    }
+  };
+
+  // The user whose sessions these are
+  final String username;
+
+  // The sessions, replaced as a whole when one is added or removed so that it can be read without a lock
+  private volatile MessageDistributor[] sessions = NO_SESSIONS;
+
+  // The messages taken off the mailbox that were not handed to the sessions yet, guarded by this
+  private final PriorityLanes lanes = new PriorityLanes();
+
+  // The messages handed to the sessions that no session has acknowledged yet, in the order they were handed out, or null while there are none, guarded by this
+  private ArrayDeque<PendingMessage> inFlight = null;
+
+  // The messages held back for the clients to fetch, in order, or null while there are none, guarded by this
+  private ArrayDeque<PendingMessage> backlog = null;
+
+  // The sequence number up to which every message was acknowledged by some session, and the last one recorded in the message log, guarded by this
+  private long lastAcknowledged = 0;
+  private long lastPersisted = 0;
+
+  public SessionRegistry(String username) {
+    this.username = username;
+  }
+
+  /**
+   * Return whether the user is logged in with no session
+   */
+  public boolean isEmpty() {
+    return sessions.length == 0;
+  }
+
+  /**
+   * Return how many sessions the user is logged in with
+   */
+  public int size() {
+    return sessions.length;
+  }
+
+  /**
+   * Start delivering to a new session of the user, beginning with the
+   * messages the other sessions were sent but have not acknowledged yet
+   * @param session
+   */
+  public synchronized void add(MessageDistributor session) {
+    MessageDistributor[] more = Arrays.copyOf(sessions, sessions.length + 1);
+    more[sessions.length] = session;
+    sessions = more;
+    if (inFlight != null && !inFlight.isEmpty()) {
+      session.enqueue(frameFor(new ArrayList<PendingMessage>(inFlight), handedOutThrough()));
+    }
+    signal();
+  }
+
+  /**
+   * Stop delivering to a session of the user. When it was the last one, the
+   * messages that were not acknowledged are put back at the front of the
+   * mailbox for the next log in.
+   * @param session
+   */
+  public synchronized void remove(MessageDistributor session) {
+    int index = Arrays.asList(sessions).indexOf(session);
+    if (index < 0) {
+      return;
+    }
+    MessageDistributor[] fewer = new MessageDistributor[sessions.length - 1];
+    System.arraycopy(sessions, 0, fewer, 0, index);
+    System.arraycopy(sessions, index + 1, fewer, index, fewer.length - index);
+    sessions = fewer.length == 0 ? NO_SESSIONS : fewer;
+
+    if (fewer.length == 0) {
+      // the backlog, the lanes and the messages in flight interleave by sequence number, since new messages were pushed past the
+      // backlog and the lanes hand out messages out of order
+      ArrayList<PendingMessage> unacknowledged = new ArrayList<PendingMessage>();
+      lanes.drainAll(unacknowledged);
+      if (inFlight != null) {
+        unacknowledged.addAll(inFlight);
+      }
+      if (backlog != null) {
+        unacknowledged.addAll(backlog);
+      }
+      if (!unacknowledged.isEmpty()) {
+        logger.info("Putting " + unacknowledged.size() + " unacknowledged messages back for " + username);
+        Collections.sort(unacknowledged, BY_SEQUENCE);
+        BusinessLogicServer.putMessagesBackToDeliverLater(username, unacknowledged);
+      }
+      persistAcknowledgements();
+      inFlight = null;
+      backlog = null;
+    }
+  }
+
+  /**
+   * Stop every session without putting their messages back, for a user
+   * that is being deleted
+   */
+  public synchronized void ceaseAll() {
+    for (MessageDistributor session : sessions) {
+      session.cease();
+    }
+    sessions = NO_SESSIONS;
+    lanes.drainAll(new ArrayList<PendingMessage>());
+    inFlight = null;
+    backlog = null;
+  }
+
+  /**
+   * Hold back the messages that are waiting in the user's mailbox, for the
+   * clients to fetch instead of having them pushed. Messages a client
+   * already acknowledged are dropped.
+   */
+  public synchronized void holdBacklog() {
+    ArrayList<PendingMessage> waiting = new ArrayList<PendingMessage>();
+    if (backlog != null) {
+      waiting.addAll(backlog);
+    }
+    lanes.drainAll(waiting);
+    BusinessLogicServer.drainMessagesFor(username, waiting, Integer.MAX_VALUE, Long.MAX_VALUE);
+    Collections.sort(waiting, BY_SEQUENCE);
+    backlog = null;
+    for (PendingMessage message : waiting) {
+      if (message.getSequence() > lastAcknowledged) {
+        if (backlog == null) {
+          backlog = new ArrayDeque<PendingMessage>();
+        }
+        backlog.add(message);
+      }
+    }
+    if (backlog != null) {
+      logger.info("Holding back " + backlog.size() + " messages for " + username + " to fetch");
+    }
+  }
+
+  /**
+   * Put the messages that were held back back at the front of the mailbox,
+   * to be pushed to every session
+   */
+  public synchronized void releaseBacklog() {
+    if (backlog != null && !backlog.isEmpty()) {
+      // the lanes go back too, so that the mailbox stays in order when they are refilled from it
+      ArrayList<PendingMessage> waiting = new ArrayList<PendingMessage>(backlog);
+      lanes.drainAll(waiting);
+      Collections.sort(waiting, BY_SEQUENCE);
+      BusinessLogicServer.putMessagesBackToDeliverLater(username, waiting);
+    }
+    backlog = null;
+  }
+
+  /**
+   * Return the next page of the messages held back, without taking it off
+   * the backlog, so that a client that loses the page can fetch it again.
+   * The messages the client says it has are taken off and count as
+   * delivered.
+   * @param after the sequence number of the last message the client fetched
+   * @param limit the most messages the page may hold
+   * @param page the list to add the messages to, in order
+   * @return whether more messages are held back after the page
+   */
+  public boolean fetch(long after, int limit, List<PendingMessage> page) {
+    synchronized (this) {
+      while (backlog != null && !backlog.isEmpty() && backlog.peekFirst().getSequence() <= after) {
+        backlog.pollFirst();
+      }
+      if (backlog != null) {
+        long now = System.currentTimeMillis();
+        Iterator<PendingMessage> held = backlog.iterator();
+        while (page.size() < limit && held.hasNext()) {
+          PendingMessage message = held.next();
+          // an expired message is dropped from the backlog rather than fetched
+          if (message.isExpired(now)) {
+            held.remove();
+            PriorityLanes.countExpired();
+            continue;
+          }
+          page.add(message);
+        }
+      }
+    }
+    // everything up to what the client fetched is delivered
+    acknowledgeThrough(after);
+    synchronized (this) {
+      persistAcknowledgements();
+      return backlog != null && backlog.size() > page.size();
+    }
+  }
+
+  /**
+   * Call this method when one of the user's clients acknowledges messages
+   * @param sequence the sequence number of the last message the client
+   *        received, which covers every message handed out before it
+   */
+  public void acknowledge(long sequence) {
+    synchronized (this) {
+      // another session acknowledged it already, or it was never handed out here
+      if (inFlight == null || !isInFlight(sequence)) {
+        return;
+      }
+      PendingMessage acknowledged;
+      do {
+        acknowledged = inFlight.pollFirst();
+      } while (acknowledged.getSequence() != sequence);
+      long first = Math.min(handedOutThrough() + 1, firstInFlight());
+      moveCursor(first - 1);
+    }
+    // the sessions' windows may have room again
+    signal();
+  }
+
+  /**
+   * Call this method when one of the user's clients says it has every
+   * message up to a sequence number, such as when it logs in again
+   * @param sequence
+   */
+  public void acknowledgeThrough(long sequence) {
+    synchronized (this) {
+      if (sequence <= lastAcknowledged) {
+        return;
+      }
+      if (inFlight != null) {
+        for (Iterator<PendingMessage> it = inFlight.iterator(); it.hasNext(); ) {
+          if (it.next().getSequence() <= sequence) {
+            it.remove();
+          }
+        }
+      }
+      moveCursor(sequence);
+    }
+    signal();
+  }
+
+  /*
+   * Moves the delivery cursor forward to the given sequence number, and
+   * records it every few messages or once nothing is in flight
+   */
+  private void moveCursor(long sequence) {
+    if (sequence <= lastAcknowledged) {
+      return;
+    }
+    lastAcknowledged = sequence;
+    if (lastAcknowledged - lastPersisted >= ServerConfig.DELIVERY_CURSOR_BATCH || inFlight == null || inFlight.isEmpty()) {
+      persistAcknowledgements();
+    }
+  }
+
+  /*
+   * Returns whether a message with the given sequence number is in flight
+   */
+  private boolean isInFlight(long sequence) {
+    for (PendingMessage message : inFlight) {
+      if (message.getSequence() == sequence) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Returns the lowest sequence number of the messages in flight, or
+   * Long.MAX_VALUE if there are none
+   */
+  private long firstInFlight() {
+    long first = Long.MAX_VALUE;
+    if (inFlight != null) {
+      for (PendingMessage message : inFlight) {
+        first = Math.min(first, message.getSequence());
+      }
+    }
+    return first;
+  }
+
+  /*
+   * Returns the sequence number up to which every message was handed to
+   * the sessions or acknowledged: the message before the first one that is
+   * still in the lanes, held back or in the mailbox
+   */
+  private long handedOutThrough() {
+    long first = Math.min(lanes.firstSequence(), BusinessLogicServer.firstWaitingSequence(username));
+    if (backlog != null && !backlog.isEmpty()) {
+      first = Math.min(first, backlog.peekFirst().getSequence());
+    }
+    return Math.max(lastAcknowledged, first - 1);
+  }
+
+  /**
+   * Return whether messages are waiting and some session has room for them
+   */
+  @Override
+  boolean hasMore() {
+    return room() > 0 && (hasLaneMessages() || BusinessLogicServer.hasPendingMessages(username));
+  }
+
+  /*
+   * Returns whether messages were taken off the mailbox that are not handed out yet
+   */
+  private synchronized boolean hasLaneMessages() {
+    return !lanes.isEmpty();
+  }
+
+  /**
+   * Hand the waiting messages to the sessions, a batch at a time, within
+   * this turn
+   */
+  @Override
+  long deliver(long maxBytes, int maxMessages) {
+    ArrayList<PendingMessage> batch = new ArrayList<PendingMessage>();
+    int handed = 0;
+    long bytes = 0;
+    while (handed < maxMessages && bytes < maxBytes) {
+      synchronized (this) {
+        // leave the messages in the mailbox while no session has room; their acknowledgements signal the registry again
+        int room = room();
+        if (room <= 0) {
+          break;
+        }
+
+        // top the lanes up from the mailbox, then take the next batch of messages from them, if there are any,
+        // skipping what a client already acknowledged, such as messages put back after a client resumed past them
+        batch.clear();
+        int lookahead = (int) Math.max(1, ServerConfig.DELIVERY_LOOKAHEAD);
+        if (lanes.size() < lookahead) {
+          BusinessLogicServer.drainMessagesFor(username, batch, lookahead - lanes.size(), Long.MAX_VALUE);
+          lanes.addAll(batch);
+          batch.clear();
+        }
+        if (lanes.isEmpty()) {
+          break;
+        }
+        lanes.drainTo(batch, (int) Math.max(1, Math.min(room, ServerConfig.DELIVERY_BATCH_MESSAGES)), ServerConfig.DELIVERY_BATCH_BYTES, lastAcknowledged);
+        if (batch.isEmpty()) {
+          continue;
+        }
+        handed += batch.size();
+
+        // the messages are in flight before they are sent, so that an acknowledgement cannot overtake them
+        if (inFlight == null) {
+          inFlight = new ArrayDeque<PendingMessage>();
+        }
+        inFlight.addAll(batch);
+
+        // build the frame once and give the same one to every session, which holds it back while its window is full
+        MessageDistributor.Frame frame = frameFor(batch, handedOutThrough());
+        for (MessageDistributor session : sessions) {
+          session.enqueue(frame);
+        }
+        bytes += frame.bytes;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Return how many more messages the session with the most room has room
+   * for, or 0 while the user is not logged in
+   */
+  private int room() {
+    int room = 0;
+    for (MessageDistributor session : sessions) {
+      room = Math.max(room, session.room());
+    }
+    return room;
+  }
+
+  /**
+   * The frame for a batch of messages, on their own when there is only one
+   * @param receivedThrough the sequence number up to which every message was handed out
+   */
+  private static MessageDistributor.Frame frameFor(ArrayList<PendingMessage> batch, long receivedThrough) {
+    ChatMessage message = batch.size() == 1
+        ? ChatMessageGenerator.DISTRIBUTE_MESSAGE(batch.get(0), receivedThrough)
+        : ChatMessageGenerator.DISTRIBUTE_MESSAGE_BATCH(batch, receivedThrough);
+    long[] sequences = new long[batch.size()];
+    for (int i = 0; i < sequences.length; i++) {
+      sequences[i] = batch.get(i).getSequence();
+    }
+    return new MessageDistributor.Frame(message, sequences);
+  }
+
+  /**
+   * Record every acknowledgement that has not been recorded yet, up to the
+   * first message held back
+   */
+  private synchronized void persistAcknowledgements() {
+    long delivered = lastAcknowledged;
+    if (backlog != null && !backlog.isEmpty()) {
+      delivered = Math.min(delivered, backlog.peekFirst().getSequence() - 1);
+    }
+    if (delivered > lastPersisted) {
+      BusinessLogicServer.markDelivered(username, delivered);
+      lastPersisted = delivered;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed hierarchical timing wheel, which runs tasks once their deadline
+ * has passed. Time is counted in ticks of a fixed number of milliseconds,
+ * and the timers are kept in LEVELS wheels of SLOTS slots: a slot of the
+ * first wheel holds the timers due in one tick, and a slot of each wheel
+ * above spans a whole turn of the wheel below it. A timer goes into the
+ * lowest wheel whose current turn reaches its deadline, in the slot its
+ * deadline hashes to there. Each slot is a doubly linked list, so adding a
+ * timer and cancelling one both take constant time however many timers
+ * there are, and no timer is ever compared with another.
+ *
+ * One thread advances the wheel a tick at a time. Whenever the first wheel
+ * comes round, the next slot of the wheel above it is emptied into the
+ * wheels below (and so on up, when that wheel comes round too), so each
+ * timer moves down at most LEVELS - 1 times before it is due. The tasks of
+ * the timers that are due run on that thread, outside the wheel's lock, so
+ * they should not block for long; a task may add or cancel timers. While
+ * no timers are set, the thread waits instead of ticking.
+ */
+
+public class TimingWheel {
+
+  private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+
+  // Each wheel has 2^BITS slots; with LEVELS wheels, deadlines up to 2^(BITS * LEVELS) ticks away are placed exactly
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final long MASK = SLOTS - 1;
+  private static final int LEVELS = 6;
+
+  /**
+   * A task set to run at a deadline, which can be cancelled until it runs
+   */
+  public static final class Timer {
+    // The tick the timer is due in
+    private final long deadline;
+    private final Runnable task;
+    // Its neighbours in the list of its slot, or null while it is not in one; a slot's list starts and ends at a timer with no task
+    private Timer previous = null;
+    private Timer next = null;
+
+    private Timer(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+  }
+
+  private final long tickMillis;
+
+  // The first timer of the list of each slot of each wheel, which only marks where the list starts
+  private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+
+  // The next tick to run the timers of, guarded by this
+  private long current;
+
+  // How many timers are set, guarded by this
+  private int size = 0;
+
+  private final Thread thread;
+
+  /**
+   * Create a wheel and start its thread
+   * @param name the name of the thread
+   * @param tickMillis how many milliseconds a tick lasts, which is how
+   *        late a timer may run at most (besides the time the tasks before
+   *        it take)
+   */
+  public TimingWheel(String name, long tickMillis) {
+    this.tickMillis = Math.max(1, tickMillis);
+    for (Timer[] wheel : wheels) {
+      for (int i = 0; i < SLOTS; i++) {
+        Timer head = new Timer(0, null);
+        head.previous = head;
+        head.next = head;
+        wheel[i] = head;
+      }
+    }
+    current = System.currentTimeMillis() / this.tickMillis;
+
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            for (Timer timer : await()) {
+              try {
+                timer.task.run();
+              } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "A timer failed", e);
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          // closed
+        }
+      }
+    }, name);
+    // timers must not keep the server from shutting down
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Set a timer
+   * @param deadlineMillis when to run the task, in milliseconds since the
+   *        epoch; a deadline that has passed runs on the next tick
+   * @param task what to run
+   * @return the timer, which can be cancelled
+   */
+  public synchronized Timer schedule(long deadlineMillis, Runnable task) {
+    if (size == 0) {
+      // nothing was due while the thread waited, so it skips the ticks it missed
+      current = Math.max(current, System.currentTimeMillis() / tickMillis);
+      notifyAll();
+    }
+    // rounded up, so that a timer never runs before its deadline
+    Timer timer = new Timer((Math.max(0, deadlineMillis) + tickMillis - 1) / tickMillis, task);
+    place(timer);
+    size++;
+    return timer;
+  }
+
+  /**
+   * Cancel a timer, unless it already ran or is running
+   * @param timer
+   * @return whether the timer was cancelled
+   */
+  public synchronized boolean cancel(Timer timer) {
+    if (timer.previous == null) {
+      return false;
+    }
+    unlink(timer);
+    size--;
+    return true;
+  }
+
+  /**
+   * Return how many timers are set
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Stop the thread. Timers that are still set never run.
+   */
+  public void close() {
+    thread.interrupt();
+  }
+
+  /*
+   * Waits until the next tick has come, or for timers to be set while there
+   * are none, and then advances the wheel by that tick
+   * @return the timers that are due, which are no longer in the wheel
+   */
+  private synchronized ArrayList<Timer> await() throws InterruptedException {
+    while (true) {
+      if (size == 0) {
+        wait();
+        continue;
+      }
+      long wait = current * tickMillis - System.currentTimeMillis();
+      if (wait > 0) {
+        wait(wait);
+        continue;
+      }
+      return tick();
+    }
+  }
+
+  /*
+   * Moves the timers of the wheels above down if the first wheel comes
+   * round at the current tick, then takes the timers of the current tick
+   * out of the first wheel and moves on to the next tick
+   */
+  private ArrayList<Timer> tick() {
+    if ((current & MASK) == 0) {
+      cascade(1);
+    }
+    ArrayList<Timer> due = new ArrayList<Timer>();
+    Timer head = wheels[0][(int) (current & MASK)];
+    while (head.next != head) {
+      Timer timer = head.next;
+      unlink(timer);
+      due.add(timer);
+    }
+    size -= due.size();
+    current++;
+    return due;
+  }
+
+  /*
+   * Empties the slot of the given wheel that the current tick falls in into
+   * the wheels below, after emptying the wheel above first if this one comes
+   * round too
+   */
+  private void cascade(int level) {
+    if (level >= LEVELS) {
+      return;
+    }
+    int slot = (int) ((current >>> (BITS * level)) & MASK);
+    if (slot == 0) {
+      cascade(level + 1);
+    }
+    Timer head = wheels[level][slot];
+    if (head.next == head) {
+      return;
+    }
+    // the list is taken as a whole first, since a timer beyond the top wheel's turn goes back into the same slot
+    Timer timer = head.next;
+    head.previous.next = null;
+    head.next = head;
+    head.previous = head;
+    while (timer != null) {
+      Timer next = timer.next;
+      place(timer);
+      timer = next;
+    }
+  }
+
+  /*
+   * Adds a timer to the slot its deadline hashes to, in the lowest wheel
+   * whose current turn reaches it
+   */
+  private void place(Timer timer) {
+    long deadline = Math.max(timer.deadline, current);
+    int level = 0;
+    while (level < LEVELS - 1 && (deadline >>> (BITS * (level + 1))) != (current >>> (BITS * (level + 1)))) {
+      level++;
+    }
+    Timer head = wheels[level][(int) ((deadline >>> (BITS * level)) & MASK)];
+    timer.previous = head.previous;
+    timer.next = head;
+    head.previous.next = timer;
+    head.previous = timer;
+  }
+
+  private static void unlink(Timer timer) {
+    timer.previous.next = timer.next;
+    timer.next.previous = timer.previous;
+    timer.previous = null;
+    timer.next = null;
+  }
+}
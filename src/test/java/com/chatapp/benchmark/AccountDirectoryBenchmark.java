@@ -0,0 +1,100 @@
+package com.chatapp.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.chatapp.server.AccountDirectory;
+
+/**
+ * Compares listing the accounts that match a pattern in the AccountDirectory
+ * with the scan it replaced, which compiled the pattern and matched it
+ * against every key of the server's map of accounts. Both hold the same
+ * usernames, user0 to user<n - 1>, and are asked for an exact username, a
+ * prefix, a prefix with a pattern after it and an infix pattern, which the
+ * directory can only answer by visiting every account too. Each pattern is
+ * listed twice by the directory: once with its PatternCache cleared, and
+ * again as a client polling the same pattern would, which the cache answers
+ * if the pattern matches few enough accounts.
+ *
+ * Ten million accounts need a few gigabytes of heap:
+ *   java -Xmx6g -cp target/classes:target/test-classes:<dependencies> \
+ *     com.chatapp.benchmark.AccountDirectoryBenchmark [accounts...]
+ */
+public class AccountDirectoryBenchmark {
+
+  // How many times each pattern is listed before it is measured, and then measured
+  static final int WARMUP_RUNS = 3;
+  static final int RUNS = 5;
+
+  static final String[] PATTERNS = { "user4242", "user4242*", "user42*7", "*4242*" };
+
+  public static void main(String[] args) {
+    int[] sizes = new int[] { 10000, 1000000, 10000000 };
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("accounts\tpattern\tmatches\tscan ms\tdirectory ms\tspeedup\tcached ms");
+    for (int size : sizes) {
+      ConcurrentHashMap<String, Boolean> map = new ConcurrentHashMap<String, Boolean>();
+      AccountDirectory directory = new AccountDirectory();
+      for (int i = 0; i < size; i++) {
+        String username = "user" + i;
+        map.put(username, Boolean.TRUE);
+        directory.add(username);
+      }
+
+      for (String pattern : PATTERNS) {
+        long[] scanTimes = new long[RUNS];
+        long[] directoryTimes = new long[RUNS];
+        long[] cachedTimes = new long[RUNS];
+        int matches = 0;
+        for (int i = -WARMUP_RUNS; i < RUNS; i++) {
+          long begin = System.nanoTime();
+          int scanned = scan(map, pattern).size();
+          directory.getCache().clear();
+          long middle = System.nanoTime();
+          matches = directory.list(pattern).size();
+          long end = System.nanoTime();
+          directory.list(pattern);
+          long cached = System.nanoTime();
+          if (scanned != matches) {
+            throw new IllegalStateException("The directory listed " + matches + " accounts for " + pattern + " instead of " + scanned);
+          }
+          if (i >= 0) {
+            scanTimes[i] = middle - begin;
+            directoryTimes[i] = end - middle;
+            cachedTimes[i] = cached - end;
+          }
+        }
+        Arrays.sort(scanTimes);
+        Arrays.sort(directoryTimes);
+        Arrays.sort(cachedTimes);
+        double scan = scanTimes[RUNS / 2] / 1e6;
+        double listed = directoryTimes[RUNS / 2] / 1e6;
+        System.out.printf("%d\t%s\t%d\t%.3f\t%.3f\t%.0fx\t%.3f%n", size, pattern, matches, scan, listed, scan / Math.max(listed, 1e-6), cachedTimes[RUNS / 2] / 1e6);
+      }
+    }
+  }
+
+  /*
+   * Lists the matching accounts the way the server used to
+   */
+  static ArrayList<String> scan(ConcurrentHashMap<String, Boolean> accounts, String pattern) {
+    Pattern regex = Pattern.compile('^' + pattern.replaceAll("\\*", ".*") + '$');
+    ArrayList<String> matched = new ArrayList<String>();
+    for (String account : accounts.keySet()) {
+      Matcher matcher = regex.matcher(account);
+      if (matcher.find()) {
+        matched.add(account);
+      }
+    }
+    return matched;
+  }
+}
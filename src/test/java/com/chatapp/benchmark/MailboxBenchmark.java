@@ -0,0 +1,154 @@
+package com.chatapp.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chatapp.server.Mailbox;
+import com.chatapp.server.PendingMessage;
+
+/**
+ * Compares the Mailbox with the LinkedBlockingDeque it replaced, as a hot
+ * recipient's queue: several sender threads add messages at once while one
+ * thread takes them off, as a MessageDistributor does. The deque is used
+ * the way the server used it, numbering each message and putting it on the
+ * queue under the queue's lock.
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *     com.chatapp.benchmark.MailboxBenchmark [messages per sender] [senders...]
+ */
+public class MailboxBenchmark {
+
+  // How many times each configuration is run before it is measured
+  static final int WARMUP_RUNS = 3;
+
+  interface Queue {
+    void offer(String sender, String text);
+    PendingMessage poll();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int[] senderCounts = new int[] { 1, 8, 64 };
+    if (args.length > 1) {
+      senderCounts = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        senderCounts[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("queue\tsenders\tmessages\tms\tmessages/s");
+    for (int senders : senderCounts) {
+      // spread the same total number of messages over the senders
+      int perSender = Math.max(1, messages / senders);
+      run("deque", senders, perSender);
+      run("mailbox", senders, perSender);
+    }
+  }
+
+  static void run(String kind, int senders, int perSender) throws InterruptedException {
+    long elapsed = 0;
+    for (int i = 0; i <= WARMUP_RUNS; i++) {
+      elapsed = measure(kind.equals("deque") ? deque() : mailbox(), senders, perSender);
+    }
+    long total = (long) senders * perSender;
+    System.out.printf("%s\t%d\t%d\t%.1f\t%.0f%n", kind, senders, total, elapsed / 1e6, total / (elapsed / 1e9));
+  }
+
+  /*
+   * Runs the senders and one consumer until every message was taken off
+   * @return the time it took in nanoseconds
+   */
+  static long measure(final Queue queue, int senders, final int perSender) throws InterruptedException {
+    final long total = (long) senders * perSender;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(senders + 1);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+
+    for (int t = 0; t < senders; t++) {
+      final String sender = "sender" + t;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          await(start);
+          for (int i = 0; i < perSender; i++) {
+            queue.offer(sender, "message");
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        await(start);
+        long last = 0;
+        for (long taken = 0; taken < total; ) {
+          PendingMessage message = queue.poll();
+          if (message == null) {
+            Thread.yield();
+            continue;
+          }
+          if (message.getSequence() <= last) {
+            failed.set(true);
+          }
+          last = message.getSequence();
+          taken++;
+        }
+        done.countDown();
+      }
+    }).start();
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+    if (failed.get()) {
+      throw new IllegalStateException("Messages were taken off out of order");
+    }
+    return elapsed;
+  }
+
+  static Queue deque() {
+    final LinkedBlockingDeque<PendingMessage> deque = new LinkedBlockingDeque<PendingMessage>();
+    final AtomicLong lastSequence = new AtomicLong(0);
+    return new Queue() {
+      @Override
+      public void offer(String sender, String text) {
+        synchronized (deque) {
+          deque.offer(new PendingMessage("recipient", sender, text, lastSequence.incrementAndGet()));
+        }
+      }
+
+      @Override
+      public PendingMessage poll() {
+        return deque.poll();
+      }
+    };
+  }
+
+  static Queue mailbox() {
+    final Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    return new Queue() {
+      @Override
+      public void offer(String sender, String text) {
+        mailbox.offer("recipient", sender, text);
+      }
+
+      @Override
+      public PendingMessage poll() {
+        return mailbox.poll();
+      }
+    };
+  }
+
+  static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
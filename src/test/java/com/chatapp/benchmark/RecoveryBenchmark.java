@@ -0,0 +1,113 @@
+package com.chatapp.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import com.chatapp.server.Bully;
+import com.chatapp.server.BusinessLogicServer;
+import com.chatapp.server.Mailbox;
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.Replica;
+import com.chatapp.server.Persistence.MessageSerializer;
+import com.chatapp.server.Persistence.SerializerUtil;
+
+/**
+ * Measures how startup recovery of the message log scales with the number of
+ * recovery threads. Fills a scratch replica folder with undelivered messages,
+ * then times decoding the log and rebuilding every recipient's queue at each
+ * parallelism, printing the best and median time and the speedup over a
+ * single thread.
+ *
+ * Run from a scratch directory, since it uses the "Replica 1/" folder there:
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *     com.chatapp.benchmark.RecoveryBenchmark [messages] [recipients] [iterations]
+ */
+public class RecoveryBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    // writing the log is not what is being measured, and small segments give more partitions
+    System.setProperty("chatapp.fsync", "never");
+    if (System.getProperty("chatapp.segmentBytes") == null) {
+      System.setProperty("chatapp.segmentBytes", Integer.toString(1024 * 1024));
+    }
+
+    new BusinessLogicServer(new Bully(Replica.REPLICAS[1]), 0);
+    File folder = new File(BusinessLogicServer.getReplicaFolder());
+    if (folder.exists()) {
+      System.out.println("ERROR: " + folder.getAbsolutePath() + " already exists; run the benchmark from a scratch directory.");
+      return;
+    }
+
+    try {
+      System.out.println("Writing " + messages + " messages for " + recipients + " recipients...");
+      long[] sequences = new long[recipients];
+      for (int i = 0; i < messages; i++) {
+        int recipient = i % recipients;
+        MessageSerializer.serialize(new PendingMessage("user" + recipient, "sender", "message number " + i, ++sequences[recipient]));
+      }
+      SerializerUtil.closeAll();
+
+      System.out.println("threads\tbest ms\tmedian ms\tspeedup");
+      double baseline = 0;
+      for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+          times[i] = recover(threads, messages);
+        }
+        Arrays.sort(times);
+        double best = times[0] / 1e6;
+        if (threads == 1) {
+          baseline = best;
+        }
+        System.out.printf("%d\t%.1f\t%.1f\t%.2fx%n", threads, best, times[iterations / 2] / 1e6, baseline / best);
+      }
+    } finally {
+      SerializerUtil.closeAll();
+      delete(folder);
+    }
+  }
+
+  /*
+   * Recovers the message log the way the server does on startup
+   * @return the time it took in nanoseconds
+   */
+  static long recover(int threads, int expected) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    long start = System.nanoTime();
+
+    Map<String, Long> cursors = MessageSerializer.deserializeCursors(pool);
+    HashMap<String, ArrayList<PendingMessage>> mailboxes = MessageSerializer.recover(pool, cursors);
+    int recovered = 0;
+    for (ArrayList<PendingMessage> mailbox : mailboxes.values()) {
+      new Mailbox(mailbox, 0);
+      recovered += mailbox.size();
+    }
+
+    long elapsed = System.nanoTime() - start;
+    pool.shutdown();
+    // reopen the logs so that every run starts the same way
+    SerializerUtil.closeAll();
+
+    if (recovered != expected) {
+      throw new IllegalStateException("Recovered " + recovered + " of " + expected + " messages");
+    }
+    return elapsed;
+  }
+
+  static void delete(File file) {
+    if (file.isDirectory()) {
+      for (File child : file.listFiles()) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
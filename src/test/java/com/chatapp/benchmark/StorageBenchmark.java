@@ -0,0 +1,78 @@
+package com.chatapp.benchmark;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import com.chatapp.server.Bully;
+import com.chatapp.server.BusinessLogicServer;
+import com.chatapp.server.PendingMessage;
+import com.chatapp.server.Replica;
+import com.chatapp.server.Persistence.StorageBackend;
+import com.chatapp.server.Persistence.StorageEngine;
+
+/**
+ * Compares the write throughput of the storage engines on the same workload:
+ * several sender threads each queue messages for their own recipient and
+ * acknowledge them in batches, as the server does while delivering.
+ *
+ * Run from a scratch directory, since it uses the "Replica 1/" folder there:
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *     com.chatapp.benchmark.StorageBenchmark [messages per thread] [threads] [backends...]
+ * Pass -Dchatapp.fsync=... to compare fsync policies of the log engine.
+ */
+public class StorageBenchmark {
+
+  // How many messages are delivered before they are acknowledged together
+  static final int ACK_BATCH = 64;
+
+  public static void main(String[] args) throws Exception {
+    final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    StorageBackend[] backends = StorageBackend.values();
+    if (args.length > 2) {
+      backends = new StorageBackend[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        backends[i - 2] = StorageBackend.valueOf(args[i].toUpperCase());
+      }
+    }
+
+    new BusinessLogicServer(new Bully(Replica.REPLICAS[1]), 0, StorageBackend.MEMORY);
+    File folder = new File(BusinessLogicServer.getReplicaFolder());
+    if (folder.exists()) {
+      System.out.println("ERROR: " + folder.getAbsolutePath() + " already exists; run the benchmark from a scratch directory.");
+      return;
+    }
+
+    System.out.println("backend\tthreads\tmessages\tms\tmessages/s");
+    for (StorageBackend backend : backends) {
+      folder.mkdirs();
+      final StorageEngine engine = backend.open(BusinessLogicServer.getReplicaFolder());
+      final CountDownLatch done = new CountDownLatch(threads);
+
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        final String recipient = "user" + t;
+        engine.createAccount(recipient);
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 1; i <= messages; i++) {
+              engine.appendMessage(new PendingMessage(recipient, "sender", "message number " + i, i));
+              if (i % ACK_BATCH == 0) {
+                engine.acknowledge(recipient, i);
+              }
+            }
+            done.countDown();
+          }
+        }).start();
+      }
+      done.await();
+      long elapsed = System.nanoTime() - start;
+      engine.close();
+
+      long total = (long) messages * threads;
+      System.out.printf("%s\t%d\t%d\t%.1f\t%.0f%n", backend.name().toLowerCase(), threads, total, elapsed / 1e6, total / (elapsed / 1e9));
+      RecoveryBenchmark.delete(folder);
+    }
+  }
+}
@@ -4,15 +4,21 @@ import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import com.chatapp.Chat.Priority;
 import com.chatapp.client.commands.Command;
 import com.chatapp.client.commands.ConnectCommand;
 import com.chatapp.client.commands.CreateAccountCommand;
+import com.chatapp.client.commands.CreateGroupCommand;
 import com.chatapp.client.commands.DeleteAccountCommand;
 import com.chatapp.client.commands.EmptyCommand;
+import com.chatapp.client.commands.FetchMessagesCommand;
 import com.chatapp.client.commands.ListAccountsCommand;
+import com.chatapp.client.commands.LogInCommand;
 import com.chatapp.client.commands.LogOutCommand;
 import com.chatapp.client.commands.QuitCommand;
+import com.chatapp.client.commands.SendGroupMessageCommand;
 import com.chatapp.client.commands.SendMessageCommand;
+import com.chatapp.client.commands.UpdateGroupCommand;
 
 public class CommandParserTest {
   @Test
@@ -131,6 +137,20 @@ public class CommandParserTest {
     }
   }
 
+  @Test
+  public void parse_listAccountsCommandWithPaging_setsLimitAndCursor() {
+    
+    try {
+      ListAccountsCommand page = (ListAccountsCommand) CommandParser.parse("list_accounts alan_* 50 alan_turing");
+      assertTrue(page.getPattern().equals("alan_*") && page.getLimit() == 50);
+      assertTrue(page.getAfter().equals("alan_turing") && !page.isStream());
+      ListAccountsCommand all = (ListAccountsCommand) CommandParser.parse("list_accounts * all");
+      assertTrue(all.isStream() && all.getLimit() == 0 && all.getAfter().isEmpty());
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
   @Test
   public void parse_listAccountsCommandWithoutPattern_ExceptionThrown() {
     
@@ -152,6 +172,36 @@ public class CommandParserTest {
     }
   }
 
+  @Test
+  public void parse_sendHighPriorityMessageCommand_setsPriority() {
+    
+    try {
+      Command command = CommandParser.parse("send_high alan_turing the server is going down");
+      assertTrue(command instanceof SendMessageCommand);
+      assertTrue(((SendMessageCommand) command).getPriority() == Priority.HIGH);
+      assertTrue(((SendMessageCommand) command).getMessage().equals("the server is going down"));
+      assertTrue(((SendMessageCommand) CommandParser.parse("send alan_turing hello")).getPriority() == Priority.NORMAL);
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
+  @Test
+  public void parse_sendLaterAndExpiringCommands_setTimes() {
+    
+    try {
+      long before = System.currentTimeMillis();
+      SendMessageCommand later = (SendMessageCommand) CommandParser.parse("send_later alan_turing 60 see you in a minute");
+      assertTrue(later.getMessage().equals("see you in a minute"));
+      assertTrue(later.getDeliverAt() >= before + 60000 && later.getExpireAt() == 0);
+      SendMessageCommand expiring = (SendMessageCommand) CommandParser.parse("send_expiring alan_turing 5 quick question");
+      assertTrue(expiring.getMessage().equals("quick question"));
+      assertTrue(expiring.getExpireAt() >= before + 5000 && expiring.getDeliverAt() == 0);
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
   @Test
   public void parse_sendMessageCommandWithOnlyOneArgument_ExceptionThrown() {
     
@@ -212,4 +262,76 @@ public class CommandParserTest {
       assertTrue(e instanceof IllegalArgumentException);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void parse_createGroupCommand_createsCreateGroupCommand() {
+    
+    try {
+      Command command = CommandParser.parse("create_group team alan_turing ada_lovelace");
+      assertTrue(command instanceof CreateGroupCommand);
+      assertTrue(((CreateGroupCommand) command).getMembers().size() == 2);
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
+  @Test
+  public void parse_createGroupCommandWithoutMembers_ExceptionThrown() {
+    
+    try {
+      CommandParser.parse("create_group team");
+      assertTrue(false);
+    } catch (Exception e) {
+      assertTrue(e instanceof IllegalArgumentException);
+    }
+  }
+
+  @Test
+  public void parse_removeFromGroupCommand_createsUpdateGroupCommand() {
+    
+    try {
+      Command command = CommandParser.parse("remove_from_group team alan_turing");
+      assertTrue(command instanceof UpdateGroupCommand);
+      assertTrue(((UpdateGroupCommand) command).getAdd().isEmpty());
+      assertTrue(((UpdateGroupCommand) command).getRemove().get(0).equals("alan_turing"));
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
+  @Test
+  public void parse_sendGroupMessageCommand_createsSendGroupMessageCommand() {
+    
+    try {
+      Command command = CommandParser.parse("send_group team hello everyone");
+      assertTrue(command instanceof SendGroupMessageCommand);
+      assertTrue(((SendGroupMessageCommand) command).getMessage().equals("hello everyone"));
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
+  @Test
+  public void parse_logInCommandForNewMessagesOnly_createsLogInCommand() {
+    
+    try {
+      Command command = CommandParser.parse("login alan_turing new");
+      assertTrue(command instanceof LogInCommand);
+      assertTrue(((LogInCommand) command).isPushOnlyNew());
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+
+  @Test
+  public void parse_fetchCommand_createsFetchMessagesCommand() {
+    
+    try {
+      Command command = CommandParser.parse("fetch 20");
+      assertTrue(command instanceof FetchMessagesCommand);
+      assertTrue(((FetchMessagesCommand) command).getLimit() == 20);
+    } catch (Exception e) {
+      assertTrue(false);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class AccountDirectoryTest {
+
+  static AccountDirectory directory(String... usernames) {
+    AccountDirectory directory = new AccountDirectory();
+    for (String username : usernames) {
+      directory.add(username);
+    }
+    return directory;
+  }
+
+  // Verify that exact, prefix, infix and regular expression patterns list the same accounts as matching the pattern against every account, in order.
+  @Test
+  public void list_matchesLikeAScan() {
+    String[] usernames = {"alan", "alan_turing", "alice", "bob", "bobby", "carol", "eric", "erica", "ada.lovelace", "adaxlovelace"};
+    AccountDirectory directory = directory(usernames);
+    String[] patterns = {"alan", "alanx", "al*", "*", "a*e", "*e*i*", "*ic*", "bob?y", "bob+y", "ada.lovelace", "b[o]b", "alice|bob", "(ali)ce", "z*", ""};
+    for (String pattern : patterns) {
+      ArrayList<String> expected = new ArrayList<String>();
+      for (String username : usernames) {
+        if (AccountDirectory.compile(pattern).matcher(username).matches()) {
+          expected.add(username);
+        }
+      }
+      Collections.sort(expected);
+      assert(directory.list(pattern).equals(expected));
+    }
+  }
+
+  // Verify that the literal prefix stops before the characters that are not matched literally, and before a character that is made optional.
+  @Test
+  public void literalPrefix_stopsAtSpecialCharacters() {
+    assert(AccountDirectory.literalPrefix("alan").equals("alan"));
+    assert(AccountDirectory.literalPrefix("al*").equals("al"));
+    assert(AccountDirectory.literalPrefix("*al").equals(""));
+    assert(AccountDirectory.literalPrefix("bob?y").equals("bo"));
+    assert(AccountDirectory.literalPrefix("ada.lovelace").equals("ada"));
+    assert(AccountDirectory.literalPrefix("alice|bob").equals(""));
+  }
+
+  // Verify that deleted accounts are no longer listed and that an invalid expression lists nothing.
+  @Test
+  public void list_followsDeletes() {
+    AccountDirectory directory = directory("alice", "alicia", "bob");
+    directory.remove("alicia");
+    assert(directory.list("ali*").equals(Arrays.asList("alice")));
+    assert(!directory.contains("alicia"));
+    assert(directory.list("ali(*").isEmpty());
+  }
+
+  // Verify that walking a listing page by page, each after the last username of the previous one, lists every match once and says when none are left.
+  @Test
+  public void list_pagesAfterTheCursor() {
+    AccountDirectory directory = directory("al", "alan", "alan_turing", "alice", "bob", "carol", "erica");
+    String[] patterns = {"*", "al*", "*a*", "alan", "z*"};
+    for (String pattern : patterns) {
+      ArrayList<String> walked = new ArrayList<String>();
+      String after = "";
+      while (true) {
+        ArrayList<String> page = new ArrayList<String>();
+        boolean hasMore = directory.list(pattern, after, 2, page);
+        assert(page.size() <= 2);
+        walked.addAll(page);
+        if (!hasMore) {
+          break;
+        }
+        assert(page.size() == 2);
+        after = page.get(page.size() - 1);
+      }
+      assert(walked.equals(directory.list(pattern)));
+    }
+    ArrayList<String> page = new ArrayList<String>();
+    assert(!directory.list("al*", "alan_turing", 2, page));
+    assert(page.equals(Arrays.asList("alice")));
+  }
+}
@@ -53,6 +53,20 @@ public class ChatMessageGeneratorTest {
     assert(message.getContent().getDistributeMessageRequest().getMessage().equals("message"));
   }
 
+  @Test
+  public void DISTRIBUTE_MESSAGE_BATCH() {
+    ArrayList<PendingMessage> messages = new ArrayList<PendingMessage>();
+    messages.add(new PendingMessage("recipient", "first sender", "first message", 1));
+    messages.add(new PendingMessage("recipient", "second sender", "second message", 2));
+    ChatMessage message = ChatMessageGenerator.DISTRIBUTE_MESSAGE_BATCH(messages);
+
+    assert(message.getContent().getDistributeMessageBatch().getMessagesCount() == 2);
+
+    assert(message.getContent().getDistributeMessageBatch().getMessages(0).getSender().equals("first sender"));
+
+    assert(message.getContent().getDistributeMessageBatch().getMessages(1).getMessage().equals("second message"));
+  }
+
   @Test
   public void LOG_OUT_SUCCESS() {
     ChatMessage message = ChatMessageGenerator.LOG_OUT_SUCCESS("username");
@@ -105,13 +119,15 @@ public class ChatMessageGeneratorTest {
     accounts.add("account2");
     accounts.add("account3");
 
-    ChatMessage message = ChatMessageGenerator.LIST_ACCOUNTS(accounts);
+    ChatMessage message = ChatMessageGenerator.LIST_ACCOUNTS(accounts, true);
 
     assert(message.getContent().getListAccountsResponse().getAccountsList().get(0).equals("account1"));
 
     assert(message.getContent().getListAccountsResponse().getAccountsList().get(1).equals("account2"));
 
     assert(message.getContent().getListAccountsResponse().getAccountsList().get(2).equals("account3"));
+
+    assert(message.getContent().getListAccountsResponse().getHasMore());
   }
 
   @Test
@@ -1,7 +1,12 @@
 package com.chatapp.server;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Test;
 
+import com.chatapp.Chat.ChatMessage;
+
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 public class ConcurrentStreamObserverTest {
@@ -61,4 +66,73 @@ public class ConcurrentStreamObserverTest {
 
     assert(endTime - startTime > 1000);
   }
+
+  // Wrap a fake gRPC call that stops being ready and verify that the wrapper reports it, counts the bytes sent while it is not ready, and runs its handler when the call is ready again.
+  @Test
+  public void onReady_runsHandler_and_resetsBufferedBytes() {
+    final AtomicBoolean ready = new AtomicBoolean(true);
+    final Runnable[] callHandler = new Runnable[1];
+    ConcurrentStreamObserver<ChatMessage> concurrentStreamObserver = new ConcurrentStreamObserver<ChatMessage>(new ServerCallStreamObserver<ChatMessage>() {
+      @Override
+      public boolean isReady() {
+        return ready.get();
+      }
+
+      @Override
+      public void setOnReadyHandler(Runnable onReadyHandler) {
+        callHandler[0] = onReadyHandler;
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return false;
+      }
+
+      @Override
+      public void setOnCancelHandler(Runnable onCancelHandler) {}
+
+      @Override
+      public void setCompression(String compression) {}
+
+      @Override
+      public void disableAutoInboundFlowControl() {}
+
+      @Override
+      public void request(int count) {}
+
+      @Override
+      public void setMessageCompression(boolean enable) {}
+
+      @Override
+      public void onNext(ChatMessage value) {}
+
+      @Override
+      public void onError(Throwable t) {}
+
+      @Override
+      public void onCompleted() {}
+    });
+    final AtomicBoolean resumed = new AtomicBoolean(false);
+    concurrentStreamObserver.setOnReadyHandler(new Runnable() {
+      @Override
+      public void run() {
+        resumed.set(true);
+      }
+    });
+
+    ChatMessage message = ChatMessageGenerator.DISTRIBUTE_MESSAGE("sender", "message");
+    concurrentStreamObserver.onNext(message);
+    assert(concurrentStreamObserver.getBufferedBytes() == 0);
+
+    ready.set(false);
+    concurrentStreamObserver.onNext(message);
+    concurrentStreamObserver.onNext(message);
+    assert(!concurrentStreamObserver.isReady());
+    assert(concurrentStreamObserver.getBufferedBytes() == 2 * message.getSerializedSize());
+
+    ready.set(true);
+    callHandler[0].run();
+    assert(resumed.get());
+    assert(concurrentStreamObserver.getBufferedBytes() == 0);
+  }
 }
@@ -0,0 +1,602 @@
+package com.chatapp.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chatapp.Chat.AcknowledgeMessagesRequest;
+import com.chatapp.Chat.ChatMessage;
+import com.chatapp.Chat.Content;
+import com.chatapp.Chat.CreateAccountRequest;
+import com.chatapp.Chat.CreateGroupRequest;
+import com.chatapp.Chat.DistributeMessageRequest;
+import com.chatapp.Chat.FetchMessagesRequest;
+import com.chatapp.Chat.FetchMessagesResponse;
+import com.chatapp.Chat.ListAccountsRequest;
+import com.chatapp.Chat.ListAccountsResponse;
+import com.chatapp.Chat.LogInRequest;
+import com.chatapp.Chat.LogOutRequest;
+import com.chatapp.Chat.Metadata;
+import com.chatapp.Chat.Priority;
+import com.chatapp.Chat.SendGroupMessageRequest;
+import com.chatapp.Chat.SendMessageRequest;
+import com.chatapp.server.Persistence.SerializerUtil;
+import com.chatapp.server.Persistence.StorageBackend;
+
+import io.grpc.stub.StreamObserver;
+
+// Tests delivery end to end by talking to the chat service the way a client does, without a network in between
+
+public class DeliveryTest {
+
+  // How long to wait for a message that should arrive
+  static final long TIMEOUT_MS = 5000;
+
+  /**
+   * A client connected to the chat service, which keeps what the server sends it
+   */
+  static class Session {
+    final LinkedBlockingQueue<ChatMessage> received = new LinkedBlockingQueue<ChatMessage>();
+    final StreamObserver<ChatMessage> requests;
+
+    Session() {
+      requests = new BusinessLogicServer.ChatServiceImpl().chat(new StreamObserver<ChatMessage>() {
+        @Override
+        public void onNext(ChatMessage message) {
+          received.add(message);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+      });
+    }
+
+    // The replica has no leader, so it is a follower and only takes requests relayed from a leader
+    void send(Content content) {
+      requests.onNext(ChatMessage.newBuilder().setMetadata(Metadata.newBuilder().setIsInternal(true)).setContent(content).build());
+    }
+
+    void createAccount(String username) {
+      send(Content.newBuilder().setCreateAccountRequest(CreateAccountRequest.newBuilder().setUsername(username)).build());
+    }
+
+    void logIn(String username) {
+      logIn(username, 0);
+    }
+
+    void logIn(String username, long lastReceived) {
+      send(Content.newBuilder().setLogInRequest(LogInRequest.newBuilder().setUsername(username).setLastReceivedSequence(lastReceived)).build());
+    }
+
+    void logInForNewMessagesOnly(String username) {
+      send(Content.newBuilder().setLogInRequest(LogInRequest.newBuilder().setUsername(username).setPushOnlyNew(true)).build());
+    }
+
+    /**
+     * Fetch a page of the messages held back, skipping the messages pushed in the meantime
+     * @return the page, or null if none arrives
+     */
+    FetchMessagesResponse fetch(long after, int limit) throws InterruptedException {
+      send(Content.newBuilder().setFetchMessagesRequest(FetchMessagesRequest.newBuilder().setAfter(after).setLimit(limit)).build());
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while (true) {
+        ChatMessage message = received.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (message == null || message.getContent().hasFetchMessagesResponse()) {
+          return message == null ? null : message.getContent().getFetchMessagesResponse();
+        }
+      }
+    }
+
+    void logOut() {
+      send(Content.newBuilder().setLogOutRequest(LogOutRequest.newBuilder()).build());
+    }
+
+    void sendMessage(String recipient, String message) {
+      sendMessage(recipient, message, 0);
+    }
+
+    // As relayed by a leader that numbered the message, unless the sequence number is 0
+    void sendMessage(String recipient, String message, long sequence) {
+      send(Content.newBuilder().setSendMessageRequest(SendMessageRequest.newBuilder().setRecipient(recipient).setMessage(message).setSequence(sequence)).build());
+    }
+
+    void sendMessage(String recipient, String message, Priority priority) {
+      send(Content.newBuilder().setSendMessageRequest(SendMessageRequest.newBuilder().setRecipient(recipient).setMessage(message).setPriority(priority)).build());
+    }
+
+    void sendExpiringMessage(String recipient, String message, long expireAt) {
+      send(Content.newBuilder().setSendMessageRequest(SendMessageRequest.newBuilder().setRecipient(recipient).setMessage(message).setExpireAt(expireAt)).build());
+    }
+
+    // As relayed by a leader that scheduled the message under the given id
+    void scheduleMessage(String recipient, String message, long deliverAt, long timerId) {
+      send(Content.newBuilder().setSendMessageRequest(SendMessageRequest.newBuilder().setRecipient(recipient).setMessage(message).setDeliverAt(deliverAt).setTimerId(timerId)).build());
+    }
+
+    // As relayed by a leader that delivered the scheduled message with the given id
+    void deliverScheduledMessage(String recipient, String message, String sender, long timerId, long sequence) {
+      send(Content.newBuilder().setSendMessageRequest(SendMessageRequest.newBuilder().setRecipient(recipient).setMessage(message).setSender(sender).setTimerId(timerId).setSequence(sequence)).build());
+    }
+
+    void createGroup(String group, ArrayList<String> members) {
+      send(Content.newBuilder().setCreateGroupRequest(CreateGroupRequest.newBuilder().setGroup(group).addAllMembers(members)).build());
+    }
+
+    void sendGroupMessage(String group, String message) {
+      send(Content.newBuilder().setSendGroupMessageRequest(SendGroupMessageRequest.newBuilder().setGroup(group).setMessage(message)).build());
+    }
+
+    void listAccounts(String pattern, String after, int limit, boolean stream) {
+      send(Content.newBuilder().setListAccountsRequest(ListAccountsRequest.newBuilder().setPattern(pattern).setAfter(after).setLimit(limit).setStream(stream)).build());
+    }
+
+    /**
+     * Wait for the pages of a listing of accounts, up to the one that says
+     * no more accounts match
+     * @return the pages, in the order they arrived, which end early if one does not arrive
+     */
+    ArrayList<ListAccountsResponse> awaitListing() throws InterruptedException {
+      ArrayList<ListAccountsResponse> pages = new ArrayList<ListAccountsResponse>();
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while (pages.isEmpty() || pages.get(pages.size() - 1).getHasMore()) {
+        ChatMessage message = received.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (message == null) {
+          break;
+        }
+        if (message.getContent().hasListAccountsResponse()) {
+          pages.add(message.getContent().getListAccountsResponse());
+        }
+      }
+      return pages;
+    }
+
+    void acknowledge(long sequence) {
+      send(Content.newBuilder().setAcknowledgeMessagesRequest(AcknowledgeMessagesRequest.newBuilder().setSequence(sequence)).build());
+    }
+
+    /**
+     * Wait for distributed messages, skipping the responses to requests
+     * @param count how many messages to wait for
+     * @return the messages, in the order they arrived
+     */
+    ArrayList<DistributeMessageRequest> awaitMessages(int count) throws InterruptedException {
+      ArrayList<DistributeMessageRequest> messages = new ArrayList<DistributeMessageRequest>();
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while (messages.size() < count) {
+        ChatMessage message = received.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        if (message == null) {
+          break;
+        }
+        if (message.getContent().hasDistributeMessageRequest()) {
+          messages.add(message.getContent().getDistributeMessageRequest());
+        } else if (message.getContent().hasDistributeMessageBatch()) {
+          messages.addAll(message.getContent().getDistributeMessageBatch().getMessagesList());
+        }
+      }
+      return messages;
+    }
+
+    /**
+     * Return whether a message is distributed within the given time
+     */
+    boolean receivesMessageWithin(long ms) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + ms;
+      while (true) {
+        ChatMessage message = received.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (message == null) {
+          return false;
+        }
+        if (message.getContent().hasDistributeMessageRequest() || message.getContent().hasDistributeMessageBatch()) {
+          return true;
+        }
+      }
+    }
+  }
+
+  // Every test uses its own usernames, since the server keeps its users in static state
+  static int run = 0;
+  String alice;
+  String bob;
+
+  Bully replica;
+
+  @Before
+  public void setUp() {
+    replica = new Bully(StorageEngineTest.REPLICA);
+    new BusinessLogicServer(replica, 0, StorageBackend.MEMORY);
+    run++;
+    alice = "alice" + run;
+    bob = "bob" + run;
+  }
+
+  @After
+  public void tearDown() {
+    SerializerUtil.closeAll();
+    PersistenceTest.delete(new File(BusinessLogicServer.getReplicaFolder()));
+  }
+
+  // Verify that messages arrive numbered, that unacknowledged messages are sent again after logging back in, and that acknowledged ones are not.
+  @Test
+  public void unacknowledgedMessages_areRedelivered_afterLoggingBackIn() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    for (int i = 1; i <= 3; i++) {
+      sender.sendMessage(alice, "message " + i);
+    }
+
+    Session recipient = new Session();
+    recipient.logIn(alice);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages(3);
+    assert(messages.size() == 3);
+    for (int i = 0; i < 3; i++) {
+      assert(messages.get(i).getSequence() == i + 1);
+      assert(messages.get(i).getMessage().equals("message " + (i + 1)));
+    }
+
+    // log out without acknowledging the last message
+    recipient.acknowledge(2);
+    recipient.logOut();
+    recipient.logIn(alice);
+    messages = recipient.awaitMessages(1);
+    assert(messages.size() == 1);
+    assert(messages.get(0).getSequence() == 3);
+
+    // nothing is sent again once everything is acknowledged
+    recipient.acknowledge(3);
+    recipient.logOut();
+    recipient.logIn(alice);
+    assert(!recipient.receivesMessageWithin(300));
+  }
+
+  // Verify that no more than the window of messages is sent before the client acknowledges some.
+  @Test
+  public void unacknowledgedMessages_areBounded_byWindow() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    int count = (int) ServerConfig.DELIVERY_WINDOW + 10;
+    for (int i = 1; i <= count; i++) {
+      sender.sendMessage(alice, "message " + i);
+    }
+
+    Session recipient = new Session();
+    recipient.logIn(alice);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages((int) ServerConfig.DELIVERY_WINDOW);
+    assert(messages.size() == ServerConfig.DELIVERY_WINDOW);
+    assert(!recipient.receivesMessageWithin(300));
+
+    recipient.acknowledge(messages.get(messages.size() - 1).getSequence());
+    messages = recipient.awaitMessages(10);
+    assert(messages.size() == 10);
+    assert(messages.get(9).getSequence() == count);
+  }
+
+  // Verify that messages keep the numbers the leader gave them, and that logging in with the last received sequence number, as after a failover, resumes delivery after it.
+  @Test
+  public void loggingIn_resumesAfter_lastReceivedMessage() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    for (int i = 4; i >= 1; i--) {
+      sender.sendMessage(alice, "message " + i, i);
+    }
+
+    Session recipient = new Session();
+    recipient.logIn(alice, 2);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages(2);
+    assert(messages.size() == 2);
+    assert(messages.get(0).getSequence() == 3 && messages.get(0).getMessage().equals("message 3"));
+    assert(messages.get(1).getSequence() == 4);
+
+    // what was received from this replica is not sent again either
+    recipient.logOut();
+    recipient.logIn(alice, 4);
+    assert(!recipient.receivesMessageWithin(300));
+  }
+
+  // Verify that the priority lanes take turns by their weights, and that acknowledging a message that overtook others does not count those as delivered.
+  @Test
+  public void priorityLanes_interleave_byWeight() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    for (int i = 1; i <= 10; i++) {
+      sender.sendMessage(alice, "bulk " + i, Priority.BULK);
+    }
+    for (int i = 1; i <= 10; i++) {
+      sender.sendMessage(alice, "normal " + i);
+    }
+    sender.sendMessage(alice, "urgent", Priority.HIGH);
+
+    Session recipient = new Session();
+    recipient.logIn(alice);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages(21);
+    assert(messages.size() == 21);
+    assert(messages.get(0).getSequence() == 21 && messages.get(0).getPriority() == Priority.HIGH);
+    for (int i = 1; i <= ServerConfig.PRIORITY_WEIGHT_NORMAL; i++) {
+      assert(messages.get(i).getSequence() == 10 + i);
+    }
+    assert(messages.get((int) ServerConfig.PRIORITY_WEIGHT_NORMAL + 1).getSequence() == 1);
+    assert(messages.get(20).getPriority() == Priority.BULK);
+
+    // only the urgent message is acknowledged, so everything numbered before it comes again
+    recipient.acknowledge(21);
+    recipient.logOut();
+    recipient.logIn(alice);
+    messages = recipient.awaitMessages(20);
+    assert(messages.size() == 20);
+    for (DistributeMessageRequest message : messages) {
+      assert(message.getSequence() <= 20);
+    }
+    recipient.acknowledge(messages.get(19).getSequence());
+    recipient.logOut();
+    recipient.logIn(alice);
+    assert(!recipient.receivesMessageWithin(300));
+  }
+
+  // Verify that every session of a user receives every message, in the same frame, and that a session that logs in later is sent what no session acknowledged yet.
+  @Test
+  public void everySession_receivesEveryMessage() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+
+    Session phone = new Session();
+    Session laptop = new Session();
+    phone.logIn(alice);
+    laptop.logIn(alice);
+    sender.sendMessage(alice, "message 1");
+    ArrayList<DistributeMessageRequest> onPhone = phone.awaitMessages(1);
+    ArrayList<DistributeMessageRequest> onLaptop = laptop.awaitMessages(1);
+    assert(onPhone.size() == 1 && onLaptop.size() == 1);
+    assert(onPhone.get(0) == onLaptop.get(0));
+
+    // the tablet is sent the message neither acknowledged, then everything after it like the others
+    Session tablet = new Session();
+    tablet.logIn(alice);
+    assert(tablet.awaitMessages(1).get(0).getSequence() == 1);
+    phone.acknowledge(1);
+    sender.sendMessage(alice, "message 2");
+    for (Session session : new Session[] { phone, laptop, tablet }) {
+      ArrayList<DistributeMessageRequest> messages = session.awaitMessages(1);
+      assert(messages.size() == 1 && messages.get(0).getSequence() == 2);
+    }
+
+    // logging out of one session leaves the others logged in
+    phone.logOut();
+    sender.sendMessage(alice, "message 3");
+    assert(laptop.awaitMessages(1).get(0).getSequence() == 3);
+    assert(tablet.awaitMessages(1).get(0).getSequence() == 3);
+    assert(!phone.receivesMessageWithin(300));
+  }
+
+  // Verify that a session that stops acknowledging does not hold up delivery to the user's other sessions once its window is full, and still receives every message once it acknowledges again.
+  @Test
+  public void stalledSession_doesNotHoldUp_otherSessions() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    int count = (int) ServerConfig.DELIVERY_WINDOW + 10;
+    for (int i = 1; i <= count; i++) {
+      sender.sendMessage(alice, "message " + i);
+    }
+
+    Session stalled = new Session();
+    Session phone = new Session();
+    stalled.logIn(alice);
+    phone.logIn(alice);
+    assert(stalled.awaitMessages((int) ServerConfig.DELIVERY_WINDOW).size() == ServerConfig.DELIVERY_WINDOW);
+    ArrayList<DistributeMessageRequest> messages = phone.awaitMessages((int) ServerConfig.DELIVERY_WINDOW);
+    assert(messages.size() == ServerConfig.DELIVERY_WINDOW);
+
+    // only the phone acknowledges, and it still gets the rest while the stalled session's window stays full
+    phone.acknowledge(messages.get(messages.size() - 1).getSequence());
+    messages = phone.awaitMessages(10);
+    assert(messages.size() == 10);
+    assert(messages.get(9).getSequence() == count);
+    assert(!stalled.receivesMessageWithin(300));
+
+    // the stalled session is sent what it was held back from once it acknowledges what it has
+    stalled.acknowledge(ServerConfig.DELIVERY_WINDOW);
+    messages = stalled.awaitMessages(10);
+    assert(messages.size() == 10);
+    for (int i = 0; i < 10; i++) {
+      assert(messages.get(i).getSequence() == ServerConfig.DELIVERY_WINDOW + 1 + i);
+    }
+  }
+
+  // Verify that a message sent to a group reaches every other member, numbered in each member's own sequence, and not the sender.
+  @Test
+  public void groupMessages_reachEveryOtherMember() throws InterruptedException {
+    String carol = "carol" + run;
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.createAccount(carol);
+    sender.logIn(bob);
+    sender.sendMessage(carol, "direct");
+    ArrayList<String> members = new ArrayList<String>();
+    members.add(alice);
+    members.add(bob);
+    members.add(carol);
+    sender.createGroup("team" + run, members);
+    sender.sendGroupMessage("team" + run, "hello team");
+
+    Session first = new Session();
+    first.logIn(alice);
+    ArrayList<DistributeMessageRequest> messages = first.awaitMessages(1);
+    assert(messages.size() == 1);
+    assert(messages.get(0).getGroup().equals("team" + run) && messages.get(0).getSender().equals(bob));
+    assert(messages.get(0).getMessage().equals("hello team") && messages.get(0).getSequence() == 1);
+
+    Session second = new Session();
+    second.logIn(carol);
+    messages = second.awaitMessages(2);
+    assert(messages.size() == 2);
+    assert(messages.get(0).getGroup().isEmpty() && messages.get(1).getSequence() == 2);
+    assert(messages.get(1).getMessage().equals("hello team"));
+
+    assert(!BusinessLogicServer.hasPendingMessages(bob));
+  }
+
+  // Verify that a group larger than a batch is queued for every member.
+  @Test
+  public void groupMessages_fanOutInBatches() {
+    Session sender = new Session();
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    ArrayList<String> members = new ArrayList<String>();
+    for (int i = 0; i < 3 * ServerConfig.GROUP_FANOUT_BATCH + 1; i++) {
+      members.add(alice + "-" + i);
+      sender.createAccount(alice + "-" + i);
+    }
+    sender.createGroup("everyone" + run, members);
+    sender.sendGroupMessage("everyone" + run, "hello everyone");
+
+    for (String member : members) {
+      assert(BusinessLogicServer.hasPendingMessages(member));
+    }
+  }
+
+  // Verify that logging in for new messages only pushes what is queued afterwards, that the messages waiting before are fetched a page at a time, and that they are not counted as delivered until they are fetched.
+  @Test
+  public void loggingInForNewMessagesOnly_leavesWaitingMessages_toFetch() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    for (int i = 1; i <= 5; i++) {
+      sender.sendMessage(alice, "old " + i);
+    }
+
+    Session recipient = new Session();
+    recipient.logInForNewMessagesOnly(alice);
+    sender.sendMessage(alice, "new");
+    ArrayList<DistributeMessageRequest> pushed = recipient.awaitMessages(1);
+    assert(pushed.size() == 1 && pushed.get(0).getSequence() == 6);
+
+    FetchMessagesResponse page = recipient.fetch(0, 2);
+    assert(page.getMessagesCount() == 2 && page.getHasMore());
+    assert(page.getMessages(0).getMessage().equals("old 1") && page.getMessages(1).getSequence() == 2);
+
+    // acknowledging the pushed message only counts the fetched messages as delivered
+    recipient.acknowledge(6);
+    assert(!recipient.receivesMessageWithin(300));
+    page = recipient.fetch(2, 10);
+    assert(page.getMessagesCount() == 3 && !page.getHasMore());
+    assert(page.getMessages(2).getMessage().equals("old 5"));
+    ArrayList<PendingMessage> stored = BusinessLogicServer.getStorage().recover(ForkJoinPool.commonPool()).getMailboxes().get(alice);
+    assert(stored != null && stored.get(0).getSequence() == 3);
+  }
+
+  // Verify that messages that expired while they waited are dropped instead of delivered, and count as delivered.
+  @Test
+  public void expiredMessages_areDropped() throws InterruptedException {
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    sender.sendExpiringMessage(alice, "soon gone", System.currentTimeMillis() + 100);
+    sender.sendMessage(alice, "kept");
+    sender.sendExpiringMessage(alice, "still fresh", System.currentTimeMillis() + 60 * 1000);
+    Thread.sleep(200);
+
+    Session recipient = new Session();
+    recipient.logIn(alice);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages(2);
+    assert(messages.size() == 2);
+    assert(messages.get(0).getSequence() == 2 && messages.get(0).getMessage().equals("kept"));
+    assert(messages.get(1).getSequence() == 3 && messages.get(1).getMessage().equals("still fresh"));
+
+    recipient.acknowledge(3);
+    recipient.logOut();
+    recipient.logIn(alice);
+    assert(!recipient.receivesMessageWithin(300));
+  }
+
+  // Verify that a follower holds a scheduled message past its time, and queues it once the leader relays it, on behalf of its sender, and then no longer holds it.
+  @Test
+  public void scheduledMessages_waitForTheLeader_onFollowers() throws InterruptedException {
+    long timerId = 1000000 + run;
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    sender.scheduleMessage(alice, "later", System.currentTimeMillis() + 100, timerId);
+
+    Session recipient = new Session();
+    recipient.logIn(alice);
+    assert(!recipient.receivesMessageWithin(500));
+
+    Session leader = new Session();
+    leader.deliverScheduledMessage(alice, "later", bob, timerId, 1);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages(1);
+    assert(messages.size() == 1);
+    assert(messages.get(0).getSequence() == 1 && messages.get(0).getSender().equals(bob) && messages.get(0).getMessage().equals("later"));
+    for (ScheduledMessage scheduled : BusinessLogicServer.getStorage().loadScheduled()) {
+      assert(scheduled.getId() != timerId);
+    }
+  }
+
+  // Verify that the leader queues a scheduled message once it is due, and not before.
+  @Test
+  public void scheduledMessages_areDelivered_whenDue_byTheLeader() throws InterruptedException {
+    replica.setLeader(replica.getSelf());
+    Session sender = new Session();
+    sender.createAccount(alice);
+    sender.createAccount(bob);
+    sender.logIn(bob);
+    long deliverAt = System.currentTimeMillis() + 300;
+    sender.scheduleMessage(alice, "later", deliverAt, 2000000 + run);
+    sender.sendMessage(alice, "now");
+
+    Session recipient = new Session();
+    recipient.logIn(alice);
+    ArrayList<DistributeMessageRequest> messages = recipient.awaitMessages(1);
+    assert(messages.size() == 1 && messages.get(0).getMessage().equals("now"));
+    messages = recipient.awaitMessages(1);
+    assert(System.currentTimeMillis() >= deliverAt);
+    assert(messages.size() == 1);
+    assert(messages.get(0).getSequence() == 2 && messages.get(0).getSender().equals(bob) && messages.get(0).getMessage().equals("later"));
+  }
+
+  // Verify that a listing of accounts is cut into pages that start after the cursor, and that a streamed listing sends every page.
+  @Test
+  public void listingAccounts_pagesThroughMatches() throws InterruptedException {
+    Session session = new Session();
+    String prefix = "carol" + run + "_";
+    for (int i = 0; i < 10; i++) {
+      session.createAccount(prefix + i);
+    }
+
+    session.listAccounts(prefix + "*", "", 4, false);
+    ArrayList<ListAccountsResponse> pages = session.awaitListing();
+    assert(pages.size() == 1 && pages.get(0).getAccountsCount() == 4 && pages.get(0).getHasMore());
+    session.listAccounts(prefix + "*", prefix + 7, 4, false);
+    pages = session.awaitListing();
+    assert(pages.size() == 1 && !pages.get(0).getHasMore());
+    assert(pages.get(0).getAccountsList().equals(Arrays.asList(prefix + 8, prefix + 9)));
+
+    session.listAccounts(prefix + "*", prefix + 0, 3, true);
+    pages = session.awaitListing();
+    assert(pages.size() == 3 && !pages.get(2).getHasMore());
+    assert(pages.get(0).getAccounts(0).equals(prefix + 1) && pages.get(2).getAccountsList().equals(Arrays.asList(prefix + 7, prefix + 8, prefix + 9)));
+  }
+}
@@ -0,0 +1,194 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MailboxTest {
+
+  // Verify that messages are numbered after the last sequence number and the loaded messages, across several chunks, and handed out in order.
+  @Test
+  public void offer_numbersMessages_inOrder() {
+    ArrayList<PendingMessage> loaded = new ArrayList<PendingMessage>();
+    loaded.add(new PendingMessage("recipient", "sender", "loaded", 7));
+    Mailbox mailbox = new Mailbox(loaded, 5);
+
+    int count = 3 * Mailbox.CHUNK_SIZE + 1;
+    for (int i = 0; i < count; i++) {
+      assert(mailbox.offer("recipient", "sender", "message " + i).getSequence() == 8 + i);
+    }
+    assert(mailbox.lastSequence() == 7 + count);
+
+    assert(mailbox.poll().getMessage().equals("loaded"));
+    for (int i = 0; i < count; i++) {
+      PendingMessage message = mailbox.poll();
+      assert(message.getSequence() == 8 + i);
+      assert(message.getMessage().equals("message " + i));
+    }
+    assert(mailbox.poll() == null);
+    assert(mailbox.isEmpty());
+  }
+
+  // Verify that a requeued message is handed out before the others.
+  @Test
+  public void requeue_putsMessage_atHead() {
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    mailbox.offer("recipient", "sender", "first");
+    mailbox.offer("recipient", "sender", "second");
+
+    PendingMessage first = mailbox.poll();
+    mailbox.requeue(first);
+
+    assert(mailbox.poll() == first);
+    assert(mailbox.poll().getMessage().equals("second"));
+  }
+
+  // Verify that a batch stops at the message limit, and at the character limit after its first message.
+  @Test
+  public void drainTo_respectsLimits() {
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    for (int i = 0; i < 10; i++) {
+      mailbox.offer("recipient", "s", "123456789");
+    }
+
+    ArrayList<PendingMessage> batch = new ArrayList<PendingMessage>();
+    assert(mailbox.drainTo(batch, 4, 1000) == 4);
+    batch.clear();
+    assert(mailbox.drainTo(batch, 100, 25) == 2);
+    batch.clear();
+    assert(mailbox.drainTo(batch, 100, 1) == 1);
+    assert(batch.get(0).getSequence() == 7);
+  }
+
+  // Start many threads that add messages at once and verify that no message is lost, the sequence numbers have no gaps, and each thread's messages stay in the order it added them.
+  @Test
+  public void offer_fromManyThreads_keepsEveryMessage() throws InterruptedException {
+    final Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    final int threads = 8;
+    final int messages = 5000;
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] senders = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final String sender = "sender" + t;
+      senders[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < messages; i++) {
+            mailbox.offer("recipient", sender, String.valueOf(i));
+          }
+        }
+      });
+      senders[t].start();
+    }
+    start.countDown();
+    for (Thread sender : senders) {
+      sender.join();
+    }
+
+    int[] next = new int[threads];
+    for (long sequence = 1; sequence <= threads * messages; sequence++) {
+      PendingMessage message = mailbox.poll();
+      assert(message.getSequence() == sequence);
+      int t = Integer.parseInt(message.getSender().substring("sender".length()));
+      assert(Integer.parseInt(message.getMessage()) == next[t]++);
+    }
+    assert(mailbox.poll() == null);
+  }
+
+  // Verify that messages numbered by the leader are handed out in the order of their numbers whatever order they arrive in, and that new messages are numbered after them.
+  @Test
+  public void offer_placesNumberedMessages_byTheirNumbers() {
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    int count = 2 * Mailbox.CHUNK_SIZE;
+    for (int i = count; i >= 1; i--) {
+      assert(mailbox.offer(new PendingMessage("recipient", "sender", "message " + i, i)).getSequence() == i);
+    }
+    assert(mailbox.offer("recipient", "sender", "new").getSequence() == count + 1);
+
+    for (int i = 1; i <= count; i++) {
+      assert(mailbox.poll().getSequence() == i);
+    }
+    assert(mailbox.poll().getMessage().equals("new"));
+
+    // a number that was already handed out is given a new one
+    assert(mailbox.offer(new PendingMessage("recipient", "sender", "late", 3)).getSequence() == count + 2);
+  }
+
+  // Verify that a missing message holds up the ones after it until it times out.
+  @Test
+  public void peek_skipsMissingMessages_afterTimeout() throws InterruptedException {
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    mailbox.offer(new PendingMessage("recipient", "sender", "third", 3));
+    assert(mailbox.peek() == null);
+
+    mailbox.offer(new PendingMessage("recipient", "sender", "first", 1));
+    assert(mailbox.poll().getSequence() == 1);
+    assert(mailbox.peek() == null);
+
+    Thread.sleep(Mailbox.HOLE_TIMEOUT_MS + 100);
+    assert(mailbox.poll().getSequence() == 3);
+    assert(mailbox.offer(new PendingMessage("recipient", "sender", "second", 2)).getSequence() == 4);
+  }
+
+  // Verify that a consumer held up by a missing message is woken up once it times out, although nothing arrives after it.
+  @Test
+  public void peek_wakesConsumer_whenMissingMessageTimesOut() throws InterruptedException {
+    final CountDownLatch woken = new CountDownLatch(1);
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0, new Runnable() {
+      @Override
+      public void run() {
+        woken.countDown();
+      }
+    });
+    mailbox.offer(new PendingMessage("recipient", "sender", "second", 2));
+    mailbox.offer(new PendingMessage("recipient", "sender", "third", 3));
+    assert(mailbox.peek() == null);
+
+    assert(woken.await(Mailbox.HOLE_TIMEOUT_MS + 2000, TimeUnit.MILLISECONDS));
+    assert(mailbox.poll().getSequence() == 2);
+    assert(mailbox.poll().getSequence() == 3);
+  }
+
+  // Verify that a reserved message holds up the ones after it until it is committed, and that an abandoned one is skipped straight away.
+  @Test
+  public void reservedMessages_waitUntil_committedOrAbandoned() {
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    PendingMessage.Body body = new PendingMessage.Body("sender", "first", null);
+    PendingMessage first = mailbox.reserveCopy("recipient", body);
+    mailbox.offer("recipient", "sender", "second");
+    assert(first.getSequence() == 1);
+    assert(mailbox.peek() == null);
+
+    mailbox.commit(first);
+    assert(mailbox.poll() == first);
+    assert(mailbox.poll().getMessage().equals("second"));
+
+    PendingMessage lost = mailbox.reserve(body.copyFor("recipient", 3));
+    mailbox.offer("recipient", "sender", "fourth");
+    assert(mailbox.peek() == null);
+    mailbox.abandon(lost);
+    assert(mailbox.poll().getSequence() == 4);
+    assert(mailbox.poll() == null);
+  }
+
+  // Verify that the messages a client already received are skipped, including those put back and those that have not arrived yet.
+  @Test
+  public void skipThrough_dropsReceivedMessages() {
+    Mailbox mailbox = new Mailbox(new ArrayList<PendingMessage>(), 0);
+    mailbox.offer("recipient", "sender", "first");
+    mailbox.requeue(mailbox.poll());
+    mailbox.offer(new PendingMessage("recipient", "sender", "third", 3));
+    mailbox.offer(new PendingMessage("recipient", "sender", "fifth", 5));
+
+    assert(mailbox.skipThrough(4) == 2);
+    assert(mailbox.poll().getSequence() == 5);
+    assert(mailbox.poll() == null);
+  }
+}
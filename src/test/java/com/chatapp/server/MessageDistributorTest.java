@@ -2,6 +2,10 @@ package com.chatapp.server;
 
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 import com.chatapp.Chat.ChatMessage;
@@ -59,4 +63,77 @@ public class MessageDistributorTest {
 
     assertTrue(endTime - startTime < 1000);
   }
+
+  // Start many MessageDistributor objects and verify that they share the dispatcher's threads instead of each starting a thread of its own.
+  @Test
+  public void start_doesNotStartAThreadPerDistributor() throws InterruptedException {
+    ConcurrentStreamObserver<ChatMessage> observer = new ConcurrentStreamObserver<ChatMessage>(new StreamObserver<ChatMessage>() {
+      @Override
+      public void onNext(ChatMessage t) {}
+
+      @Override
+      public void onError(Throwable t) {}
+
+      @Override
+      public void onCompleted() {}
+    });
+
+    int threadsBefore = Thread.activeCount();
+    for (int i = 0; i < 1000; i++) {
+      new MessageDistributor("username" + i, observer).start();
+    }
+    Thread.sleep(100);
+
+    assertTrue(Thread.activeCount() - threadsBefore <= ServerConfig.DELIVERY_THREADS);
+  }
+
+  // Queue a large backlog for one session and a single frame for another, and verify that the second is sent before the first session's backlog is through, since each session only gets a quantum per turn.
+  @Test
+  public void deliver_sharesThreads_byQuantum() throws InterruptedException {
+    final int frames = 4 * (int) ServerConfig.DELIVERY_QUANTUM_MESSAGES * (int) Math.max(1, ServerConfig.DELIVERY_THREADS);
+    final AtomicInteger heavySent = new AtomicInteger(0);
+    final CountDownLatch lightSent = new CountDownLatch(1);
+    final int[] heavySentBeforeLight = new int[1];
+    MessageDistributor heavy = new MessageDistributor("heavy", new ConcurrentStreamObserver<ChatMessage>(new StreamObserver<ChatMessage>() {
+      @Override
+      public void onNext(ChatMessage t) {
+        heavySent.incrementAndGet();
+      }
+
+      @Override
+      public void onError(Throwable t) {}
+
+      @Override
+      public void onCompleted() {}
+    }));
+    MessageDistributor light = new MessageDistributor("light", new ConcurrentStreamObserver<ChatMessage>(new StreamObserver<ChatMessage>() {
+      @Override
+      public void onNext(ChatMessage t) {
+        heavySentBeforeLight[0] = heavySent.get();
+        lightSent.countDown();
+      }
+
+      @Override
+      public void onError(Throwable t) {}
+
+      @Override
+      public void onCompleted() {}
+    }));
+
+    MessageDistributor.Frame frame = new MessageDistributor.Frame(ChatMessageGenerator.DISTRIBUTE_MESSAGE("sender", "message"), new long[] {1});
+    for (int i = 0; i < frames; i++) {
+      heavy.enqueue(frame);
+    }
+    light.enqueue(frame);
+
+    assertTrue(lightSent.await(5, TimeUnit.SECONDS));
+    assertTrue(heavySentBeforeLight[0] < frames);
+
+    // the counter is updated once the frame is handed to the call
+    long deadline = System.currentTimeMillis() + 5000;
+    while (light.getServedBytes() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(light.getServedBytes() == frame.bytes);
+  }
 }
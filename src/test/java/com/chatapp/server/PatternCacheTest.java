@@ -0,0 +1,66 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PatternCacheTest {
+
+  // List patterns again and verify that they are answered from the cache, and that creating or deleting an account only makes the patterns that match it list the directory again.
+  @Test
+  public void listing_isCached_untilAMatchingAccountChanges() {
+    AccountDirectory directory = new AccountDirectory(8, 100);
+    directory.add("alice");
+    directory.add("bob");
+    PatternCache cache = directory.getCache();
+
+    assert(directory.list("al*").equals(Arrays.asList("alice")));
+    assert(directory.list("*o*").equals(Arrays.asList("bob")));
+    assert(cache.hitRatio() == 0);
+    assert(directory.list("al*").equals(Arrays.asList("alice")));
+    assert(directory.list("*o*").equals(Arrays.asList("bob")));
+    assert(cache.hitRatio() == 50);
+
+    // only the pattern that matches the new account lists the directory again
+    directory.add("alan");
+    assert(directory.list("al*").equals(Arrays.asList("alan", "alice")));
+    assert(directory.list("*o*").equals(Arrays.asList("bob")));
+    assert(cache.hitRatio() == 50);
+    directory.remove("bob");
+    assert(directory.list("*o*").isEmpty());
+    assert(directory.list("al*").equals(Arrays.asList("alan", "alice")));
+
+    // pages of a cached listing start after the cursor
+    ArrayList<String> page = new ArrayList<String>();
+    assert(directory.list("al*", "", 1, page));
+    assert(!directory.list("al*", "alan", 1, page));
+    assert(page.equals(Arrays.asList("alan", "alice")));
+  }
+
+  // Verify that the least recently listed pattern is evicted first, and that listings with too many matches are not cached.
+  @Test
+  public void cache_isBounded() {
+    AccountDirectory directory = new AccountDirectory(2, 2);
+    for (String username : new String[] {"ann", "anna", "annie", "bo", "cy"}) {
+      directory.add(username);
+    }
+    PatternCache cache = directory.getCache();
+
+    directory.list("b*");
+    directory.list("c*");
+    directory.list("b*");
+    directory.list("a*");
+    assert(cache.size() == 2);
+
+    // "c*" was evicted and "a*" matches too many accounts, while "b*" is still cached
+    long before = cache.hitRatio();
+    directory.list("b*");
+    assert(cache.hitRatio() > before);
+    before = cache.hitRatio();
+    directory.list("a*");
+    directory.list("c*");
+    assert(cache.hitRatio() < before);
+    assert(directory.list("a*").equals(Arrays.asList("ann", "anna", "annie")));
+  }
+}
@@ -0,0 +1,253 @@
+package com.chatapp.server.Persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Keeps only the records that are not "drop"
+    static final Compaction DROP = new Compaction() {
+        @Override
+        public void inspect(java.nio.ByteBuffer record) {
+        }
+
+        @Override
+        public java.nio.ByteBuffer keep(java.nio.ByteBuffer record) {
+            return StandardCharsets.UTF_8.decode(record.duplicate()).toString().equals("drop") ? null : record;
+        }
+
+        @Override
+        public List<byte[]> finish() {
+            return new ArrayList<byte[]>();
+        }
+    };
+
+    SegmentedLog open(long segmentBytes) throws IOException {
+        return new SegmentedLog(folder.getRoot().toPath(), FsyncPolicy.NEVER, 0, segmentBytes);
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Test that the active segment rolls over once it grows past the segment size
+     */
+    @Test
+    public void Appending_past_SegmentSize_rolls_Segments() throws IOException {
+        SegmentedLog log = open(1);
+        log.append(bytes("a"));
+        log.append(bytes("b"));
+        log.append(bytes("c"));
+
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(2, 2)).exists());
+        assert(log.readAll().size() == 3);
+        log.close();
+    }
+
+    /*
+     * Test that compaction replaces the sealed segments and keeps their order
+     */
+    @Test
+    public void Compacting_replaces_SealedSegments() throws IOException {
+        SegmentedLog log = open(1);
+        log.append(bytes("a"));
+        log.append(bytes("drop"));
+        log.append(bytes("b"));
+        log.compact(DROP, true);
+
+        List<byte[]> records = log.readAll();
+        assert(records.size() == 2);
+        assert(new String(records.get(0), StandardCharsets.UTF_8).equals("a"));
+        assert(new String(records.get(1), StandardCharsets.UTF_8).equals("b"));
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(0, 2)).exists());
+        assert(!new File(folder.getRoot(), SegmentedLog.fileName(0, 0)).exists());
+        log.close();
+    }
+
+    /*
+     * Test that compacting in the background only merges the newest segments, and leaves a larger compacted segment before them alone
+     */
+    @Test
+    public void CompactingInBackground_merges_only_NewestSegments() throws IOException {
+        SegmentedLog log = open(1);
+        for (int i = 0; i < 8; i++) {
+            log.append(bytes("a"));
+        }
+        log.compact(DROP, false);
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(0, 7)).exists());
+
+        log.append(bytes("b"));
+        log.append(bytes("c"));
+        log.append(bytes("drop"));
+        log.compact(DROP, false);
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(0, 7)).exists());
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(8, 10)).exists());
+
+        // the newest compacted segment is smaller than the one before it, so nothing is left to merge
+        long modified = new File(folder.getRoot(), SegmentedLog.fileName(0, 7)).lastModified();
+        log.compact(DROP, false);
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(8, 10)).exists());
+        assert(new File(folder.getRoot(), SegmentedLog.fileName(0, 7)).lastModified() == modified);
+
+        List<byte[]> records = log.readAll();
+        assert(records.size() == 10);
+        assert(new String(records.get(8), StandardCharsets.UTF_8).equals("b"));
+        assert(new String(records.get(9), StandardCharsets.UTF_8).equals("c"));
+        log.close();
+    }
+
+    /*
+     * Test that a compaction interrupted after its rename does not resurrect the segments it replaced
+     */
+    @Test
+    public void Compacting_then_Crashing_ignores_ReplacedSegments() throws IOException {
+        SegmentedLog log = open(1);
+        log.append(bytes("drop"));
+        log.append(bytes("a"));
+        log.roll();
+
+        // simulate a crash right after the rename by putting the replaced segments back
+        File first = new File(folder.getRoot(), SegmentedLog.fileName(0, 0));
+        File second = new File(folder.getRoot(), SegmentedLog.fileName(1, 1));
+        byte[] firstBytes = Files.readAllBytes(first.toPath());
+        byte[] secondBytes = Files.readAllBytes(second.toPath());
+        log.compact(DROP, true);
+        log.close();
+        Files.write(first.toPath(), firstBytes);
+        Files.write(second.toPath(), secondBytes);
+
+        // check that reopening the log only sees the compacted segment
+        log = open(1);
+        assert(log.readAll().size() == 1);
+        assert(!first.exists());
+        assert(!second.exists());
+        log.close();
+    }
+
+    /*
+     * Test that scanning stops at a record that was only partially written
+     */
+    @Test
+    public void Scanning_stops_at_TornRecord() throws IOException {
+        SegmentedLog log = open(1024);
+        log.append(bytes("a"));
+        log.append(bytes("b"));
+        log.close();
+
+        // chop off the last byte of the second record
+        File segment = new File(folder.getRoot(), SegmentedLog.fileName(0, 0));
+        byte[] contents = Files.readAllBytes(segment.toPath());
+        Files.write(segment.toPath(), java.util.Arrays.copyOf(contents, contents.length - 1));
+
+        log = open(1024);
+        final ArrayList<String> records = new ArrayList<String>();
+        log.scan(new RecordVisitor() {
+            @Override
+            public void visit(java.nio.ByteBuffer record) {
+                records.add(StandardCharsets.UTF_8.decode(record).toString());
+            }
+        });
+        assert(records.size() == 1);
+        assert(records.get(0).equals("a"));
+        log.close();
+    }
+
+    /*
+     * Test that a corrupted record is cut off on reopening, so that records appended afterwards are read
+     */
+    @Test
+    public void Reopening_after_CorruptedRecord_then_Appending_keeps_NewRecords() throws IOException {
+        SegmentedLog log = open(1024);
+        log.append(bytes("a"));
+        log.append(bytes("b"));
+        log.close();
+
+        // flip the last byte of the second record
+        File segment = new File(folder.getRoot(), SegmentedLog.fileName(0, 0));
+        byte[] contents = Files.readAllBytes(segment.toPath());
+        contents[contents.length - 1] ^= 0xff;
+        Files.write(segment.toPath(), contents);
+
+        log = open(1024);
+        assert(segment.length() == AppendLog.HEADER_SIZE + 1);
+        log.append(bytes("c"));
+
+        List<byte[]> records = log.readAll();
+        assert(records.size() == 2);
+        assert(new String(records.get(0), StandardCharsets.UTF_8).equals("a"));
+        assert(new String(records.get(1), StandardCharsets.UTF_8).equals("c"));
+        log.close();
+    }
+
+    /*
+     * Test that records framed with the CRC32 checksum of older versions are still read
+     */
+    @Test
+    public void Reading_RecordWithLegacyChecksum_obtains_Record() throws IOException {
+        byte[] payload = bytes("a");
+        java.nio.ByteBuffer frame = java.nio.ByteBuffer.allocate(AppendLog.HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt(AppendLog.legacyChecksum(java.nio.ByteBuffer.wrap(payload)));
+        frame.put(payload);
+        Files.write(new File(folder.getRoot(), SegmentedLog.fileName(0, 0)).toPath(), frame.array());
+
+        SegmentedLog log = open(1024);
+        List<byte[]> records = log.readAll();
+        assert(records.size() == 1);
+        assert(new String(records.get(0), StandardCharsets.UTF_8).equals("a"));
+        log.close();
+    }
+
+    /*
+     * Test that a parallel scan over many partitions merges them back in log order
+     */
+    @Test
+    public void ScanningInParallel_keeps_LogOrder() throws IOException {
+        SegmentedLog log = open(16);
+        for (int i = 0; i < 200; i++) {
+            log.append(bytes(Integer.toString(i)));
+            // fold the first segments into one large compacted segment that has to be split
+            if (i == 100) {
+                log.compact(DROP, true);
+            }
+        }
+
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+        List<String> records = log.scan(pool, new PartitionedScan<List<String>>() {
+            @Override
+            public List<String> partition() {
+                return new ArrayList<String>();
+            }
+
+            @Override
+            public void visit(List<String> partition, java.nio.ByteBuffer record) {
+                partition.add(StandardCharsets.UTF_8.decode(record).toString());
+            }
+
+            @Override
+            public List<String> merge(List<String> older, List<String> newer) {
+                older.addAll(newer);
+                return older;
+            }
+        });
+        pool.shutdown();
+
+        assert(records.size() == 200);
+        for (int i = 0; i < 200; i++) {
+            assert(records.get(i).equals(Integer.toString(i)));
+        }
+        log.close();
+    }
+}
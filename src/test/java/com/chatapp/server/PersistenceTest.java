@@ -1,13 +1,25 @@
 package com.chatapp.server;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.chatapp.server.Persistence.AccountSerializer;
+import com.chatapp.server.Persistence.Checkpointer;
+import com.chatapp.server.Persistence.FsyncPolicy;
 import com.chatapp.server.Persistence.MessageSerializer;
+import com.chatapp.server.Persistence.RecordCodec;
+import com.chatapp.server.Persistence.SegmentedLog;
 import com.chatapp.server.Persistence.SerializerUtil;
 import com.chatapp.server.Persistence.SerializerUtil.TextType;
 
@@ -16,7 +28,7 @@ public class PersistenceTest {
     static final int REPLICA_NUMBER = 1;
     static final Replica REPLICA = Replica.REPLICAS[REPLICA_NUMBER];
     static final String TEST_USERNAME = "test";
-    static final PendingMessage TEST_MESSAGE = new PendingMessage(TEST_USERNAME, TEST_USERNAME, "1");
+    static final PendingMessage TEST_MESSAGE = new PendingMessage(TEST_USERNAME, TEST_USERNAME, "1", 1);
 
     /*
      * Set up the replica folder and start the business logic server
@@ -30,36 +42,38 @@ public class PersistenceTest {
         // create the business logic server
         BusinessLogicServer businessLogicServer = new BusinessLogicServer(replicaManager, port);
 
+        // close any logs left open by a previous test
+        SerializerUtil.closeAll();
+
         // if exists, delete the replica folder
-        File folder = new File(BusinessLogicServer.getReplicaFolder());
-        if(folder.exists()) {
-            String[] entries = folder.list();
-            for(String s: entries){
-                File currentFile = new File(folder.getPath(),s);
-                currentFile.delete();
-            }
-            folder.delete();
-        }
+        delete(new File(BusinessLogicServer.getReplicaFolder()));
 
         // create a folder for the replica
         new java.io.File(BusinessLogicServer.getReplicaFolder()).mkdirs();
     }
 
+    /*
+     * Delete a file or a folder and everything in it
+     */
+    static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
     /*
      * Delete the replica folder
      */
     @After
     public void tearDown() {
+        // close the logs so that their files can be deleted
+        SerializerUtil.closeAll();
+
         // delete the replica folder
-        File folder = new File(BusinessLogicServer.getReplicaFolder());
-        if(folder.exists()) {
-            String[] entries = folder.list();
-            for(String s: entries){
-                File currentFile = new File(folder.getPath(),s);
-                currentFile.delete();
-            }
-            folder.delete();
-        }
+        delete(new File(BusinessLogicServer.getReplicaFolder()));
     }
 
     /*
@@ -76,10 +90,10 @@ public class PersistenceTest {
     }
 
     /*
-     * Test that serializing an account and then updating the account file changes the file
+     * Test that serializing an account and then compacting the account log changes the log
      */
     @Test
-    public void SerializingAccounts_then_UpdatingAccounts_updates_Files() {
+    public void SerializingAccounts_then_CompactingAccounts_updates_Files() {
         // create the account
         AccountSerializer.serialize(TEST_USERNAME);
         // delete the account
@@ -87,10 +101,10 @@ public class PersistenceTest {
         // create the account
         AccountSerializer.serialize(TEST_USERNAME);
 
-        // update the accounts
-        AccountSerializer.updateAccounts();
+        // compact the accounts
+        AccountSerializer.compact(true);
 
-        // check that the accounts file contains only one listing of the account
+        // check that the accounts log contains only one listing of the account
         int length = SerializerUtil.read(TextType.ACCOUNT).size();
         assert(length == 1);
 
@@ -98,10 +112,10 @@ public class PersistenceTest {
         // delete the account
         AccountSerializer.serialize(TEST_USERNAME);
 
-        // update the accounts
-        AccountSerializer.updateAccounts();
+        // compact the accounts
+        AccountSerializer.compact(true);
 
-        // check that the accounts file contains no listing of the account
+        // check that the accounts log contains no listing of the account
         length = SerializerUtil.read(TextType.ACCOUNT).size();
         assert(length == 0);
     }
@@ -122,29 +136,29 @@ public class PersistenceTest {
     }
 
     /*
-     * Test that serializing a message and then updating the message file changes the file
+     * Test that serializing a message and then compacting the message log changes the log
      */
     @Test
-    public void SerializingMessage_then_UpdatingMessages_then_deletingAccount_deletes_Message() {
+    public void SerializingMessage_then_CompactingMessages_then_deletingAccount_deletes_Message() {
         // create an account
         AccountSerializer.serialize(TEST_USERNAME);
         // send a message
         MessageSerializer.serialize(TEST_MESSAGE);
-        // update the accounts
-        AccountSerializer.updateAccounts();
-        // update the messages
-        MessageSerializer.updateMessages();
-        // check that the messages file contains the message
+        // compact the accounts
+        AccountSerializer.compact(true);
+        // compact the messages
+        MessageSerializer.compact(true);
+        // check that the messages log contains the message
         int length = SerializerUtil.read(TextType.MESSAGE).size();
         assert(length == 1);
 
         // delete the account
         AccountSerializer.serialize(TEST_USERNAME);
-        // update the accounts
-        AccountSerializer.updateAccounts();
-        // update the messages
-        MessageSerializer.updateMessages();
-        // check that the messages file contains no messages (because the user no longer exists)
+        // compact the accounts
+        AccountSerializer.compact(true);
+        // compact the messages
+        MessageSerializer.compact(true);
+        // check that the messages log contains no messages (because the user no longer exists)
         length = SerializerUtil.read(TextType.MESSAGE).size();
         assert(length == 0);
     }
@@ -155,12 +169,204 @@ public class PersistenceTest {
     @Test
     public void Writing_then_Reading_produces_Username() {
         // Write to the accounts file
-        String[] args = {TEST_USERNAME};
-        SerializerUtil.write(TextType.ACCOUNT, args);
+        SerializerUtil.write(TextType.ACCOUNT, RecordCodec.encodeAccount(TEST_USERNAME));
 
-        // check that the first line contains the account
-        String contents = SerializerUtil.read(TextType.ACCOUNT).get(0);
-        assert(contents.equals(TEST_USERNAME));
+        // check that the first record contains the account
+        ByteBuffer record = ByteBuffer.wrap(SerializerUtil.read(TextType.ACCOUNT).get(0));
+        assert(RecordCodec.kind(record) == RecordCodec.ACCOUNT);
+        assert(RecordCodec.decodeAccount(record).equals(TEST_USERNAME));
+    }
+
+    /*
+     * Test that writes from many threads at once are all group-committed to the log
+     */
+    @Test
+    public void ConcurrentWriting_then_Reading_obtains_AllRecords() throws InterruptedException {
+        final int threads = 8;
+        final int writesPerThread = 50;
+
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final String sender = TEST_USERNAME + i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < writesPerThread; j++) {
+                        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, sender, "" + j, j + 1));
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // check that no record was lost or torn
+        assert(MessageSerializer.deserialize().size() == threads * writesPerThread);
+
+        // check that the log survives being closed and reopened
+        SerializerUtil.closeAll();
+        assert(MessageSerializer.deserialize().size() == threads * writesPerThread);
+    }
+
+    /*
+     * Test that acknowledging a delivered message keeps it from being loaded or compacted again
+     */
+    @Test
+    public void SerializingMessages_then_Acknowledging_skips_DeliveredMessages() {
+        // create an account and send it two messages
+        AccountSerializer.serialize(TEST_USERNAME);
+        MessageSerializer.serialize(TEST_MESSAGE);
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, TEST_USERNAME, "2", 2));
+
+        // deliver the first message
+        MessageSerializer.acknowledge(TEST_USERNAME, 1);
+
+        // check that only the second message is still pending
+        assert(MessageSerializer.deserialize().size() == 1);
+        assert(MessageSerializer.deserialize().get(0).getSequence() == 2);
+        assert(MessageSerializer.deserializeCursors().get(TEST_USERNAME) == 1);
+
+        // check that compaction drops the delivered message but keeps the cursor
+        MessageSerializer.compact(true);
+        assert(SerializerUtil.read(TextType.MESSAGE).size() == 2);
+        assert(MessageSerializer.deserialize().size() == 1);
+        assert(MessageSerializer.deserializeCursors().get(TEST_USERNAME) == 1);
+    }
+
+    /*
+     * Test that separators and escape characters inside a message survive being written and recovered
+     */
+    @Test
+    public void SerializingMessage_with_SpecialCharacters_then_Recovering_obtains_Message() {
+        String text = "tab\there\nnewline, a literal \\t, \u00e9 and \ud83d\ude00";
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, TEST_USERNAME, text, 1));
+
+        PendingMessage result = MessageSerializer.deserialize().get(0);
+        assert(result.getMessage().equals(text));
+        assert(result.getSequence() == 1);
+    }
+
+    /*
+     * Test that a log written in the tab-separated text format is migrated
+     * to the binary format when it is opened
+     */
+    @Test
+    public void Reopening_LegacyLog_migrates_Records() throws IOException {
+        SegmentedLog legacy = new SegmentedLog(Paths.get(BusinessLogicServer.getReplicaFolder() + "messages"), FsyncPolicy.NEVER, 0, 1 << 20);
+        legacy.append("test\tother\tfirst\t1".getBytes(StandardCharsets.UTF_8));
+        legacy.append("test\tother\tescaped\\tsecond\t2".getBytes(StandardCharsets.UTF_8));
+        legacy.append("test\t1".getBytes(StandardCharsets.UTF_8));
+        legacy.close();
+
+        ArrayList<PendingMessage> messages = MessageSerializer.deserialize();
+        assert(messages.size() == 1);
+        assert(messages.get(0).getMessage().equals("escaped\tsecond"));
+        assert(messages.get(0).getSequence() == 2);
+        assert(MessageSerializer.deserializeCursors().get(TEST_USERNAME) == 1);
+
+        // every record was rewritten in the binary format
+        for (byte[] record : SerializerUtil.read(TextType.MESSAGE)) {
+            assert(RecordCodec.isRecord(ByteBuffer.wrap(record)));
+        }
+    }
+
+    /*
+     * Test that after a checkpoint the state is rebuilt from the snapshot plus the log written after it
+     */
+    @Test
+    public void Checkpointing_then_Reopening_replays_Snapshot_and_Tail() {
+        AccountSerializer.serialize(TEST_USERNAME);
+        AccountSerializer.serialize("other");
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, "other", "delivered", 1));
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, "other", "pending", 2));
+        MessageSerializer.acknowledge(TEST_USERNAME, 1);
+
+        Checkpointer.checkpoint();
+
+        // the checkpointed records are gone from the logs
+        assert(SerializerUtil.read(TextType.ACCOUNT).isEmpty());
+        assert(SerializerUtil.read(TextType.MESSAGE).isEmpty());
+
+        // delete an account and queue another message after the checkpoint
+        AccountSerializer.serialize("other");
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, "other", "tail", 3));
+
+        // reopen the logs as a restart would
+        SerializerUtil.closeAll();
+
+        ArrayList<String> accounts = AccountSerializer.deserialize();
+        assert(accounts.size() == 1);
+        assert(accounts.get(0).equals(TEST_USERNAME));
+
+        ArrayList<PendingMessage> messages = MessageSerializer.deserialize();
+        assert(messages.size() == 2);
+        assert(messages.get(0).getMessage().equals("pending"));
+        assert(messages.get(1).getMessage().equals("tail"));
+        assert(MessageSerializer.deserializeCursors().get(TEST_USERNAME) == 1);
+    }
+
+    /*
+     * Test that a snapshot that fails its checksum is skipped for the previous snapshot and the log after it
+     */
+    @Test
+    public void Reopening_with_CorruptedSnapshot_falls_back_to_PreviousSnapshot() throws IOException {
+        AccountSerializer.serialize(TEST_USERNAME);
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, TEST_USERNAME, "first", 1));
+        Checkpointer.checkpoint();
+        AccountSerializer.serialize("other");
+        MessageSerializer.serialize(new PendingMessage(TEST_USERNAME, "other", "second", 2));
+        Checkpointer.checkpoint();
+        SerializerUtil.closeAll();
+
+        // the newest snapshot sorts last
+        File[] snapshots = new File(BusinessLogicServer.getReplicaFolder() + "snapshots").listFiles();
+        assert(snapshots.length == 2);
+        Arrays.sort(snapshots);
+        corrupt(snapshots[1]);
+
+        ArrayList<String> accounts = AccountSerializer.deserialize();
+        assert(accounts.size() == 2);
+        assert(accounts.contains(TEST_USERNAME) && accounts.contains("other"));
+        ArrayList<PendingMessage> messages = MessageSerializer.deserialize();
+        assert(messages.size() == 2);
+        assert(messages.get(0).getMessage().equals("first"));
+        assert(messages.get(1).getMessage().equals("second"));
+    }
+
+    /*
+     * Test that a replica whose only snapshot fails its checksum refuses to start instead of starting empty
+     */
+    @Test
+    public void Reopening_with_NoValidSnapshot_fails() throws IOException {
+        AccountSerializer.serialize(TEST_USERNAME);
+        Checkpointer.checkpoint();
+        SerializerUtil.closeAll();
+
+        File[] snapshots = new File(BusinessLogicServer.getReplicaFolder() + "snapshots").listFiles();
+        assert(snapshots.length == 1);
+        corrupt(snapshots[0]);
+
+        boolean failed = false;
+        try {
+            AccountSerializer.deserialize();
+        } catch (UncheckedIOException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    /*
+     * Flip a byte in the middle of a file
+     */
+    static void corrupt(File snapshot) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        file.seek(file.length() / 2);
+        int b = file.read();
+        file.seek(file.length() / 2);
+        file.write(b ^ 0xff);
+        file.close();
     }
 
 }
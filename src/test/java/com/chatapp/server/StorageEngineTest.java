@@ -0,0 +1,321 @@
+package com.chatapp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chatapp.Chat.Priority;
+import com.chatapp.server.Persistence.Checkpointer;
+import com.chatapp.server.Persistence.RecoveredState;
+import com.chatapp.server.Persistence.SerializerUtil;
+import com.chatapp.server.Persistence.StorageBackend;
+import com.chatapp.server.Persistence.StorageEngine;
+
+public class StorageEngineTest {
+
+    static final Replica REPLICA = Replica.REPLICAS[PersistenceTest.REPLICA_NUMBER];
+
+    /*
+     * Start from an empty replica folder
+     */
+    @Before
+    public void setUp() {
+        new BusinessLogicServer(new Bully(REPLICA), 0, StorageBackend.MEMORY);
+        SerializerUtil.closeAll();
+        PersistenceTest.delete(new File(BusinessLogicServer.getReplicaFolder()));
+        new File(BusinessLogicServer.getReplicaFolder()).mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        SerializerUtil.closeAll();
+        PersistenceTest.delete(new File(BusinessLogicServer.getReplicaFolder()));
+    }
+
+    /*
+     * Runs the same workload against an engine, then recovers it
+     * @param backend the kind of engine
+     * @param reopen whether to close the engine and recover a new one, as a restart would
+     */
+    static RecoveredState recoverAfterWorkload(StorageBackend backend, boolean reopen) {
+        return recoverAfterWorkload(backend, reopen, false);
+    }
+
+    /*
+     * Runs the same workload against an engine, then recovers it
+     * @param backend the kind of engine
+     * @param reopen whether to close the engine and recover a new one, as a restart would
+     * @param lazy whether to recover lazily and then load each account's mailbox on its own
+     */
+    static RecoveredState recoverAfterWorkload(StorageBackend backend, boolean reopen, boolean lazy) {
+        StorageEngine engine = backend.open(BusinessLogicServer.getReplicaFolder());
+        engine.createAccount("alice");
+        engine.createAccount("bob");
+        for (int i = 1; i <= 3; i++) {
+            engine.appendMessage(new PendingMessage("alice", "bob", "message " + i, i));
+        }
+        engine.acknowledge("alice", 1);
+        engine.deleteAccount("bob");
+
+        if (reopen) {
+            engine.close();
+            engine = backend.open(BusinessLogicServer.getReplicaFolder());
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        RecoveredState state = lazy ? engine.recoverLazily(pool) : engine.recover(pool);
+        pool.shutdown();
+        if (lazy) {
+            assert(state.getMailboxes().isEmpty());
+            HashMap<String, ArrayList<PendingMessage>> mailboxes = new HashMap<String, ArrayList<PendingMessage>>();
+            for (String account : state.getAccounts()) {
+                mailboxes.put(account, engine.loadMailbox(account));
+            }
+            state = new RecoveredState(state.getAccounts(), state.getCursors(), mailboxes);
+        }
+        engine.close();
+        return state;
+    }
+
+    static void assertRecovered(RecoveredState state) {
+        assert(state.getAccounts().size() == 1);
+        assert(state.getAccounts().contains("alice"));
+        assert(state.getCursors().get("alice") == 1);
+
+        ArrayList<PendingMessage> mailbox = state.getMailboxes().get("alice");
+        assert(mailbox.size() == 2);
+        assert(mailbox.get(0).getSequence() == 2);
+        assert(mailbox.get(1).getMessage().equals("message 3"));
+    }
+
+    /*
+     * Test that the in-memory engine hands back what it was given
+     */
+    @Test
+    public void InMemoryEngine_recovers_State() {
+        assertRecovered(recoverAfterWorkload(StorageBackend.MEMORY, false));
+    }
+
+    /*
+     * Test that the text engine recovers its state after being reopened, and
+     * again from the files it rewrote on the first recovery
+     */
+    @Test
+    public void FlatFileEngine_recovers_State_after_Reopening() {
+        assertRecovered(recoverAfterWorkload(StorageBackend.TEXT, true));
+
+        StorageEngine engine = StorageBackend.TEXT.open(BusinessLogicServer.getReplicaFolder());
+        assertRecovered(engine.recover(ForkJoinPool.commonPool()));
+        engine.close();
+    }
+
+    /*
+     * Test that messages written before messages were numbered are numbered in order
+     */
+    @Test
+    public void FlatFileEngine_numbers_LegacyMessages() throws IOException {
+        String folder = BusinessLogicServer.getReplicaFolder();
+        Files.write(Paths.get(folder, "accounts.txt"), "alice\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(folder, "messages.txt"), "alice\tbob\tfirst\nalice\tbob\tsecond\n".getBytes(StandardCharsets.UTF_8));
+
+        StorageEngine engine = StorageBackend.TEXT.open(folder);
+        ArrayList<PendingMessage> mailbox = engine.recover(ForkJoinPool.commonPool()).getMailboxes().get("alice");
+        engine.close();
+
+        assert(mailbox.size() == 2);
+        assert(mailbox.get(0).getMessage().equals("first") && mailbox.get(0).getSequence() == 1);
+        assert(mailbox.get(1).getMessage().equals("second") && mailbox.get(1).getSequence() == 2);
+    }
+
+    /*
+     * Test that the backup of an empty file written by older versions is read, then deleted
+     */
+    @Test
+    public void FlatFileEngine_reads_then_deletes_Backups() throws IOException {
+        String folder = BusinessLogicServer.getReplicaFolder();
+        Files.write(Paths.get(folder, "accounts.txt"), new byte[0]);
+        Files.write(Paths.get(folder, "backup_accounts.txt"), "alice\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(folder, "backup_messages.txt"), "alice\tbob\tfirst\t1\n".getBytes(StandardCharsets.UTF_8));
+
+        StorageEngine engine = StorageBackend.TEXT.open(folder);
+        RecoveredState state = engine.recover(ForkJoinPool.commonPool());
+        engine.close();
+
+        assert(state.getAccounts().contains("alice"));
+        assert(state.getMailboxes().get("alice").size() == 1);
+        assert(!Files.exists(Paths.get(folder, "backup_accounts.txt")));
+        assert(!Files.exists(Paths.get(folder, "backup_messages.txt")));
+    }
+
+    /*
+     * Test that the log-structured engine recovers its state after being reopened
+     */
+    @Test
+    public void LogStructuredEngine_recovers_State_after_Reopening() {
+        assertRecovered(recoverAfterWorkload(StorageBackend.LOG, true));
+    }
+
+    /*
+     * Test that every engine hands out the same mailboxes one at a time when recovering lazily
+     */
+    @Test
+    public void RecoveringLazily_then_LoadingMailboxes_recovers_State() {
+        assertRecovered(recoverAfterWorkload(StorageBackend.MEMORY, false, true));
+        assertRecovered(recoverAfterWorkload(StorageBackend.TEXT, true, true));
+        assertRecovered(recoverAfterWorkload(StorageBackend.LOG, true, true));
+    }
+
+    /*
+     * Test that the log-structured engine loads each mailbox from the
+     * snapshot's index and the log after the snapshot
+     */
+    @Test
+    public void LogStructuredEngine_loads_Mailboxes_from_Snapshot_and_Log() {
+        final int users = 100;
+        StorageEngine engine = StorageBackend.LOG.open(BusinessLogicServer.getReplicaFolder());
+        for (int i = 0; i < users; i++) {
+            engine.createAccount("user" + i);
+            engine.appendMessage(new PendingMessage("user" + i, "user0", "old " + i, 1));
+            engine.appendMessage(new PendingMessage("user" + i, "user0", "delivered " + i, 2));
+        }
+        engine.acknowledge("user7", 1);
+        Checkpointer.checkpoint();
+        for (int i = 0; i < users; i++) {
+            engine.appendMessage(new PendingMessage("user" + i, "user0", "new " + i, 3));
+            engine.acknowledge("user" + i, 2);
+        }
+        engine.close();
+
+        engine = StorageBackend.LOG.open(BusinessLogicServer.getReplicaFolder());
+        RecoveredState state = engine.recoverLazily(ForkJoinPool.commonPool());
+        assert(state.getAccounts().size() == users);
+        assert(state.getMailboxes().isEmpty());
+        for (int i = users - 1; i >= 0; i--) {
+            ArrayList<PendingMessage> mailbox = engine.loadMailbox("user" + i);
+            assert(mailbox.size() == 1);
+            assert(mailbox.get(0).getMessage().equals("new " + i));
+        }
+        assert(engine.loadMailbox("nobody").isEmpty());
+        engine.close();
+    }
+
+    /*
+     * Test that every engine recovers a group message for each member it
+     * was queued for, from the log and from a snapshot, and the groups
+     */
+    @Test
+    public void Engines_recover_GroupMessages_and_Groups() {
+        for (StorageBackend backend : StorageBackend.values()) {
+            for (boolean lazy : new boolean[] {false, true}) {
+                setUp();
+                StorageEngine engine = backend.open(BusinessLogicServer.getReplicaFolder());
+                engine.createAccount("alice");
+                engine.createAccount("bob");
+                engine.createAccount("carol");
+                engine.saveGroup("team", Arrays.asList("alice", "bob", "carol"));
+                PendingMessage.Body first = new PendingMessage.Body("bob", "first", "team");
+                engine.appendGroupMessage(Arrays.asList(first.copyFor("alice", 1), first.copyFor("carol", 1)));
+                engine.acknowledge("carol", 1);
+                if (backend == StorageBackend.LOG) {
+                    Checkpointer.checkpoint();
+                }
+                PendingMessage.Body second = new PendingMessage.Body("bob", "second", "team");
+                engine.appendGroupMessage(Arrays.asList(second.copyFor("alice", 2), second.copyFor("carol", 2)));
+
+                if (backend != StorageBackend.MEMORY) {
+                    engine.close();
+                    engine = backend.open(BusinessLogicServer.getReplicaFolder());
+                }
+                RecoveredState state = lazy ? engine.recoverLazily(ForkJoinPool.commonPool()) : engine.recover(ForkJoinPool.commonPool());
+                ArrayList<PendingMessage> alice = lazy ? engine.loadMailbox("alice") : state.getMailboxes().get("alice");
+                ArrayList<PendingMessage> carol = lazy ? engine.loadMailbox("carol") : state.getMailboxes().get("carol");
+                HashMap<String, ArrayList<String>> groups = engine.loadGroups();
+                engine.close();
+
+                assert(alice.size() == 2);
+                assert(alice.get(0).getMessage().equals("first") && alice.get(0).getGroup().equals("team"));
+                assert(alice.get(1).getSequence() == 2 && alice.get(1).getSender().equals("bob"));
+                assert(carol.size() == 1 && carol.get(0).getMessage().equals("second"));
+                assert(groups.get("team").equals(Arrays.asList("alice", "bob", "carol")));
+                tearDown();
+            }
+        }
+    }
+
+    // Verify that every engine keeps the priority of direct and group messages, across a snapshot for the log
+    @Test
+    public void Engines_recover_MessagePriorities() {
+        for (StorageBackend backend : StorageBackend.values()) {
+            setUp();
+            StorageEngine engine = backend.open(BusinessLogicServer.getReplicaFolder());
+            engine.createAccount("alice");
+            engine.createAccount("bob");
+            engine.appendMessage(new PendingMessage.Body("bob", "urgent", null, Priority.HIGH).copyFor("alice", 1));
+            engine.appendMessage(new PendingMessage("alice", "bob", "plain", 2));
+            if (backend == StorageBackend.LOG) {
+                Checkpointer.checkpoint();
+            }
+            PendingMessage.Body bulk = new PendingMessage.Body("bob", "digest", "team", Priority.BULK);
+            engine.appendGroupMessage(Arrays.asList(bulk.copyFor("alice", 3)));
+
+            if (backend != StorageBackend.MEMORY) {
+                engine.close();
+                engine = backend.open(BusinessLogicServer.getReplicaFolder());
+            }
+            ArrayList<PendingMessage> alice = engine.recover(ForkJoinPool.commonPool()).getMailboxes().get("alice");
+            engine.close();
+
+            assert(alice.size() == 3);
+            assert(alice.get(0).getPriority() == Priority.HIGH && alice.get(0).getGroup() == null);
+            assert(alice.get(1).getPriority() == Priority.NORMAL);
+            assert(alice.get(2).getPriority() == Priority.BULK && alice.get(2).getGroup().equals("team"));
+            tearDown();
+        }
+    }
+
+    // Schedule two messages and deliver one, and record messages that expire before and after a checkpoint, then verify that every engine recovers the waiting one and the expiry times.
+    @Test
+    public void Engines_recover_ScheduledMessages_and_ExpiryTimes() {
+        for (StorageBackend backend : StorageBackend.values()) {
+            setUp();
+            StorageEngine engine = backend.open(BusinessLogicServer.getReplicaFolder());
+            engine.createAccount("alice");
+            engine.createAccount("bob");
+            engine.appendMessage(new PendingMessage.Body("bob", "soon gone", null, Priority.NORMAL, 1000).copyFor("alice", 1));
+            if (backend == StorageBackend.LOG) {
+                Checkpointer.checkpoint();
+            }
+            engine.appendMessage(new PendingMessage.Body("bob", "urgent", null, Priority.HIGH, 2000).copyFor("alice", 2));
+            engine.schedule(new ScheduledMessage(1, 5000, new PendingMessage("alice", "bob", "first", 0)));
+            engine.schedule(new ScheduledMessage(2, 6000, new PendingMessage.Body("bob", "second", null, Priority.BULK, 7000).copyFor("alice", 0)));
+            engine.unschedule(1);
+
+            if (backend != StorageBackend.MEMORY) {
+                engine.close();
+                engine = backend.open(BusinessLogicServer.getReplicaFolder());
+            }
+            ArrayList<PendingMessage> alice = engine.recover(ForkJoinPool.commonPool()).getMailboxes().get("alice");
+            ArrayList<ScheduledMessage> scheduled = engine.loadScheduled();
+            engine.close();
+
+            assert(alice.size() == 2);
+            assert(alice.get(0).getExpireAt() == 1000 && alice.get(0).getPriority() == Priority.NORMAL);
+            assert(alice.get(1).getExpireAt() == 2000 && alice.get(1).getPriority() == Priority.HIGH);
+            assert(scheduled.size() == 1);
+            ScheduledMessage second = scheduled.get(0);
+            assert(second.getId() == 2 && second.getDeliverAt() == 6000 && second.getRecipient().equals("alice"));
+            assert(second.getMessage().getSender().equals("bob") && second.getMessage().getMessage().equals("second"));
+            assert(second.getMessage().getPriority() == Priority.BULK && second.getMessage().getExpireAt() == 7000);
+            tearDown();
+        }
+    }
+}
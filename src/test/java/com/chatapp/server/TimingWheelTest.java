@@ -0,0 +1,77 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+  // Set timers a few ticks and several turns of the first wheel away, in no particular order, and verify that each runs after its deadline and in the order of the deadlines.
+  @Test
+  public void schedule_runsTimers_inOrderOfDeadlines() throws InterruptedException {
+    TimingWheel wheel = new TimingWheel("test-timers", 1);
+    final long start = System.currentTimeMillis();
+    long[] delays = {300, 5, 150, 70, 0, 64, 129};
+    final List<Long> ran = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Boolean> late = Collections.synchronizedList(new ArrayList<Boolean>());
+    final CountDownLatch done = new CountDownLatch(delays.length);
+    for (final long delay : delays) {
+      wheel.schedule(start + delay, new Runnable() {
+        @Override
+        public void run() {
+          late.add(System.currentTimeMillis() >= start + delay);
+          ran.add(delay);
+          done.countDown();
+        }
+      });
+    }
+    assert(wheel.size() == delays.length);
+
+    assert(done.await(5, TimeUnit.SECONDS));
+    wheel.close();
+    assert(!late.contains(false));
+    for (int i = 1; i < ran.size(); i++) {
+      assert(ran.get(i - 1) <= ran.get(i));
+    }
+    assert(wheel.size() == 0);
+  }
+
+  // Cancel most of many timers and verify that only the others run, and that a timer can no longer be cancelled once it ran.
+  @Test
+  public void cancel_keepsTimers_fromRunning() throws InterruptedException {
+    TimingWheel wheel = new TimingWheel("test-timers", 1);
+    long deadline = System.currentTimeMillis() + 50;
+    final CountDownLatch ran = new CountDownLatch(10);
+    final CountDownLatch cancelledRan = new CountDownLatch(1);
+    ArrayList<TimingWheel.Timer> kept = new ArrayList<TimingWheel.Timer>();
+    for (int i = 0; i < 10000; i++) {
+      if (i % 1000 == 0) {
+        kept.add(wheel.schedule(deadline + i / 100, new Runnable() {
+          @Override
+          public void run() {
+            ran.countDown();
+          }
+        }));
+      } else {
+        TimingWheel.Timer timer = wheel.schedule(deadline + i / 100, new Runnable() {
+          @Override
+          public void run() {
+            cancelledRan.countDown();
+          }
+        });
+        assert(wheel.cancel(timer));
+        assert(!wheel.cancel(timer));
+      }
+    }
+    assert(wheel.size() == kept.size());
+
+    assert(ran.await(5, TimeUnit.SECONDS));
+    assert(!cancelledRan.await(100, TimeUnit.MILLISECONDS));
+    assert(!wheel.cancel(kept.get(0)));
+    wheel.close();
+  }
+}